@@ -11,7 +11,6 @@ import android.app.LoaderManager.LoaderCallbacks;
 import android.content.CursorLoader;
 import android.content.Loader;
 import android.database.Cursor;
-import android.os.AsyncTask;
 
 import android.os.Build;
 import android.os.Bundle;
@@ -30,6 +29,8 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import ca.mcgill.cim.soundmap.R;
+import ca.mcgill.cim.soundmap.services.Workloads;
+import ca.mcgill.cim.soundmap.tasks.Task;
 
 public class LoginActivity extends AppCompatActivity implements LoaderCallbacks<Cursor> {
 
@@ -163,7 +164,7 @@ public class LoginActivity extends AppCompatActivity implements LoaderCallbacks<
             // perform the user login attempt.
             showProgress(true);
             mAuthTask = new UserLoginTask(email, pin);
-            mAuthTask.execute((Void) null);
+            Workloads.network().execute(mAuthTask);
         }
     }
 
@@ -224,7 +225,7 @@ public class LoginActivity extends AppCompatActivity implements LoaderCallbacks<
     public void onLoaderReset(Loader<Cursor> cursorLoader) {
     }
 
-    public class UserLoginTask extends AsyncTask<Void, Void, Boolean> {
+    public class UserLoginTask extends Task<Void, Boolean> {
 
         private final String mEmail;
         private final String mPin;
@@ -232,10 +233,11 @@ public class LoginActivity extends AppCompatActivity implements LoaderCallbacks<
         UserLoginTask(String email, String pin) {
             mEmail = email;
             mPin = pin;
+            setPriority(Priority.HIGH);
         }
 
         @Override
-        protected Boolean doInBackground(Void... params) {
+        protected Boolean doInBackground() {
             // TODO: attempt authentication against a network service.
 
             try {
@@ -1,14 +1,20 @@
 package ca.mcgill.cim.soundmap.activities;
 
 import android.Manifest;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.location.Location;
-import android.media.MediaRecorder;
 import android.os.CountDownTimer;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.view.Choreographer;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.FragmentActivity;
@@ -23,31 +29,69 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationAvailability;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
+import com.google.android.gms.maps.model.BitmapDescriptor;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.Circle;
 import com.google.android.gms.maps.model.CircleOptions;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.MapStyleOptions;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
 
-import java.io.IOException;
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.File;
+import java.util.concurrent.Executor;
 
 import ca.mcgill.cim.soundmap.R;
+import ca.mcgill.cim.soundmap.audio.AudioEncoders;
+import ca.mcgill.cim.soundmap.audio.CalibrationProfile;
+import ca.mcgill.cim.soundmap.audio.Calibrator;
+import ca.mcgill.cim.soundmap.audio.CaptureConfig;
+import ca.mcgill.cim.soundmap.audio.CaptureStats;
+import ca.mcgill.cim.soundmap.audio.LevelMeter;
+import ca.mcgill.cim.soundmap.audio.SegmentingEncoder;
+import ca.mcgill.cim.soundmap.audio.SpeechScrubber;
+import ca.mcgill.cim.soundmap.map.Clusters;
+import ca.mcgill.cim.soundmap.map.MarkerIcons;
+import ca.mcgill.cim.soundmap.map.MarkerRegistry;
+import ca.mcgill.cim.soundmap.map.NoiseCells;
+import ca.mcgill.cim.soundmap.map.RoutePlanner;
+import ca.mcgill.cim.soundmap.map.SampleHits;
+import ca.mcgill.cim.soundmap.map.SpatialGrid;
 import ca.mcgill.cim.soundmap.services.FileTransferService;
+import ca.mcgill.cim.soundmap.network.AssignmentChannel;
+import ca.mcgill.cim.soundmap.network.HttpClients;
+import ca.mcgill.cim.soundmap.network.NetworkStats;
+import ca.mcgill.cim.soundmap.network.StreamingUploadBody;
+import ca.mcgill.cim.soundmap.network.TargetClient;
+import ca.mcgill.cim.soundmap.protocol.UserPositions;
+import ca.mcgill.cim.soundmap.network.UploadQueue;
+import ca.mcgill.cim.soundmap.services.CalibrationStore;
+import ca.mcgill.cim.soundmap.services.CalibrationTask;
+import ca.mcgill.cim.soundmap.services.CellUploadTask;
 import ca.mcgill.cim.soundmap.services.LocationClientService;
+import ca.mcgill.cim.soundmap.services.LoggingService;
+import ca.mcgill.cim.soundmap.services.SampleCatalog;
+import ca.mcgill.cim.soundmap.services.SegmentLogger;
+import ca.mcgill.cim.soundmap.services.TargetPrefetchTask;
+import ca.mcgill.cim.soundmap.services.WaveRecorderService;
+import ca.mcgill.cim.soundmap.services.Workloads;
+import ca.mcgill.cim.soundmap.tasks.PeriodicScheduler;
 
-public class MappingActivity extends FragmentActivity implements SensorEventListener {
+public class MappingActivity extends FragmentActivity
+        implements SensorEventListener, AssignmentChannel.Listener, LoggingService.Listener {
 
     // Log Tag
     private static final String TAG = "MappingActivity";
@@ -79,11 +123,9 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
     private static final int DEFAULT_TILT = 70;
     private static final int DEFAULT_BEARING = 0;
 
-    // Event Timers
-    private Timer mLocationUpdateTimer;
-    private static final int LOCATION_UPDATE_RATE = 1000; // ms
-    private Timer mAudioSampleTimer;
-    private static final int AUDIO_SAMPLE_RATE = 100;     // ms
+    // Periodic Events (paused with the activity)
+    private PeriodicScheduler mScheduler;
+    private static final int HEADING_UPDATE_RATE = 1000;  // ms
 
     // GPS Localization
     private final LatLng mDefaultLocation = new LatLng(45.504812985241564, -73.57715606689453);
@@ -92,6 +134,15 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
     private long mLastFix;
     private static final int GPS_TIMEOUT = 60000;               // ms (1 min)
 
+    // Location Updates
+    // Fixes are delivered by the fused provider instead of being polled; a user standing still
+    // gets no updates at all once they are within the displacement filter
+    private FusedLocationProviderClient mLocationClient;
+    private boolean mIsRequestingLocation = false;
+    private static final int LOCATION_UPDATE_RATE = 1000;       // ms
+    private static final int LOCATION_FASTEST_RATE = 500;       // ms
+    private static final float LOCATION_MIN_DISPLACEMENT = 1;   // m
+
     // Compass
     private SensorManager mSensorManager;
     private final float[] mAccelerometerReading = new float[3];
@@ -104,28 +155,99 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
     private GoogleMap mMap;
     private boolean mIsViewInitted = false;
     private Marker mTarget;
+    private Circle mTargetCircle;
     private Marker mHeadingMarker;
+    private MarkerRegistry mPersonMarkers;
+    private final MarkerIcons mIcons = new MarkerIcons();
+    private BitmapDescriptor mClusterIcon;
+
+    // Other Users (culled to the viewport and clustered)
+    private final SpatialGrid mUserGrid = new SpatialGrid(USER_GRID_CELL_SIZE);
+    private final Clusters mUserClusters = new Clusters();
+    private static final double USER_GRID_CELL_SIZE = 0.0005;  // deg (~50 m)
+    private static final int CLUSTER_COLUMNS = 6;              // clusters across the screen
+    private static final double VIEWPORT_MARGIN = 0.1;         // of the viewport size
     private static final double DEFAULT_MARKER_OPACITY = 0.9;
     private static final double TARGET_DISTANCE_THRESHOLD = 20; // m
 
+    // Targets asked for at once when polling, and how far the user walks before the route
+    // through them is planned again
+    private static final int ROUTE_BATCH_SIZE = 10;
+    private static final double ROUTE_REPLAN_DISTANCE = 50;     // m
+
     // Audio Sampling
-    private MediaRecorder mAudioSampler;
+    private WaveRecorderService mAudioSampler;
+    private UploadQueue mUploadQueue;
     private String mPathToFile;
     private String mSampleFile;
-    private int mCurrentVolume = -1;
-    private static final String AUDIO_FILE_EXT = ".3gp";
+    private static final CaptureConfig CAPTURE_CONFIG = AudioEncoders.resolve(
+            new CaptureConfig(44100, 2, 16, CaptureConfig.Codec.FLAC));
+    private static final int UPLOAD_STREAM_CAPACITY = 64;   // recorder reads (~5 s of audio)
     private static final int RECORDING_LENGTH = 30000;
+    // Upload only the events in a sample (and the features of all of it), not the quiet parts
+    private static final boolean UPLOAD_EVENTS_ONLY = true;
+    // Speech of passers-by is masked on the device, before anything is stored or uploaded
+    private static final SpeechScrubber.Mode SCRUB_MODE = SpeechScrubber.Mode.MASK;
+
+    // Calibration of this phone model (long press on the volume text while debugging)
+    private CalibrationStore mCalibrationStore;
+
+    // Samples recorded on this device, to tell the user when a spot is already covered
+    private SampleCatalog mCatalog;
+    private final SampleHits mCatalogHits = new SampleHits();
+
+    // Levels per map cell of everything captured, sent to the server as deltas
+    private final NoiseCells mNoiseCells = new NoiseCells();
+    private CalibrationProfile mCalibration = CalibrationProfile.UNCALIBRATED;
+    private CalibrationTask mCalibrationTask;
+    private static final double[] CALIBRATION_TONES = {CalibrationProfile.REFERENCE_FREQUENCY};
+
+    // Continuous logging (long press on the record button), run by a foreground service with
+    // location updates of its own, so that it goes on with the screen off
+    private LoggingService mLoggingService;
+    private boolean mIsLoggingBound = false;
+    private boolean mIsLogging = false;
+    private static final long LOG_SEGMENT_LENGTH = 5 * 60 * 1000;          // ms
+    private static final long LOG_DISK_BUDGET = 256L * 1024 * 1024;       // bytes
     private static final int RECORDING_CHECK_RATE = 1000;
     private static final double PROGRESS_RATE =
             ((double)RECORDING_CHECK_RATE / (double)RECORDING_LENGTH) * 100;
 
     // Volume Indicator
-    private static final int VOLUME_UPPER_BOUND = 1000;
-    private static final int VOLUME_LOWER_BOUND = 100;
+    // Sampled from the recorder's level meter once per frame while recording
+    private static final float VOLUME_UPPER_BOUND = -20;  // dBFS
+    private static final float VOLUME_LOWER_BOUND = -60;  // dBFS
     private View mVolumeBar;
     private int mVolumeBarMaxHeight;
-    private int mVolumeBarSetpoint;
+    private int mVolumeBarHeight = -1;
     private TextView mVolumeText;
+    private int mVolumeTextLevel = Integer.MIN_VALUE;
+    private final char[] mVolumeChars = new char[12];
+    private boolean mIsMetering = false;
+
+    // Server Push
+    private AssignmentChannel mChannel;
+    private boolean mIsAwaitingPush = false;
+    // The channel's user table, copied on the UI thread into the same arrays at every change
+    private final UserPositions mPushedUsers = new UserPositions();
+    // A pushed target that has not come by then is polled for instead
+    private final Handler mPushTimeoutHandler = new Handler(Looper.getMainLooper());
+    private static final long PUSH_TIMEOUT = 10000;  // ms
+
+    // Next target, asked for while the sample records and taken up once it is uploaded
+    private TargetPrefetchTask mPrefetchTask;
+    private TargetClient.Target mPrefetchedTarget;
+
+    // Targets assigned in a batch, in visiting order; the first one is on the map
+    private RoutePlanner mRoute;
+    private LatLng mRoutePlannedFrom;
+
+    private final Executor mUiExecutor = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            runOnUiThread(command);
+        }
+    };
 
     // Misc UI Elements
     private TextView mErrorMessage;
@@ -154,11 +276,24 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
             return;
         }
 
-        // Initialize Timers
-        // $1 == Thread Name
-        // $2 == Run as Daemon
-        mLocationUpdateTimer = new Timer("GPS Update Event Timer", true);
-        mAudioSampleTimer = new Timer("Audio Sampling Event Timer", true);
+        // Picks up any samples left over from a previous session
+        mUploadQueue = UploadQueue.getInstance(getExternalCacheDir());
+
+        // Levels in dB SPL and a flat response, if this phone model has been calibrated
+        mCalibrationStore = new CalibrationStore(this);
+        mCalibration = mCalibrationStore.load();
+
+        // The index of past samples is read from disk once per process, in the background
+        mCatalog = SampleCatalog.getInstance(this);
+        Workloads.dsp().execute(new Runnable() {
+            @Override
+            public void run() {
+                mCatalog.load();
+            }
+        });
+
+        // One thread for the heading and volume ticks, instead of a Timer each
+        mScheduler = new PeriodicScheduler("Mapping Event Scheduler");
 
         // Create Event Listener for the recording button
         ImageButton recordButton = (ImageButton) findViewById(R.id.rec_button);
@@ -168,6 +303,13 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
                 recordButtonClicked();
             }
         });
+        recordButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                recordButtonLongClicked();
+                return true;
+            }
+        });
 
         // Create Event Listener for the recording button
         ImageButton recBadge = (ImageButton) findViewById(R.id.rec_badge);
@@ -181,6 +323,13 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
         // Set up members for various UI Elements
         mVolumeBar = findViewById(R.id.volume_bar);
         mVolumeText = (TextView) findViewById(R.id.volume_text);
+        mVolumeText.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                startCalibration();
+                return true;
+            }
+        });
         mProgressBar = (ProgressBar) findViewById(R.id.rec_progress);
         mErrorMessage = (TextView) findViewById(R.id.error_text);
 
@@ -205,6 +354,11 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
         } else {
             mVolumeText.setVisibility(View.VISIBLE);
             mIsDebugging = true;
+
+            // Connection reuse and latency of the shared network layer, and the backlog of each
+            // pool of background work
+            Toast.makeText(this, NetworkStats.summary() + "\n" + Workloads.summary()
+                    + "\nSamples on device: " + mCatalog.size(), Toast.LENGTH_LONG).show();
         }
     }
 
@@ -212,6 +366,17 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
     protected void onResume() {
         super.onResume();
 
+        // Location updates and periodic ticks only run while the map is on screen
+        if (mScheduler != null) {
+            mScheduler.resume();
+        }
+        if (mMap != null) {
+            startLocationUpdates();
+        }
+        if (mIsRecording) {
+            startMetering();
+        }
+
         if (mSensorManager == null) {
             return;
         }
@@ -229,6 +394,13 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
     protected void onPause() {
         super.onPause();
 
+        // Continuous logging keeps location updates of its own, in LoggingService
+        stopLocationUpdates();
+        if (mScheduler != null) {
+            mScheduler.pause();
+        }
+        stopMetering();
+
         if (mSensorManager == null) {
             return;
         }
@@ -315,6 +487,18 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
                     mMap.setBuildingsEnabled(false);
                     mMap.setIndoorEnabled(false);
 
+                    // Other users are diffed into the map rather than redrawn, and follow
+                    // the camera since only those in view are drawn
+                    mPersonMarkers = new MarkerRegistry(mMap, (float)DEFAULT_MARKER_OPACITY);
+                    mClusterIcon = BitmapDescriptorFactory.defaultMarker(
+                            BitmapDescriptorFactory.HUE_AZURE);
+                    mMap.setOnCameraIdleListener(new GoogleMap.OnCameraIdleListener() {
+                        @Override
+                        public void onCameraIdle() {
+                            updateUserLayer();
+                        }
+                    });
+
                     //Log.d(TAG, "onMapReady: Map created and flags set; Enabling location services");
 
                     // Recheck Permissions because android is ... thorough.
@@ -329,69 +513,156 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
                     // Enable Location Services within the Google Maps API
                     mMap.setMyLocationEnabled(true);
                     mLastFix = System.currentTimeMillis();
-                    getCurrentLocation();
+                    getLastLocation();
+
+                    //Log.d(TAG, "onMapReady: Location services enabled; Requesting updates");
 
-                    //Log.d(TAG, "onMapReady: Location services enabled; Starting refresh timer");
+                    // Fixes arrive through mLocationCallback; the compass is still polled
+                    startLocationUpdates();
+                    mScheduler.schedule(mHeadingTask, HEADING_UPDATE_RATE);
 
-                    // Start a timer to continuously update the location
-                    mLocationUpdateTimer.schedule(new GetLocationTask(), 0, LOCATION_UPDATE_RATE);
+                    // Targets and other users are pushed by the server when it supports it
+                    mChannel = new AssignmentChannel(HttpClients.forChannel(),
+                            AssignmentChannel.CHANNEL_URL, mUser, MappingActivity.this,
+                            mUiExecutor);
+                    mChannel.open();
                 }
             }
         });
     }
 
-    private void getCurrentLocation() {
-        //Log.d(TAG, "getCurrentLocation: Getting current location");
-        FusedLocationProviderClient fusedLocationProviderClient =
-                LocationServices.getFusedLocationProviderClient(this);
+    private FusedLocationProviderClient getLocationClient() {
+        // One client for the lifetime of the activity
+        if (mLocationClient == null) {
+            mLocationClient = LocationServices.getFusedLocationProviderClient(this);
+        }
+        return mLocationClient;
+    }
+
+    private LocationRequest buildLocationRequest(long interval, float minDisplacement) {
+        return LocationRequest.create()
+                .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY)
+                .setInterval(interval)
+                .setFastestInterval(Math.min(interval, LOCATION_FASTEST_RATE))
+                .setSmallestDisplacement(minDisplacement);
+    }
 
+    private void getLastLocation() {
+        // Seeds the camera with the cached fix, if any, until the first update arrives
         try {
             if (mPermissionGranted) {
-                // Retrieve the last known location as a Task
-                // Note: the fusedLocationProviderClient seems to be the most recent API...
-                // I think it also uses other networks, like wifi?
-                // If necessary, there are alternative APIs
-                Task track = fusedLocationProviderClient.getLastLocation();
-                fusedLocationProviderClient.flushLocations();
-
-                track.addOnCompleteListener(new OnCompleteListener() {
-                    @Override
-                    public void onComplete(@NonNull Task task) {
-                        long now = System.currentTimeMillis();
-
-                        if (task.isSuccessful()) {
-                            Location location = (Location) task.getResult();
-
-                            // Get the bearing and coordinates of the device location
-                            updateOrientationAngles();
-                            mLastKnownCoords = new LatLng(location.getLatitude(),
-                                                          location.getLongitude());
-
-                            if (mIsViewInitted) {
-                                updateCameraPose();
-                            } else {
-                                initCameraPose();
+                getLocationClient().getLastLocation()
+                        .addOnCompleteListener(new OnCompleteListener<Location>() {
+                            @Override
+                            public void onComplete(@NonNull Task<Location> task) {
+                                if (task.isSuccessful() && task.getResult() != null) {
+                                    onLocationFix(task.getResult());
+                                }
                             }
+                        });
+            }
+        } catch (SecurityException e) {
+            //Log.e(TAG, "getLastLocation: " + e.toString());
+        }
+    }
 
-                            mIsTimeout = false;
-                            mLastFix = now;
+    private void startLocationUpdates() {
+        if (mIsRequestingLocation || !mPermissionGranted) {
+            return;
+        }
+
+        try {
+            // Callbacks are delivered on the main looper
+            getLocationClient().requestLocationUpdates(
+                    buildLocationRequest(LOCATION_UPDATE_RATE, LOCATION_MIN_DISPLACEMENT),
+                    mLocationCallback, getMainLooper());
+            mIsRequestingLocation = true;
+        } catch (SecurityException e) {
+            //Log.e(TAG, "startLocationUpdates: " + e.toString());
+        }
+    }
 
-                        } else {
-                            // Could not get a proper GPS fix
-                            //Log.d(TAG, "onComplete: GPS signal unavailable");
-                            Toast.makeText(MappingActivity.this, "GPS signal unavailable",
-                                    Toast.LENGTH_SHORT).show();
+    private void stopLocationUpdates() {
+        if (mIsRequestingLocation) {
+            getLocationClient().removeLocationUpdates(mLocationCallback);
+            mIsRequestingLocation = false;
+        }
+    }
 
-                            if (Math.abs(now - mLastFix) > GPS_TIMEOUT) {
-                                //Log.d(TAG, "onComplete: GPS timed out");
-                                mIsTimeout = true;
-                            }
-                        }
-                    }
-                });
+    private final LocationCallback mLocationCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult result) {
+            Location location = result.getLastLocation();
+            if (location != null) {
+                onLocationFix(location);
             }
-        } catch (SecurityException e) {
-            //Log.e(TAG, "getLocation: " + e.toString());
+        }
+
+        @Override
+        public void onLocationAvailability(LocationAvailability availability) {
+            long now = System.currentTimeMillis();
+
+            if (availability.isLocationAvailable()) {
+                // Standing still produces no fixes, so availability is what counts as a signal
+                mIsTimeout = false;
+                mLastFix = now;
+            } else {
+                // Could not get a proper GPS fix
+                //Log.d(TAG, "onLocationAvailability: GPS signal unavailable");
+                Toast.makeText(MappingActivity.this, "GPS signal unavailable",
+                        Toast.LENGTH_SHORT).show();
+
+                if (Math.abs(now - mLastFix) > GPS_TIMEOUT) {
+                    //Log.d(TAG, "onLocationAvailability: GPS timed out");
+                    mIsTimeout = true;
+                }
+            }
+        }
+    };
+
+    private void onLocationFix(Location location) {
+        // Get the bearing and coordinates of the device location
+        updateOrientationAngles();
+        mLastKnownCoords = new LatLng(location.getLatitude(), location.getLongitude());
+
+        if (mIsViewInitted) {
+            updateCameraPose();
+        } else {
+            initCameraPose();
+        }
+
+        mIsTimeout = false;
+        mLastFix = System.currentTimeMillis();
+
+        replanRoute();
+    }
+
+    private void replanRoute() {
+        if (mRoute == null || mRoute.size() < 2 || RoutePlanner.distance(
+                mRoutePlannedFrom.latitude, mRoutePlannedFrom.longitude,
+                mLastKnownCoords.latitude, mLastKnownCoords.longitude) < ROUTE_REPLAN_DISTANCE) {
+            return;
+        }
+
+        // The user may have wandered closer to another target of the batch; lead there instead
+        String next = mRoute.getTag(0);
+        mRoute.update(mLastKnownCoords.latitude, mLastKnownCoords.longitude);
+        mRoutePlannedFrom = mLastKnownCoords;
+        if (!next.equals(mRoute.getTag(0))) {
+            showNextInRoute();
+        }
+    }
+
+    private void showNextInRoute() {
+        onRequestMarkerUpdateComplete(new Pair<>(mRoute.getTag(0),
+                new LatLng(mRoute.getLat(0), mRoute.getLng(0))));
+    }
+
+    private void updateHeading() {
+        // The heading changes without the position; turn the marker in place
+        updateOrientationAngles();
+        if (mHeadingMarker != null) {
+            mHeadingMarker.setRotation(mLastKnownBearing);
         }
     }
 
@@ -419,68 +690,207 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
                 .bearing(mMap.getCameraPosition().bearing) // Don't override bearing either
                 .build();
 
-        if (mHeadingMarker != null) {
-            mHeadingMarker.remove();
-        }
-
         mMap.animateCamera(CameraUpdateFactory.newCameraPosition(cameraPosition));
-        mHeadingMarker = mMap.addMarker(new MarkerOptions()
-                .position(mLastKnownCoords)
-                .alpha((float)DEFAULT_MARKER_OPACITY)
-                .rotation(mLastKnownBearing)
-                .draggable(false)
-                .flat(true)
-                .icon(BitmapDescriptorFactory.fromResource(R.mipmap.ic_navigation_large)));
+
+        // The heading marker is created once and then moved
+        if (mHeadingMarker == null) {
+            mHeadingMarker = mMap.addMarker(new MarkerOptions()
+                    .position(mLastKnownCoords)
+                    .alpha((float)DEFAULT_MARKER_OPACITY)
+                    .rotation(mLastKnownBearing)
+                    .draggable(false)
+                    .flat(true)
+                    .icon(mIcons.get(R.mipmap.ic_navigation_large)));
+        } else {
+            mHeadingMarker.setPosition(mLastKnownCoords);
+            mHeadingMarker.setRotation(mLastKnownBearing);
+        }
     }
 
     private void requestMarkerUpdate() {
-        mMap.clear();
-
         if (mIsStartedTask) {
+            // The rest of a batch is already assigned; walk on to the next target of the route
+            if (mRoute != null && mRoute.size() > 1) {
+                mRoute.removeNext();
+                mRoute.update(mLastKnownCoords.latitude, mLastKnownCoords.longitude);
+                mRoutePlannedFrom = mLastKnownCoords;
+                showNextInRoute();
+                return;
+            }
+            mRoute = null;
+
+            // The prefetched target is shown at once, and confirmed (or replaced) behind it
+            TargetClient.Target offer = takePrefetchedTarget();
+            if (offer != null) {
+                onRequestMarkerUpdateComplete(
+                        new Pair<>(offer.tag, new LatLng(offer.lat, offer.lng)));
+                LocationClientService lcs =
+                        new LocationClientService(this, mUser, mLastKnownCoords);
+                lcs.confirm(offer);
+                Workloads.network().execute(lcs);
+                return;
+            }
+
             Toast.makeText(this, "Waiting for next location from server", Toast.LENGTH_SHORT).show();
 
+            // Prefer the push channel; the target arrives in onTarget()
+            if (mChannel != null && mChannel.requestNextTarget(mLastKnownCoords.latitude,
+                                                               mLastKnownCoords.longitude)) {
+                mIsAwaitingPush = true;
+                mPushTimeoutHandler.postDelayed(mPushTimeout, PUSH_TIMEOUT);
+                return;
+            }
+
+            // Fall back on polling, and try to bring the channel back for the next cycle
+            if (mChannel != null) {
+                mChannel.open();
+            }
             LocationClientService lcs = new LocationClientService(this, mUser, mLastKnownCoords);
-            lcs.execute();
+            lcs.requestRoute(ROUTE_BATCH_SIZE);
+            Workloads.network().execute(lcs);
         }
     }
 
-    public void onRequestMarkerUpdateComplete(Pair<String, LatLng> target,
-                                              List<Pair<String, LatLng>> users) {
+    private void prefetchNextTarget() {
+        takePrefetchedTarget();
+        if (mRoute != null && mRoute.size() > 1) {
+            // The next target is already in the route
+            return;
+        }
+        mPrefetchTask = new TargetPrefetchTask(this, mUser, mLastKnownCoords);
+        Workloads.network().execute(mPrefetchTask);
+    }
+
+    // A prefetch still in flight is dropped; the target is asked for the usual way instead
+    private TargetClient.Target takePrefetchedTarget() {
+        if (mPrefetchTask != null) {
+            mPrefetchTask.cancel(false);
+            mPrefetchTask = null;
+        }
+
+        TargetClient.Target offer = mPrefetchedTarget;
+        mPrefetchedTarget = null;
+        return offer;
+    }
+
+    public void onTargetPrefetched(TargetClient.Target target) {
+        mPrefetchTask = null;
+        mPrefetchedTarget = target;
+    }
+
+    @Override
+    public void onTarget(String tag, double lat, double lng) {
+        mIsAwaitingPush = false;
+        mPushTimeoutHandler.removeCallbacks(mPushTimeout);
+        onRequestMarkerUpdateComplete(new Pair<>(tag, new LatLng(lat, lng)));
+    }
+
+    @Override
+    public void onUsersChanged() {
+        mChannel.getUsers(mPushedUsers);
+        onUsersUpdateComplete(mPushedUsers);
+    }
+
+    @Override
+    public void onChannelClosed() {
+        // A target requested through the channel will never come; poll for it instead
+        pollInsteadOfPush();
+    }
+
+    // The server may also drop or ignore a request on a socket that stays open
+    private final Runnable mPushTimeout = new Runnable() {
+        @Override
+        public void run() {
+            //Log.w(TAG, "run: No target pushed in time; Polling instead");
+            pollInsteadOfPush();
+        }
+    };
+
+    private void pollInsteadOfPush() {
+        mPushTimeoutHandler.removeCallbacks(mPushTimeout);
+        if (mIsAwaitingPush && !isFinishing()) {
+            mIsAwaitingPush = false;
+            LocationClientService lcs = new LocationClientService(this, mUser, mLastKnownCoords);
+            lcs.requestRoute(ROUTE_BATCH_SIZE);
+            Workloads.network().execute(lcs);
+        }
+    }
+
+    // Arrives just before the first target of the route
+    public void onRouteUpdateComplete(RoutePlanner route) {
+        mRoute = route;
+        mRoutePlannedFrom = mLastKnownCoords;
+    }
 
+    public void onRequestMarkerUpdateComplete(Pair<String, LatLng> target) {
         if (target != null && target.first != null && target.second != null) {
             mErrorMessage.setVisibility(View.GONE);
             addMarker(target.second, target.first);
         } else {
             mErrorMessage.setVisibility(View.VISIBLE);
         }
+    }
 
-        if (!(users == null || users.isEmpty())) {
-            for (Pair<String, LatLng> user : users) {
-                if (user.first != null && user.second != null) {
-                    addPerson(user.second, user.first);
-                }
-            }
-        }
+    // May arrive before or after the target; the two layers are independent
+    public void onUsersUpdateComplete(UserPositions users) {
+        mUserGrid.build(users != null ? users : new UserPositions());
+        updateUserLayer();
     }
 
-    private void addPerson(LatLng latLng, String user) {
-        mMap.addMarker(new MarkerOptions()
-                .position(latLng)
-                .title(user)
-                .alpha((float)DEFAULT_MARKER_OPACITY)
-                .draggable(false)
-                .icon(BitmapDescriptorFactory.fromResource(R.mipmap.ic_person)));
+    private void updateUserLayer() {
+        if (mPersonMarkers == null) {
+            return;
+        }
+
+        // Cull to the visible region, with a margin so that markers don't pop in at the edges
+        LatLngBounds bounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+        double latMargin = (bounds.northeast.latitude - bounds.southwest.latitude)
+                * VIEWPORT_MARGIN;
+        double lngMargin = (bounds.northeast.longitude - bounds.southwest.longitude)
+                * VIEWPORT_MARGIN;
+        double clusterSize = SpatialGrid.clusterSizeFor(
+                bounds.northeast.longitude - bounds.southwest.longitude, CLUSTER_COLUMNS);
+
+        mUserGrid.query(bounds.southwest.latitude - latMargin,
+                bounds.southwest.longitude - lngMargin,
+                bounds.northeast.latitude + latMargin,
+                bounds.northeast.longitude + lngMargin,
+                clusterSize, mUserClusters);
+
+        // Only the users and clusters that appeared, moved or left touch the map
+        mPersonMarkers.begin();
+        for (int i = 0; i < mUserClusters.size(); i++) {
+            String name = mUserClusters.getName(i);
+            if (name != null) {
+                mPersonMarkers.put(name, mUserClusters.getLat(i), mUserClusters.getLng(i),
+                        name, mIcons.get(R.mipmap.ic_person));
+            } else {
+                int count = mUserClusters.getCount(i);
+                mPersonMarkers.put("#" + mUserClusters.getKey(i),
+                        mUserClusters.getLat(i), mUserClusters.getLng(i),
+                        count + " users", mClusterIcon);
+            }
+        }
+        mPersonMarkers.end();
     }
 
     private void addMarker(LatLng latLng, String desc) {
+        // Only one target at a time; move it rather than re-creating it
+        if (mTarget != null) {
+            mTarget.setPosition(latLng);
+            mTarget.setTitle(desc);
+            mTargetCircle.setCenter(latLng);
+            return;
+        }
+
         mTarget = mMap.addMarker(new MarkerOptions()
                 .position(latLng)
                 .title(desc)
                 .alpha((float)DEFAULT_MARKER_OPACITY)
                 .draggable(false)
-                .icon(BitmapDescriptorFactory.fromResource(R.mipmap.ic_marker)));
+                .icon(mIcons.get(R.mipmap.ic_marker)));
 
-        mMap.addCircle(new CircleOptions()
+        mTargetCircle = mMap.addCircle(new CircleOptions()
                 .center(latLng)
                 .radius(TARGET_DISTANCE_THRESHOLD)
                 .clickable(false)
@@ -493,14 +903,129 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
         // Grab the recording status button to switch it on and off
         //Log.d(TAG, "recordButtonClicked: clicked");
 
-        if (mIsRecording) {
+        if (mIsLogging) {
+            Toast.makeText(this, "Long press to stop logging", Toast.LENGTH_SHORT).show();
+        } else if (mIsRecording) {
             Toast.makeText(this, "Please wait for the recording to finish",
                     Toast.LENGTH_SHORT).show();
+        } else if (mCalibrationTask != null) {
+            Toast.makeText(this, "Please wait for the calibration to finish",
+                    Toast.LENGTH_SHORT).show();
         } else {
             startRecording();
         }
     }
 
+    private void recordButtonLongClicked() {
+        if (mIsLogging) {
+            stopLogging();
+        } else if (mIsRecording) {
+            Toast.makeText(this, "Please wait for the recording to finish",
+                    Toast.LENGTH_SHORT).show();
+        } else if (mCalibrationTask != null) {
+            Toast.makeText(this, "Please wait for the calibration to finish",
+                    Toast.LENGTH_SHORT).show();
+        } else {
+            startLogging();
+        }
+    }
+
+    // From memory, so cheap enough for the UI thread
+    private void warnIfSampledHere() {
+        if (mCatalog.nearest(mLastKnownCoords.latitude, mLastKnownCoords.longitude, 1,
+                mCatalogHits) > 0 && mCatalogHits.getDistance(0) < TARGET_DISTANCE_THRESHOLD) {
+            Toast.makeText(this, "You have already recorded a sample here",
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void startLogging() {
+        if (mPathToFile == null || mPathToFile.trim().equals("")) {
+            Toast.makeText(this, "Cannot record.. Contact admin", Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        // Started as well as bound, so that the capture outlives this activity if need be
+        Intent intent = new Intent(this, LoggingService.class);
+        startService(intent);
+        mIsLoggingBound = bindService(intent, mLoggingConnection, BIND_AUTO_CREATE);
+        startMetering();
+
+        ImageButton status = (ImageButton) findViewById(R.id.rec_badge);
+        ImageButton button = (ImageButton) findViewById(R.id.rec_button);
+        button.setImageResource(R.mipmap.ic_button_grey);
+        status.setImageResource(R.mipmap.ic_rec_badge_red);
+        mIsRecording = true;
+        mIsLogging = true;
+
+        Toast.makeText(this, "Logging continuously. Long press to stop",
+                Toast.LENGTH_LONG).show();
+    }
+
+    private void stopLogging() {
+        // Finishes and queues the last, partial segment
+        if (mLoggingService != null) {
+            mLoggingService.stop();
+        } else {
+            // Stopped before the service came up
+            stopService(new Intent(this, LoggingService.class));
+        }
+        unbindLoggingService();
+        stopRecording();
+        mIsLogging = false;
+        uploadNoiseCells();
+    }
+
+    private void unbindLoggingService() {
+        if (mLoggingService != null) {
+            mLoggingService.setListener(null);
+            mLoggingService = null;
+        }
+        if (mIsLoggingBound) {
+            unbindService(mLoggingConnection);
+            mIsLoggingBound = false;
+        }
+    }
+
+    private final ServiceConnection mLoggingConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mLoggingService = ((LoggingService.LocalBinder) binder).getService();
+            mLoggingService.setListener(MappingActivity.this);
+
+            // Each segment is queued for upload as soon as it is complete
+            SegmentLogger segmentLogger = new SegmentLogger(new File(mPathToFile), mUser,
+                    CAPTURE_CONFIG.getCodec().getExtension(), mUploadQueue, LOG_DISK_BUDGET);
+            SegmentingEncoder segmenter = new SegmentingEncoder(CAPTURE_CONFIG,
+                    LOG_SEGMENT_LENGTH * CAPTURE_CONFIG.getSampleRate() / 1000,
+                    AudioEncoders.factoryFor(CAPTURE_CONFIG), segmentLogger, true);
+            if (mLastKnownCoords != null) {
+                segmenter.setFix(new SegmentingEncoder.Fix(mLastKnownCoords.latitude,
+                        mLastKnownCoords.longitude, mLastFix));
+            }
+            segmenter.aggregateInto(mNoiseCells);
+
+            // Not tied to this activity, which may be gone long before the capture ends
+            mAudioSampler = new WaveRecorderService(null, CAPTURE_CONFIG, segmenter);
+            mAudioSampler.calibrate(mCalibration);
+            mAudioSampler.scrubSpeech(SCRUB_MODE);
+            mLoggingService.start(mAudioSampler, segmenter, segmentLogger);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mLoggingService = null;
+        }
+    };
+
+    @Override
+    public void onLoggingStopped() {
+        // From the notification
+        if (mIsLogging) {
+            stopLogging();
+        }
+    }
+
     private void startRecording() {
         // Check once before attempting to start recording...
         if (mIsStartedTask) {
@@ -523,38 +1048,53 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
             findViewById(R.id.info_text).setVisibility(View.INVISIBLE);
             mIsStartedTask = true;
         }
+        warnIfSampledHere();
 
         //Log.d(TAG, "recordButtonClicked: Recording ON");
         ImageButton status = (ImageButton) findViewById(R.id.rec_badge);
         ImageButton button = (ImageButton) findViewById(R.id.rec_button);
 
-        mAudioSampler = new MediaRecorder();
-        mAudioSampler.setAudioSource(MediaRecorder.AudioSource.VOICE_RECOGNITION);
-        mAudioSampler.setOutputFormat(MediaRecorder.OutputFormat.THREE_GPP);
-        mAudioSampler.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB);
-
         if (mPathToFile == null || mPathToFile.trim().equals("")) {
             Toast.makeText(this, "Cannot record.. Contact admin", Toast.LENGTH_LONG).show();
             return;
         } else {
             mSampleFile = mPathToFile + "/" + mUser + "_"
-                    + Long.toString(System.currentTimeMillis()) + AUDIO_FILE_EXT;
-            mAudioSampler.setOutputFile(mSampleFile);
+                    + Long.toString(System.currentTimeMillis())
+                    + CAPTURE_CONFIG.getCodec().getExtension();
         }
 
-        try {
-            mAudioSampler.prepare();
-            mAudioSampler.start();
-        } catch (IOException e) {
-            Toast.makeText(this, "Could not access mic. \n Make sure it is not" +
-                    "being used by another process.", Toast.LENGTH_SHORT).show();
-            //Log.e(TAG, "recordButtonClicked: Error - " + e.toString());
-            return;
+        // Record and upload at the same time; the upload streams the sample as it is encoded.
+        // Capture and network have pools of their own, so neither waits behind the other.
+        StreamingUploadBody stream = FileTransferService.newStream(UPLOAD_STREAM_CAPACITY,
+                CAPTURE_CONFIG.getCodec());
+        if (!CAPTURE_CONFIG.getCodec().isStreamable()) {
+            // Uploaded from the queue once the file is complete
+            stream.abort();
         }
+        mAudioSampler = new WaveRecorderService(this, mSampleFile, CAPTURE_CONFIG);
+        mAudioSampler.streamTo(stream);
+        mAudioSampler.calibrate(mCalibration);
+        mAudioSampler.scrubSpeech(SCRUB_MODE);
+        mAudioSampler.catalogTo(mCatalog, mUser, mLastKnownCoords.latitude,
+                mLastKnownCoords.longitude);
+        mAudioSampler.aggregateInto(mNoiseCells, mLastKnownCoords.latitude,
+                mLastKnownCoords.longitude);
+        if (UPLOAD_EVENTS_ONLY) {
+            mAudioSampler.keepEventsOnly();
+        }
+        Workloads.capture().execute(mAudioSampler);
+
+        Toast.makeText(this, "Uploading the audio sample...", Toast.LENGTH_SHORT).show();
+
+        FileTransferService fts = new FileTransferService(this, mUploadQueue, mSampleFile, mUser,
+                mLastKnownCoords, stream);
+        Workloads.network().execute(fts);
+
+        // Where to walk next, asked for now so that it is known by the time the upload is done
+        prefetchNextTarget();
 
-        // Start the audio sampling event timer and make the status red
-        mAudioSampleTimer = new Timer("Audio Sampling Event Timer",true);
-        mAudioSampleTimer.schedule(new SampleAudioTask(), 0, AUDIO_SAMPLE_RATE);
+        // Start metering the volume and make the status red
+        startMetering();
 
         new CountDownTimer(RECORDING_LENGTH, RECORDING_CHECK_RATE) {
             private double progress = PROGRESS_RATE;
@@ -565,9 +1105,8 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
             }
 
             public void onFinish() {
+                // The marker update follows once the upload has been acknowledged
                 stopRecording();
-                uploadRecording();
-                requestMarkerUpdate();
             }
         }.start();
 
@@ -586,100 +1125,172 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
         ImageButton status = (ImageButton) findViewById(R.id.rec_badge);
         ImageButton button = (ImageButton) findViewById(R.id.rec_button);
 
-        // Clear the audio sampling event timer and make the status grey
-        if (mAudioSampleTimer != null) {
-            mAudioSampleTimer.cancel();
-            mAudioSampleTimer.purge();
-        }
+        // Stop metering the volume and make the status grey
+        stopMetering();
 
         if (mAudioSampler != null && mIsRecording) {
-            try {
-                mAudioSampler.stop();
-            } catch (Exception e) {
-                // Really unstable... Can throw an error if called to soon after instantiation...
-                //Log.e(TAG, "stopRecording: Error trying to stop media recorder.\n\tError - " +
-                        //e.toString());
-            }
-            mAudioSampler.release();
+            mAudioSampler.stop();
             mAudioSampler = null;
         }
 
-        mCurrentVolume = 0;
-        updateVolumeBar();
-        updateVolumeText();
+        updateVolumeBar(VOLUME_LOWER_BOUND);
+        updateVolumeText(LevelMeter.MIN_LEVEL);
         button.setImageResource(R.mipmap.ic_button_red);
         status.setImageResource(R.mipmap.ic_rec_badge_grey);
         mProgressBar.setVisibility(View.INVISIBLE);
         mIsRecording = false;
     }
 
+    private void startMetering() {
+        if (!mIsMetering) {
+            mIsMetering = true;
+            Choreographer.getInstance().postFrameCallback(mMeterFrame);
+        }
+    }
+
+    private void stopMetering() {
+        if (mIsMetering) {
+            mIsMetering = false;
+            Choreographer.getInstance().removeFrameCallback(mMeterFrame);
+        }
+    }
+
     private void sampleAudio() {
-        // Take a new sample and average it with the last one
+        // One read of the meter's slot per frame; the recorder thread keeps it current
         if ((mAudioSampler != null) && (!mIsTimeout)) {
-            mCurrentVolume = mAudioSampler.getMaxAmplitude();
-            //Log.i(TAG, "sampleAudio: Sample - " + Integer.toString(sample));
+            long sample = mAudioSampler.getLevelMeter().sample();
+            //Log.i(TAG, "sampleAudio: Sample - " + LevelMeter.rmsOf(sample));
 
-            updateVolumeBar();
-            updateVolumeText();
+            // The bar shows the headroom, the text the level (in dB SPL once calibrated)
+            updateVolumeBar(LevelMeter.rmsOf(sample));
+            updateVolumeText(LevelMeter.peakOf(sample) + (float) mCalibration.getOffset());
         }
     }
 
-    private void uploadRecording() {
-        if (mSampleFile == null || mSampleFile.trim().equals("")) {
-            //Log.w(TAG, "uploadRecording: Could not find an appropriate source file path");
+    private void startCalibration() {
+        if (mIsRecording || mCalibrationTask != null) {
             return;
         }
 
-        Toast.makeText(this, "Uploading the audio sample...", Toast.LENGTH_SHORT).show();
+        // Measured with the source the phone records from best
+        mCalibrationTask = new CalibrationTask(this, CAPTURE_CONFIG,
+                mCalibrationStore.getBestSource(), CALIBRATION_TONES,
+                Calibrator.REFERENCE_LEVEL);
+        Workloads.capture().execute(mCalibrationTask);
+    }
 
-        FileTransferService fts = new FileTransferService(mSampleFile, mUser, mLastKnownCoords);
-        fts.execute();
+    public void onCalibrationTone(double frequency) {
+        if (!isFinishing()) {
+            Toast.makeText(this, "Play the " + Math.round(frequency) + " Hz, "
+                    + Math.round(Calibrator.REFERENCE_LEVEL) + " dB reference tone",
+                    Toast.LENGTH_LONG).show();
+        }
     }
 
-    void updateVolumeBar() {
-        // Map the input volume to the corresponding pixel height
-        if (mCurrentVolume > VOLUME_UPPER_BOUND) {
-            mVolumeBarSetpoint = mVolumeBarMaxHeight;
-        } else if (mCurrentVolume < VOLUME_LOWER_BOUND) {
-            mVolumeBarSetpoint = 0;
-        } else {
-            double ratio = (double) (mCurrentVolume - VOLUME_LOWER_BOUND) / (double) VOLUME_UPPER_BOUND;
-            mVolumeBarSetpoint = (int)(ratio * mVolumeBarMaxHeight);
+    public void onCalibrationComplete(CalibrationProfile profile) {
+        mCalibrationTask = null;
+        if (isFinishing()) {
+            return;
         }
 
-        // Update the volume bar setpoint on the UI thread
-        runOnUiThread(new Runnable() {
-            public void run() {
-                mVolumeBar.requestLayout();
-                mVolumeBar.getLayoutParams().height = mVolumeBarSetpoint;
-            }
-        });
+        if (profile == null) {
+            Toast.makeText(this, "Calibration failed: no reference tone",
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        mCalibrationStore.save(profile);
+        mCalibration = profile;
+        Toast.makeText(this, "Calibrated: " + profile, Toast.LENGTH_LONG).show();
     }
 
-    void updateVolumeText() {
-        // Update the text to display the audio intensity as a number
-        runOnUiThread(new Runnable() {
-            public void run() {
-                mVolumeText.setText(Integer.toString(mCurrentVolume));
-            }
-        });
+    public void onCaptureComplete(CaptureStats stats) {
+        //Log.d(TAG, "onCaptureComplete: " + stats.summary());
+        if (mIsDebugging && !isFinishing()) {
+            // Overruns and writer drops of the sample just recorded
+            Toast.makeText(this, stats.summary(), Toast.LENGTH_LONG).show();
+        }
     }
 
-    // A TimerTask to persistently update the user's location
-    private class GetLocationTask extends TimerTask {
+    public void onUploadComplete(String result) {
+        //Log.d(TAG, "onUploadComplete: Server responded - " + result);
+        if (isFinishing()) {
+            return;
+        }
+
+        requestMarkerUpdate();
+        uploadNoiseCells();
+    }
+
+    // Sends the levels per cell captured since the last time; a failed delta goes with the next
+    private void uploadNoiseCells() {
+        Workloads.network().execute(new CellUploadTask(mNoiseCells, mUser));
+    }
+
+    // Must be called on the UI thread
+    void updateVolumeBar(float level) {
+        // Map the input level to the corresponding pixel height
+        int height = LevelMeter.toHeight(level, VOLUME_LOWER_BOUND, VOLUME_UPPER_BOUND,
+                mVolumeBarMaxHeight);
+
+        // Only lay out again when the bar actually moves
+        if (height != mVolumeBarHeight) {
+            mVolumeBarHeight = height;
+            mVolumeBar.getLayoutParams().height = height;
+            mVolumeBar.requestLayout();
+        }
+    }
+
+    // Must be called on the UI thread
+    void updateVolumeText(float level) {
+        // Display the peak level in whole dB, formatted into a reused buffer
+        int rounded = Math.round(level);
+        if (rounded == mVolumeTextLevel) {
+            return;
+        }
+        mVolumeTextLevel = rounded;
+
+        int end = mVolumeChars.length;
+        int start = end;
+        mVolumeChars[--start] = 'B';
+        mVolumeChars[--start] = 'd';
+        mVolumeChars[--start] = ' ';
+        int value = Math.abs(rounded);
+        do {
+            mVolumeChars[--start] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        if (rounded < 0) {
+            mVolumeChars[--start] = '-';
+        }
+        mVolumeText.setText(mVolumeChars, start, end - start);
+    }
+
+    // Samples the level meter in step with the display
+    private final Choreographer.FrameCallback mMeterFrame = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mIsMetering) {
+                return;
+            }
+            sampleAudio();
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    // Turns the heading marker with the compass; the map has to be touched on the UI thread
+    private final Runnable mHeadingUpdate = new Runnable() {
         @Override
         public void run() {
-            getCurrentLocation();
+            updateHeading();
         }
-    }
+    };
 
-    // A TimerTask to sample audio at a consistent event rate
-    private class SampleAudioTask extends TimerTask {
+    private final Runnable mHeadingTask = new Runnable() {
         @Override
         public void run() {
-            sampleAudio();
+            runOnUiThread(mHeadingUpdate);
         }
-    }
+    };
 
     private void getPermissions() {
         boolean denied = false;
@@ -736,9 +1347,38 @@ public class MappingActivity extends FragmentActivity implements SensorEventList
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+
+        mPushTimeoutHandler.removeCallbacks(mPushTimeout);
+        if (mChannel != null) {
+            mChannel.close();
+        }
+
+        // A capture still logging goes on in the service, and is stopped from its notification
+        unbindLoggingService();
+
+        if (mCalibrationTask != null) {
+            mCalibrationTask.cancel(false);
+        }
+
+        if (mPrefetchTask != null) {
+            mPrefetchTask.cancel(false);
+        }
+    }
+
     @Override
     public void onBackPressed() {
-        if (mIsRecording) {
+        if (mIsLogging) {
+            stopLogging();
+        } else if (mIsRecording) {
+            // Discard the partial sample and its upload
+            mAudioSampler.cancel(false);
             stopRecording();
         }
         finish();
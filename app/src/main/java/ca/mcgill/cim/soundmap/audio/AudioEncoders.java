@@ -0,0 +1,63 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.io.File;
+import java.io.IOException;
+
+import ca.mcgill.cim.soundmap.network.StreamingUploadBody;
+
+/**
+ * Picks the encoder for a capture configuration.
+ */
+public final class AudioEncoders {
+
+    private AudioEncoders() {}
+
+    public static AudioEncoder create(CaptureConfig config, EncoderOutput output) {
+        switch (config.getCodec()) {
+            case FLAC:
+                return new FlacEncoder(config, output);
+            case OPUS:
+                return new MediaCodecEncoder(config, output);
+            default:
+                return new WavEncoder(config, output);
+        }
+    }
+
+    /**
+     * The file (and live upload) an encoder for the configuration writes to. PCM goes through a
+     * memory mapping; encoded frames are small enough for a buffered channel.
+     */
+    public static EncoderOutput createOutput(CaptureConfig config, File file,
+                                             StreamingUploadBody stream) {
+        StreamingUploadBody live = config.getCodec().isStreamable() ? stream : null;
+        if (config.getCodec() == CaptureConfig.Codec.WAV) {
+            return new MappedEncoderOutput(file, live);
+        }
+        return new EncoderOutput(file, live);
+    }
+
+    /**
+     * Creates the encoders of the segments of a capture, each writing to its own file.
+     */
+    public static SegmentingEncoder.EncoderFactory factoryFor(final CaptureConfig config) {
+        return new SegmentingEncoder.EncoderFactory() {
+            @Override
+            public AudioEncoder create(File file) throws IOException {
+                return AudioEncoders.create(config, createOutput(config, file, null));
+            }
+        };
+    }
+
+    public static boolean isSupported(CaptureConfig config) {
+        return config.getCodec() != CaptureConfig.Codec.OPUS
+                || MediaCodecEncoder.isSupported(config);
+    }
+
+    /**
+     * The configuration itself if this device can encode it, otherwise the same capture stored
+     * as FLAC, which is always available.
+     */
+    public static CaptureConfig resolve(CaptureConfig config) {
+        return isSupported(config) ? config : config.withCodec(CaptureConfig.Codec.FLAC);
+    }
+}
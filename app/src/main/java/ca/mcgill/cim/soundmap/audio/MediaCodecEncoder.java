@@ -0,0 +1,168 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Opus in an Ogg container, through the platform encoder and muxer.
+ *
+ * Both only exist from Android 10 on, and the encoder only takes the Opus rates; see
+ * {@link #isSupported(CaptureConfig)}. The muxer needs the whole file, so the sample cannot be
+ * streamed and is uploaded once it is finished.
+ */
+public class MediaCodecEncoder implements AudioEncoder {
+
+    private static final String TAG = "MediaCodecEncoder";
+
+    private static final String MIME_OPUS = "audio/opus";
+    private static final int MUXER_OUTPUT_OGG = 4;      // MediaMuxer.OutputFormat, API 29
+    private static final int OPUS_API_LEVEL = 29;
+    private static final int BIT_RATE = 64000;          // bps per channel
+    private static final long TIMEOUT = 10000;          // us
+
+    private static final int[] OPUS_RATES = {8000, 12000, 16000, 24000, 48000};
+
+    private final CaptureConfig mConfig;
+    private final EncoderOutput mOutput;
+
+    private MediaCodec mCodec;
+    private MediaMuxer mMuxer;
+    private int mTrack = -1;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private long mFramesIn = 0;
+
+    public MediaCodecEncoder(CaptureConfig config, EncoderOutput output) {
+        mConfig = config;
+        mOutput = output;
+    }
+
+    public static boolean isSupported(CaptureConfig config) {
+        if (Build.VERSION.SDK_INT < OPUS_API_LEVEL) {
+            return false;
+        }
+
+        boolean isOpusRate = false;
+        for (int rate : OPUS_RATES) {
+            isOpusRate |= rate == config.getSampleRate();
+        }
+        if (!isOpusRate) {
+            return false;
+        }
+
+        MediaCodecList codecs = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        return codecs.findEncoderForFormat(buildFormat(config)) != null;
+    }
+
+    @Override
+    public void start() throws IOException {
+        MediaFormat format = buildFormat(mConfig);
+        mCodec = MediaCodec.createEncoderByType(MIME_OPUS);
+        mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mMuxer = new MediaMuxer(mOutput.getFile().getPath(), MUXER_OUTPUT_OGG);
+        mCodec.start();
+    }
+
+    @Override
+    public void encode(byte[] pcm, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int index = mCodec.dequeueInputBuffer(TIMEOUT);
+            if (index < 0) {
+                drain(false);
+                continue;
+            }
+
+            ByteBuffer input = mCodec.getInputBuffer(index);
+            int count = Math.min(input.remaining(), length - offset);
+            count -= count % (2 * mConfig.getChannels());
+            input.put(pcm, offset, count);
+            mCodec.queueInputBuffer(index, 0, count, presentationTime(), 0);
+
+            mFramesIn += count / (2 * mConfig.getChannels());
+            offset += count;
+            drain(false);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        int index;
+        do {
+            drain(false);
+            index = mCodec.dequeueInputBuffer(TIMEOUT);
+        } while (index < 0);
+        mCodec.queueInputBuffer(index, 0, 0, presentationTime(),
+                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        drain(true);
+        release();
+    }
+
+    @Override
+    public void abort() {
+        try {
+            release();
+        } catch (RuntimeException e) {
+            //Log.e(TAG, "abort: Error - " + e.toString());
+        }
+    }
+
+    private void drain(boolean isEnding) throws IOException {
+        while (true) {
+            int index = mCodec.dequeueOutputBuffer(mInfo, TIMEOUT);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!isEnding) {
+                    return;
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mTrack = mMuxer.addTrack(mCodec.getOutputFormat());
+                mMuxer.start();
+            } else if (index >= 0) {
+                ByteBuffer output = mCodec.getOutputBuffer(index);
+                boolean isConfig = (mInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                if (!isConfig && mInfo.size > 0) {
+                    if (mTrack < 0) {
+                        throw new IOException("Encoder output before its format");
+                    }
+                    mMuxer.writeSampleData(mTrack, output, mInfo);
+                }
+                mCodec.releaseOutputBuffer(index, false);
+
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void release() {
+        if (mCodec != null) {
+            mCodec.stop();
+            mCodec.release();
+            mCodec = null;
+        }
+        if (mMuxer != null) {
+            if (mTrack >= 0) {
+                mMuxer.stop();
+            }
+            mMuxer.release();
+            mMuxer = null;
+        }
+    }
+
+    private long presentationTime() {
+        return mFramesIn * 1000000L / mConfig.getSampleRate();
+    }
+
+    private static MediaFormat buildFormat(CaptureConfig config) {
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_OPUS, config.getSampleRate(),
+                config.getChannels());
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE * config.getChannels());
+        return format;
+    }
+}
@@ -0,0 +1,31 @@
+package ca.mcgill.cim.soundmap.map;
+
+import android.util.SparseArray;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+
+/**
+ * Cache of marker icons by resource id.
+ *
+ * BitmapDescriptorFactory.fromResource() builds a new descriptor on every call; a descriptor
+ * can be shared by any number of markers, so each icon is only created once. Must be used from
+ * the UI thread, once the map is ready.
+ */
+public class MarkerIcons {
+
+    private final SparseArray<BitmapDescriptor> mIcons = new SparseArray<>();
+
+    public BitmapDescriptor get(int resId) {
+        BitmapDescriptor icon = mIcons.get(resId);
+        if (icon == null) {
+            icon = BitmapDescriptorFactory.fromResource(resId);
+            mIcons.put(resId, icon);
+        }
+        return icon;
+    }
+
+    public void clear() {
+        mIcons.clear();
+    }
+}
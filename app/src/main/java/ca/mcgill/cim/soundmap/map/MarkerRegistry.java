@@ -0,0 +1,113 @@
+package ca.mcgill.cim.soundmap.map;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A layer of markers keyed by id, e.g. a user name or a cluster cell.
+ *
+ * Each update is diffed against what is on the map: between {@link #begin()} and {@link #end()}
+ * a marker that moved gets setPosition(), a new id gets a marker and, at the end, the ids that
+ * were not put again have their marker removed. Markers that did not change cost nothing, so
+ * refreshing a crowded map no longer re-creates every marker. Must be used from the UI thread.
+ */
+public class MarkerRegistry {
+
+    private static final String TAG = "MarkerRegistry";
+
+    private final GoogleMap mMap;
+    private final float mAlpha;
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    // Bumped on every update; entries not stamped with it are gone
+    private int mGeneration = 0;
+
+    public MarkerRegistry(GoogleMap map, float alpha) {
+        mMap = map;
+        mAlpha = alpha;
+    }
+
+    /**
+     * Starts an update; every marker that should stay must be put again before {@link #end()}.
+     */
+    public void begin() {
+        mGeneration++;
+    }
+
+    public void put(String id, double lat, double lng, String title, BitmapDescriptor icon) {
+        Entry entry = mEntries.get(id);
+        if (entry == null) {
+            entry = new Entry(mMap.addMarker(new MarkerOptions()
+                    .position(new LatLng(lat, lng))
+                    .title(title)
+                    .alpha(mAlpha)
+                    .draggable(false)
+                    .icon(icon)));
+            entry.mTitle = title;
+            entry.mIcon = icon;
+            mEntries.put(id, entry);
+        } else {
+            if (entry.mLat != lat || entry.mLng != lng) {
+                entry.mMarker.setPosition(new LatLng(lat, lng));
+            }
+            if (title == null ? entry.mTitle != null : !title.equals(entry.mTitle)) {
+                entry.mMarker.setTitle(title);
+                entry.mTitle = title;
+            }
+            if (icon != entry.mIcon) {
+                entry.mMarker.setIcon(icon);
+                entry.mIcon = icon;
+            }
+        }
+
+        entry.mLat = lat;
+        entry.mLng = lng;
+        entry.mGeneration = mGeneration;
+    }
+
+    /**
+     * Removes the markers that were not put since {@link #begin()}.
+     */
+    public void end() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.mGeneration != mGeneration) {
+                entry.mMarker.remove();
+                it.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        for (Entry entry : mEntries.values()) {
+            entry.mMarker.remove();
+        }
+        mEntries.clear();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    private static class Entry {
+        final Marker mMarker;
+        double mLat;
+        double mLng;
+        String mTitle;
+        BitmapDescriptor mIcon;
+        int mGeneration;
+
+        Entry(Marker marker) {
+            mMarker = marker;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package ca.mcgill.cim.soundmap.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.AudioManager;
+import android.media.MediaRecorder;
+import android.os.Build;
+
+import ca.mcgill.cim.soundmap.audio.CalibrationProfile;
+
+/**
+ * Keeps the calibration profile of this phone model, and picks the audio source to record
+ * from.
+ *
+ * Profiles are stored in the shared preferences under the manufacturer and model, so a profile
+ * measured on one phone can be copied to others of the same model. Without one, captures are
+ * uncalibrated and recorded from the best source the hardware offers.
+ */
+public class CalibrationStore {
+
+    private static final String TAG = "CalibrationStore";
+
+    private static final String PREFERENCES = "calibration";
+
+    private final SharedPreferences mPreferences;
+    private final AudioManager mAudioManager;
+
+    public CalibrationStore(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+    }
+
+    /**
+     * The manufacturer and model of this phone, which profiles are kept under.
+     */
+    public static String getModel() {
+        return Build.MANUFACTURER + " " + Build.MODEL;
+    }
+
+    /**
+     * The platform's audio source for a profile's.
+     */
+    public static int toAudioSource(CalibrationProfile.Source source) {
+        switch (source) {
+            case UNPROCESSED:
+                return MediaRecorder.AudioSource.UNPROCESSED;
+            case MIC:
+                return MediaRecorder.AudioSource.MIC;
+            default:
+                return MediaRecorder.AudioSource.VOICE_RECOGNITION;
+        }
+    }
+
+    /**
+     * Whether the hardware records from the source as such. Unprocessed capture is optional;
+     * where it is missing the platform would quietly give the processed signal instead.
+     */
+    public boolean isSupported(CalibrationProfile.Source source) {
+        if (source != CalibrationProfile.Source.UNPROCESSED) {
+            return true;
+        }
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && mAudioManager != null
+                && "true".equals(mAudioManager.getProperty(
+                        AudioManager.PROPERTY_SUPPORT_AUDIO_SOURCE_UNPROCESSED));
+    }
+
+    /**
+     * The most accurate source the hardware supports.
+     */
+    public CalibrationProfile.Source getBestSource() {
+        for (CalibrationProfile.Source source : CalibrationProfile.Source.values()) {
+            if (isSupported(source)) {
+                return source;
+            }
+        }
+        return CalibrationProfile.UNCALIBRATED.getSource();
+    }
+
+    /**
+     * The stored profile of this phone model, or an uncalibrated one for the best source.
+     */
+    public CalibrationProfile load() {
+        String line = mPreferences.getString(getModel(), null);
+        if (line != null) {
+            try {
+                CalibrationProfile profile = CalibrationProfile.decode(line);
+                if (isSupported(profile.getSource())) {
+                    return profile;
+                }
+            } catch (IllegalArgumentException e) {
+                //Log.e(TAG, "load: Error - " + e.toString());
+            }
+        }
+        return CalibrationProfile.UNCALIBRATED.withSource(getBestSource());
+    }
+
+    public void save(CalibrationProfile profile) {
+        mPreferences.edit().putString(getModel(), profile.encode()).apply();
+    }
+
+    /**
+     * Forgets the profile of this phone model.
+     */
+    public void clear() {
+        mPreferences.edit().remove(getModel()).apply();
+    }
+}
@@ -0,0 +1,112 @@
+package ca.mcgill.cim.soundmap.services;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.util.Log;
+
+import ca.mcgill.cim.soundmap.activities.MappingActivity;
+import ca.mcgill.cim.soundmap.audio.CalibrationProfile;
+import ca.mcgill.cim.soundmap.audio.Calibrator;
+import ca.mcgill.cim.soundmap.audio.CaptureConfig;
+import ca.mcgill.cim.soundmap.tasks.Task;
+
+/**
+ * Measures the calibration profile of this phone from reference tones played at the
+ * microphone, one after the other, for {@link #TONE_DURATION} each. The activity is told which
+ * tone is expected next, and gets the profile (or null if a tone was missing) at the end.
+ */
+public class CalibrationTask extends Task<Double, CalibrationProfile> {
+
+    private static final String TAG = "CalibrationTask";
+
+    public static final int TONE_DURATION = 5000;  // ms, including the settling time
+
+    private MappingActivity mCalledFrom;
+    private final CaptureConfig mConfig;
+    private final CalibrationProfile.Source mSource;
+    private final double[] mFrequencies;
+    private final double mLevel;
+
+    /**
+     * @param frequencies of the tones, in Hz, in the order they are played
+     * @param level       of every tone at the microphone, in dB SPL
+     */
+    public CalibrationTask(MappingActivity calledFrom, CaptureConfig config,
+                           CalibrationProfile.Source source, double[] frequencies, double level) {
+        mCalledFrom = calledFrom;
+        mConfig = config;
+        mSource = source;
+        mFrequencies = frequencies.clone();
+        mLevel = level;
+    }
+
+    @Override
+    protected CalibrationProfile doInBackground() {
+        AudioRecord audioRecord = null;
+        int channelMask = mConfig.getChannels() == 2
+                ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        int bufferSize = 2 * AudioRecord.getMinBufferSize(mConfig.getSampleRate(), channelMask,
+                AudioFormat.ENCODING_PCM_16BIT);
+        long toneFrames = (long) TONE_DURATION * mConfig.getSampleRate() / 1000;
+        int bytesPerFrame = 2 * mConfig.getChannels();
+
+        Calibrator calibrator = new Calibrator(mConfig.getSampleRate(), mConfig.getChannels());
+        try {
+            audioRecord = new AudioRecord(CalibrationStore.toAudioSource(mSource),
+                                          mConfig.getSampleRate(),
+                                          channelMask,
+                                          AudioFormat.ENCODING_PCM_16BIT,
+                                          bufferSize);
+            byte[] buffer = new byte[bufferSize];
+            audioRecord.startRecording();
+
+            for (double frequency : mFrequencies) {
+                publishProgress(frequency);
+                calibrator.begin(frequency, mLevel);
+                long frames = 0;
+                while (frames < toneFrames && !isCancelled()) {
+                    int in = audioRecord.read(buffer, 0, buffer.length);
+                    if (in < 0) {
+                        return null;
+                    }
+                    calibrator.process(buffer, in);
+                    frames += in / bytesPerFrame;
+                }
+                if (isCancelled()) {
+                    return null;
+                }
+                calibrator.end();
+            }
+            return calibrator.build(CalibrationStore.getModel(), mSource);
+        } catch (IllegalStateException e) {
+            // The mic could not be opened, or a tone was not heard
+            //Log.e(TAG, "doInBackground: Error - " + e.toString());
+            return null;
+        } finally {
+            if (audioRecord != null) {
+                try {
+                    if (audioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+                        audioRecord.stop();
+                    }
+                } catch (IllegalStateException e) {
+                    //Log.e(TAG, "doInBackground: Error - " + e.toString());
+                }
+                audioRecord.release();
+            }
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(Double... frequencies) {
+        if (mCalledFrom != null) {
+            mCalledFrom.onCalibrationTone(frequencies[0]);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(CalibrationProfile profile) {
+        if (mCalledFrom != null) {
+            mCalledFrom.onCalibrationComplete(profile);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ca.mcgill.cim.soundmap.services;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+import ca.mcgill.cim.soundmap.map.NoiseCells;
+import ca.mcgill.cim.soundmap.network.HttpClients;
+import ca.mcgill.cim.soundmap.tasks.Task;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+
+/**
+ * Sends the noise levels aggregated per map cell since the last upload, so that the server can
+ * merge them into its map without the audio. A delta that could not be sent is put back, and
+ * goes with the next one.
+ */
+public class CellUploadTask extends Task<Void, Boolean> {
+
+    private static final String TAG = "CellUploadTask";
+
+    private static final String CELLS_UPLOAD_URL = HttpClients.SERVER_URL + "/cells";
+
+    private static final MediaType CELLS = MediaType.parse(NoiseCells.MEDIA_TYPE);
+
+    private NoiseCells mCells;
+    private String mUser;
+
+    public CellUploadTask(NoiseCells cells, String user) {
+        mCells = cells;
+        mUser = user;
+    }
+
+    @Override
+    protected Boolean doInBackground() {
+        NoiseCells delta = mCells.takeDelta();
+        if (delta.isEmpty()) {
+            return true;
+        }
+
+        try {
+            Buffer body = new Buffer();
+            delta.writeTo(body);
+            Request request = new Request.Builder()
+                    .url(CELLS_UPLOAD_URL)
+                    .header("username", mUser)
+                    .post(RequestBody.create(CELLS, body.readByteString()))
+                    .build();
+
+            Response response = HttpClients.forUpload().newCall(request).execute();
+            response.close();
+            if (response.isSuccessful()) {
+                return true;
+            }
+            //Log.e(TAG, "doInBackground: Server responded " + response.code());
+        } catch (IOException e) {
+            //Log.e(TAG, "doInBackground: Error - " + e.getMessage());
+        }
+
+        mCells.restoreDelta(delta);
+        return false;
+    }
+}
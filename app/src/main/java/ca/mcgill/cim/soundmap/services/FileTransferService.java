@@ -1,6 +1,5 @@
 package ca.mcgill.cim.soundmap.services;
 
-import android.os.AsyncTask;
 import android.util.Log;
 
 import com.google.android.gms.maps.model.LatLng;
@@ -8,29 +7,52 @@ import com.google.android.gms.maps.model.LatLng;
 import java.io.File;
 import java.io.IOException;
 
+import ca.mcgill.cim.soundmap.activities.MappingActivity;
+import ca.mcgill.cim.soundmap.audio.AcousticFeatures;
+import ca.mcgill.cim.soundmap.audio.CaptureConfig;
+import ca.mcgill.cim.soundmap.network.HttpClients;
+import ca.mcgill.cim.soundmap.network.StreamingUploadBody;
+import ca.mcgill.cim.soundmap.network.UploadQueue;
+import ca.mcgill.cim.soundmap.protocol.WireFormat;
+import ca.mcgill.cim.soundmap.tasks.Task;
+import okhttp3.MediaType;
 import okhttp3.MultipartBody;
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
 
-public class FileTransferService extends AsyncTask<Void, Integer, String> {
+public class FileTransferService extends Task<Integer, String> {
 
     private static final String TAG = "FileTransferService";
 
-    private static final String FILE_UPLOAD_URL =
-            "http://sandeepmanjanna.dlinkddns.com:5000/upload";
+    private static final String FILE_UPLOAD_URL = HttpClients.SERVER_URL + "/upload";
 
+    private static final MediaType FEATURES = MediaType.parse(AcousticFeatures.MEDIA_TYPE);
+
+    private MappingActivity mCalledFrom;
+    private UploadQueue mQueue;
     private String mSampleFile;
     private String mUser;
-    private String mLocation;
-
-    public FileTransferService(String sampleFile, String user, LatLng location) {
+    private LatLng mLocation;
+    private StreamingUploadBody mStream;
+
+    /**
+     * Uploads the sample while it is being recorded. If the stream cannot be completed, the
+     * finished file is handed to the persistent upload queue once the recording stops.
+     */
+    public FileTransferService(MappingActivity calledFrom, UploadQueue queue, String sampleFile,
+                               String user, LatLng location, StreamingUploadBody stream) {
         //Log.d(TAG, "FileTransferService: Starting the file transfer service");
-        
+
+        mCalledFrom = calledFrom;
+        mQueue = queue;
         mSampleFile = sampleFile;
         mUser = user;
-        mLocation = location.toString();
+        mLocation = location;
+        mStream = stream;
     }
 
     @Override
@@ -39,39 +61,103 @@ public class FileTransferService extends AsyncTask<Void, Integer, String> {
     }
 
     @Override
-    protected String doInBackground(Void... params) {
-        return uploadFile();
+    protected String doInBackground() {
+        // A stream abandoned up front (the codec cannot be streamed) is not worth a request
+        if (!mStream.isAborted()) {
+            String result = uploadStream();
+            if (result != null) {
+                return result;
+            }
+        }
+
+        // Fall back on the file on disk once the recorder is done with it. The queue retries
+        // in the background, so the next target is requested without waiting for it.
+        if (!mStream.awaitFinished()) {
+            return "Cancelled";
+        }
+
+        mQueue.enqueue(mSampleFile, mUser, mLocation.latitude, mLocation.longitude);
+        return "Queued";
     }
 
-    private String uploadFile() {
+    @Override
+    protected void onPostExecute(String result) {
+        if (mCalledFrom != null) {
+            mCalledFrom.onUploadComplete(result);
+        }
+    }
 
-        // Get the  Sample as a java File
-        File sample = new File(mSampleFile);
+    private String uploadStream() {
+        String filename = new File(mSampleFile).getName();
+        Request request = new Request.Builder()
+                .url(FILE_UPLOAD_URL)
+                .post(buildBody(filename, mStream))
+                .build();
 
-        // Set up the OkHttp Client
-        OkHttpClient client = new OkHttpClient();
-        Request.Builder reqBuilder = new Request.Builder();
-        reqBuilder.url(FILE_UPLOAD_URL);
+        try {
+            //Log.d(TAG, "uploadStream: Streaming the sample to the server");
+            Response response = HttpClients.forStreaming().newCall(request).execute();
+            if (!response.isSuccessful()) {
+                response.close();
+                return null;
+            }
+            return response.body().string();
+        } catch (IOException e) {
+            //Log.e(TAG, "uploadStream: Error - " + e.getMessage());
+            return null;
+        }
+    }
 
+    private MultipartBody buildBody(String filename, RequestBody audio) {
         // Request Body
         MultipartBody.Builder bodyBuilder = new MultipartBody.Builder();
         bodyBuilder.setType(MultipartBody.FORM);
         bodyBuilder.addFormDataPart("username", mUser);
-        bodyBuilder.addFormDataPart("location", mLocation);
-        bodyBuilder.addFormDataPart("audio", sample.getName(), RequestBody.create(null, sample));
+        WireFormat.addLocationPart(bodyBuilder, mLocation.latitude, mLocation.longitude);
+        bodyBuilder.addFormDataPart("audio", filename, audio);
+        // Written once the audio part is done, by which time the recorder has saved them
+        bodyBuilder.addFormDataPart("features", filename + AcousticFeatures.FILE_EXT,
+                new FeaturesBody(new File(AcousticFeatures.fileFor(mSampleFile))));
+        return bodyBuilder.build();
+    }
 
-        // Create the Request
-        MultipartBody body = bodyBuilder.build();
-        Request request = reqBuilder.post(body).build();
+    public static StreamingUploadBody newStream(int capacity, CaptureConfig.Codec codec) {
+        return new StreamingUploadBody(MediaType.parse(codec.getMimeType()), capacity);
+    }
 
-        // Post the Request using the OkHttp Client
-        try {
-            //Log.d(TAG, "uploadFile: Attempting to post the request to the server");
-            Response response = client.newCall(request).execute();
-            return response.body().string();
-        } catch (IOException e) {
-            //Log.e(TAG, "uploadFile: Error - " + e.getMessage());
-            return "IO Error";
+    /**
+     * The features file, read when the part is written rather than when the body is built.
+     * Empty if the features could not be saved.
+     */
+    private static class FeaturesBody extends RequestBody {
+        private final File mFile;
+
+        FeaturesBody(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return FEATURES;
+        }
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            if (!mFile.exists()) {
+                return;
+            }
+
+            Source source = Okio.source(mFile);
+            try {
+                sink.writeAll(source);
+            } finally {
+                source.close();
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -2,7 +2,6 @@ package ca.mcgill.cim.soundmap.services;
 
 import android.location.Address;
 import android.location.Geocoder;
-import android.os.AsyncTask;
 import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
@@ -10,41 +9,80 @@ import android.util.Pair;
 import com.google.android.gms.maps.model.LatLng;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 import ca.mcgill.cim.soundmap.activities.MappingActivity;
+import ca.mcgill.cim.soundmap.map.RoutePlanner;
+import ca.mcgill.cim.soundmap.network.HttpClients;
+import ca.mcgill.cim.soundmap.network.TargetClient;
+import ca.mcgill.cim.soundmap.protocol.BinaryCodec;
+import ca.mcgill.cim.soundmap.protocol.LocationCodec;
+import ca.mcgill.cim.soundmap.protocol.NameTable;
+import ca.mcgill.cim.soundmap.protocol.UserPositions;
+import ca.mcgill.cim.soundmap.protocol.WireFormat;
+import ca.mcgill.cim.soundmap.tasks.Task;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 
-public class LocationClientService extends AsyncTask<Void, Void, Void> {
+public class LocationClientService
+        extends Task<UserPositions, Pair<String, LatLng>> {
 
     private static final String TAG = "LocationClientService";
 
-    private static final String LOCATION_HOST_URL =
-            "http://sandeepmanjanna.dlinkddns.com:5000/location";
+    private static final String LOCATION_HOST_URL = HttpClients.SERVER_URL + "/location";
 
-    private static final String USERS_HOST_URL =
-            "http://sandeepmanjanna.dlinkddns.com:5000/users";
+    private static final String USERS_HOST_URL = HttpClients.SERVER_URL + "/users";
 
-    private static final String SERVER_WAIT_STRING = "Wait";
+    // Bounded backoff while the server answers "Wait"
+    private static final int MAX_WAIT_RETRIES = 12;
+    private static final long INITIAL_WAIT_DELAY = 1000; // ms
+    private static final long MAX_WAIT_DELAY = 5000;     // ms
 
     private MappingActivity mCalledFrom;
     private String mUser;
     private LatLng mUserLocation;
 
+    // Prefetched while the sample was recorded, if any
+    private TargetClient.Target mOffer;
+
+    // Targets to ask for at once, and the route through them once they arrive
+    private int mRouteSize = 0;
+    private RoutePlanner mRoute;
+
     public LocationClientService(MappingActivity calledFrom, String user, LatLng userLocation) {
         //Log.d(TAG, "LocationClientService: Starting Location Client Service");
 
         mCalledFrom = calledFrom;
         mUser = user;
         mUserLocation = userLocation;
+
+        // The user is waiting on the next target; it goes ahead of any queued uploads
+        setPriority(Priority.HIGH);
+    }
+
+    /**
+     * Takes up the target prefetched while the sample was recorded, instead of asking for a new
+     * one. Must be called before the task is executed.
+     */
+    public void confirm(TargetClient.Target offer) {
+        mOffer = offer;
+    }
+
+    /**
+     * Asks for a batch of up to count targets instead of one, and plans the route through them
+     * from the user's position. The route is handed to the activity before its first target.
+     * Must be called before the task is executed.
+     */
+    public void requestRoute(int count) {
+        mRouteSize = count;
     }
 
-    private Pair<String, LatLng> mTarget;
-    private List<Pair<String, LatLng>> mUsers;
+    // Users are the same from one update to the next, so their names are shared
+    private static final NameTable sNames = new NameTable();
+
+    private Call mUsersCall;
 
     @Override
     protected void onPreExecute() {
@@ -52,156 +90,162 @@ public class LocationClientService extends AsyncTask<Void, Void, Void> {
     }
 
     @Override
-    protected Void doInBackground(Void... params) {
-        mTarget = getTargetLocation();
-        mUsers = getOtherUsers();
-        return null;
+    protected Pair<String, LatLng> doInBackground() {
+        // Both requests go out together; the users are shown as soon as they arrive instead of
+        // waiting behind the target (and any "Wait" backoff)
+        requestOtherUsers();
+        return getTargetLocation();
     }
 
     @Override
-    protected void onPostExecute(Void result) {
-        mCalledFrom.onRequestMarkerUpdateComplete(mTarget, mUsers);
+    protected void onProgressUpdate(UserPositions... users) {
+        mCalledFrom.onUsersUpdateComplete(users[0]);
     }
 
-    private Pair<String, LatLng> getTargetLocation() {
-        OkHttpClient client = new OkHttpClient()
-                .newBuilder()
-                .connectTimeout(60, TimeUnit.SECONDS)
-                .readTimeout(60, TimeUnit.SECONDS)
-                .build();
+    @Override
+    protected void onPostExecute(Pair<String, LatLng> target) {
+        if (mRoute != null) {
+            mCalledFrom.onRouteUpdateComplete(mRoute);
+        }
+        mCalledFrom.onRequestMarkerUpdateComplete(target);
+    }
 
-        Request request = new Request.Builder()
-                .url(LOCATION_HOST_URL)
-                .header("username", mUser)
-                .header("lat", Double.toString(mUserLocation.latitude))
-                .header("lng", Double.toString(mUserLocation.longitude))
-                .build();
+    @Override
+    protected void onCancelled() {
+        if (mUsersCall != null) {
+            mUsersCall.cancel();
+        }
+    }
 
-        // Post the Request using the OkHttp Client
-        try {
-            //Log.d(TAG, "getTargetLocation: attempting get request to server");
-            Response response = client.newCall(request).execute();
-
-            /**
-             * Example Response:
-             *      McGill:45.504812985241564,-73.57715606689453
-             */
-
-            String res = response.body().string();
-
-            // If the res is empty, then could not communicate with the server
-            if (res == null) {
-                return null;
-            // If the res indicates "Wait" then sleep the thread and try making the request again
-            } else if (res.equals(SERVER_WAIT_STRING)) {
-                SystemClock.sleep(5000);
-                return getTargetLocation();
-            // If the final res does not contain a ':' or ',' then it is malformed --> server error
-            } else if (!res.contains(":") || !res.contains(",")) {
-                return null;
+    private Pair<String, LatLng> getTargetLocation() {
+        TargetClient client = newTargetClient();
+        long delay = INITIAL_WAIT_DELAY;
+
+        for (int attempt = 0; attempt <= MAX_WAIT_RETRIES && !isCancelled(); attempt++) {
+            // A prefetched offer is taken up first; once the server has withdrawn it, ask anew
+            TargetClient.Target target;
+            if (mOffer == null && mRouteSize > 0) {
+                target = fetchRoute(client);
+            } else if (mOffer != null) {
+                target = client.confirm(mUser, mOffer, mUserLocation.latitude,
+                        mUserLocation.longitude);
+                mOffer = null;
+            } else {
+                target = client.fetch(mUser, mUserLocation.latitude, mUserLocation.longitude);
             }
 
-            // The name tag of a location should appear before a ":"
-            String[] data = res.split(":");
-            String tag = data[0];
+            // If the server did not say "Wait", this is either the target or null when the
+            // server could not be reached; otherwise sleep and try making the request again
+            if (target != TargetClient.WAIT) {
+                return toPair(target);
+            }
 
-            // The coordinates should follow, separated by a ","
-            if (data[1] != null) {
-                String[] coords = data[1].split(",");
-                try {
-                    Double lat = Double.parseDouble(coords[0]);
-                    Double lng = Double.parseDouble(coords[1]);
-                    LatLng location = new LatLng(lat, lng);
+            SystemClock.sleep(delay);
+            delay = Math.min(delay * 2, MAX_WAIT_DELAY);
+        }
 
-// THIS INTRODUCES SOME UNRELIABILITY TO THE CODE, SO IT IS CURRENTLY NOT IN USE
-//
-//                    // Checks for an address at the given location
-//                    Geocoder gc = new Geocoder(mCalledFrom.getApplicationContext());
-//                    List<Address> address = gc.getFromLocation(lat, lng, 1);
-//
-//                    // If there is no address at that location, so use the raw target
-//                    if (address.isEmpty()) {
-//                        location = new LatLng(lat, lng);
-//                    // If there is an address, the raw target may be unreachable,
-//                    // user the coords of the street address instead of the raw target
-//                    } else {
-//                        location = new LatLng (address.get(0).getLatitude(),
-//                                               address.get(0).getLongitude());
-//                    }
-
-                    return new Pair<>(tag, location);
-                } catch (Exception e) {
-                    //Log.e(TAG, "getTargetLocation: Could not parse coordinates");
-                    return null;
-                }
-            } else {
-                //Log.e(TAG, "getTargetLocation: Could not parse coordinates");
-                return null;
-            }
-        } catch (IOException e) {
-            //Log.e(TAG, "getTargetLocation: DID NOT USE SERVER LOCATION");
-            //Log.e(TAG, "uploadFile: Error - " + e.getMessage());
+        //Log.w(TAG, "getTargetLocation: Server still busy, giving up");
+        return null;
+    }
+
+    // The first target of the planned route, WAIT, or null when the server could not be reached
+    private TargetClient.Target fetchRoute(TargetClient client) {
+        UserPositions targets = new UserPositions(mRouteSize);
+        int count = client.fetchBatch(mUser, mUserLocation.latitude, mUserLocation.longitude,
+                mRouteSize, targets);
+        if (count == TargetClient.UNREACHABLE) {
+            return null;
+        }
+        if (count == 0) {
+            return TargetClient.WAIT;
+        }
+
+        RoutePlanner route = new RoutePlanner();
+        route.setTargets(targets);
+        route.plan(mUserLocation.latitude, mUserLocation.longitude);
+        if (route.isEmpty()) {
             return null;
         }
+        mRoute = route;
+        return new TargetClient.Target(route.getTag(0), route.getLat(0), route.getLng(0));
     }
 
-    private List<Pair<String, LatLng>> getOtherUsers() {
-        // TODO : This will be a heavy computation for lots of users, but should be fine for
-        // the assumed scale at this time.
+    static TargetClient newTargetClient() {
+        return new TargetClient(HttpClients.forLocation(), LOCATION_HOST_URL, sNames);
+    }
 
-        OkHttpClient client = new OkHttpClient()
-                .newBuilder()
-                .connectTimeout(60, TimeUnit.SECONDS)
-                .readTimeout(60, TimeUnit.SECONDS)
-                .build();
+    static Pair<String, LatLng> toPair(TargetClient.Target target) {
+        if (target == null) {
+            return null;
+        }
 
-        Request request = new Request.Builder()
-                .url(USERS_HOST_URL)
-                .build();
+        LatLng location = new LatLng(target.lat, target.lng);
 
-        // To store the users in parsed form
-        List<Pair<String, LatLng>> result = new ArrayList<>();
+// THIS INTRODUCES SOME UNRELIABILITY TO THE CODE, SO IT IS CURRENTLY NOT IN USE
+//
+//        // Checks for an address at the given location
+//        Geocoder gc = new Geocoder(mCalledFrom.getApplicationContext());
+//        List<Address> address = gc.getFromLocation(lat, lng, 1);
+//
+//        // If there is no address at that location, so use the raw target
+//        if (address.isEmpty()) {
+//            location = new LatLng(lat, lng);
+//        // If there is an address, the raw target may be unreachable,
+//        // user the coords of the street address instead of the raw target
+//        } else {
+//            location = new LatLng (address.get(0).getLatitude(),
+//                                   address.get(0).getLongitude());
+//        }
+
+        return new Pair<>(target.tag, location);
+    }
 
-        // Post the Request using the OkHttp Client
-        try {
-            //Log.d(TAG, "getOtherUsers: attempting get request to server");
-            Response response = client.newCall(request).execute();
+    private void requestOtherUsers() {
+        OkHttpClient client = HttpClients.forUsers();
 
-            /**
-             * Example Response:
-             *      Foo:45.50,-73.57;Bar:45.55,-73.23
-             */
+        Request request = WireFormat.prepare(new Request.Builder())
+                .url(USERS_HOST_URL)
+                .build();
 
-            String res = response.body().string();
-            if (res == null || !res.contains(":") || !res.contains(",")) {
-                return null;
+        // Runs on the shared dispatcher, in parallel with the target request
+        //Log.d(TAG, "requestOtherUsers: attempting get request to server");
+        mUsersCall = client.newCall(request);
+        mUsersCall.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                // The users already on the map stay until a list arrives
+                //Log.e(TAG, "requestOtherUsers: Error - " + e.getMessage());
             }
 
-            String[] users = res.split(";");
-
-            for (String user : users) {
-                // The name tag of a location should appear before a ":"
-                String[] data = user.split(":");
-                String name = data[0];
-
-                if (data[1] != null) {
-                    // The coordinates should follow, separated by a ","
-                    String[] coords = data[1].split(",");
-                    try {
-                        Double lat = Double.parseDouble(coords[0]);
-                        Double lng = Double.parseDouble(coords[1]);
-                        LatLng location = new LatLng(lat, lng);
-                        result.add(new Pair<>(name, location));
-                    } catch (Exception e) {
-                        //Log.e(TAG, "getOtherUsers: Could not parse user coordintates. Skipping...");
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                /**
+                 * Example Response:
+                 *      Foo:45.50,-73.57;Bar:45.55,-73.23
+                 */
+
+                // Decoded straight off the socket, without building the response String. An
+                // error page is not a list; the users already on the map stay.
+                UserPositions users = new UserPositions();
+                try {
+                    if (!response.isSuccessful()) {
+                        //Log.e(TAG, "requestOtherUsers: Server responded " + response.code());
+                        return;
+                    }
+                    if (WireFormat.isBinary(response)) {
+                        new BinaryCodec(sNames).readUsers(response.body().source(), users);
+                    } else {
+                        new LocationCodec(sNames).readUsers(response.body().source(), users);
                     }
+                } finally {
+                    response.close();
                 }
+                publishUsers(users);
             }
-        } catch (IOException e) {
-            //Log.e(TAG, "getTargetLocation: DID NOT USE SERVER LOCATION");
-            //Log.e(TAG, "uploadFile: Error - " + e.getMessage());
-        }
-        
-        return result;
+        });
+    }
+
+    private void publishUsers(UserPositions users) {
+        publishProgress(users);
     }
 }
@@ -0,0 +1,235 @@
+package ca.mcgill.cim.soundmap.services;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.mcgill.cim.soundmap.R;
+import ca.mcgill.cim.soundmap.activities.MappingActivity;
+import ca.mcgill.cim.soundmap.audio.SegmentingEncoder;
+
+/**
+ * Runs a continuous capture in the foreground, so that it goes on for hours with the screen off.
+ *
+ * The service executes the recorder, holds a partial wake lock for as long as it runs and takes
+ * location updates of its own, so every segment is placed with a current fix whether or not the
+ * map is on screen. An ongoing notification shows while logging and can stop it; the activity
+ * that started the capture is told through {@link Listener} if it is still bound.
+ *
+ * Location updates go on for one more fix after the capture has stopped, which places the last
+ * segment if it is still being finished, and any segments held for want of a first fix.
+ */
+public class LoggingService extends Service {
+
+    private static final String TAG = "LoggingService";
+
+    private static final String ACTION_STOP = "ca.mcgill.cim.soundmap.action.STOP_LOGGING";
+    private static final int NOTIFICATION_ID = 1;
+
+    // A segment lasts minutes, so a fix every few seconds is plenty; no minimum displacement,
+    // so that a fix still comes when standing still
+    private static final long LOCATION_UPDATE_RATE = 5000;      // ms
+
+    public interface Listener {
+        /**
+         * The capture was stopped from the notification.
+         */
+        void onLoggingStopped();
+    }
+
+    public class LocalBinder extends Binder {
+        public LoggingService getService() {
+            return LoggingService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+
+    private WaveRecorderService mRecorder;
+    private SegmentingEncoder mSegmenter;
+    // The logger of this capture, and those of stopped ones still waiting for their last fix
+    private final List<SegmentLogger> mSegmentLoggers = new ArrayList<>();
+    private Listener mListener;
+
+    private PowerManager.WakeLock mWakeLock;
+    private FusedLocationProviderClient mLocationClient;
+    private boolean mIsRequestingLocation = false;
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            stop();
+            if (mListener != null) {
+                mListener.onLoggingStopped();
+            }
+        }
+        // The recorder does not survive the process, so there is nothing to restart
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Starts the capture, in place of any still running. The segmenter and the logger must be
+     * those the recorder writes to.
+     */
+    public void start(WaveRecorderService recorder, SegmentingEncoder segmenter,
+                      SegmentLogger segmentLogger) {
+        // E.g. left running by an activity that is gone
+        stop();
+
+        mRecorder = recorder;
+        mSegmenter = segmenter;
+        mSegmentLoggers.add(segmentLogger);
+
+        startForeground(NOTIFICATION_ID, buildNotification());
+        if (mWakeLock == null) {
+            PowerManager power = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            mWakeLock = power.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+            mWakeLock.setReferenceCounted(false);
+        }
+        mWakeLock.acquire();
+        startLocationUpdates();
+
+        Workloads.capture().execute(mRecorder);
+    }
+
+    /**
+     * Stops the capture, which finishes and queues its last segment. The service itself stops
+     * with the next fix.
+     */
+    public void stop() {
+        if (mRecorder == null) {
+            return;
+        }
+
+        mRecorder.stop();
+        mRecorder = null;
+        stopForeground(true);
+        releaseWakeLock();
+    }
+
+    public boolean isLogging() {
+        return mRecorder != null;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        if (mRecorder != null) {
+            mRecorder.stop();
+            mRecorder = null;
+        }
+        releaseWakeLock();
+        stopLocationUpdates();
+    }
+
+    private void releaseWakeLock() {
+        if (mWakeLock != null && mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+    }
+
+    private void finish() {
+        stopLocationUpdates();
+        mSegmenter = null;
+        mSegmentLoggers.clear();
+        stopSelf();
+    }
+
+    private Notification buildNotification() {
+        PendingIntent open = PendingIntent.getActivity(this, 0,
+                new Intent(this, MappingActivity.class)
+                        .setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        PendingIntent stop = PendingIntent.getService(this, 0,
+                new Intent(this, LoggingService.class).setAction(ACTION_STOP),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        return new Notification.Builder(this)
+                .setSmallIcon(R.mipmap.ic_rec_badge_red)
+                .setContentTitle(getString(R.string.logging_notification_title))
+                .setContentText(getString(R.string.logging_notification_text))
+                .setContentIntent(open)
+                .addAction(0, getString(R.string.logging_notification_stop), stop)
+                .setOngoing(true)
+                .build();
+    }
+
+    private void startLocationUpdates() {
+        if (mIsRequestingLocation) {
+            return;
+        }
+
+        if (mLocationClient == null) {
+            mLocationClient = LocationServices.getFusedLocationProviderClient(this);
+        }
+        try {
+            mLocationClient.requestLocationUpdates(LocationRequest.create()
+                            .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY)
+                            .setInterval(LOCATION_UPDATE_RATE)
+                            .setFastestInterval(LOCATION_UPDATE_RATE),
+                    mLocationCallback, getMainLooper());
+            mIsRequestingLocation = true;
+        } catch (SecurityException e) {
+            //Log.e(TAG, "startLocationUpdates: " + e.toString());
+        }
+    }
+
+    private void stopLocationUpdates() {
+        if (mIsRequestingLocation) {
+            mLocationClient.removeLocationUpdates(mLocationCallback);
+            mIsRequestingLocation = false;
+        }
+    }
+
+    private final LocationCallback mLocationCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult result) {
+            Location location = result.getLastLocation();
+            if (location == null) {
+                return;
+            }
+
+            if (mSegmenter != null) {
+                mSegmenter.setFix(new SegmentingEncoder.Fix(location.getLatitude(),
+                        location.getLongitude(), System.currentTimeMillis()));
+            }
+            for (int i = mSegmentLoggers.size() - 1; i >= 0; i--) {
+                mSegmentLoggers.get(i).onFix(location.getLatitude(), location.getLongitude());
+                // Only the running capture can record more segments without a fix
+                if (mRecorder == null || i < mSegmentLoggers.size() - 1) {
+                    mSegmentLoggers.remove(i);
+                }
+            }
+            if (mRecorder == null) {
+                // The capture is over and what it recorded is placed
+                finish();
+            }
+        }
+    };
+}
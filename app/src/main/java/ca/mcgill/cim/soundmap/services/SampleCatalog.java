@@ -0,0 +1,294 @@
+package ca.mcgill.cim.soundmap.services;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.mcgill.cim.soundmap.audio.AcousticFeatures;
+import ca.mcgill.cim.soundmap.map.SampleHits;
+import ca.mcgill.cim.soundmap.map.SampleIndex;
+
+/**
+ * The samples recorded on this device: where and when, their overall levels and the files they
+ * were saved to, so that the app can tell what has been recorded near here without the server.
+ *
+ * The metadata is kept in an SQLite table. The positions are indexed in memory by a
+ * {@link SampleIndex}, loaded from the table by {@link #load()} (off the UI thread, once per
+ * process), after which bounding box and nearest queries take microseconds and do not touch the
+ * database. {@link #getSamples} then reads the rows of the samples found, by id.
+ *
+ * The file of a sample may be gone (deleted after its upload, or with the cache); its row is
+ * kept. Thread safe.
+ */
+public class SampleCatalog extends SQLiteOpenHelper {
+
+    private static final String TAG = "SampleCatalog";
+
+    private static final String DATABASE_NAME = "samples.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE = "samples";
+    private static final String ID = "_id";
+    private static final String FILE = "file";
+    private static final String USER = "user";
+    private static final String TIME = "time";
+    private static final String LAT = "lat";
+    private static final String LNG = "lng";
+    private static final String DURATION = "duration";
+    private static final String LEQ = "leq";
+    private static final String LAEQ = "laeq";
+    private static final String LAMAX = "lamax";
+
+    private static final String[] COLUMNS =
+            {ID, FILE, USER, TIME, LAT, LNG, DURATION, LEQ, LAEQ, LAMAX};
+
+    // Rows read at once by getSamples, under SQLite's limit of bound parameters
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    /**
+     * One row of the catalog. Levels are NaN if the sample has no features.
+     */
+    public static final class Sample {
+        public final long id;
+        public final String file;
+        public final String user;
+        public final long time;         // ms since the epoch, when the recording started
+        public final double lat;
+        public final double lng;
+        public final long duration;     // ms
+        public final double leq;        // dB
+        public final double laeq;       // dB(A)
+        public final double lamax;      // dB(A)
+
+        Sample(Cursor cursor) {
+            id = cursor.getLong(0);
+            file = cursor.getString(1);
+            user = cursor.getString(2);
+            time = cursor.getLong(3);
+            lat = cursor.getDouble(4);
+            lng = cursor.getDouble(5);
+            duration = cursor.getLong(6);
+            leq = cursor.isNull(7) ? Double.NaN : cursor.getDouble(7);
+            laeq = cursor.isNull(8) ? Double.NaN : cursor.getDouble(8);
+            lamax = cursor.isNull(9) ? Double.NaN : cursor.getDouble(9);
+        }
+
+        /**
+         * Path of the features saved next to the sample.
+         */
+        public String getFeaturesFile() {
+            return AcousticFeatures.fileFor(file);
+        }
+    }
+
+    private static SampleCatalog sInstance;
+
+    public static synchronized SampleCatalog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SampleCatalog(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Object mLock = new Object();
+    private SampleIndex mIndex = new SampleIndex();
+    private boolean mIsLoaded = false;
+    // Highest id in the index; rows inserted while it was loading are picked up after it
+    private long mLoadedThrough = -1;
+
+    private SampleCatalog(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + FILE + " TEXT NOT NULL, "
+                + USER + " TEXT, "
+                + TIME + " INTEGER NOT NULL, "
+                + LAT + " REAL NOT NULL, "
+                + LNG + " REAL NOT NULL, "
+                + DURATION + " INTEGER NOT NULL, "
+                + LEQ + " REAL, "
+                + LAEQ + " REAL, "
+                + LAMAX + " REAL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Nothing to migrate yet
+    }
+
+    /**
+     * Reads the positions of every sample into the index. Does the disk work, so must not be
+     * called on the UI thread; queries find nothing until it is done.
+     */
+    public void load() {
+        synchronized (mLock) {
+            if (mIsLoaded) {
+                return;
+            }
+        }
+
+        // Built outside the lock, so the queries of the UI thread are not held up
+        SampleIndex index = new SampleIndex();
+        long last = readPositions(index, -1);
+        index.pack();
+
+        synchronized (mLock) {
+            if (mIsLoaded) {
+                return;
+            }
+            mLoadedThrough = Math.max(last, readPositions(index, last));
+            mIndex = index;
+            mIsLoaded = true;
+        }
+    }
+
+    public boolean isLoaded() {
+        synchronized (mLock) {
+            return mIsLoaded;
+        }
+    }
+
+    /**
+     * Records a sample once it has been saved. Does the disk work, so must not be called on the
+     * UI thread.
+     *
+     * @param features the features of the sample, or null if it has none
+     * @return the id of the sample, or -1 if it could not be recorded
+     */
+    public long add(String file, String user, long time, double lat, double lng, long duration,
+                    AcousticFeatures features) {
+        ContentValues values = new ContentValues();
+        values.put(FILE, file);
+        values.put(USER, user);
+        values.put(TIME, time);
+        values.put(LAT, lat);
+        values.put(LNG, lng);
+        values.put(DURATION, duration);
+        if (features != null && features.getFrameCount() > 0) {
+            values.put(LEQ, features.getLeq());
+            values.put(LAEQ, features.getLAeq());
+            values.put(LAMAX, features.getLAmax());
+        }
+
+        long id;
+        try {
+            id = getWritableDatabase().insert(TABLE, null, values);
+        } catch (SQLiteException e) {
+            //Log.e(TAG, "add: Error - " + e.getMessage());
+            return -1;
+        }
+
+        synchronized (mLock) {
+            if (id >= 0 && mIsLoaded && id > mLoadedThrough) {
+                mIndex.add(id, lat, lng);
+                mLoadedThrough = id;
+            }
+        }
+        return id;
+    }
+
+    public int size() {
+        synchronized (mLock) {
+            return mIndex.size();
+        }
+    }
+
+    /**
+     * Finds the samples inside the given bounds, from memory.
+     *
+     * @return the number of samples found
+     */
+    public int within(double minLat, double minLng, double maxLat, double maxLng,
+                      SampleHits out) {
+        synchronized (mLock) {
+            return mIndex.within(minLat, minLng, maxLat, maxLng, out);
+        }
+    }
+
+    /**
+     * Finds the k samples nearest to the given position, from memory.
+     *
+     * @return the number of samples found
+     */
+    public int nearest(double lat, double lng, int k, SampleHits out) {
+        synchronized (mLock) {
+            return mIndex.nearest(lat, lng, k, out);
+        }
+    }
+
+    /**
+     * Reads the rows of the samples found by a query, in the order they were found. Does the
+     * disk work, so should not be called on the UI thread for more than a few samples.
+     */
+    public List<Sample> getSamples(SampleHits hits) {
+        Map<Long, Sample> rows = new HashMap<>();
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            for (int from = 0; from < hits.size(); from += MAX_IDS_PER_QUERY) {
+                int to = Math.min(from + MAX_IDS_PER_QUERY, hits.size());
+                StringBuilder selection = new StringBuilder(ID).append(" IN (");
+                String[] ids = new String[to - from];
+                for (int i = from; i < to; i++) {
+                    selection.append(i > from ? ",?" : "?");
+                    ids[i - from] = Long.toString(hits.getId(i));
+                }
+                selection.append(')');
+
+                Cursor cursor = db.query(TABLE, COLUMNS, selection.toString(), ids,
+                        null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        Sample sample = new Sample(cursor);
+                        rows.put(sample.id, sample);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } catch (SQLiteException e) {
+            //Log.e(TAG, "getSamples: Error - " + e.getMessage());
+        }
+
+        List<Sample> samples = new ArrayList<>(rows.size());
+        for (int i = 0; i < hits.size(); i++) {
+            Sample sample = rows.get(hits.getId(i));
+            if (sample != null) {
+                samples.add(sample);
+            }
+        }
+        return samples;
+    }
+
+    // Adds the positions of the rows after the given id, and returns the highest id read
+    private long readPositions(SampleIndex index, long after) {
+        long last = after;
+        try {
+            Cursor cursor = getReadableDatabase().query(TABLE, new String[] {ID, LAT, LNG},
+                    ID + " > ?", new String[] {Long.toString(after)}, null, null, ID);
+            try {
+                while (cursor.moveToNext()) {
+                    last = cursor.getLong(0);
+                    index.add(last, cursor.getDouble(1), cursor.getDouble(2));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            //Log.e(TAG, "readPositions: Error - " + e.getMessage());
+        }
+        return last;
+    }
+}
@@ -0,0 +1,122 @@
+package ca.mcgill.cim.soundmap.services;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import ca.mcgill.cim.soundmap.audio.AcousticFeatures;
+import ca.mcgill.cim.soundmap.audio.SegmentingEncoder;
+import ca.mcgill.cim.soundmap.network.UploadQueue;
+
+/**
+ * Names the segments of a continuous capture, hands each one to the upload queue as soon as it
+ * is complete, and keeps their disk usage under a budget.
+ *
+ * Segments are deleted once they have been uploaded. If the queue falls further behind than the
+ * budget allows (a long dead zone), the oldest pending segments are dropped to make room for
+ * new ones, so an unattended capture never fills the storage.
+ *
+ * A segment recorded before the first location fix is held, within the same budget, and queued
+ * with the first fix that comes: that of the next segment, or one passed to {@link #onFix}.
+ */
+public class SegmentLogger implements SegmentingEncoder.SegmentSink {
+
+    private static final String TAG = "SegmentLogger";
+
+    private final File mDirectory;
+    private final String mUser;
+    private final String mExtension;
+    private final UploadQueue mQueue;
+    private final long mDiskBudget;
+
+    // Segments of this capture still on disk, oldest first
+    private final ArrayDeque<File> mSegments = new ArrayDeque<>();
+    // Those of them waiting for a location before they can be queued
+    private final ArrayDeque<File> mUnlocated = new ArrayDeque<>();
+    private int mDropped = 0;
+
+    public SegmentLogger(File directory, String user, String extension, UploadQueue queue,
+                         long diskBudget) {
+        mDirectory = directory;
+        mUser = user;
+        mExtension = extension;
+        mQueue = queue;
+        mDiskBudget = diskBudget;
+    }
+
+    @Override
+    public File fileFor(int index, long startTime) {
+        reclaim();
+        return new File(mDirectory, mUser + "_" + Long.toString(startTime) + mExtension);
+    }
+
+    @Override
+    public void onSegment(SegmentingEncoder.Segment segment) {
+        synchronized (mSegments) {
+            mSegments.addLast(segment.file);
+            if (segment.fix == null) {
+                // Nowhere to put it on the map yet; it waits for the first fix
+                mUnlocated.addLast(segment.file);
+                return;
+            }
+        }
+
+        onFix(segment.fix.lat, segment.fix.lng);
+        mQueue.enqueue(segment.file.getPath(), mUser, segment.fix.lat, segment.fix.lng);
+    }
+
+    /**
+     * Queues the segments recorded before the first fix, at the given location. May be called
+     * from any thread, also once the capture is over.
+     */
+    public void onFix(double lat, double lng) {
+        synchronized (mSegments) {
+            for (File segment : mUnlocated) {
+                mQueue.enqueue(segment.getPath(), mUser, lat, lng);
+            }
+            mUnlocated.clear();
+        }
+    }
+
+    /**
+     * Segments dropped before they could be uploaded.
+     */
+    public int getDroppedCount() {
+        synchronized (mSegments) {
+            return mDropped;
+        }
+    }
+
+    private void reclaim() {
+        synchronized (mSegments) {
+            long used = 0;
+            Iterator<File> segments = mSegments.iterator();
+            while (segments.hasNext()) {
+                File segment = segments.next();
+                if (!mUnlocated.contains(segment) && !mQueue.isPending(segment.getPath())) {
+                    delete(segment);
+                    segments.remove();
+                } else {
+                    used += segment.length();
+                }
+            }
+
+            while (used > mDiskBudget && !mSegments.isEmpty()) {
+                File oldest = mSegments.removeFirst();
+                mUnlocated.remove(oldest);
+                used -= oldest.length();
+                delete(oldest);
+                mDropped++;
+            }
+        }
+    }
+
+    private static void delete(File segment) {
+        new File(AcousticFeatures.fileFor(segment.getPath())).delete();
+        if (segment.exists() && !segment.delete()) {
+            //Log.w(TAG, "delete: Could not delete " + segment.getName());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package ca.mcgill.cim.soundmap.services;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import ca.mcgill.cim.soundmap.activities.MappingActivity;
+import ca.mcgill.cim.soundmap.network.TargetClient;
+import ca.mcgill.cim.soundmap.tasks.Task;
+
+/**
+ * Asks the server, as soon as a sample starts recording, which target would follow it, so that
+ * the user can be shown where to walk the moment the upload is acknowledged. The offer is then
+ * taken up by a {@link LocationClientService} (see {@link LocationClientService#confirm}).
+ */
+public class TargetPrefetchTask extends Task<Void, TargetClient.Target> {
+
+    private static final String TAG = "TargetPrefetchTask";
+
+    private MappingActivity mCalledFrom;
+    private String mUser;
+    private LatLng mUserLocation;
+
+    public TargetPrefetchTask(MappingActivity calledFrom, String user, LatLng userLocation) {
+        mCalledFrom = calledFrom;
+        mUser = user;
+        mUserLocation = userLocation;
+    }
+
+    @Override
+    protected TargetClient.Target doInBackground() {
+        // Speculative, so a busy server is not waited out; the target is then asked for as
+        // usual once the sample is uploaded
+        TargetClient.Target target = LocationClientService.newTargetClient()
+                .prefetch(mUser, mUserLocation.latitude, mUserLocation.longitude);
+        return target != TargetClient.WAIT ? target : null;
+    }
+
+    @Override
+    protected void onPostExecute(TargetClient.Target target) {
+        mCalledFrom.onTargetPrefetched(target);
+    }
+}
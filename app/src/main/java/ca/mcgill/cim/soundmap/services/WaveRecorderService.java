@@ -2,63 +2,240 @@ package ca.mcgill.cim.soundmap.services;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaRecorder;
-import android.os.AsyncTask;
+import android.media.AudioTimestamp;
+import android.os.Build;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 import ca.mcgill.cim.soundmap.activities.MappingActivity;
+import ca.mcgill.cim.soundmap.audio.AcousticFeatures;
+import ca.mcgill.cim.soundmap.audio.AudioEncoder;
+import ca.mcgill.cim.soundmap.audio.AudioEncoders;
+import ca.mcgill.cim.soundmap.audio.CalibrationProfile;
+import ca.mcgill.cim.soundmap.audio.CaptureConfig;
+import ca.mcgill.cim.soundmap.audio.CaptureStats;
+import ca.mcgill.cim.soundmap.audio.CorrectionFilter;
+import ca.mcgill.cim.soundmap.audio.EncoderOutput;
+import ca.mcgill.cim.soundmap.audio.EncoderPipeline;
+import ca.mcgill.cim.soundmap.audio.EventDetector;
+import ca.mcgill.cim.soundmap.audio.FeatureExtractor;
+import ca.mcgill.cim.soundmap.audio.GatedEncoder;
+import ca.mcgill.cim.soundmap.audio.LevelMeter;
+import ca.mcgill.cim.soundmap.audio.SegmentingEncoder;
+import ca.mcgill.cim.soundmap.audio.SpeechScrubber;
+import ca.mcgill.cim.soundmap.map.NoiseCells;
+import ca.mcgill.cim.soundmap.network.StreamingUploadBody;
+import ca.mcgill.cim.soundmap.tasks.Task;
 
-public class WaveRecorderService extends AsyncTask<Void, Void, Void> {
+public class WaveRecorderService extends Task<Void, Void> {
 
     private static final String TAG = "WaveRecorderService";
 
-    private static final int AUDIO_SOURCE = MediaRecorder.AudioSource.VOICE_RECOGNITION;
-    private static final int AUDIO_ENCODING = AudioFormat.ENCODING_PCM_16BIT;
-    private static final int AUDIO_CHANNEL = AudioFormat.CHANNEL_IN_STEREO;
-    private static final int SAMPLE_RATE = 44100;      // Hz
-    private static final int MAX_FILE_SIZE = 31457280; // 30 Mb
+    private static final int MAX_FILE_SIZE = 31457280; // 30 Mb of PCM
+    private static final int MIN_POOLED_CHUNKS = 8;
+    private static final int POOL_DURATION = 2000;     // ms of audio the writer may lag behind
 
-    private static final int BUFFER_SIZE = 2 * AudioRecord.getMinBufferSize(SAMPLE_RATE,
-            AUDIO_CHANNEL, AUDIO_ENCODING);
+    public static final CaptureConfig DEFAULT_CONFIG =
+            new CaptureConfig(44100, 2, 16, CaptureConfig.Codec.WAV);
 
     private MappingActivity mCalledFrom;
     private String mFilename;
     private File mFile;
-    private boolean mIsStopped = false;
+    private final CaptureConfig mConfig;
+    private volatile boolean mIsStopped = false;
 
-    private WaveRecorderService(MappingActivity calledFrom, String filename) {
+    // Optional live upload of the encoded sample as it is recorded
+    private StreamingUploadBody mStream;
+
+    // Source, gain and response correction of this phone
+    private CalibrationProfile mProfile = CalibrationProfile.UNCALIBRATED;
+
+    // Live levels for the volume bar
+    private final LevelMeter mMeter;
+
+    // Levels, bands and centroid computed while recording, saved next to the sample
+    private final FeatureExtractor mExtractor;
+    private AcousticFeatures mFeatures;
+
+    // Frames lost to overruns or to a slow writer
+    private CaptureStats mStats;
+
+    // Continuous capture into rolling segments, instead of one sample
+    private final SegmentingEncoder mSegmenter;
+
+    // Keeps only the events of the sample, if set
+    private boolean mIsGated = false;
+    private GatedEncoder mGate;
+
+    // Removes speech before anything is stored, if set
+    private SpeechScrubber.Mode mScrubMode;
+    private SpeechScrubber mScrubber;
+
+    // Records the finished sample on the device, if set
+    private SampleCatalog mCatalog;
+    private String mUser;
+    private double mLat;
+    private double mLng;
+
+    // Takes the levels of every frame as it is analysed, if set
+    private NoiseCells mCells;
+
+    public WaveRecorderService(MappingActivity calledFrom, String filename) {
+        this(calledFrom, filename, DEFAULT_CONFIG);
+    }
+
+    public WaveRecorderService(MappingActivity calledFrom, String filename, CaptureConfig config) {
         mCalledFrom = calledFrom;
         mFilename = filename;
         mFile = new File(mFilename);
+        mConfig = config;
+        mMeter = new LevelMeter(config.getSampleRate(), config.getChannels(),
+                LevelMeter.Ballistics.FAST);
+        mExtractor = new FeatureExtractor(config.getSampleRate(), config.getChannels(),
+                FeatureExtractor.DEFAULT_FRAME_SIZE);
+        mSegmenter = null;
+    }
+
+    /**
+     * Records until stopped, with no size limit, into the segments of the given encoder. Each
+     * segment is finished and handed over on its own; stopping finishes the last one and
+     * cancelling drops it.
+     */
+    public WaveRecorderService(MappingActivity calledFrom, CaptureConfig config,
+                               SegmentingEncoder segmenter) {
+        mCalledFrom = calledFrom;
+        mConfig = config;
+        mMeter = new LevelMeter(config.getSampleRate(), config.getChannels(),
+                LevelMeter.Ballistics.FAST);
+        mExtractor = null;  // Per segment, in the segmenter
+        mSegmenter = segmenter;
+    }
+
+    /**
+     * Streams the encoded sample into the given body in addition to writing it to disk.
+     * Must be called before the task is executed.
+     */
+    public void streamTo(StreamingUploadBody stream) {
+        mStream = stream;
+    }
+
+    /**
+     * Stores only the events of the sample, with some audio around each, instead of all of it.
+     * The features still cover the whole sample and list the stretches that were kept. Must be
+     * called before the task is executed; segmented captures are always kept whole.
+     */
+    public void keepEventsOnly() {
+        mIsGated = mSegmenter == null;
+    }
+
+    /**
+     * Scrubs speech from the capture before it is encoded, so it is neither stored nor
+     * uploaded; the features are summarised over the scrubbed stretches. Must be called before
+     * the task is executed.
+     */
+    public void scrubSpeech(SpeechScrubber.Mode mode) {
+        mScrubMode = mode;
+    }
+
+    /**
+     * Records from the source of the profile, corrects the response of the microphone before
+     * anything else sees the samples, and adds the gain offset to the levels of the features.
+     * The level meter stays in dBFS. Must be called before the task is executed.
+     */
+    public void calibrate(CalibrationProfile profile) {
+        mProfile = profile;
+        if (mExtractor != null) {
+            mExtractor.setCalibrationOffset(profile.getOffset());
+        }
+        if (mSegmenter != null) {
+            mSegmenter.setCalibrationOffset(profile.getOffset());
+        }
+    }
+
+    /**
+     * Records the sample in the catalog once it is saved, with its features, as taken by the
+     * given user at the given position. Must be called before the task is executed; segmented
+     * captures are not catalogued.
+     */
+    public void catalogTo(SampleCatalog catalog, String user, double lat, double lng) {
+        mCatalog = mSegmenter == null ? catalog : null;
+        mUser = user;
+        mLat = lat;
+        mLng = lng;
+    }
+
+    /**
+     * Adds the levels of every frame to the noise cells as soon as it is analysed, at the given
+     * position. Must be called before the task is executed; a segmented capture aggregates in
+     * its segmenter instead (see {@link SegmentingEncoder#aggregateInto}).
+     */
+    public void aggregateInto(NoiseCells cells, double lat, double lng) {
+        mCells = mSegmenter == null ? cells : null;
+        mLat = lat;
+        mLng = lng;
+    }
+
+    public CaptureConfig getConfig() {
+        return mConfig;
     }
 
     @Override
-    protected Void doInBackground(Void... params) {
+    protected Void doInBackground() {
         AudioRecord audioRecord = null;
-        FileOutputStream audioStream = null;
+        EncoderPipeline pipeline = null;
+        boolean isEncoded = false;
+        long startTime = System.currentTimeMillis();
+
+        int channelMask = mConfig.getChannels() == 2
+                ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        int encoding = mConfig.getBitDepth() == 8
+                ? AudioFormat.ENCODING_PCM_8BIT : AudioFormat.ENCODING_PCM_16BIT;
+        int bufferSize = 2 * AudioRecord.getMinBufferSize(mConfig.getSampleRate(),
+                channelMask, encoding);
+        int bytesPerFrame = 2 * mConfig.getChannels();  // as widened for the encoder
+        mStats = new CaptureStats(mConfig.getSampleRate(),
+                bufferSize / (mConfig.getChannels() * mConfig.getBitDepth() / 8));
+        CorrectionFilter filter = mProfile.hasCorrections()
+                ? mProfile.createFilter(mConfig.getSampleRate(), mConfig.getChannels()) : null;
 
         try {
             // Open our two resources
-            audioRecord = new AudioRecord(AUDIO_SOURCE,
-                                          SAMPLE_RATE,
-                                          AUDIO_CHANNEL,
-                                          AUDIO_ENCODING,
-                                          BUFFER_SIZE);
-
-            audioStream = new FileOutputStream(mFilename);
+            audioRecord = new AudioRecord(CalibrationStore.toAudioSource(mProfile.getSource()),
+                                          mConfig.getSampleRate(),
+                                          channelMask,
+                                          encoding,
+                                          bufferSize);
 
-            // Write Header -----------------------------------------------------------------------
-            writeWavHeader(audioStream);
+            // The encoder always gets 16 bit samples, so 8 bit reads take twice the room. All
+            // the chunks are allocated here, before recording starts.
+            int chunkSize = mConfig.getBitDepth() == 8 ? 2 * bufferSize : bufferSize;
+            int chunks = Math.max(MIN_POOLED_CHUNKS,
+                    (int) ((long) mConfig.getPcmByteRate() * POOL_DURATION / 1000 / chunkSize));
+            AudioEncoder encoder = mSegmenter;
+            if (encoder == null) {
+                EncoderOutput output = AudioEncoders.createOutput(mConfig, mFile, mStream);
+                encoder = AudioEncoders.create(mConfig, output);
+                if (mIsGated) {
+                    mGate = new GatedEncoder(mConfig, encoder, EventDetector.createDefault(
+                            mConfig.getSampleRate(), mConfig.getChannels()));
+                    encoder = mGate;
+                }
+            }
+            if (mScrubMode != null) {
+                // First in line, so nothing downstream (segments, gate, file) hears a voice
+                mScrubber = new SpeechScrubber(mConfig, encoder, mScrubMode);
+                encoder = mScrubber;
+            }
+            pipeline = new EncoderPipeline(encoder, chunkSize, chunks, Workloads.encoder());
+            pipeline.start();
 
-            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] narrow = mConfig.getBitDepth() == 8 ? new byte[bufferSize] : null;
+            // Takes the reads that cannot be written, so the microphone is still drained
+            byte[] spare = new byte[chunkSize];
+            AudioTimestamp timestamp = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                    ? new AudioTimestamp() : null;
 
             int in;
             long total = 0;
@@ -67,18 +244,63 @@ public class WaveRecorderService extends AsyncTask<Void, Void, Void> {
             boolean isRunning = true;
             audioRecord.startRecording();
             while (isRunning && !mIsStopped && !isCancelled()) {
-                in = audioRecord.read(buffer, 0, buffer.length);
+                EncoderPipeline.Chunk chunk = pipeline.obtain();
+                byte[] target = chunk != null ? chunk.data : spare;
+                if (narrow == null) {
+                    in = audioRecord.read(target, 0, bufferSize);
+                } else {
+                    in = audioRecord.read(narrow, 0, bufferSize);
+                    if (in > 0) {
+                        in = widen(narrow, in, target);
+                    }
+                }
+
+                // Negative values are error codes from the AudioRecord
+                if (in < 0) {
+                    mStats.onReadError();
+                    break;
+                }
+
+                if (timestamp != null && audioRecord.getTimestamp(timestamp,
+                        AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS) {
+                    mStats.onDevicePosition(timestamp.framePosition, timestamp.nanoTime);
+                }
+                int frames = in / bytesPerFrame;
+                mStats.onRead(frames, System.nanoTime());
+
+                // A flat response first, so that levels, features and file all agree
+                if (filter != null) {
+                    filter.process(target, in);
+                }
+
+                // Levels and features see every frame, even those the writer has to drop
+                mMeter.process(target, in);
+                if (mExtractor != null) {
+                    int completed = mExtractor.process(target, in);
+                    if (mCells != null && completed > 0) {
+                        AcousticFeatures features = mExtractor.getFeatures();
+                        mCells.addFrames(mLat, mLng, features,
+                                features.getFrameCount() - completed);
+                    }
+                }
 
-                // Assuming Small max file size, this is fine
-                if (total + in > MAX_FILE_SIZE) {
-                    audioStream.write(buffer, 0, in);
+                if (chunk == null) {
+                    mStats.onWriterDropped(frames);
+                    continue;
+                }
+                chunk.length = in;
+                pipeline.submit(chunk);
+                mStats.onWritten(frames);
+
+                // Only what reaches the file counts towards its size; segments have no limit
+                if (mSegmenter == null && total + in > MAX_FILE_SIZE) {
                     isRunning = false;
                 } else {
-                    audioStream.write(buffer, 0, in);
                     total += in;
                 }
             }
-        } catch (IOException e) {
+        } catch (IOException | IllegalStateException e) {
+            // IllegalStateException --> the mic could not be opened
             //Log.e(TAG, "doInBackground: Error -" + e.toString());
         } finally {
             // Stop Recording ---------------------------------------------------------------------
@@ -94,88 +316,83 @@ public class WaveRecorderService extends AsyncTask<Void, Void, Void> {
                     audioRecord.release();
                 }
             }
-            if (audioStream != null) {
+        }
+
+        // Complete the file (sizes, totals) once the encoder has caught up --------------------
+        if (pipeline != null) {
+            if (isCancelled()) {
+                pipeline.abort();
+            } else {
                 try {
-                    audioStream.close();
+                    pipeline.finish();
+                    isEncoded = true;
                 } catch (IOException e) {
                     //Log.e(TAG, "doInBackground: Error - " + e.toString());
                 }
             }
         }
 
-        // Update Header --------------------------------------------------------------------------
-        try {
-            updateWavHeader(mFile);
-        } catch (IOException e) {
-            //Log.e(TAG, "doInBackground: Error - " + e.toString());
+        // Save the features before the live upload ends; they are sent after the audio
+        if (mExtractor != null) {
+            mFeatures = mExtractor.finish();
+            if (mGate != null && isEncoded) {
+                mFeatures.setWindows(mGate.getWindows());
+            }
+            if (mScrubber != null) {
+                mFeatures.setScrubbed(mScrubber.getSpans());
+            }
+            try {
+                mFeatures.writeTo(new File(AcousticFeatures.fileFor(mFilename)));
+            } catch (IOException e) {
+                //Log.e(TAG, "doInBackground: Error - " + e.toString());
+            }
+        }
+
+        // Close the live upload last so the fallback path finds a complete file
+        if (mStream != null) {
+            if (isCancelled() || !isEncoded) {
+                mStream.cancel();
+            } else {
+                mStream.finish();
+            }
+        }
+
+        if (mCatalog != null && isEncoded && !isCancelled()) {
+            long duration = mStats.getFramesRead() * 1000 / mConfig.getSampleRate();
+            mCatalog.add(mFilename, mUser, startTime, mLat, mLng, duration, mFeatures);
         }
 
         return null;
     }
 
-    private static void writeWavHeader(OutputStream out) throws IOException {
-        short channels = 2;
-        short bitDepth = 16;
-
-        // Convert the multi-byte integers to raw bytes in little endian format
-        byte[] littleBytes = ByteBuffer
-                .allocate(14)
-                .order(ByteOrder.LITTLE_ENDIAN)
-                .putShort(channels)
-                .putInt(SAMPLE_RATE)
-                .putInt(SAMPLE_RATE * channels * (bitDepth / 8))
-                .putShort((short) (channels * (bitDepth / 8)))
-                .putShort(bitDepth)
-                .array();
-
-        out.write(new byte[] {
-                'R', 'I', 'F', 'F',
-                0, 0, 0, 0, // Updated later
-                'W', 'A', 'V', 'E',
-                'f', 'm', 't', ' ',
-                16, 0, 0, 0,
-                1, 0,
-                littleBytes[0], littleBytes[1],                                 // Channels
-                littleBytes[2], littleBytes[3], littleBytes[4], littleBytes[5], // SampleRate
-                littleBytes[6], littleBytes[7], littleBytes[8], littleBytes[9], // ByteRate
-                littleBytes[10], littleBytes[11],                               // BlockAlign
-                littleBytes[12], littleBytes[13],                               // BitsPerSample
-                'd', 'a', 't', 'a',
-                0, 0, 0, 0, // Updated later
-        });
-    }
-
-    private static void updateWavHeader(File file) throws IOException {
-        byte[] sizes = ByteBuffer
-                .allocate(8)
-                .order(ByteOrder.LITTLE_ENDIAN)
-                .putInt((int) (file.length() - 8))  // Bit shift to ChunkSize
-                .putInt((int) (file.length() - 44)) // Bit shift to Subchunk2Size
-                .array();
-
-        RandomAccessFile accessWave = null;
-
-        //noinspection CaughtExceptionImmediatelyRethrown
-        try {
-            accessWave = new RandomAccessFile(file, "rw");
-            // ChunkSize
-            accessWave.seek(4);
-            accessWave.write(sizes, 0, 4);
-
-            // Subchunk2Size
-            accessWave.seek(40);
-            accessWave.write(sizes, 4, 4);
-        } catch (IOException e) {
-            throw e;
-        } finally {
-            if (accessWave != null) {
-                try {
-                    accessWave.close();
-                } catch (IOException ex) {
-                    //
-                }
-            }
+    /**
+     * Updated after every read of the microphone; may be sampled from any thread.
+     */
+    public LevelMeter getLevelMeter() {
+        return mMeter;
+    }
+
+    /**
+     * Gaps in the recording, once it has stopped.
+     */
+    public CaptureStats getCaptureStats() {
+        return mStats;
+    }
+
+    /**
+     * The features of the recording, once it has stopped.
+     */
+    public AcousticFeatures getFeatures() {
+        return mFeatures;
+    }
+
+    // Unsigned 8 bit --> little endian 16 bit
+    private static int widen(byte[] narrow, int length, byte[] wide) {
+        for (int i = 0; i < length; i++) {
+            wide[2 * i] = 0;
+            wide[2 * i + 1] = (byte) ((narrow[i] & 0xFF) - 128);
         }
+        return 2 * length;
     }
 
     @Override
@@ -190,14 +407,17 @@ public class WaveRecorderService extends AsyncTask<Void, Void, Void> {
     @Override
     protected void onPostExecute(Void results) {
         // If cancelled delete the file
-        if (!isCancelled()) {
+        if (isCancelled() && mFile != null) {
             try {
+                new File(AcousticFeatures.fileFor(mFilename)).delete();
                 if (!mFile.delete()) {
                     throw new Exception("Could not delete sample file on cancel");
                 }
             } catch (Exception e) {
                 //Log.e(TAG, "onPostExecute: Error - " + e.toString());
             }
+        } else if (mCalledFrom != null && mStats != null) {
+            mCalledFrom.onCaptureComplete(mStats);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+package ca.mcgill.cim.soundmap.services;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.mcgill.cim.soundmap.tasks.TaskPool;
+
+/**
+ * The pools the app's background work runs on, one per kind of work, each delivering its
+ * results on the main thread.
+ *
+ * Capture reads the microphone at audio priority and never waits behind anything else, and the
+ * encoder of each capture gets a thread of its own at audio priority for as long as it lasts;
+ * network requests and uploads share a pool of their own at background priority; other
+ * CPU-bound DSP gets about a thread per core.
+ */
+public final class Workloads {
+
+    private static final String TAG = "Workloads";
+
+    private static final Executor MAIN_THREAD = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
+
+    // A capture, the tail of the previous one finishing its file, and room for one more
+    private static final TaskPool CAPTURE = new TaskPool("Capture", 2, 1, MAIN_THREAD,
+            threads("Capture", Process.THREAD_PRIORITY_URGENT_AUDIO));
+
+    private static final TaskPool NETWORK = new TaskPool("Network", 4, 32, MAIN_THREAD,
+            threads("Network", Process.THREAD_PRIORITY_BACKGROUND));
+
+    private static final TaskPool DSP = new TaskPool("DSP",
+            Math.max(2, Runtime.getRuntime().availableProcessors()), 16, MAIN_THREAD,
+            threads("DSP", Process.THREAD_PRIORITY_DEFAULT));
+
+    // Not pooled: an encoder holds its thread for the whole capture, and must never wait for one
+    private static final ThreadFactory ENCODER_THREADS =
+            threads("Encoder", Process.THREAD_PRIORITY_AUDIO);
+
+    private static final Executor ENCODER = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            ENCODER_THREADS.newThread(command).start();
+        }
+    };
+
+    private Workloads() {}
+
+    public static TaskPool capture() {
+        return CAPTURE;
+    }
+
+    public static TaskPool network() {
+        return NETWORK;
+    }
+
+    public static TaskPool dsp() {
+        return DSP;
+    }
+
+    /**
+     * Runs the encoder loop of a capture (see {@link ca.mcgill.cim.soundmap.audio.EncoderPipeline})
+     * on a new thread at audio priority.
+     */
+    public static Executor encoder() {
+        return ENCODER;
+    }
+
+    public static String summary() {
+        return CAPTURE.summary() + "\n" + NETWORK.summary() + "\n" + DSP.summary();
+    }
+
+    // The priority is that of the Linux thread, which is what the scheduler goes by on Android
+    private static ThreadFactory threads(final String name, final int priority) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(priority);
+                        runnable.run();
+                    }
+                }, name + " #" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,231 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays 16 bit PCM WAV files through the event gate and the speech scrubber, as the recorder
+ * would feed them, and reports what they kept or scrubbed, how late the gate knew about each
+ * event and how fast both ran.
+ *
+ * Run by hand:
+ *
+ *      ./gradlew :benchmarks:replay [-Pwav=<file or directory of .wav files>] [-Pcriteria=...]
+ *
+ * Without a file, a synthetic street scene is replayed. A criteria of energy or flux tries one
+ * criterion on its own. Latency is the audio between the start of an event and the point at
+ * which it was known. Throughput is audio seconds per second of processing; the worst read is
+ * the longest any one read took, against the audio it held.
+ */
+public final class EventDetectorReplay {
+
+    private static final int READ_FRAMES = 3528;   // a recorder read at 44.1 kHz (80 ms)
+
+    private EventDetectorReplay() {}
+
+    /**
+     * @param args the file or directory of .wav files to replay, if any
+     */
+    public static void main(String[] args) throws IOException {
+        String path = args.length > 0 ? args[0] : null;
+        if (path == null) {
+            report("synthetic", synthetic(44100));
+            return;
+        }
+
+        File root = new File(path);
+        File[] files = root.isDirectory() ? root.listFiles() : new File[] {root};
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().toLowerCase().endsWith(".wav")) {
+                report(file.getName(), Pcm.read(file));
+            }
+        }
+    }
+
+    private static void report(String name, Pcm pcm) throws IOException {
+        CaptureConfig config = new CaptureConfig(pcm.sampleRate, pcm.channels, 16,
+                CaptureConfig.Codec.WAV);
+        EventDetector detector = detector(pcm.sampleRate, pcm.channels);
+        GatedEncoder gate = new GatedEncoder(config, new Discard(), detector);
+
+        int bytesPerFrame = 2 * pcm.channels;
+        byte[] read = new byte[READ_FRAMES * bytesPerFrame];
+        long worst = 0;
+        long start = System.nanoTime();
+        gate.start();
+        for (int at = 0; at < pcm.data.length; at += read.length) {
+            int length = Math.min(read.length, pcm.data.length - at);
+            System.arraycopy(pcm.data, at, read, 0, length);
+            long before = System.nanoTime();
+            gate.encode(read, length);
+            worst = Math.max(worst, System.nanoTime() - before);
+        }
+        gate.finish();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long frames = pcm.data.length / bytesPerFrame;
+        double duration = (double) frames / pcm.sampleRate;
+        List<EventDetector.Event> events = detector.getEvents();
+        double latency = 0;
+        double maxLatency = 0;
+        for (EventDetector.Event event : events) {
+            double ms = (event.detectedAt - event.start) * 1000.0 / pcm.sampleRate;
+            latency += ms / events.size();
+            maxLatency = Math.max(maxLatency, ms);
+        }
+
+        System.out.println(String.format("%s: %.1f s, %d events, %d windows, %.0f%% kept",
+                name, duration, events.size(), gate.getWindows().size(),
+                100.0 * gate.getKeptFrames() / Math.max(1, frames)));
+        System.out.println(String.format("  latency %.1f ms mean, %.1f ms max",
+                latency, maxLatency));
+        System.out.println(String.format("  throughput %.0fx real time, worst read %.2f ms"
+                        + " of %.1f ms", duration / elapsed, worst / 1e6,
+                READ_FRAMES * 1000.0 / pcm.sampleRate));
+        scrub(config, pcm);
+        for (EventDetector.Event event : events) {
+            System.out.println(String.format("  %8.2f s - %8.2f s",
+                    (double) event.start / pcm.sampleRate,
+                    (double) event.getEnd() / pcm.sampleRate));
+        }
+    }
+
+    private static void scrub(CaptureConfig config, Pcm pcm) throws IOException {
+        SpeechScrubber scrubber = new SpeechScrubber(config, new Discard(),
+                SpeechScrubber.Mode.MASK);
+        int bytesPerFrame = 2 * pcm.channels;
+        byte[] read = new byte[READ_FRAMES * bytesPerFrame];
+        long worst = 0;
+        long start = System.nanoTime();
+        scrubber.start();
+        for (int at = 0; at < pcm.data.length; at += read.length) {
+            int length = Math.min(read.length, pcm.data.length - at);
+            System.arraycopy(pcm.data, at, read, 0, length);
+            long before = System.nanoTime();
+            scrubber.encode(read, length);
+            worst = Math.max(worst, System.nanoTime() - before);
+        }
+        scrubber.finish();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        double duration = (double) pcm.data.length / bytesPerFrame / pcm.sampleRate;
+        long scrubbed = 0;
+        for (SpeechScrubber.Span span : scrubber.getSpans()) {
+            scrubbed += span.getFrames();
+        }
+        System.out.println(String.format("  scrubbed %d spans, %.1f s; %.0fx real time,"
+                        + " worst read %.2f ms, latency %.1f ms", scrubber.getSpans().size(),
+                (double) scrubbed / pcm.sampleRate, duration / elapsed, worst / 1e6,
+                scrubber.getLatency() * 1000.0 / pcm.sampleRate));
+    }
+
+    private static EventDetector detector(int sampleRate, int channels) {
+        String criteria = System.getProperty("soundmap.criteria", "");
+        if (criteria.equals("energy")) {
+            return new EventDetector(sampleRate, channels, new EnergyCriterion(sampleRate));
+        } else if (criteria.equals("flux")) {
+            return new EventDetector(sampleRate, channels, new SpectralFluxCriterion(sampleRate));
+        }
+        return EventDetector.createDefault(sampleRate, channels);
+    }
+
+    // Traffic-like noise with a few horn blasts and a door slam over two minutes
+    private static Pcm synthetic(int sampleRate) {
+        Random random = new Random(1);
+        int frames = 120 * sampleRate;
+        short[] samples = new short[frames];
+        double brown = 0;
+        for (int i = 0; i < frames; i++) {
+            brown = 0.995 * brown + random.nextGaussian() * 60;
+            double value = brown;
+            double t = (double) i / sampleRate;
+            for (double horn : new double[] {17.5, 54, 91.25}) {
+                if (t >= horn && t < horn + 0.8) {
+                    value += 6000 * Math.sin(2 * Math.PI * 440 * t);
+                }
+            }
+            if (t >= 70 && t < 70.15) {
+                value += random.nextGaussian() * 8000 * (1 - (t - 70) / 0.15);
+            }
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
+
+        Pcm pcm = new Pcm();
+        pcm.sampleRate = sampleRate;
+        pcm.channels = 1;
+        pcm.data = new byte[2 * frames];
+        ByteBuffer.wrap(pcm.data).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(samples);
+        return pcm;
+    }
+
+    private static class Discard implements AudioEncoder {
+        @Override
+        public void start() {}
+
+        @Override
+        public void encode(byte[] pcm, int length) {}
+
+        @Override
+        public void finish() {}
+
+        @Override
+        public void abort() {}
+    }
+
+    private static class Pcm {
+        int sampleRate;
+        int channels;
+        byte[] data;
+
+        // Plain RIFF with 16 bit PCM only
+        static Pcm read(File file) throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (!fourCc(in).equals("RIFF") || in.getInt() < 0 || !fourCc(in).equals("WAVE")) {
+                throw new IOException(file + " is not a WAV file");
+            }
+
+            Pcm pcm = new Pcm();
+            List<String> chunks = new ArrayList<>();
+            while (in.remaining() >= 8 && pcm.data == null) {
+                String id = fourCc(in);
+                int size = in.getInt();
+                chunks.add(id);
+                if (id.equals("fmt ")) {
+                    int format = in.getShort();
+                    pcm.channels = in.getShort();
+                    pcm.sampleRate = in.getInt();
+                    in.position(in.position() + 6);
+                    int bitDepth = in.getShort();
+                    if (format != 1 || bitDepth != 16) {
+                        throw new IOException(file + ": only 16 bit PCM is supported");
+                    }
+                    in.position(in.position() + size - 16);
+                } else if (id.equals("data")) {
+                    pcm.data = new byte[Math.min(size, in.remaining())];
+                    in.get(pcm.data);
+                } else {
+                    in.position(in.position() + size + (size & 1));
+                }
+            }
+            if (pcm.data == null || pcm.sampleRate == 0) {
+                throw new IOException(file + ": no audio in " + chunks);
+            }
+            return pcm;
+        }
+
+        private static String fourCc(ByteBuffer in) {
+            byte[] id = new byte[4];
+            in.get(id);
+            return new String(id);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The recorder's read loop, minus the microphone and the disk: one second of 44.1 kHz stereo
+ * audio in reads of the given size, each metered, analysed and handed to the encoder thread
+ * like {@code WaveRecorderService} does. The recorder reads {@code 2 * getMinBufferSize} bytes
+ * at a time, 14112 on most phones; the other sizes show what halving or doubling it would do.
+ *
+ * The encoder behind the pipeline only counts the bytes, so the score is the cost of the loop
+ * itself, per second of audio. Reads that found no free chunk, because the encoder thread fell
+ * behind, are reported next to the score as {@code dropped}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadLoopBenchmark {
+
+    private static final CaptureConfig CONFIG =
+            new CaptureConfig(44100, 2, 16, CaptureConfig.Codec.WAV);
+
+    private static final int CHUNKS = 8;
+
+    @Param({"3528", "7056", "14112", "28224", "56448"})
+    public int readSize;
+
+    private byte[] mSecond;
+    private byte[] mSpare;
+    private LevelMeter mMeter;
+    private FeatureExtractor mExtractor;
+    private EncoderPipeline mPipeline;
+    private final CountingEncoder mEncoder = new CountingEncoder();
+
+    /**
+     * Reads dropped in an iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Drops {
+        public long dropped;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            dropped = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        // Noise, so every stage does its full work
+        Random random = new Random(1);
+        mSecond = new byte[CONFIG.getPcmByteRate()];
+        random.nextBytes(mSecond);
+
+        mMeter = new LevelMeter(CONFIG.getSampleRate(), CONFIG.getChannels(),
+                LevelMeter.Ballistics.FAST);
+        mSpare = new byte[readSize];
+        mPipeline = new EncoderPipeline(mEncoder, readSize, CHUNKS);
+        mPipeline.start();
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        // The features grow with the audio; a fresh extractor keeps every iteration the same
+        mExtractor = new FeatureExtractor(CONFIG.getSampleRate(), CONFIG.getChannels(),
+                FeatureExtractor.DEFAULT_FRAME_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mPipeline.finish();
+    }
+
+    @Benchmark
+    public long second(Drops drops) {
+        for (int offset = 0; offset < mSecond.length; offset += readSize) {
+            int in = Math.min(readSize, mSecond.length - offset);
+            EncoderPipeline.Chunk chunk = mPipeline.obtain();
+            byte[] target = chunk != null ? chunk.data : mSpare;
+
+            // Stands in for AudioRecord.read()
+            System.arraycopy(mSecond, offset, target, 0, in);
+            mMeter.process(target, in);
+            mExtractor.process(target, in);
+
+            if (chunk == null) {
+                drops.dropped++;
+                continue;
+            }
+            chunk.length = in;
+            mPipeline.submit(chunk);
+        }
+        return mMeter.sample();
+    }
+
+    private static final class CountingEncoder implements AudioEncoder {
+        private long mBytes = 0;
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void encode(byte[] pcm, int length) {
+            mBytes += length;
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What {@code MappingActivity} does for the volume bar on every frame while recording: read the
+ * meter's slot, unpack the RMS level and scale it to a bar height. The slots cover the whole
+ * range of the meter, below, within and above the bounds of the bar.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VolumeBarBenchmark {
+
+    private static final float LOWER_BOUND = -60;     // dBFS, as in MappingActivity
+    private static final float UPPER_BOUND = -20;
+    private static final int MAX_HEIGHT = 600;        // px
+
+    private static final int SLOTS = 1024;
+
+    private final long[] mSlots = new long[SLOTS];
+    private int mNext = 0;
+
+    @Setup
+    public void setUp() {
+        // Real slots, published by a meter fed bursts of noise at random levels
+        Random random = new Random(1);
+        LevelMeter meter = new LevelMeter(44100, 1, LevelMeter.Ballistics.FAST);
+        byte[] read = new byte[2 * 441];
+        for (int i = 0; i < SLOTS; i++) {
+            int amplitude = (int) Math.pow(10, 4.5 * random.nextDouble());
+            for (int j = 0; j < read.length; j += 2) {
+                int value = (int) (amplitude * (2 * random.nextDouble() - 1));
+                read[j] = (byte) value;
+                read[j + 1] = (byte) (value >> 8);
+            }
+            meter.process(read, read.length);
+            mSlots[i] = meter.sample();
+        }
+    }
+
+    @Benchmark
+    public int frame() {
+        long sample = mSlots[mNext];
+        mNext = (mNext + 1) & (SLOTS - 1);
+        return LevelMeter.toHeight(LevelMeter.rmsOf(sample), LOWER_BOUND, UPPER_BOUND,
+                MAX_HEIGHT);
+    }
+}
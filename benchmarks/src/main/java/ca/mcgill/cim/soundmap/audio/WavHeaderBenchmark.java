@@ -0,0 +1,77 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The WAV container around a sample: building the header, and a whole short sample written
+ * and finished (header, one read of PCM, sizes patched in place) through either file sink.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WavHeaderBenchmark {
+
+    private static final CaptureConfig CONFIG =
+            new CaptureConfig(44100, 2, 16, CaptureConfig.Codec.WAV);
+
+    private static final int READ_SIZE = 14112;     // 2 * getMinBufferSize, 44.1 kHz stereo
+
+    @State(Scope.Thread)
+    public static class Sample {
+        @Param({"channel", "mapped"})
+        public String sink;
+
+        File mFile;
+        final byte[] mRead = new byte[READ_SIZE];
+
+        @Setup
+        public void setUp() throws IOException {
+            mFile = File.createTempFile("header", ".wav");
+            for (int i = 0; i < mRead.length; i++) {
+                mRead[i] = (byte) i;
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            mFile.delete();
+        }
+
+        EncoderOutput createOutput() {
+            return "mapped".equals(sink)
+                    ? new MappedEncoderOutput(mFile, null) : new EncoderOutput(mFile, null);
+        }
+    }
+
+    @Benchmark
+    public byte[] buildHeader() {
+        return WavEncoder.buildHeader(CONFIG);
+    }
+
+    @Benchmark
+    public long writeAndPatch(Sample sample) throws IOException {
+        EncoderOutput output = sample.createOutput();
+        WavEncoder encoder = new WavEncoder(CONFIG, output);
+        encoder.start();
+        encoder.encode(sample.mRead, sample.mRead.length);
+        encoder.finish();
+        return output.getPosition();
+    }
+}
@@ -0,0 +1,99 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write throughput of the WAV sinks over a long sample (16 MB of PCM, about a minute and a half
+ * at 44.1 kHz stereo), against the unbuffered stream the recorder used to write through. The
+ * numbers depend on the disk and the page cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WavWriterBenchmark {
+
+    private static final int TOTAL = 16 * 1024 * 1024;
+    private static final int READ_SIZE = 14112;     // 2 * getMinBufferSize, 44.1 kHz stereo
+
+    private static final CaptureConfig CONFIG =
+            new CaptureConfig(44100, 2, 16, CaptureConfig.Codec.WAV);
+
+    @Param({"stream", "channel", "mapped"})
+    public String sink;
+
+    private File mFile;
+    private final byte[] mRead = new byte[READ_SIZE];
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("writer", ".wav");
+        for (int i = 0; i < mRead.length; i++) {
+            mRead[i] = (byte) i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        if ("stream".equals(sink)) {
+            return writeStream();
+        }
+        EncoderOutput output = "mapped".equals(sink)
+                ? new MappedEncoderOutput(mFile, null) : new EncoderOutput(mFile, null);
+        WavEncoder encoder = new WavEncoder(CONFIG, output);
+        encoder.start();
+        for (int written = 0; written < TOTAL; written += mRead.length) {
+            encoder.encode(mRead, mRead.length);
+        }
+        encoder.finish();
+        return output.getPosition();
+    }
+
+    // The recorder's original path: a write per read, then the header patched after reopening
+    private long writeStream() throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(WavEncoder.buildHeader(CONFIG));
+            for (int written = 0; written < TOTAL; written += mRead.length) {
+                out.write(mRead);
+            }
+        } finally {
+            out.close();
+        }
+
+        RandomAccessFile access = new RandomAccessFile(mFile, "rw");
+        try {
+            access.seek(4);
+            access.write(new byte[4]);
+            access.seek(40);
+            access.write(new byte[4]);
+            return access.length();
+        } finally {
+            access.close();
+        }
+    }
+}
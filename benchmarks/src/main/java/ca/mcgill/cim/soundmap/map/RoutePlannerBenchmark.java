@@ -0,0 +1,73 @@
+package ca.mcgill.cim.soundmap.map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ca.mcgill.cim.soundmap.protocol.UserPositions;
+
+/**
+ * Planning a route through a batch of targets spread over a couple of kilometres around the
+ * user: from scratch when a batch arrives ({@code plan}, distances included), and again from the
+ * current route each time the user has walked a few tens of metres ({@code update}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutePlannerBenchmark {
+
+    private static final double LAT = 45.5048;
+    private static final double LNG = -73.5772;
+    private static final double STEP = 0.0003;   // deg, about 30 m
+
+    @Param({"10", "50", "100", "300"})
+    public int targets;
+
+    private UserPositions mTargets;
+    private final RoutePlanner mPlanner = new RoutePlanner();
+    private final RoutePlanner mWalking = new RoutePlanner();
+    private int mSteps = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        mTargets = new UserPositions(targets);
+        for (int i = 0; i < targets; i++) {
+            mTargets.add("t" + i, LAT + (random.nextDouble() - 0.5) * 0.02,
+                    LNG + (random.nextDouble() - 0.5) * 0.02);
+        }
+
+        mWalking.setTargets(mTargets);
+        mWalking.plan(LAT, LNG);
+    }
+
+    @Benchmark
+    public double plan() {
+        mPlanner.setTargets(mTargets);
+        mPlanner.plan(LAT, LNG);
+        return mPlanner.getLength();
+    }
+
+    @Benchmark
+    public double update() {
+        // Back and forth along a street, so every update has something to re-plan
+        mSteps = (mSteps + 1) & 15;
+        double offset = (mSteps < 8 ? mSteps : 16 - mSteps) * STEP;
+        mWalking.update(LAT + offset, LNG + offset);
+        return mWalking.getLength();
+    }
+}
@@ -0,0 +1,81 @@
+package ca.mcgill.cim.soundmap.map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries of the sample catalog over a city's worth of samples (about 10 km across): a street
+ * sized viewport ({@code within}), the ten samples nearest to the user ({@code nearest}), and
+ * packing the whole tree as when the catalog is opened ({@code pack}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleIndexBenchmark {
+
+    private static final double LAT = 45.5048;
+    private static final double LNG = -73.5772;
+    private static final double SPREAD = 0.1;     // deg, about 10 km
+    private static final double VIEWPORT = 0.002; // deg, about 200 m
+    private static final int QUERIES = 1024;
+
+    @Param({"100000", "300000"})
+    public int samples;
+
+    private final SampleIndex mIndex = new SampleIndex();
+    private final SampleHits mHits = new SampleHits();
+    private final double[] mQueryLats = new double[QUERIES];
+    private final double[] mQueryLngs = new double[QUERIES];
+    private int mQuery = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        for (int i = 0; i < samples; i++) {
+            mIndex.add(i, LAT + (random.nextDouble() - 0.5) * SPREAD,
+                    LNG + (random.nextDouble() - 0.5) * SPREAD);
+        }
+        mIndex.pack();
+
+        for (int i = 0; i < QUERIES; i++) {
+            mQueryLats[i] = LAT + (random.nextDouble() - 0.5) * SPREAD;
+            mQueryLngs[i] = LNG + (random.nextDouble() - 0.5) * SPREAD;
+        }
+    }
+
+    @Benchmark
+    public int within() {
+        mQuery = (mQuery + 1) & (QUERIES - 1);
+        double lat = mQueryLats[mQuery];
+        double lng = mQueryLngs[mQuery];
+        return mIndex.within(lat, lng, lat + VIEWPORT, lng + VIEWPORT, mHits);
+    }
+
+    @Benchmark
+    public int nearest() {
+        mQuery = (mQuery + 1) & (QUERIES - 1);
+        return mIndex.nearest(mQueryLats[mQuery], mQueryLngs[mQuery], 10, mHits);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int pack() {
+        mIndex.pack();
+        return mIndex.size();
+    }
+}
@@ -0,0 +1,87 @@
+package ca.mcgill.cim.soundmap.map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ca.mcgill.cim.soundmap.protocol.UserPositions;
+
+/**
+ * The other-users layer over a few km of city, as {@code MappingActivity} drives it: rebuilding
+ * the grid when a user list arrives ({@code build}), and clustering a street sized viewport
+ * ({@code query}) and the whole city ({@code queryAll}) on a camera idle, which take the two
+ * query paths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpatialGridBenchmark {
+
+    private static final double LAT = 45.5048;
+    private static final double LNG = -73.5772;
+    private static final double SPREAD = 0.05;        // deg, about 5 km
+    private static final double CELL_SIZE = 0.0005;   // deg, as in MappingActivity
+    private static final double VIEWPORT = 0.005;     // deg, about 500 m
+    private static final int CLUSTER_COLUMNS = 6;
+    private static final int QUERIES = 1024;
+
+    @Param({"1000", "10000"})
+    public int users;
+
+    private final UserPositions mUsers = new UserPositions();
+    private final SpatialGrid mGrid = new SpatialGrid(CELL_SIZE);
+    private final Clusters mClusters = new Clusters();
+    private final double[] mQueryLats = new double[QUERIES];
+    private final double[] mQueryLngs = new double[QUERIES];
+    private int mQuery = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        for (int i = 0; i < users; i++) {
+            mUsers.add("user" + i + "@mcgill.ca", LAT + (random.nextDouble() - 0.5) * SPREAD,
+                    LNG + (random.nextDouble() - 0.5) * SPREAD);
+        }
+        mGrid.build(mUsers);
+
+        for (int i = 0; i < QUERIES; i++) {
+            mQueryLats[i] = LAT + (random.nextDouble() - 0.5) * SPREAD;
+            mQueryLngs[i] = LNG + (random.nextDouble() - 0.5) * SPREAD;
+        }
+    }
+
+    @Benchmark
+    public int build() {
+        mGrid.build(mUsers);
+        return mGrid.getCellCount();
+    }
+
+    @Benchmark
+    public int query() {
+        mQuery = (mQuery + 1) & (QUERIES - 1);
+        double lat = mQueryLats[mQuery];
+        double lng = mQueryLngs[mQuery];
+        return mGrid.query(lat, lng, lat + VIEWPORT, lng + VIEWPORT,
+                SpatialGrid.clusterSizeFor(VIEWPORT, CLUSTER_COLUMNS), mClusters);
+    }
+
+    @Benchmark
+    public int queryAll() {
+        return mGrid.query(LAT - SPREAD, LNG - SPREAD, LAT + SPREAD, LNG + SPREAD,
+                SpatialGrid.clusterSizeFor(2 * SPREAD, CLUSTER_COLUMNS), mClusters);
+    }
+}
@@ -0,0 +1,93 @@
+package ca.mcgill.cim.soundmap.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import okio.Buffer;
+
+/**
+ * Decoding a /users response, as {@code LocationClientService} does, for a growing number of
+ * users: the text format through {@link LocationCodec}, the binary one through
+ * {@link BinaryCodec}, and the String splitting the text format was first parsed with, as a
+ * reference. The names repeat between responses, as they do between updates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UsersParsingBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int users;
+
+    private byte[] mText;
+    private byte[] mBinary;
+    private final NameTable mNames = new NameTable();
+    private final LocationCodec mTextCodec = new LocationCodec(mNames);
+    private final BinaryCodec mBinaryCodec = new BinaryCodec(mNames);
+    private final UserPositions mOut = new UserPositions();
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(1);
+        UserPositions positions = new UserPositions(users);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < users; i++) {
+            String name = "user" + i + "@mcgill.ca";
+            double lat = 45.5 + random.nextDouble() / 100;
+            double lng = -73.57 - random.nextDouble() / 100;
+            positions.add(name, lat, lng);
+            if (i > 0) {
+                text.append(';');
+            }
+            text.append(name).append(':').append(lat).append(',').append(lng);
+        }
+        mText = text.toString().getBytes(UTF_8);
+
+        Buffer binary = new Buffer();
+        BinaryCodec.writeUsers(binary, positions);
+        mBinary = binary.readByteArray();
+    }
+
+    @Benchmark
+    public int text() throws IOException {
+        mOut.clear();
+        return mTextCodec.readUsers(new Buffer().write(mText), mOut);
+    }
+
+    @Benchmark
+    public int binary() throws IOException {
+        mOut.clear();
+        return mBinaryCodec.readUsers(new Buffer().write(mBinary), mOut);
+    }
+
+    @Benchmark
+    public int split() {
+        mOut.clear();
+        String response = new String(mText, UTF_8);
+        for (String user : response.split(";")) {
+            String[] data = user.split(":");
+            String[] coords = data[1].split(",");
+            mOut.add(data[0], Double.parseDouble(coords[0]), Double.parseDouble(coords[1]));
+        }
+        return mOut.size();
+    }
+}
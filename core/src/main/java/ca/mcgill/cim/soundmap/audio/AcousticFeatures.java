@@ -0,0 +1,360 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * The features of one sample, as computed by {@link FeatureExtractor}: a level summary and one
+ * record per analysis frame.
+ *
+ * Levels are kept in tenths of a dB (the resolution of a sound level meter) in 16 bit values, so
+ * a 30 s sample is a few tens of kilobytes instead of megabytes of audio. Every frame holds its
+ * unweighted level (LZ), its A-weighted level (LA), its spectral centroid and one level per
+ * third-octave band (see {@link #getBandCentre(int)}); octave bands are the energy sums of
+ * consecutive groups of three.
+ *
+ * Binary layout (big-endian), served as {@link #MEDIA_TYPE}:
+ *
+ *      u8  version
+ *      i32 sample rate (Hz), i32 frame size (samples), u8 band count, i32 frame count
+ *      i16 Leq, i16 LAeq, i16 LAmax                   (0.1 dB)
+ *      per frame: i16 LZ, i16 LA, u16 centroid (Hz), i16 band levels...
+ *      i32 window count, -1 if the whole capture was kept
+ *      per window: i64 start (sample frames), i32 length (sample frames)
+ *      i32 scrubbed span count, -1 if speech was not scrubbed
+ *      per span: i64 start (sample frames), i32 length (sample frames)
+ *
+ * The windows are the stretches of the capture that were kept by a {@link GatedEncoder}, in the
+ * order they follow each other in the audio. The frames cover the whole capture either way.
+ * The spans are the stretches where a {@link SpeechScrubber} removed speech from the audio;
+ * over each of them the frames are {@link #summarise(long, long) summarised}, so the features
+ * do not carry the speech either. Version 1 had neither, version 2 had no spans.
+ */
+public final class AcousticFeatures {
+
+    public static final String MEDIA_TYPE = "application/x-soundmap-features-v3";
+    public static final String FILE_EXT = ".features";
+
+    public static final int VERSION = 3;
+
+    // Third-octave bands on the base 10 series, 50 Hz to 20 kHz: 1000 * 10^(n / 10)
+    public static final int FIRST_BAND = -13;
+    public static final int BAND_COUNT = 27;
+
+    // Levels below this are stored as this (digital silence has no level)
+    public static final double MIN_LEVEL = -120; // dB
+
+    private static final int FIXED_VALUES = 3;  // LZ, LA, centroid
+    private static final int DEFAULT_FRAMES = 64;
+
+    private final int mSampleRate;
+    private final int mFrameSize;
+    private final int mStride = FIXED_VALUES + BAND_COUNT;
+
+    private short[] mFrames = new short[DEFAULT_FRAMES * mStride];
+    private int mFrameCount = 0;
+
+    // Mean square sums for the overall levels, and the loudest frame
+    private double mEnergy = 0;
+    private double mAEnergy = 0;
+    private double mAMax = Double.NEGATIVE_INFINITY;
+
+    // Start and length of each kept window, or null if the whole capture was kept
+    private long[] mWindows;
+
+    // Start and length of each scrubbed span, or null if speech was not scrubbed
+    private long[] mScrubbed;
+
+    public AcousticFeatures(int sampleRate, int frameSize) {
+        mSampleRate = sampleRate;
+        mFrameSize = frameSize;
+    }
+
+    /**
+     * Centre frequency of a band, in Hz.
+     */
+    public static double getBandCentre(int band) {
+        return 1000 * Math.pow(10, (FIRST_BAND + band) / 10.0);
+    }
+
+    /**
+     * Path of the features file that goes with an audio sample.
+     */
+    public static String fileFor(String sampleFile) {
+        return sampleFile + FILE_EXT;
+    }
+
+    void addFrame(double level, double aLevel, double centroid, double[] bandLevels) {
+        if ((mFrameCount + 1) * mStride > mFrames.length) {
+            mFrames = Arrays.copyOf(mFrames, mFrames.length * 2);
+        }
+
+        int base = mFrameCount * mStride;
+        mFrames[base] = toTenths(level);
+        mFrames[base + 1] = toTenths(aLevel);
+        mFrames[base + 2] = (short) Math.max(0, Math.min(0xFFFF, Math.round(centroid)));
+        for (int band = 0; band < BAND_COUNT; band++) {
+            mFrames[base + FIXED_VALUES + band] = toTenths(bandLevels[band]);
+        }
+        mFrameCount++;
+
+        mEnergy += Math.pow(10, level / 10);
+        mAEnergy += Math.pow(10, aLevel / 10);
+        mAMax = Math.max(mAMax, aLevel);
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Equivalent continuous level over all frames, unweighted.
+     */
+    public double getLeq() {
+        return mFrameCount == 0 ? MIN_LEVEL : clamp(10 * Math.log10(mEnergy / mFrameCount));
+    }
+
+    /**
+     * Equivalent continuous A-weighted level over all frames.
+     */
+    public double getLAeq() {
+        return mFrameCount == 0 ? MIN_LEVEL : clamp(10 * Math.log10(mAEnergy / mFrameCount));
+    }
+
+    public double getLAmax() {
+        return mFrameCount == 0 ? MIN_LEVEL : clamp(mAMax);
+    }
+
+    public double getLevel(int frame) {
+        return mFrames[frame * mStride] / 10.0;
+    }
+
+    public double getALevel(int frame) {
+        return mFrames[frame * mStride + 1] / 10.0;
+    }
+
+    public int getCentroid(int frame) {
+        return mFrames[frame * mStride + 2] & 0xFFFF;
+    }
+
+    public double getBandLevel(int frame, int band) {
+        return mFrames[frame * mStride + FIXED_VALUES + band] / 10.0;
+    }
+
+    /**
+     * Records the stretches of the capture that were kept; an empty list means none were.
+     */
+    public void setWindows(List<GatedEncoder.Window> windows) {
+        mWindows = new long[2 * windows.size()];
+        for (int i = 0; i < windows.size(); i++) {
+            mWindows[2 * i] = windows.get(i).start;
+            mWindows[2 * i + 1] = windows.get(i).getFrames();
+        }
+    }
+
+    /**
+     * Records the stretches where speech was scrubbed, and summarises the frames over each.
+     */
+    public void setScrubbed(List<SpeechScrubber.Span> spans) {
+        mScrubbed = new long[2 * spans.size()];
+        for (int i = 0; i < spans.size(); i++) {
+            mScrubbed[2 * i] = spans.get(i).start;
+            mScrubbed[2 * i + 1] = spans.get(i).getFrames();
+            summarise(spans.get(i).start, spans.get(i).getFrames());
+        }
+    }
+
+    public boolean isScrubbed() {
+        return mScrubbed != null;
+    }
+
+    public int getScrubbedCount() {
+        return mScrubbed == null ? 0 : mScrubbed.length / 2;
+    }
+
+    public long getScrubbedStart(int span) {
+        return mScrubbed[2 * span];
+    }
+
+    public long getScrubbedFrames(int span) {
+        return mScrubbed[2 * span + 1];
+    }
+
+    /**
+     * Replaces every frame that overlaps the stretch of the capture by one average frame: the
+     * energy average of each level and the mean centroid. The overall levels stay the same,
+     * but the way the spectrum changed over the stretch is gone.
+     */
+    public void summarise(long start, long frames) {
+        int from = (int) Math.max(0, start / mFrameSize);
+        int to = (int) Math.min(mFrameCount, (start + frames + mFrameSize - 1) / mFrameSize);
+        if (to - from < 2) {
+            return;
+        }
+
+        for (int value = 0; value < mStride; value++) {
+            boolean isCentroid = value == 2;
+            double sum = 0;
+            for (int frame = from; frame < to; frame++) {
+                short stored = mFrames[frame * mStride + value];
+                sum += isCentroid ? stored & 0xFFFF : Math.pow(10, stored / 100.0);
+            }
+            double mean = sum / (to - from);
+            short average = isCentroid ? (short) Math.round(mean)
+                    : toTenths(10 * Math.log10(mean));
+            for (int frame = from; frame < to; frame++) {
+                mFrames[frame * mStride + value] = average;
+            }
+        }
+
+        // The loudest frame may have been one of them
+        mAMax = Double.NEGATIVE_INFINITY;
+        for (int frame = 0; frame < mFrameCount; frame++) {
+            mAMax = Math.max(mAMax, mFrames[frame * mStride + 1] / 10.0);
+        }
+    }
+
+    /**
+     * Whether only some windows of the capture were kept.
+     */
+    public boolean isGated() {
+        return mWindows != null;
+    }
+
+    public int getWindowCount() {
+        return mWindows == null ? 0 : mWindows.length / 2;
+    }
+
+    public long getWindowStart(int window) {
+        return mWindows[2 * window];
+    }
+
+    public long getWindowFrames(int window) {
+        return mWindows[2 * window + 1];
+    }
+
+    public void writeTo(BufferedSink sink) throws IOException {
+        sink.writeByte(VERSION);
+        sink.writeInt(mSampleRate);
+        sink.writeInt(mFrameSize);
+        sink.writeByte(BAND_COUNT);
+        sink.writeInt(mFrameCount);
+        sink.writeShort(toTenths(getLeq()));
+        sink.writeShort(toTenths(getLAeq()));
+        sink.writeShort(toTenths(getLAmax()));
+        for (int i = 0; i < mFrameCount * mStride; i++) {
+            sink.writeShort(mFrames[i]);
+        }
+
+        writeRanges(sink, mWindows);
+        writeRanges(sink, mScrubbed);
+    }
+
+    /**
+     * Saves the features to a file, e.g. {@link #fileFor(String)}.
+     */
+    public void writeTo(File file) throws IOException {
+        BufferedSink sink = Okio.buffer(Okio.sink(file));
+        try {
+            writeTo(sink);
+        } finally {
+            sink.close();
+        }
+    }
+
+    /**
+     * Reads features written by {@link #writeTo(BufferedSink)}. The overall levels are
+     * recomputed from the frames.
+     */
+    public static AcousticFeatures readFrom(BufferedSource source) throws IOException {
+        source.require(14);
+        int version = source.readByte() & 0xFF;
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported features version " + version);
+        }
+        int sampleRate = source.readInt();
+        int frameSize = source.readInt();
+        int bands = source.readByte() & 0xFF;
+        int frames = source.readInt();
+        if (bands != BAND_COUNT || frames < 0) {
+            throw new IOException("Malformed features");
+        }
+
+        source.require(6);
+        source.skip(6); // Summary
+
+        AcousticFeatures features = new AcousticFeatures(sampleRate, frameSize);
+        double[] bandLevels = new double[BAND_COUNT];
+        for (int frame = 0; frame < frames; frame++) {
+            source.require(2 * (FIXED_VALUES + BAND_COUNT));
+            double level = source.readShort() / 10.0;
+            double aLevel = source.readShort() / 10.0;
+            int centroid = source.readShort() & 0xFFFF;
+            for (int band = 0; band < BAND_COUNT; band++) {
+                bandLevels[band] = source.readShort() / 10.0;
+            }
+            features.addFrame(level, aLevel, centroid, bandLevels);
+        }
+
+        if (version >= 2) {
+            features.mWindows = readRanges(source);
+        }
+        if (version >= 3) {
+            features.mScrubbed = readRanges(source);
+        }
+        return features;
+    }
+
+    // Start and length pairs, or null
+    private static void writeRanges(BufferedSink sink, long[] ranges) throws IOException {
+        if (ranges == null) {
+            sink.writeInt(-1);
+            return;
+        }
+        sink.writeInt(ranges.length / 2);
+        for (int i = 0; i < ranges.length; i += 2) {
+            sink.writeLong(ranges[i]);
+            sink.writeInt((int) ranges[i + 1]);
+        }
+    }
+
+    private static long[] readRanges(BufferedSource source) throws IOException {
+        source.require(4);
+        int count = source.readInt();
+        if (count < -1) {
+            throw new IOException("Malformed features");
+        } else if (count == -1) {
+            return null;
+        }
+
+        long[] ranges = new long[2 * count];
+        for (int i = 0; i < count; i++) {
+            source.require(12);
+            ranges[2 * i] = source.readLong();
+            ranges[2 * i + 1] = source.readInt() & 0xFFFFFFFFL;
+        }
+        return ranges;
+    }
+
+    private static double clamp(double level) {
+        return Double.isNaN(level) ? MIN_LEVEL : Math.max(MIN_LEVEL, level);
+    }
+
+    private static short toTenths(double level) {
+        return (short) Math.round(Math.min(Short.MAX_VALUE / 10.0, clamp(level)) * 10);
+    }
+}
@@ -0,0 +1,30 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.io.IOException;
+
+/**
+ * Turns captured PCM into the stored (and possibly streamed) sample.
+ *
+ * The input is always interleaved little endian 16 bit PCM at the capture rate and channel
+ * count. Encoders are driven by one thread, the {@link EncoderPipeline}'s, and never by the
+ * read loop.
+ */
+public interface AudioEncoder {
+
+    void start() throws IOException;
+
+    /**
+     * @param length in bytes, a whole number of sample frames
+     */
+    void encode(byte[] pcm, int length) throws IOException;
+
+    /**
+     * Flushes the last block and completes the file (sizes, totals).
+     */
+    void finish() throws IOException;
+
+    /**
+     * Releases everything after a failure; the output is left incomplete.
+     */
+    void abort();
+}
@@ -0,0 +1,188 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.util.Arrays;
+
+/**
+ * How the microphone of one phone model hears, so that its captures can be corrected to sound
+ * pressure levels with a flat response before anything is computed from them.
+ *
+ * A profile holds the audio source it was measured with, the gain offset that turns dBFS into
+ * dB SPL at {@link #REFERENCE_FREQUENCY}, and a correction per octave band (see
+ * {@link #getBandCentre(int)}) relative to that frequency: the gain, in dB, that brings the
+ * response of the phone in the band up (or down) to the one at the reference. The corrections
+ * are applied to the samples by a {@link CorrectionFilter}, the offset is added to the levels.
+ *
+ * Profiles are measured by a {@link Calibrator} and stored as one line of tab separated fields,
+ * see {@link #encode()}.
+ */
+public final class CalibrationProfile {
+
+    private static final String TAG = "CalibrationProfile";
+
+    public static final double REFERENCE_FREQUENCY = 1000;  // Hz
+
+    // Octave bands on the base 10 series, 63 Hz to 8 kHz: 1000 * 10^(3 n / 10)
+    public static final int FIRST_BAND = -4;
+    public static final int BAND_COUNT = 8;
+
+    private static final int FORMAT = 1;
+    private static final char SEPARATOR = '\t';
+
+    /**
+     * The audio sources a profile can be measured with, most accurate first. The recorder maps
+     * them to the platform's sources.
+     */
+    public enum Source {
+        /** Raw microphone signal, where the hardware offers it (Android 7). */
+        UNPROCESSED,
+        /** Tuned for speech recognition: no automatic gain, a roughly flat response. */
+        VOICE_RECOGNITION,
+        /** The default microphone path; may have gain control and noise suppression. */
+        MIC
+    }
+
+    /**
+     * Uncalibrated: levels in dBFS, no correction, from the speech recognition source the app
+     * has always recorded with.
+     */
+    public static final CalibrationProfile UNCALIBRATED =
+            new CalibrationProfile("", Source.VOICE_RECOGNITION, 0, new double[BAND_COUNT]);
+
+    private final String mModel;
+    private final Source mSource;
+    private final double mOffset;
+    private final double[] mCorrections;
+
+    /**
+     * @param model       the phone model the profile was measured on
+     * @param offset      dB to add to dBFS levels for dB SPL
+     * @param corrections dB of gain per octave band, {@link #BAND_COUNT} of them
+     */
+    public CalibrationProfile(String model, Source source, double offset, double[] corrections) {
+        if (source == null) {
+            throw new IllegalArgumentException("No source");
+        }
+        if (corrections.length != BAND_COUNT) {
+            throw new IllegalArgumentException("Expected " + BAND_COUNT + " corrections: "
+                    + corrections.length);
+        }
+        mModel = model == null ? "" : model;
+        mSource = source;
+        mOffset = offset;
+        mCorrections = corrections.clone();
+    }
+
+    /**
+     * Centre frequency of an octave band, in Hz.
+     */
+    public static double getBandCentre(int band) {
+        return 1000 * Math.pow(10, 3 * (FIRST_BAND + band) / 10.0);
+    }
+
+    public String getModel() {
+        return mModel;
+    }
+
+    public Source getSource() {
+        return mSource;
+    }
+
+    public double getOffset() {
+        return mOffset;
+    }
+
+    public double getCorrection(int band) {
+        return mCorrections[band];
+    }
+
+    /**
+     * Whether levels come out as sound pressure levels rather than dBFS.
+     */
+    public boolean isCalibrated() {
+        return mOffset != 0;
+    }
+
+    /**
+     * Whether the samples need correcting at all.
+     */
+    public boolean hasCorrections() {
+        for (double correction : mCorrections) {
+            if (correction != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The same profile, measured with another source; the numbers are kept.
+     */
+    public CalibrationProfile withSource(Source source) {
+        return new CalibrationProfile(mModel, source, mOffset, mCorrections);
+    }
+
+    /**
+     * A filter that applies the corrections to captures of the given shape.
+     */
+    public CorrectionFilter createFilter(int sampleRate, int channels) {
+        return new CorrectionFilter(sampleRate, channels, mCorrections);
+    }
+
+    /**
+     * One line: format, model, source, offset, then the corrections.
+     */
+    public String encode() {
+        StringBuilder line = new StringBuilder();
+        line.append(FORMAT).append(SEPARATOR)
+                .append(mModel.replace(SEPARATOR, ' ').replace('\n', ' ')).append(SEPARATOR)
+                .append(mSource.name()).append(SEPARATOR)
+                .append(mOffset);
+        for (double correction : mCorrections) {
+            line.append(SEPARATOR).append(correction);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Reads a profile written by {@link #encode()}.
+     *
+     * @throws IllegalArgumentException if the line is not a profile
+     */
+    public static CalibrationProfile decode(String line) {
+        String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+        if (fields.length != 4 + BAND_COUNT || !String.valueOf(FORMAT).equals(fields[0])) {
+            throw new IllegalArgumentException("Malformed calibration profile");
+        }
+
+        try {
+            double[] corrections = new double[BAND_COUNT];
+            for (int band = 0; band < BAND_COUNT; band++) {
+                corrections[band] = Double.parseDouble(fields[4 + band]);
+            }
+            return new CalibrationProfile(fields[1], Source.valueOf(fields[2]),
+                    Double.parseDouble(fields[3]), corrections);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed calibration profile", e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CalibrationProfile)) {
+            return false;
+        }
+        CalibrationProfile other = (CalibrationProfile) o;
+        return mModel.equals(other.mModel) && mSource == other.mSource
+                && mOffset == other.mOffset && Arrays.equals(mCorrections, other.mCorrections);
+    }
+
+    @Override
+    public int hashCode() {
+        return mModel.hashCode() * 31 + mSource.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mModel + " " + mSource + " " + (mOffset >= 0 ? "+" : "") + mOffset + " dB";
+    }
+}
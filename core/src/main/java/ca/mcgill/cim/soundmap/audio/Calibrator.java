@@ -0,0 +1,231 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures a {@link CalibrationProfile} from reference tones of known level, such as the 1 kHz,
+ * 94 dB tone of an acoustic calibrator held over the microphone.
+ *
+ * Each tone is measured between {@link #begin(double, double)} and {@link #end()}: after
+ * {@link #SETTLE} seconds, the level of the tone alone is taken from blocks of {@link #BLOCK}
+ * seconds and averaged. Only the energy within {@link #TOLERANCE} of the frequency of the tone
+ * counts, so the background around it does not, and a calibrator or a sample clock that is a
+ * little off does not matter. The difference to the reference level is the sensitivity of the
+ * phone at that frequency. The offset of the profile is the sensitivity at
+ * {@link CalibrationProfile#REFERENCE_FREQUENCY}, the corrections are the differences to it,
+ * interpolated on a log frequency scale between the tones. Bands outside the tones are not
+ * corrected; a single tone calibrates the gain only.
+ */
+public class Calibrator {
+
+    private static final String TAG = "Calibrator";
+
+    public static final double REFERENCE_LEVEL = 94;    // dB SPL, 1 Pa
+    public static final double SETTLE = 0.5;            // s
+    public static final double BLOCK = 0.2;             // s, about
+    public static final double TOLERANCE = 0.03;        // of the frequency
+
+    // Minimum share of the energy in the tone; less and it is not the reference
+    public static final double MIN_PURITY = 0.5;
+
+    // Largest correction; more would mostly amplify the noise where the microphone rolls off
+    public static final double MAX_CORRECTION = 20;     // dB
+
+    private static final double FULL_SCALE = 32768;
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final Fft mFft;
+    private final double[] mWindow;
+    private final double mWindowPower;  // mean of the squared window
+    private final double[] mRe;
+    private final double[] mIm;
+    private final int mSettle;          // sample frames
+
+    // The tone being measured
+    private double mFrequency;
+    private double mLevel;
+    private int mLowBin;
+    private int mHighBin;
+    private long mPosition;
+    private int mFill;
+    private double mBlockEnergy;
+    private double mTonePower;      // summed over the blocks
+    private double mTotalPower;
+    private int mBlocks;
+    private boolean mIsMeasuring = false;
+
+    // Sensitivity (dB SPL - dBFS) per tone, in the order measured
+    private final List<double[]> mMeasurements = new ArrayList<>();
+
+    public Calibrator(int sampleRate, int channels) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mSettle = (int) (SETTLE * sampleRate);
+
+        int size = Integer.highestOneBit((int) (BLOCK * sampleRate));
+        mFft = new Fft(size);
+        mWindow = new double[size];
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            mWindow[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / size);
+            sum += mWindow[i] * mWindow[i];
+        }
+        mWindowPower = sum / size;
+        mRe = new double[size];
+        mIm = new double[size];
+    }
+
+    /**
+     * Starts measuring a tone.
+     *
+     * @param frequency of the tone, in Hz
+     * @param level     of the tone at the microphone, in dB SPL
+     */
+    public void begin(double frequency, double level) {
+        if (frequency <= 0 || frequency >= mSampleRate / 2) {
+            throw new IllegalArgumentException("Invalid frequency: " + frequency);
+        }
+        mFrequency = frequency;
+        mLevel = level;
+        // The tone's band, and the skirt the window spreads it over
+        double binWidth = (double) mSampleRate / mWindow.length;
+        mLowBin = Math.max(1, (int) Math.floor(frequency * (1 - TOLERANCE) / binWidth) - 2);
+        mHighBin = Math.min(mWindow.length / 2,
+                (int) Math.ceil(frequency * (1 + TOLERANCE) / binWidth) + 2);
+        mPosition = 0;
+        mFill = 0;
+        mBlockEnergy = 0;
+        mTonePower = 0;
+        mTotalPower = 0;
+        mBlocks = 0;
+        mIsMeasuring = true;
+    }
+
+    /**
+     * Measures interleaved little endian 16 bit samples of the tone, in whole sample frames.
+     */
+    public void process(byte[] pcm, int length) {
+        if (!mIsMeasuring) {
+            return;
+        }
+
+        int bytesPerFrame = 2 * mChannels;
+        for (int i = 0; i + bytesPerFrame <= length; i += bytesPerFrame) {
+            if (mPosition++ < mSettle) {
+                continue;
+            }
+
+            int sum = 0;
+            for (int c = 0; c < mChannels; c++) {
+                int at = i + 2 * c;
+                sum += (short) ((pcm[at] & 0xFF) | (pcm[at + 1] << 8));
+            }
+            double x = sum / (mChannels * FULL_SCALE);
+            mBlockEnergy += x * x;
+            mRe[mFill] = x * mWindow[mFill];
+            mIm[mFill] = 0;
+            if (++mFill == mWindow.length) {
+                endBlock();
+            }
+        }
+    }
+
+    /**
+     * Ends the measurement of the tone.
+     *
+     * @return the level the tone was measured at, in dBFS
+     * @throws IllegalStateException if no tone was measured, or not long enough, or it was
+     *                               drowned in other sound
+     */
+    public double end() {
+        if (!mIsMeasuring) {
+            throw new IllegalStateException("Not measuring");
+        }
+        mIsMeasuring = false;
+        if (mBlocks == 0) {
+            throw new IllegalStateException("Tone too short");
+        }
+        if (mTonePower < MIN_PURITY * mTotalPower) {
+            throw new IllegalStateException("No reference tone at " + mFrequency + " Hz");
+        }
+
+        // A full scale sine is 0 dBFS; its mean square is 1/2
+        double measured = 10 * Math.log10(2 * mTonePower / mBlocks);
+        mMeasurements.add(new double[]{mFrequency, mLevel - measured});
+        return measured;
+    }
+
+    public int getMeasurementCount() {
+        return mMeasurements.size();
+    }
+
+    /**
+     * The profile of the tones measured so far.
+     *
+     * @throws IllegalStateException if none were
+     */
+    public CalibrationProfile build(String model, CalibrationProfile.Source source) {
+        if (mMeasurements.isEmpty()) {
+            throw new IllegalStateException("No tones measured");
+        }
+
+        double offset = getSensitivity(CalibrationProfile.REFERENCE_FREQUENCY, true);
+        double[] corrections = new double[CalibrationProfile.BAND_COUNT];
+        for (int band = 0; band < corrections.length; band++) {
+            double sensitivity = getSensitivity(CalibrationProfile.getBandCentre(band), false);
+            if (!Double.isNaN(sensitivity)) {
+                double correction = sensitivity - offset;
+                // To a hundredth of a dB; the rest is measurement noise
+                correction = Math.round(correction * 100) / 100.0;
+                corrections[band] = Math.max(-MAX_CORRECTION,
+                        Math.min(MAX_CORRECTION, correction));
+            }
+        }
+        return new CalibrationProfile(model, source, Math.round(offset * 100) / 100.0,
+                corrections);
+    }
+
+    private void endBlock() {
+        mFft.transform(mRe, mIm);
+
+        // Mean square of the tone, both halves of the spectrum, undoing the window
+        double sum = 0;
+        for (int k = mLowBin; k <= mHighBin; k++) {
+            sum += mRe[k] * mRe[k] + mIm[k] * mIm[k];
+        }
+        int size = mWindow.length;
+        mTonePower += 2 * sum / ((double) size * size * mWindowPower);
+        mTotalPower += mBlockEnergy / size;
+        mBlocks++;
+
+        mFill = 0;
+        mBlockEnergy = 0;
+    }
+
+    // Log frequency interpolation between the tones, NaN outside them unless clamped
+    private double getSensitivity(double frequency, boolean isClamped) {
+        double[] below = null;
+        double[] above = null;
+        for (double[] measurement : mMeasurements) {
+            if (measurement[0] <= frequency && (below == null || measurement[0] > below[0])) {
+                below = measurement;
+            }
+            if (measurement[0] >= frequency && (above == null || measurement[0] < above[0])) {
+                above = measurement;
+            }
+        }
+
+        if (below == null || above == null) {
+            if (!isClamped) {
+                return Double.NaN;
+            }
+            return (below != null ? below : above)[1];
+        } else if (below[0] == above[0]) {
+            return below[1];
+        }
+        double t = Math.log(frequency / below[0]) / Math.log(above[0] / below[0]);
+        return below[1] + t * (above[1] - below[1]);
+    }
+}
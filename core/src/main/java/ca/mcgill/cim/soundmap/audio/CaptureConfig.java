@@ -0,0 +1,102 @@
+package ca.mcgill.cim.soundmap.audio;
+
+/**
+ * What the capture engine records and how the sample is stored.
+ *
+ * The microphone is read at the given rate, channel count and bit depth (8 or 16 bit PCM). The
+ * analysis stages always see 16 bit samples; 8 bit input is widened as it is read.
+ */
+public final class CaptureConfig {
+
+    public enum Codec {
+        /** Raw PCM; large, but readable by anything. */
+        WAV("audio/wav", ".wav", true),
+        /** Lossless, full band, typically half the size of WAV. */
+        FLAC("audio/flac", ".flac", true),
+        /** Lossy, full band, a few percent of WAV; needs a platform encoder (Android 10). */
+        OPUS("audio/ogg", ".opus", false);
+
+        private final String mMimeType;
+        private final String mExtension;
+        private final boolean mIsStreamable;
+
+        Codec(String mimeType, String extension, boolean isStreamable) {
+            mMimeType = mimeType;
+            mExtension = extension;
+            mIsStreamable = isStreamable;
+        }
+
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        public String getExtension() {
+            return mExtension;
+        }
+
+        /**
+         * Whether the encoded bytes can be uploaded while they are produced. Otherwise the
+         * finished file has to be uploaded.
+         */
+        public boolean isStreamable() {
+            return mIsStreamable;
+        }
+    }
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mBitDepth;
+    private final Codec mCodec;
+
+    public CaptureConfig(int sampleRate, int channels, int bitDepth, Codec codec) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("Invalid sample rate: " + sampleRate);
+        }
+        if (channels != 1 && channels != 2) {
+            throw new IllegalArgumentException("Only mono or stereo capture: " + channels);
+        }
+        if (bitDepth != 8 && bitDepth != 16) {
+            throw new IllegalArgumentException("Only 8 or 16 bit capture: " + bitDepth);
+        }
+        if (codec == null) {
+            throw new IllegalArgumentException("No codec");
+        }
+
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mBitDepth = bitDepth;
+        mCodec = codec;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getBitDepth() {
+        return mBitDepth;
+    }
+
+    public Codec getCodec() {
+        return mCodec;
+    }
+
+    public CaptureConfig withCodec(Codec codec) {
+        return new CaptureConfig(mSampleRate, mChannels, mBitDepth, codec);
+    }
+
+    /**
+     * Bytes of 16 bit PCM per second, as handed to the encoders.
+     */
+    public int getPcmByteRate() {
+        return mSampleRate * mChannels * 2;
+    }
+
+    @Override
+    public String toString() {
+        return mCodec + " " + mSampleRate + " Hz, " + mChannels + " ch, " + mBitDepth + " bit";
+    }
+}
@@ -0,0 +1,136 @@
+package ca.mcgill.cim.soundmap.audio;
+
+/**
+ * Gap accounting for one recording.
+ *
+ * Two things can lose audio. The device drops frames when the read loop falls behind and the
+ * AudioRecord buffer overruns; those are found by comparing the frames read with the frames the
+ * device has captured by now, from its timestamps when it has them and from the clock
+ * otherwise. The writer drops frames when the encoder pool is used up; those are still metered
+ * and analysed, but are missing from the file.
+ *
+ * Updated by the read loop only; read the values once the recording has stopped.
+ */
+public class CaptureStats {
+
+    private static final String TAG = "CaptureStats";
+
+    private final int mSampleRate;
+    private final long mSlack;          // frames the AudioRecord can hold without losing any
+
+    private long mFramesRead = 0;
+    private long mFramesWritten = 0;
+    private long mWriterDropped = 0;
+    private int mWriterDropEvents = 0;
+    private long mOverrunFrames = 0;
+    private int mOverruns = 0;
+    private int mReadErrors = 0;
+
+    // Device position at a point in time, to extrapolate from
+    private long mReferenceFrames = -1;
+    private long mReferenceNanos;
+    private boolean mHasDevicePosition = false;
+
+    /**
+     * @param bufferFrames size of the AudioRecord buffer, in frames
+     */
+    public CaptureStats(int sampleRate, int bufferFrames) {
+        mSampleRate = sampleRate;
+        mSlack = bufferFrames;
+    }
+
+    /**
+     * The frame count the device reports for the given time (AudioRecord#getTimestamp).
+     */
+    public void onDevicePosition(long framePosition, long nanoTime) {
+        mReferenceFrames = framePosition;
+        mReferenceNanos = nanoTime;
+        mHasDevicePosition = true;
+    }
+
+    /**
+     * Accounts for one read of the given number of frames, returned at the given time.
+     */
+    public void onRead(int frames, long nanoTime) {
+        mFramesRead += frames;
+
+        if (mReferenceFrames < 0) {
+            // No device timestamps: the first read starts the clock
+            mReferenceFrames = mFramesRead;
+            mReferenceNanos = nanoTime;
+            return;
+        }
+
+        long captured = mReferenceFrames
+                + (nanoTime - mReferenceNanos) * mSampleRate / 1000000000L;
+        long lost = captured - mFramesRead - mSlack;
+        if (lost > mOverrunFrames) {
+            mOverruns++;
+            mOverrunFrames = lost;
+        }
+    }
+
+    public void onWritten(int frames) {
+        mFramesWritten += frames;
+    }
+
+    public void onWriterDropped(int frames) {
+        mWriterDropped += frames;
+        mWriterDropEvents++;
+    }
+
+    public void onReadError() {
+        mReadErrors++;
+    }
+
+    public long getFramesRead() {
+        return mFramesRead;
+    }
+
+    public long getFramesWritten() {
+        return mFramesWritten;
+    }
+
+    /**
+     * Frames lost to AudioRecord overruns (an estimate, to within a read).
+     */
+    public long getOverrunFrames() {
+        return mOverrunFrames;
+    }
+
+    public int getOverruns() {
+        return mOverruns;
+    }
+
+    public long getWriterDroppedFrames() {
+        return mWriterDropped;
+    }
+
+    public int getWriterDropEvents() {
+        return mWriterDropEvents;
+    }
+
+    public int getReadErrors() {
+        return mReadErrors;
+    }
+
+    public boolean hasDevicePosition() {
+        return mHasDevicePosition;
+    }
+
+    /**
+     * True if the file holds every frame the device captured.
+     */
+    public boolean isGapFree() {
+        return mOverrunFrames == 0 && mWriterDropped == 0 && mReadErrors == 0;
+    }
+
+    public String summary() {
+        return "read=" + mFramesRead
+                + " written=" + mFramesWritten
+                + " overruns=" + mOverruns + " (" + mOverrunFrames + " frames)"
+                + " writerDrops=" + mWriterDropEvents + " (" + mWriterDropped + " frames)"
+                + " readErrors=" + mReadErrors
+                + " clock=" + (mHasDevicePosition ? "device" : "system");
+    }
+}
@@ -0,0 +1,157 @@
+package ca.mcgill.cim.soundmap.audio;
+
+/**
+ * Corrects the frequency response of a microphone in 16 bit PCM, in place, as it is read.
+ *
+ * One peaking filter (RBJ biquad, an octave wide) per octave band of a
+ * {@link CalibrationProfile}. Neighbouring filters overlap, so their gains are solved for at
+ * construction to give the requested corrections at the band centres, including those without
+ * one; the response in between follows smoothly. Bands too close to the Nyquist frequency get
+ * no filter, and without any corrections there is none at all. The coefficients are computed
+ * once, and filtering a sample costs five multiplications per filter and channel.
+ *
+ * Corrected samples that exceed full scale are clipped.
+ */
+public class CorrectionFilter {
+
+    private static final String TAG = "CorrectionFilter";
+
+    // An octave between the band edges
+    private static final double Q = Math.sqrt(2);
+
+    // Refinements of the filter gains against the overlap of their neighbours
+    private static final int ITERATIONS = 8;
+
+    private final int mChannels;
+    private final int mStages;
+    private final double[] mB0;
+    private final double[] mB1;
+    private final double[] mB2;
+    private final double[] mA1;
+    private final double[] mA2;
+    private final double[][] mState;    // per channel, two per stage
+
+    /**
+     * @param corrections dB of gain at each octave band centre of {@link CalibrationProfile}
+     */
+    public CorrectionFilter(int sampleRate, int channels, double[] corrections) {
+        mChannels = channels;
+
+        boolean isFlat = true;
+        for (double correction : corrections) {
+            isFlat &= correction == 0;
+        }
+        int count = 0;
+        int[] bands = new int[corrections.length];
+        for (int band = 0; band < corrections.length && !isFlat; band++) {
+            if (CalibrationProfile.getBandCentre(band) < 0.4 * sampleRate) {
+                bands[count++] = band;
+            }
+        }
+        mStages = count;
+        mB0 = new double[count];
+        mB1 = new double[count];
+        mB2 = new double[count];
+        mA1 = new double[count];
+        mA2 = new double[count];
+        mState = new double[channels][2 * count];
+
+        double[] w = new double[count];
+        double[] gains = new double[count];
+        for (int s = 0; s < count; s++) {
+            w[s] = 2 * Math.PI * CalibrationProfile.getBandCentre(bands[s]) / sampleRate;
+            gains[s] = corrections[bands[s]];
+        }
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            design(w, gains);
+            for (int s = 0; s < count; s++) {
+                gains[s] += corrections[bands[s]] - getResponse(w[s]);
+            }
+        }
+        design(w, gains);
+    }
+
+    /**
+     * Whether the filter changes anything.
+     */
+    public boolean isIdentity() {
+        return mStages == 0;
+    }
+
+    /**
+     * The gain of the filter in dB at an angular frequency (radians per sample).
+     */
+    public double getResponse(double w) {
+        double cos1 = Math.cos(w);
+        double sin1 = Math.sin(w);
+        double cos2 = Math.cos(2 * w);
+        double sin2 = Math.sin(2 * w);
+
+        double gain = 0;
+        for (int s = 0; s < mStages; s++) {
+            double nRe = mB0[s] + mB1[s] * cos1 + mB2[s] * cos2;
+            double nIm = -mB1[s] * sin1 - mB2[s] * sin2;
+            double dRe = 1 + mA1[s] * cos1 + mA2[s] * cos2;
+            double dIm = -mA1[s] * sin1 - mA2[s] * sin2;
+            gain += 10 * Math.log10((nRe * nRe + nIm * nIm) / (dRe * dRe + dIm * dIm));
+        }
+        return gain;
+    }
+
+    /**
+     * Filters interleaved little endian 16 bit samples in place.
+     */
+    public void process(byte[] pcm, int length) {
+        if (mStages == 0) {
+            return;
+        }
+
+        // Whole sample frames only; the recorder never splits one
+        int frames = length / (2 * mChannels);
+        for (int c = 0; c < mChannels; c++) {
+            double[] state = mState[c];
+            int at = 2 * c;
+            for (int i = 0; i < frames; i++, at += 2 * mChannels) {
+                double x = (short) ((pcm[at] & 0xFF) | (pcm[at + 1] << 8));
+
+                // Transposed direct form II
+                for (int s = 0, z = 0; s < mStages; s++, z += 2) {
+                    double y = mB0[s] * x + state[z];
+                    state[z] = mB1[s] * x - mA1[s] * y + state[z + 1];
+                    state[z + 1] = mB2[s] * x - mA2[s] * y;
+                    x = y;
+                }
+
+                long value = Math.round(x);
+                value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+                pcm[at] = (byte) value;
+                pcm[at + 1] = (byte) (value >> 8);
+            }
+        }
+    }
+
+    /**
+     * Forgets the past input, for a new capture.
+     */
+    public void reset() {
+        for (double[] state : mState) {
+            for (int z = 0; z < state.length; z++) {
+                state[z] = 0;
+            }
+        }
+    }
+
+    private void design(double[] w, double[] gains) {
+        for (int s = 0; s < mStages; s++) {
+            double a = Math.pow(10, gains[s] / 40);
+            double alpha = Math.sin(w[s]) / (2 * Q);
+            double cos = Math.cos(w[s]);
+            double a0 = 1 + alpha / a;
+            mB0[s] = (1 + alpha * a) / a0;
+            mB1[s] = -2 * cos / a0;
+            mB2[s] = (1 - alpha * a) / a0;
+            mA1[s] = -2 * cos / a0;
+            mA2[s] = (1 - alpha / a) / a0;
+        }
+    }
+}
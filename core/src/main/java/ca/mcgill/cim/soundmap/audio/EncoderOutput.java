@@ -0,0 +1,122 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ca.mcgill.cim.soundmap.network.StreamingUploadBody;
+
+/**
+ * Where an encoder writes: the sample file, mirrored into the live upload if there is one.
+ *
+ * Headers that depend on the whole recording are written with placeholder values and fixed
+ * with {@link #patch(long, byte[])} once the sizes are known; the stream keeps the placeholders.
+ *
+ * Writes are gathered in a direct buffer that is handed to the file channel when it fills, so
+ * the disk sees a few large writes and no copy through the Java heap.
+ */
+public class EncoderOutput {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mFile;
+    private final StreamingUploadBody mStream;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private FileChannel mChannel;
+    private long mPosition = 0;
+
+    public EncoderOutput(File file, StreamingUploadBody stream) {
+        mFile = file;
+        mStream = stream;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public void open() throws IOException {
+        mChannel = new FileOutputStream(mFile).getChannel();
+        mBuffer.clear();
+        mPosition = 0;
+    }
+
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        mPosition += length;
+        int end = offset + length;
+        for (int at = offset; at < end; ) {
+            int count = Math.min(mBuffer.remaining(), end - at);
+            mBuffer.put(buffer, at, count);
+            at += count;
+            if (!mBuffer.hasRemaining()) {
+                flush();
+            }
+        }
+        mirror(buffer, offset, length);
+    }
+
+    protected void mirror(byte[] buffer, int offset, int length) {
+        if (mStream != null) {
+            // Returns false once the upload has fallen behind; the file is still complete
+            mStream.write(buffer, offset, length);
+        }
+    }
+
+    public long getPosition() {
+        return mPosition;
+    }
+
+    public void close() throws IOException {
+        if (mChannel != null) {
+            try {
+                flush();
+            } finally {
+                mChannel.close();
+                mChannel = null;
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * Overwrites bytes already written, whether the file is still open or closed.
+     */
+    public void patch(long position, byte[] bytes) throws IOException {
+        if (mChannel != null) {
+            flush();
+            ByteBuffer source = ByteBuffer.wrap(bytes);
+            while (source.hasRemaining()) {
+                mChannel.write(source, position + source.position());
+            }
+            return;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(position);
+            file.write(bytes);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Closes the file, ignoring errors.
+     */
+    public void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
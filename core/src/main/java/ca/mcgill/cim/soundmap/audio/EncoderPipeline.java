@@ -0,0 +1,190 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs an {@link AudioEncoder} on its own thread, so that encoding and disk writes never hold up
+ * the microphone read loop.
+ *
+ * The read loop fills a {@link Chunk} from {@link #obtain()} and hands it over with
+ * {@link #submit(Chunk)}; the encoder thread gives it back to the pool once encoded. The pool is
+ * allocated up front and never grows. Obtaining a chunk never blocks either: if the encoder has
+ * fallen a whole pool behind, there is no chunk, and the read loop keeps draining the
+ * microphone and counts the frames it could not write (see {@link CaptureStats}).
+ *
+ * The encoder runs on a thread of its own, or on one borrowed from an executor for the length
+ * of the capture.
+ */
+public class EncoderPipeline {
+
+    private static final String TAG = "EncoderPipeline";
+
+    /**
+     * A reusable buffer of PCM bytes.
+     */
+    public static final class Chunk {
+        public final byte[] data;
+        public int length;
+
+        Chunk(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    // Ends the encoder thread
+    private static final Chunk END = new Chunk(0);
+
+    private final AudioEncoder mEncoder;
+    private final int mChunkSize;
+    private final BlockingQueue<Chunk> mFree = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Chunk> mFull = new LinkedBlockingQueue<>();
+    private final Executor mExecutor;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private boolean mIsStarted = false;
+
+    private volatile boolean mIsAborted = false;
+    private volatile Exception mError;
+
+    public EncoderPipeline(AudioEncoder encoder, int chunkSize, int chunks) {
+        this(encoder, chunkSize, chunks, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                new Thread(command, TAG).start();
+            }
+        });
+    }
+
+    public EncoderPipeline(AudioEncoder encoder, int chunkSize, int chunks, Executor executor) {
+        mEncoder = encoder;
+        mChunkSize = chunkSize;
+        mExecutor = executor;
+        for (int i = 0; i < chunks; i++) {
+            mFree.add(new Chunk(chunkSize));
+        }
+    }
+
+    /**
+     * Starts the encoder (which writes its header) and then the encoder thread.
+     *
+     * @throws IOException if the header could not be written, or the executor had no room
+     */
+    public void start() throws IOException {
+        mEncoder.start();
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        encodeLoop();
+                    } finally {
+                        mDone.countDown();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mEncoder.abort();
+            throw new IOException("No thread for the encoder", e);
+        }
+        mIsStarted = true;
+    }
+
+    /**
+     * A free chunk, or null if every chunk is waiting to be encoded.
+     */
+    public Chunk obtain() {
+        return mFree.poll();
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public void submit(Chunk chunk) {
+        mFull.add(chunk);
+    }
+
+    /**
+     * Encodes everything submitted so far and completes the file.
+     *
+     * @throws IOException if the encoder failed at any point
+     */
+    public void finish() throws IOException {
+        stopThread();
+
+        Exception error = mError;
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error != null) {
+            throw new IOException("Encoder failed", error);
+        }
+    }
+
+    /**
+     * Drops whatever has not been encoded and releases the encoder.
+     */
+    public void abort() {
+        mIsAborted = true;
+        stopThread();
+    }
+
+    private void stopThread() {
+        if (!mIsStarted) {
+            return;
+        }
+        mFull.add(END);
+
+        boolean isInterrupted = false;
+        while (mDone.getCount() > 0) {
+            try {
+                mDone.await();
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void encodeLoop() {
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = mFull.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            if (chunk == END) {
+                break;
+            }
+
+            if (mError == null && !mIsAborted) {
+                try {
+                    mEncoder.encode(chunk.data, chunk.length);
+                } catch (IOException | RuntimeException e) {
+                    //Log.e(TAG, "encodeLoop: Error - " + e.toString());
+                    mError = e;
+                }
+            }
+            mFree.add(chunk);
+        }
+
+        if (mError != null || mIsAborted) {
+            mEncoder.abort();
+            return;
+        }
+
+        try {
+            mEncoder.finish();
+        } catch (IOException | RuntimeException e) {
+            mError = e;
+            mEncoder.abort();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package ca.mcgill.cim.soundmap.audio;
+
+/**
+ * A frame is active if its level stands {@link #MARGIN} dB above the background.
+ *
+ * The level is time weighted like a sound level meter on FAST ({@link #TIME_CONSTANT}), so the
+ * frame to frame scatter of a noisy background, which is large for frames this short, does not
+ * reach the margin. In exchange a loud sound is held for as long as its level takes to decay
+ * to the margin, about half a second for a sound 30 dB up.
+ *
+ * The background is the noise floor: it drops to any quieter level at once and rises by
+ * {@link #FLOOR_RISE} dB per second at most, so it follows a changing background but not a
+ * sound, unless that sound goes on long enough to become the background. Frames quieter than
+ * {@link #MIN_LEVEL} are never active, whatever the floor (a device in a drawer).
+ */
+public class EnergyCriterion implements EventDetector.Criterion {
+
+    private static final String TAG = "EnergyCriterion";
+
+    public static final double MARGIN = 10;             // dB
+    public static final double FLOOR_RISE = 1;          // dB/s
+    public static final double MIN_LEVEL = -80;         // dBFS
+    public static final double TIME_CONSTANT = 0.125;   // s
+
+    // A full scale sine has a mean square of 1/2
+    private static final double REFERENCE_POWER = 0.5;
+
+    private final double mRisePerFrame;
+    private final double mAlpha;
+    private final double mMargin;
+
+    private double mMeanSquare = Double.NaN;
+    private double mFloor = Double.NaN;
+    private double mLevel = Double.NEGATIVE_INFINITY;
+
+    public EnergyCriterion(int sampleRate) {
+        this(sampleRate, MARGIN);
+    }
+
+    public EnergyCriterion(int sampleRate, double margin) {
+        double frameDuration = (double) EventDetector.FRAME_SIZE / sampleRate;
+        mRisePerFrame = FLOOR_RISE * frameDuration;
+        mAlpha = 1 - Math.exp(-frameDuration / TIME_CONSTANT);
+        mMargin = margin;
+    }
+
+    @Override
+    public boolean needsSpectrum() {
+        return false;
+    }
+
+    @Override
+    public boolean isActive(double[] samples, double[] magnitudes) {
+        double meanSquare = 0;
+        for (double x : samples) {
+            meanSquare += x * x;
+        }
+        meanSquare /= samples.length;
+        if (Double.isNaN(mMeanSquare)) {
+            mMeanSquare = meanSquare;
+        } else {
+            mMeanSquare += mAlpha * (meanSquare - mMeanSquare);
+        }
+        mLevel = 10 * Math.log10(mMeanSquare / REFERENCE_POWER);
+
+        if (Double.isNaN(mFloor)) {
+            mFloor = mLevel;
+            return false;
+        }
+
+        boolean isActive = mLevel > mFloor + mMargin && mLevel > MIN_LEVEL;
+        mFloor = Math.min(mLevel, mFloor + mRisePerFrame);
+        return isActive;
+    }
+
+    /**
+     * The noise floor, in dBFS.
+     */
+    public double getFloor() {
+        return mFloor;
+    }
+
+    /**
+     * The time weighted level at the last frame, in dBFS.
+     */
+    public double getLevel() {
+        return mLevel;
+    }
+}
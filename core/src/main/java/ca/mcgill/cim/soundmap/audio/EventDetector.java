@@ -0,0 +1,240 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming detection of acoustic events in 16 bit PCM: stretches where something happens, as
+ * opposed to a steady background.
+ *
+ * The input is downmixed to mono and cut into consecutive frames of {@link #FRAME_SIZE}
+ * samples with no overlap. Each frame is put to the {@link Criterion}s; it is active if any of
+ * them says so. An event starts with the first active frame and ends after {@link #HOLD}
+ * seconds without one, so the short gaps within a sound do not split it. The magnitude
+ * spectrum is only computed if a criterion asks for it, and all buffers are allocated up
+ * front, so the cost per frame is fixed: one FFT at most, whatever the input.
+ *
+ * Positions are in sample frames from the start of the input. An event is known at the end of
+ * the frame that started it, which is its detection latency.
+ */
+public class EventDetector {
+
+    private static final String TAG = "EventDetector";
+
+    public static final int FRAME_SIZE = 1024;  // ~23 ms at 44.1 kHz
+
+    public static final double HOLD = 0.5;      // s
+
+    private static final double FULL_SCALE = 32768;
+
+    /**
+     * Decides whether a frame is part of an event. Criteria keep their own adaptive
+     * thresholds; they see every frame, in order.
+     */
+    public interface Criterion {
+        /**
+         * Whether {@link #isActive(double[], double[])} needs the magnitude spectrum.
+         */
+        boolean needsSpectrum();
+
+        /**
+         * @param samples    the frame, mono, full scale at 1
+         * @param magnitudes the magnitudes of bins 0 to frame size / 2 of the windowed
+         *                   frame, or null if not needed
+         */
+        boolean isActive(double[] samples, double[] magnitudes);
+    }
+
+    /**
+     * An event, from its first active frame to the end of its last one.
+     */
+    public static final class Event {
+        public final long start;
+        public final long detectedAt;   // position at which the event was known
+        long mEnd = -1;
+
+        Event(long start, long detectedAt) {
+            this.start = start;
+            this.detectedAt = detectedAt;
+        }
+
+        /**
+         * The end of the event, or -1 while it is still going on.
+         */
+        public long getEnd() {
+            return mEnd;
+        }
+    }
+
+    private final int mChannels;
+    private final int mHoldFrames;  // analysis frames
+    private final Criterion[] mCriteria;
+    private final boolean mNeedsSpectrum;
+
+    private final Fft mFft;
+    private final double[] mWindow;
+    private final double[] mFrame;
+    private final double[] mRe;
+    private final double[] mIm;
+    private final double[] mMagnitudes;
+    private int mFill = 0;
+
+    // A sample frame (all channels) split across two reads
+    private final byte[] mCarry;
+    private int mCarried = 0;
+
+    private long mPosition = 0;     // sample frames analysed
+    private int mQuietFrames = 0;   // since the last active frame
+    private long mLastActiveEnd = 0;
+    private Event mOpen;
+    private final List<Event> mEvents = new ArrayList<>();
+
+    public EventDetector(int sampleRate, int channels, Criterion... criteria) {
+        mChannels = channels;
+        mHoldFrames = (int) Math.ceil(HOLD * sampleRate / FRAME_SIZE);
+        mCriteria = criteria;
+
+        boolean needsSpectrum = false;
+        for (Criterion criterion : criteria) {
+            needsSpectrum |= criterion.needsSpectrum();
+        }
+        mNeedsSpectrum = needsSpectrum;
+
+        mFft = new Fft(FRAME_SIZE);
+        mWindow = new double[FRAME_SIZE];
+        for (int i = 0; i < FRAME_SIZE; i++) {
+            mWindow[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / FRAME_SIZE);
+        }
+        mFrame = new double[FRAME_SIZE];
+        mRe = new double[FRAME_SIZE];
+        mIm = new double[FRAME_SIZE];
+        mMagnitudes = new double[FRAME_SIZE / 2 + 1];
+        mCarry = new byte[2 * channels];
+    }
+
+    /**
+     * Energy and spectral flux with their default thresholds.
+     */
+    public static EventDetector createDefault(int sampleRate, int channels) {
+        return new EventDetector(sampleRate, channels, new EnergyCriterion(sampleRate),
+                new SpectralFluxCriterion(sampleRate));
+    }
+
+    /**
+     * Analyses interleaved little endian 16 bit samples.
+     */
+    public void process(byte[] pcm, int length) {
+        int bytesPerFrame = mCarry.length;
+        int i = 0;
+
+        if (mCarried > 0) {
+            while (mCarried < bytesPerFrame && i < length) {
+                mCarry[mCarried++] = pcm[i++];
+            }
+            if (mCarried < bytesPerFrame) {
+                return;
+            }
+            push(mCarry, 0);
+            mCarried = 0;
+        }
+
+        for (; i + bytesPerFrame <= length; i += bytesPerFrame) {
+            push(pcm, i);
+        }
+
+        while (i < length) {
+            mCarry[mCarried++] = pcm[i++];
+        }
+    }
+
+    /**
+     * Ends the input: an event still going on ends with the last active frame. A partial
+     * analysis frame is not analysed.
+     */
+    public void finish() {
+        if (mOpen != null) {
+            mOpen.mEnd = mLastActiveEnd;
+            mOpen = null;
+        }
+    }
+
+    /**
+     * Whether an event is going on.
+     */
+    public boolean isActive() {
+        return mOpen != null;
+    }
+
+    /**
+     * The sample frames analysed so far, up to the last complete analysis frame.
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * How far behind the input the events may lag, in sample frames: an event is known by the
+     * time the input is this far past its start, and its end by the time the input is this far
+     * past its end. Covers a partly filled frame, the frame itself and the hold.
+     */
+    public long getDecisionDelay() {
+        return (long) (mHoldFrames + 2) * FRAME_SIZE;
+    }
+
+    /**
+     * All the events so far, in order; the last one may still be going on.
+     */
+    public List<Event> getEvents() {
+        return mEvents;
+    }
+
+    private void push(byte[] pcm, int offset) {
+        int sum = 0;
+        for (int c = 0; c < mChannels; c++) {
+            int at = offset + 2 * c;
+            sum += (short) ((pcm[at] & 0xFF) | (pcm[at + 1] << 8));
+        }
+        mFrame[mFill++] = sum / (mChannels * FULL_SCALE);
+
+        if (mFill == FRAME_SIZE) {
+            analyseFrame();
+            mFill = 0;
+        }
+    }
+
+    private void analyseFrame() {
+        double[] magnitudes = null;
+        if (mNeedsSpectrum) {
+            for (int i = 0; i < FRAME_SIZE; i++) {
+                mRe[i] = mFrame[i] * mWindow[i];
+                mIm[i] = 0;
+            }
+            mFft.transform(mRe, mIm);
+            for (int k = 0; k < mMagnitudes.length; k++) {
+                mMagnitudes[k] = Math.sqrt(mRe[k] * mRe[k] + mIm[k] * mIm[k]);
+            }
+            magnitudes = mMagnitudes;
+        }
+
+        // Every criterion sees every frame, to keep its thresholds current
+        boolean isActive = false;
+        for (Criterion criterion : mCriteria) {
+            isActive |= criterion.isActive(mFrame, magnitudes);
+        }
+
+        long start = mPosition;
+        mPosition += FRAME_SIZE;
+
+        if (isActive) {
+            mQuietFrames = 0;
+            mLastActiveEnd = mPosition;
+            if (mOpen == null) {
+                mOpen = new Event(start, mPosition);
+                mEvents.add(mOpen);
+            }
+        } else if (mOpen != null && ++mQuietFrames > mHoldFrames) {
+            mOpen.mEnd = mLastActiveEnd;
+            mOpen = null;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package ca.mcgill.cim.soundmap.audio;
+
+/**
+ * Streaming acoustic analysis of 16 bit PCM, fed straight from the recorder's read loop.
+ *
+ * The input is downmixed to mono and cut into consecutive frames. For every frame it computes
+ * the unweighted (Z) and A-weighted levels, the third-octave band levels and the spectral
+ * centroid, and appends them to an {@link AcousticFeatures}. All buffers, the FFT tables, the
+ * Hann window, the A-weighting gains and the bin to band map are allocated once, so
+ * {@link #process(byte[], int)} does not allocate.
+ *
+ * Levels are in dB relative to a full scale sine wave (dBFS) plus the calibration offset; with
+ * a calibrated offset they are sound pressure levels.
+ */
+public class FeatureExtractor {
+
+    private static final String TAG = "FeatureExtractor";
+
+    public static final int DEFAULT_FRAME_SIZE = 4096; // ~93 ms at 44.1 kHz
+
+    private static final double FULL_SCALE = 32768;
+
+    // A full scale sine has a mean square of 1/2; levels are relative to it
+    private static final double REFERENCE_POWER = 0.5;
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mFrameSize;
+    private final Fft mFft;
+
+    private final double[] mWindow;
+    private final double mWindowPower;    // mean of the squared window
+    private final double[] mAWeights;     // power gain per bin
+    private final int[] mBinBands;        // band per bin, or -1
+
+    private final double[] mFrame;        // mono samples of the frame being filled
+    private final double[] mRe;
+    private final double[] mIm;
+    private final double[] mBandPower = new double[AcousticFeatures.BAND_COUNT];
+    private final double[] mBandLevels = new double[AcousticFeatures.BAND_COUNT];
+    private int mFill = 0;
+
+    // A sample frame (all channels) split across two reads
+    private final byte[] mCarry;
+    private int mCarried = 0;
+
+    private volatile double mCalibrationOffset = 0; // dB
+
+    private AcousticFeatures mFeatures;
+
+    /**
+     * @param frameSize samples per analysis frame, a power of two
+     */
+    public FeatureExtractor(int sampleRate, int channels, int frameSize) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mFrameSize = frameSize;
+        mFft = new Fft(frameSize);
+
+        mFrame = new double[frameSize];
+        mRe = new double[frameSize];
+        mIm = new double[frameSize];
+        mCarry = new byte[2 * channels];
+
+        mWindow = new double[frameSize];
+        double sum = 0;
+        for (int i = 0; i < frameSize; i++) {
+            mWindow[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / frameSize);
+            sum += mWindow[i] * mWindow[i];
+        }
+        mWindowPower = sum / frameSize;
+
+        int bins = frameSize / 2 + 1;
+        mAWeights = new double[bins];
+        mBinBands = new int[bins];
+        for (int k = 0; k < bins; k++) {
+            double f = (double) k * sampleRate / frameSize;
+            mAWeights[k] = aWeightingGain(f);
+            mBinBands[k] = bandOf(f);
+        }
+
+        mFeatures = new AcousticFeatures(sampleRate, frameSize);
+    }
+
+    /**
+     * Offset added to every level, e.g. to turn dBFS into dB SPL for a calibrated device.
+     */
+    public void setCalibrationOffset(double offset) {
+        mCalibrationOffset = offset;
+    }
+
+    public double getCalibrationOffset() {
+        return mCalibrationOffset;
+    }
+
+    /**
+     * Analyses interleaved little endian 16 bit samples, as read from an AudioRecord.
+     *
+     * @return the number of frames completed by this call
+     */
+    public int process(byte[] pcm, int length) {
+        int completed = 0;
+        int bytesPerFrame = mCarry.length;
+        int i = 0;
+
+        // Finish a sample frame left over from the last read
+        if (mCarried > 0) {
+            while (mCarried < bytesPerFrame && i < length) {
+                mCarry[mCarried++] = pcm[i++];
+            }
+            if (mCarried < bytesPerFrame) {
+                return 0;
+            }
+            if (push(mCarry, 0)) {
+                completed++;
+            }
+            mCarried = 0;
+        }
+
+        for (; i + bytesPerFrame <= length; i += bytesPerFrame) {
+            if (push(pcm, i)) {
+                completed++;
+            }
+        }
+
+        while (i < length) {
+            mCarry[mCarried++] = pcm[i++];
+        }
+        return completed;
+    }
+
+    /**
+     * Returns the features analysed so far and starts a new set; a partial frame is dropped.
+     */
+    public AcousticFeatures finish() {
+        AcousticFeatures features = mFeatures;
+        mFeatures = new AcousticFeatures(mSampleRate, mFrameSize);
+        mFill = 0;
+        mCarried = 0;
+        return features;
+    }
+
+    public AcousticFeatures getFeatures() {
+        return mFeatures;
+    }
+
+    // Adds one downmixed sample; true if it completed a frame
+    private boolean push(byte[] pcm, int offset) {
+        double sum = 0;
+        for (int c = 0; c < mChannels; c++) {
+            int at = offset + 2 * c;
+            sum += (short) ((pcm[at] & 0xFF) | (pcm[at + 1] << 8));
+        }
+        mFrame[mFill++] = sum / (mChannels * FULL_SCALE);
+
+        if (mFill < mFrameSize) {
+            return false;
+        }
+        analyseFrame();
+        mFill = 0;
+        return true;
+    }
+
+    private void analyseFrame() {
+        double meanSquare = 0;
+        for (int i = 0; i < mFrameSize; i++) {
+            double x = mFrame[i];
+            meanSquare += x * x;
+            mRe[i] = x * mWindow[i];
+            mIm[i] = 0;
+        }
+        meanSquare /= mFrameSize;
+
+        mFft.transform(mRe, mIm);
+
+        // One-sided power per bin, scaled so that the bins of an unweighted signal sum to its
+        // mean square (Parseval, corrected for the window)
+        double scale = 1.0 / ((double) mFrameSize * mFrameSize * mWindowPower);
+        double aPower = 0;
+        double total = 0;
+        double moment = 0;
+        for (int band = 0; band < mBandPower.length; band++) {
+            mBandPower[band] = 0;
+        }
+
+        int bins = mFrameSize / 2 + 1;
+        for (int k = 0; k < bins; k++) {
+            double power = (mRe[k] * mRe[k] + mIm[k] * mIm[k]) * scale;
+            if (k != 0 && k != mFrameSize / 2) {
+                power *= 2;
+            }
+
+            aPower += power * mAWeights[k];
+            total += power;
+            moment += power * k;
+
+            int band = mBinBands[k];
+            if (band >= 0) {
+                mBandPower[band] += power;
+            }
+        }
+
+        double offset = mCalibrationOffset;
+        for (int band = 0; band < mBandLevels.length; band++) {
+            mBandLevels[band] = toLevel(mBandPower[band], offset);
+        }
+        double centroid = total > 0 ? moment / total * mSampleRate / mFrameSize : 0;
+
+        mFeatures.addFrame(toLevel(meanSquare, offset), toLevel(aPower, offset), centroid,
+                mBandLevels);
+    }
+
+    private static double toLevel(double meanSquare, double offset) {
+        return 10 * Math.log10(meanSquare / REFERENCE_POWER) + offset;
+    }
+
+    /**
+     * A-weighting as a power gain (IEC 61672), 1 at 1 kHz.
+     */
+    static double aWeightingGain(double f) {
+        if (f <= 0) {
+            return 0;
+        }
+        double f2 = f * f;
+        double ra = (12194.0 * 12194.0 * f2 * f2)
+                / ((f2 + 20.6 * 20.6)
+                * Math.sqrt((f2 + 107.7 * 107.7) * (f2 + 737.9 * 737.9))
+                * (f2 + 12194.0 * 12194.0));
+        // +2.00 dB normalises the gain at 1 kHz
+        return ra * ra * Math.pow(10, 2.0 / 10);
+    }
+
+    // Third-octave band of a frequency; band edges are a twentieth of a decade from the centre
+    static int bandOf(double f) {
+        if (f <= 0) {
+            return -1;
+        }
+        int band = (int) Math.round(10 * Math.log10(f / 1000)) - AcousticFeatures.FIRST_BAND;
+        return band >= 0 && band < AcousticFeatures.BAND_COUNT ? band : -1;
+    }
+}
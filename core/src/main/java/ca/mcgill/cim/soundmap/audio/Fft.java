@@ -0,0 +1,79 @@
+package ca.mcgill.cim.soundmap.audio;
+
+/**
+ * In-place radix-2 FFT.
+ *
+ * The bit reversal permutation and the twiddle factors are computed once per size, so a
+ * transform does no allocation and no trigonometry.
+ */
+public final class Fft {
+
+    private final int mSize;
+    private final int[] mReverse;
+    private final double[] mCos;
+    private final double[] mSin;
+
+    /**
+     * @param size a power of two
+     */
+    public Fft(int size) {
+        if (size < 2 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        mSize = size;
+
+        int bits = Integer.numberOfTrailingZeros(size);
+        mReverse = new int[size];
+        for (int i = 0; i < size; i++) {
+            mReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        mCos = new double[size / 2];
+        mSin = new double[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            double angle = -2 * Math.PI * i / size;
+            mCos[i] = Math.cos(angle);
+            mSin[i] = Math.sin(angle);
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Forward transform of the complex signal (re, im), replacing it by its spectrum. Both
+     * arrays must hold at least {@link #size()} values.
+     */
+    public void transform(double[] re, double[] im) {
+        for (int i = 0; i < mSize; i++) {
+            int j = mReverse[i];
+            if (j > i) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+
+        for (int half = 1; half < mSize; half <<= 1) {
+            int step = mSize / (half << 1);
+            for (int start = 0; start < mSize; start += half << 1) {
+                for (int k = 0; k < half; k++) {
+                    double wr = mCos[k * step];
+                    double wi = mSin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
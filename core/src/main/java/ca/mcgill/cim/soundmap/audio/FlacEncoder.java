@@ -0,0 +1,513 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Lossless FLAC encoder in plain Java.
+ *
+ * Each block of {@link #BLOCK_SIZE} samples is coded with the best of the fixed polynomial
+ * predictors (orders 0 to 4) and partitioned Rice coding of the residual; stereo blocks also pick
+ * the cheapest of left/right, left/side, side/right and mid/side. That is the "fixed" half of
+ * what libFLAC does at its fast presets: full band, bit exact, usually about half the size of
+ * the WAV.
+ *
+ * The STREAMINFO block is written up front with unknown totals so that the stream can be
+ * decoded while it is uploaded, and is completed in the file when it is finished.
+ */
+public class FlacEncoder implements AudioEncoder {
+
+    static final int BLOCK_SIZE = 4096;
+
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 8;
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    private static final int STREAMINFO_OFFSET = 8;  // after "fLaC" and the block header
+    private static final int STREAMINFO_LENGTH = 34;
+
+    // Channel assignments
+    private static final int LEFT_SIDE = 8;
+    private static final int SIDE_RIGHT = 9;
+    private static final int MID_SIDE = 10;
+
+    private final CaptureConfig mConfig;
+    private final EncoderOutput mOutput;
+    private final int mChannels;
+    private final int mBitDepth;
+
+    private final int[][] mBlock;
+    private int mFill = 0;
+
+    private final int[] mMid = new int[BLOCK_SIZE];
+    private final int[] mSide = new int[BLOCK_SIZE];
+    private final int[] mResidual = new int[BLOCK_SIZE];
+    private final BitWriter mWriter = new BitWriter(BLOCK_SIZE * 4);
+
+    private long mFrameNumber = 0;
+    private long mTotalSamples = 0;
+    private int mMinFrameSize = Integer.MAX_VALUE;
+    private int mMaxFrameSize = 0;
+
+    public FlacEncoder(CaptureConfig config, EncoderOutput output) {
+        mConfig = config;
+        mOutput = output;
+        mChannels = config.getChannels();
+        mBitDepth = config.getBitDepth();
+        mBlock = new int[mChannels][BLOCK_SIZE];
+    }
+
+    @Override
+    public void start() throws IOException {
+        mOutput.open();
+
+        BitWriter header = new BitWriter(64);
+        header.writeBits('f', 8);
+        header.writeBits('L', 8);
+        header.writeBits('a', 8);
+        header.writeBits('C', 8);
+        header.writeBits(1, 1);                     // Last metadata block
+        header.writeBits(0, 7);                     // STREAMINFO
+        header.writeBits(STREAMINFO_LENGTH, 24);
+        byte[] info = buildStreamInfo(0, 0, 0);
+        header.writeBytes(info, 0, info.length);
+
+        mOutput.write(header.getBuffer(), 0, header.getByteCount());
+    }
+
+    @Override
+    public void encode(byte[] pcm, int length) throws IOException {
+        int shift = 16 - mBitDepth;
+        int bytesPerFrame = 2 * mChannels;
+
+        for (int i = 0; i + bytesPerFrame <= length; i += bytesPerFrame) {
+            for (int c = 0; c < mChannels; c++) {
+                int at = i + 2 * c;
+                mBlock[c][mFill] = ((short) ((pcm[at] & 0xFF) | (pcm[at + 1] << 8))) >> shift;
+            }
+            if (++mFill == BLOCK_SIZE) {
+                writeFrame(BLOCK_SIZE);
+                mFill = 0;
+            }
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (mFill > 0) {
+            writeFrame(mFill);
+            mFill = 0;
+        }
+        mOutput.close();
+
+        if (mMaxFrameSize == 0) {
+            mMinFrameSize = 0;
+        }
+        mOutput.patch(STREAMINFO_OFFSET,
+                buildStreamInfo(mMinFrameSize, mMaxFrameSize, mTotalSamples));
+    }
+
+    @Override
+    public void abort() {
+        mOutput.closeQuietly();
+    }
+
+    private byte[] buildStreamInfo(int minFrameSize, int maxFrameSize, long totalSamples) {
+        BitWriter info = new BitWriter(STREAMINFO_LENGTH);
+        info.writeBits(BLOCK_SIZE, 16);             // Min block size
+        info.writeBits(BLOCK_SIZE, 16);             // Max block size
+        info.writeBits(minFrameSize, 24);           // 0 == unknown
+        info.writeBits(maxFrameSize, 24);
+        info.writeBits(mConfig.getSampleRate(), 20);
+        info.writeBits(mChannels - 1, 3);
+        info.writeBits(mBitDepth - 1, 5);
+        info.writeBits((int) (totalSamples >>> 32) & 0xF, 4);  // 36 bits, 0 == unknown
+        info.writeBits((int) totalSamples, 32);
+        for (int i = 0; i < 4; i++) {
+            info.writeBits(0, 32);                  // No MD5
+        }
+        return Arrays.copyOf(info.getBuffer(), STREAMINFO_LENGTH);
+    }
+
+    private void writeFrame(int n) throws IOException {
+        BitWriter w = mWriter;
+        w.reset();
+
+        int assignment = mChannels - 1;
+        if (mChannels == 2) {
+            assignment = chooseStereoAssignment(n);
+        }
+
+        // Header
+        w.writeBits(0x3FFE, 14);                    // Sync
+        w.writeBits(0, 1);
+        w.writeBits(0, 1);                          // Fixed block size
+        w.writeBits(7, 4);                          // Block size - 1 follows as 16 bits
+        w.writeBits(0, 4);                          // Sample rate from STREAMINFO
+        w.writeBits(assignment, 4);
+        w.writeBits(mBitDepth == 8 ? 1 : 4, 3);     // Sample size
+        w.writeBits(0, 1);
+        w.writeUtf8(mFrameNumber);
+        w.writeBits(n - 1, 16);
+        w.writeBits(Crc.crc8(w.getBuffer(), 0, w.getByteCount()), 8);
+
+        // Subframes
+        switch (assignment) {
+            case LEFT_SIDE:
+                writeSubframe(mBlock[0], n, mBitDepth);
+                writeSubframe(mSide, n, mBitDepth + 1);
+                break;
+            case SIDE_RIGHT:
+                writeSubframe(mSide, n, mBitDepth + 1);
+                writeSubframe(mBlock[1], n, mBitDepth);
+                break;
+            case MID_SIDE:
+                writeSubframe(mMid, n, mBitDepth);
+                writeSubframe(mSide, n, mBitDepth + 1);
+                break;
+            default:
+                for (int c = 0; c < mChannels; c++) {
+                    writeSubframe(mBlock[c], n, mBitDepth);
+                }
+                break;
+        }
+
+        // Footer
+        w.alignToByte();
+        w.writeBits(Crc.crc16(w.getBuffer(), 0, w.getByteCount()), 16);
+
+        int size = w.getByteCount();
+        mOutput.write(w.getBuffer(), 0, size);
+
+        mMinFrameSize = Math.min(mMinFrameSize, size);
+        mMaxFrameSize = Math.max(mMaxFrameSize, size);
+        mTotalSamples += n;
+        mFrameNumber++;
+    }
+
+    private int chooseStereoAssignment(int n) {
+        int[] left = mBlock[0];
+        int[] right = mBlock[1];
+        for (int i = 0; i < n; i++) {
+            mSide[i] = left[i] - right[i];
+            mMid[i] = (left[i] + right[i]) >> 1;
+        }
+
+        long l = bestFixedCost(left, n);
+        long r = bestFixedCost(right, n);
+        long s = bestFixedCost(mSide, n);
+        long m = bestFixedCost(mMid, n);
+
+        int assignment = 1; // Independent
+        long best = l + r;
+        if (l + s < best) {
+            best = l + s;
+            assignment = LEFT_SIDE;
+        }
+        if (s + r < best) {
+            best = s + r;
+            assignment = SIDE_RIGHT;
+        }
+        if (m + s < best) {
+            assignment = MID_SIDE;
+        }
+        return assignment;
+    }
+
+    private void writeSubframe(int[] x, int n, int bits) {
+        BitWriter w = mWriter;
+
+        boolean isConstant = true;
+        for (int i = 1; i < n && isConstant; i++) {
+            isConstant = x[i] == x[0];
+        }
+        if (isConstant) {
+            w.writeBits(0, 8);                      // CONSTANT
+            w.writeSigned(x[0], bits);
+            return;
+        }
+
+        int order = bestFixedOrder(x, n);
+        computeResidual(x, n, order, mResidual);
+
+        long verbatim = (long) n * bits;
+        int partitionOrder = bestPartitionOrder(mResidual, n, order);
+        long fixed = (long) order * bits + 6
+                + residualCost(mResidual, n, order, partitionOrder);
+
+        if (fixed >= verbatim) {
+            w.writeBits(2, 8);                      // VERBATIM
+            for (int i = 0; i < n; i++) {
+                w.writeSigned(x[i], bits);
+            }
+            return;
+        }
+
+        w.writeBits(0x10 | (order << 1), 8);        // FIXED
+        for (int i = 0; i < order; i++) {
+            w.writeSigned(x[i], bits);
+        }
+        writeResidual(mResidual, n, order, partitionOrder);
+    }
+
+    // Sum of absolute residuals of the best order, as a cheap stand in for the coded size
+    private long bestFixedCost(int[] x, int n) {
+        int order = bestFixedOrder(x, n);
+        computeResidual(x, n, order, mResidual);
+        long sum = 0;
+        for (int i = order; i < n; i++) {
+            sum += Math.abs((long) mResidual[i]);
+        }
+        return sum;
+    }
+
+    private static int bestFixedOrder(int[] x, int n) {
+        int maxOrder = Math.min(MAX_FIXED_ORDER, n - 1);
+        long[] sums = new long[MAX_FIXED_ORDER + 1];
+
+        for (int i = maxOrder; i < n; i++) {
+            long e0 = x[i];
+            long e1 = e0 - x[i - Math.min(1, i)];
+            sums[0] += Math.abs(e0);
+            sums[1] += Math.abs(e1);
+            if (maxOrder >= 2) {
+                long e2 = e1 - ((long) x[i - 1] - x[i - 2]);
+                sums[2] += Math.abs(e2);
+                if (maxOrder >= 3) {
+                    long e3 = e2 - ((long) x[i - 1] - 2L * x[i - 2] + x[i - 3]);
+                    sums[3] += Math.abs(e3);
+                    if (maxOrder >= 4) {
+                        long e4 = e3 - ((long) x[i - 1] - 3L * x[i - 2] + 3L * x[i - 3]
+                                - x[i - 4]);
+                        sums[4] += Math.abs(e4);
+                    }
+                }
+            }
+        }
+
+        int best = 0;
+        for (int order = 1; order <= maxOrder; order++) {
+            if (sums[order] < sums[best]) {
+                best = order;
+            }
+        }
+        return best;
+    }
+
+    private static void computeResidual(int[] x, int n, int order, int[] residual) {
+        for (int i = order; i < n; i++) {
+            switch (order) {
+                case 0:
+                    residual[i] = x[i];
+                    break;
+                case 1:
+                    residual[i] = x[i] - x[i - 1];
+                    break;
+                case 2:
+                    residual[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+                    break;
+                case 3:
+                    residual[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                    break;
+                default:
+                    residual[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                    break;
+            }
+        }
+    }
+
+    private static int bestPartitionOrder(int[] residual, int n, int order) {
+        int best = 0;
+        long bestCost = Long.MAX_VALUE;
+        for (int p = 0; p <= MAX_PARTITION_ORDER; p++) {
+            // Partitions must divide the block and the first must hold the warm-up samples
+            if ((n & ((1 << p) - 1)) != 0 || (n >> p) <= order) {
+                break;
+            }
+            long cost = residualCost(residual, n, order, p);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = p;
+            }
+        }
+        return best;
+    }
+
+    private static long residualCost(int[] residual, int n, int order, int partitionOrder) {
+        long cost = 2 + 4;
+        int size = n >> partitionOrder;
+        int start = order;
+        for (int end = size; end <= n; end += size) {
+            int k = riceParameter(residual, start, end);
+            cost += 4 + (long) (end - start) * (k + 1);
+            for (int i = start; i < end; i++) {
+                cost += fold(residual[i]) >>> k;
+            }
+            start = end;
+        }
+        return cost;
+    }
+
+    private void writeResidual(int[] residual, int n, int order, int partitionOrder) {
+        BitWriter w = mWriter;
+        w.writeBits(0, 2);                          // Rice, 4 bit parameters
+        w.writeBits(partitionOrder, 4);
+
+        int size = n >> partitionOrder;
+        int start = order;
+        for (int end = size; end <= n; end += size) {
+            int k = riceParameter(residual, start, end);
+            w.writeBits(k, 4);
+            for (int i = start; i < end; i++) {
+                w.writeRice(fold(residual[i]), k);
+            }
+            start = end;
+        }
+    }
+
+    // Rice parameter from the mean folded residual of a partition
+    private static int riceParameter(int[] residual, int start, int end) {
+        int count = end - start;
+        if (count <= 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = start; i < end; i++) {
+            sum += fold(residual[i]) & 0xFFFFFFFFL;
+        }
+        long mean = sum / count;
+        int k = mean > 0 ? 63 - Long.numberOfLeadingZeros(mean) : 0;
+        return Math.min(k, MAX_RICE_PARAMETER);
+    }
+
+    // Signed --> unsigned, interleaving the negative values
+    private static int fold(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * MSB first bit packer over a reusable buffer.
+     */
+    static final class BitWriter {
+        private byte[] mBuffer;
+        private int mBytes = 0;
+        private long mAccumulator = 0;
+        private int mBits = 0;
+
+        BitWriter(int capacity) {
+            mBuffer = new byte[Math.max(16, capacity)];
+        }
+
+        void reset() {
+            mBytes = 0;
+            mAccumulator = 0;
+            mBits = 0;
+        }
+
+        void writeBits(int value, int bits) {
+            if (bits == 0) {
+                return;
+            }
+            mAccumulator = (mAccumulator << bits) | (value & (0xFFFFFFFFL >>> (32 - bits)));
+            mBits += bits;
+            while (mBits >= 8) {
+                mBits -= 8;
+                put((byte) (mAccumulator >>> mBits));
+            }
+        }
+
+        void writeSigned(int value, int bits) {
+            writeBits(value, bits);
+        }
+
+        void writeRice(int folded, int k) {
+            int q = folded >>> k;
+            while (q >= 32) {
+                writeBits(0, 32);
+                q -= 32;
+            }
+            writeBits(1, q + 1);
+            writeBits(folded, k);
+        }
+
+        void writeUtf8(long value) {
+            if (value < 0x80) {
+                writeBits((int) value, 8);
+                return;
+            }
+
+            int bytes = value < 0x800 ? 2 : value < 0x10000 ? 3 : value < 0x200000 ? 4
+                    : value < 0x4000000 ? 5 : 6;
+            int shift = (bytes - 1) * 6;
+            writeBits((0xFF00 >> bytes) & 0xFF | (int) (value >>> shift), 8);
+            while (shift > 0) {
+                shift -= 6;
+                writeBits(0x80 | (int) ((value >>> shift) & 0x3F), 8);
+            }
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                writeBits(bytes[offset + i], 8);
+            }
+        }
+
+        void alignToByte() {
+            if (mBits > 0) {
+                writeBits(0, 8 - mBits);
+            }
+        }
+
+        byte[] getBuffer() {
+            return mBuffer;
+        }
+
+        // Whole bytes written so far
+        int getByteCount() {
+            return mBytes;
+        }
+
+        private void put(byte b) {
+            if (mBytes == mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+            }
+            mBuffer[mBytes++] = b;
+        }
+    }
+
+    static final class Crc {
+        private static final int[] CRC8 = new int[256];
+        private static final int[] CRC16 = new int[256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc8 = i;
+                int crc16 = i << 8;
+                for (int bit = 0; bit < 8; bit++) {
+                    crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                    crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+                }
+                CRC8[i] = crc8 & 0xFF;
+                CRC16[i] = crc16 & 0xFFFF;
+            }
+        }
+
+        private Crc() {}
+
+        static int crc8(byte[] data, int offset, int length) {
+            int crc = 0;
+            for (int i = offset; i < offset + length; i++) {
+                crc = CRC8[(crc ^ data[i]) & 0xFF];
+            }
+            return crc;
+        }
+
+        static int crc16(byte[] data, int offset, int length) {
+            int crc = 0;
+            for (int i = offset; i < offset + length; i++) {
+                crc = ((crc << 8) ^ CRC16[((crc >>> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+            }
+            return crc;
+        }
+    }
+}
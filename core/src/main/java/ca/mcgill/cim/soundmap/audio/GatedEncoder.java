@@ -0,0 +1,191 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Passes only the events of a capture on to another encoder, each with some audio before and
+ * after it, and drops the quiet stretches in between.
+ *
+ * The capture goes through an {@link EventDetector} and a delay line. The delay covers the
+ * pre-roll plus the time the detector takes to decide on a frame, so by the time a frame
+ * leaves the delay line it is known whether it lies within the pre-roll, the event or the
+ * post-roll of some event. The windows that are kept are written one after the other and
+ * listed by {@link #getWindows()}, in frames of the capture; windows that overlap are merged.
+ * A capture without events is stored as a file without frames, so only its features go up.
+ *
+ * The delay line is allocated up front and the detector does a bounded amount of work per
+ * frame, so the gate keeps up with the capture on the encoder thread.
+ */
+public class GatedEncoder implements AudioEncoder {
+
+    private static final String TAG = "GatedEncoder";
+
+    public static final double DEFAULT_PRE_ROLL = 1;    // s
+    public static final double DEFAULT_POST_ROLL = 1;   // s
+
+    /**
+     * A stretch of the capture that was kept.
+     */
+    public static final class Window {
+        public final long start;    // sample frames from the start of the capture
+        long mFrames;
+
+        Window(long start, long frames) {
+            this.start = start;
+            mFrames = frames;
+        }
+
+        public long getFrames() {
+            return mFrames;
+        }
+    }
+
+    private final AudioEncoder mEncoder;
+    private final EventDetector mDetector;
+    private final long mPreRoll;    // sample frames
+    private final long mPostRoll;
+    private final int mBytesPerFrame;
+
+    // Delay line
+    private final byte[] mRing;
+    private final byte[] mScratch;
+    private int mHead = 0;
+    private int mFilled = 0;
+    private long mOutPosition = 0;  // frame at the head of the delay line
+
+    private int mEventIndex = 0;    // first event that can still cover a frame
+    private final List<Window> mWindows = new ArrayList<>();
+    private long mKeptFrames = 0;
+
+    public GatedEncoder(CaptureConfig config, AudioEncoder encoder, EventDetector detector) {
+        this(config, encoder, detector, DEFAULT_PRE_ROLL, DEFAULT_POST_ROLL);
+    }
+
+    /**
+     * @param preRoll  seconds kept before each event
+     * @param postRoll seconds kept after each event
+     */
+    public GatedEncoder(CaptureConfig config, AudioEncoder encoder, EventDetector detector,
+                        double preRoll, double postRoll) {
+        mEncoder = encoder;
+        mDetector = detector;
+        mPreRoll = Math.round(preRoll * config.getSampleRate());
+        mPostRoll = Math.round(postRoll * config.getSampleRate());
+        mBytesPerFrame = 2 * config.getChannels();
+
+        long delay = mPreRoll + detector.getDecisionDelay();
+        mRing = new byte[(int) (delay * mBytesPerFrame)];
+        mScratch = new byte[mRing.length];
+    }
+
+    @Override
+    public void start() throws IOException {
+        mEncoder.start();
+    }
+
+    @Override
+    public void encode(byte[] pcm, int length) throws IOException {
+        mDetector.process(pcm, length);
+
+        int offset = 0;
+        while (offset < length) {
+            if (mFilled == mRing.length) {
+                int frames = (length - offset + mBytesPerFrame - 1) / mBytesPerFrame;
+                drain(Math.min(frames, mRing.length / mBytesPerFrame));
+            }
+
+            int count = Math.min(mRing.length - mFilled, length - offset);
+            int tail = (mHead + mFilled) % mRing.length;
+            int first = Math.min(count, mRing.length - tail);
+            System.arraycopy(pcm, offset, mRing, tail, first);
+            System.arraycopy(pcm, offset + first, mRing, 0, count - first);
+            mFilled += count;
+            offset += count;
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        mDetector.finish();
+        drain(mFilled / mBytesPerFrame);
+        mEncoder.finish();
+    }
+
+    @Override
+    public void abort() {
+        mEncoder.abort();
+    }
+
+    /**
+     * The stretches of the capture that were kept, in order. Complete once finished.
+     */
+    public List<Window> getWindows() {
+        return mWindows;
+    }
+
+    public long getKeptFrames() {
+        return mKeptFrames;
+    }
+
+    public EventDetector getDetector() {
+        return mDetector;
+    }
+
+    // Takes frames off the head of the delay line, passing on those in a window
+    private void drain(int frames) throws IOException {
+        int kept = 0;
+        while (frames > 0) {
+            long boundary = nextBoundary(mOutPosition);
+            boolean isKept = boundary < 0;
+            int run = (int) Math.min(frames, Math.abs(boundary) - mOutPosition);
+
+            int bytes = run * mBytesPerFrame;
+            if (isKept) {
+                int first = Math.min(bytes, mRing.length - mHead);
+                System.arraycopy(mRing, mHead, mScratch, kept, first);
+                System.arraycopy(mRing, 0, mScratch, kept + first, bytes - first);
+                kept += bytes;
+                addToWindow(mOutPosition, run);
+            }
+
+            mHead = (mHead + bytes) % mRing.length;
+            mFilled -= bytes;
+            mOutPosition += run;
+            frames -= run;
+        }
+
+        if (kept > 0) {
+            mEncoder.encode(mScratch, kept);
+        }
+    }
+
+    // The end of the run of kept or dropped frames starting at the position, negated if kept
+    private long nextBoundary(long position) {
+        List<EventDetector.Event> events = mDetector.getEvents();
+        while (mEventIndex < events.size()) {
+            EventDetector.Event event = events.get(mEventIndex);
+            long from = Math.max(0, event.start - mPreRoll);
+            long to = event.getEnd() < 0 ? Long.MAX_VALUE : event.getEnd() + mPostRoll;
+            if (position >= to) {
+                mEventIndex++;
+            } else if (position >= from) {
+                return -to;
+            } else {
+                return from;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private void addToWindow(long position, int frames) {
+        Window last = mWindows.isEmpty() ? null : mWindows.get(mWindows.size() - 1);
+        if (last != null && last.start + last.mFrames == position) {
+            last.mFrames += frames;
+        } else {
+            mWindows.add(new Window(position, frames));
+        }
+        mKeptFrames += frames;
+    }
+}
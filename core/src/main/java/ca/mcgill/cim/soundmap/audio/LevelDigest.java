@@ -0,0 +1,325 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import ca.mcgill.cim.soundmap.protocol.BinaryCodec;
+import okio.BufferedSink;
+import okio.BufferedSource;
+
+/**
+ * Streaming sketch of the distribution of sound levels, from which the percentile levels are
+ * read: L10 is the level exceeded 10% of the time (the 90th percentile), L50 the median and L90
+ * the background level.
+ *
+ * This is a merging t-digest. The levels are summarised by about {@code compression}
+ * centroids (a mean and a weight each), small at both tails and large in the middle. The
+ * percentiles near the tails then stay accurate to a fraction of a percentile in constant
+ * memory. Added levels are buffered and merged into the centroids in sorted passes. Two
+ * digests merge into one as if all their levels had been added to it, which is what lets the
+ * server combine the sketches of many devices.
+ *
+ * Layout, as written by {@link #writeTo}: varint centroid count, then if there are any, zigzag
+ * varint minimum and maximum, and per centroid the zigzag varint difference of its mean from
+ * the previous one and its varint weight. Levels are in hundredths of a dB and weights are
+ * frame counts, so a full digest is a few hundred bytes.
+ *
+ * Not thread safe.
+ */
+public final class LevelDigest {
+
+    private static final String TAG = "LevelDigest";
+
+    public static final int DEFAULT_COMPRESSION = 100;
+
+    private static final int BUFFER_FACTOR = 2;       // levels buffered per unit of compression
+    private static final int MIN_COMPRESSION = 10;
+    private static final int MAX_CENTROIDS = 1 << 16; // when reading
+    private static final double HUNDREDTHS = 100;
+
+    private final int mCompression;
+
+    // Merged centroids, by increasing mean; the scratch arrays take the next merge
+    private double[] mMeans;
+    private double[] mWeights;
+    private int mCentroids = 0;
+    private double[] mScratchMeans;
+    private double[] mScratchWeights;
+
+    // Levels, or centroids of another digest, not merged yet
+    private final double[] mBufferMeans;
+    private final double[] mBufferWeights;
+    private int mBuffered = 0;
+
+    private double mTotalWeight = 0;
+    private double mMin = Double.POSITIVE_INFINITY;
+    private double mMax = Double.NEGATIVE_INFINITY;
+
+    public LevelDigest() {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param compression bounds the number of centroids; the higher, the more accurate
+     */
+    public LevelDigest(int compression) {
+        if (compression < MIN_COMPRESSION) {
+            throw new IllegalArgumentException("Compression too low: " + compression);
+        }
+        mCompression = compression;
+
+        int buffer = BUFFER_FACTOR * compression;
+        mBufferMeans = new double[buffer];
+        mBufferWeights = new double[buffer];
+        mMeans = new double[compression];
+        mWeights = new double[compression];
+        mScratchMeans = new double[compression];
+        mScratchWeights = new double[compression];
+    }
+
+    public void add(double level) {
+        if (!Double.isNaN(level)) {
+            add(level, 1);
+        }
+    }
+
+    /**
+     * Adds every level of another digest to this one.
+     */
+    public void merge(LevelDigest other) {
+        other.compress();
+        for (int i = 0; i < other.mCentroids; i++) {
+            add(other.mMeans[i], other.mWeights[i]);
+        }
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    /**
+     * The number of levels added.
+     */
+    public long getCount() {
+        return Math.round(mTotalWeight);
+    }
+
+    public double getMin() {
+        return mTotalWeight > 0 ? mMin : Double.NaN;
+    }
+
+    public double getMax() {
+        return mTotalWeight > 0 ? mMax : Double.NaN;
+    }
+
+    /**
+     * The level below which the given fraction of the levels lie; NaN if there are none.
+     */
+    public double quantile(double q) {
+        compress();
+        if (mCentroids == 0) {
+            return Double.NaN;
+        }
+        double index = Math.max(0, Math.min(1, q)) * mTotalWeight;
+
+        // Below the middle of the first centroid: between the minimum and its mean
+        double half = mWeights[0] / 2;
+        if (index < half) {
+            return mMin + (mMeans[0] - mMin) * index / half;
+        }
+
+        // Between the middles of two neighbouring centroids
+        double cumulative = half;
+        for (int i = 0; i < mCentroids - 1; i++) {
+            double step = (mWeights[i] + mWeights[i + 1]) / 2;
+            if (index <= cumulative + step) {
+                return mMeans[i] + (mMeans[i + 1] - mMeans[i]) * (index - cumulative) / step;
+            }
+            cumulative += step;
+        }
+
+        // Above the middle of the last one: between its mean and the maximum
+        int last = mCentroids - 1;
+        half = mWeights[last] / 2;
+        return mMeans[last] + (mMax - mMeans[last]) * Math.min(1, (index - cumulative) / half);
+    }
+
+    /**
+     * The level exceeded the given percentage of the time, e.g. 10 for L10.
+     */
+    public double getLevelExceeded(double percent) {
+        return quantile(1 - percent / 100);
+    }
+
+    public void writeTo(BufferedSink sink) throws IOException {
+        compress();
+        BinaryCodec.writeVarint(sink, mCentroids);
+        if (mCentroids == 0) {
+            return;
+        }
+
+        BinaryCodec.writeVarint(sink, BinaryCodec.zigzag(toHundredths(mMin)));
+        BinaryCodec.writeVarint(sink, BinaryCodec.zigzag(toHundredths(mMax)));
+        int previous = 0;
+        for (int i = 0; i < mCentroids; i++) {
+            int mean = toHundredths(mMeans[i]);
+            BinaryCodec.writeVarint(sink, BinaryCodec.zigzag(mean - previous));
+            BinaryCodec.writeVarint(sink, (int) Math.round(mWeights[i]));
+            previous = mean;
+        }
+    }
+
+    /**
+     * Reads a digest written by {@link #writeTo}.
+     */
+    public static LevelDigest readFrom(BufferedSource source, int compression)
+            throws IOException {
+        int count = BinaryCodec.readVarint(source);
+        if (count < 0 || count > MAX_CENTROIDS) {
+            throw new IOException("Malformed digest");
+        }
+
+        LevelDigest digest = new LevelDigest(compression);
+        if (count == 0) {
+            return digest;
+        }
+
+        double min = BinaryCodec.unzigzag(BinaryCodec.readVarint(source)) / HUNDREDTHS;
+        double max = BinaryCodec.unzigzag(BinaryCodec.readVarint(source)) / HUNDREDTHS;
+        int mean = 0;
+        for (int i = 0; i < count; i++) {
+            mean += BinaryCodec.unzigzag(BinaryCodec.readVarint(source));
+            int weight = BinaryCodec.readVarint(source);
+            if (weight <= 0) {
+                throw new IOException("Malformed digest");
+            }
+            digest.add(mean / HUNDREDTHS, weight);
+        }
+        digest.mMin = Math.min(min, digest.mMin);
+        digest.mMax = Math.max(max, digest.mMax);
+        return digest;
+    }
+
+    private void add(double mean, double weight) {
+        if (mBuffered == mBufferMeans.length) {
+            compress();
+        }
+        mBufferMeans[mBuffered] = mean;
+        mBufferWeights[mBuffered] = weight;
+        mBuffered++;
+
+        mTotalWeight += weight;
+        mMin = Math.min(mMin, mean);
+        mMax = Math.max(mMax, mean);
+    }
+
+    // Merges the buffer into the centroids: one pass over both in order of mean, growing each
+    // centroid for as long as it spans at most one unit of the scale function
+    private void compress() {
+        if (mBuffered == 0) {
+            return;
+        }
+        sort(mBufferMeans, mBufferWeights, 0, mBuffered - 1);
+
+        int out = -1;
+        double before = 0;  // weight of the centroids before the current one
+        double limit = 0;   // weight the current one may reach, counting those before it
+        int i = 0;
+        int j = 0;
+        while (i < mCentroids || j < mBuffered) {
+            double mean;
+            double weight;
+            if (j == mBuffered || (i < mCentroids && mMeans[i] <= mBufferMeans[j])) {
+                mean = mMeans[i];
+                weight = mWeights[i++];
+            } else {
+                mean = mBufferMeans[j];
+                weight = mBufferWeights[j++];
+            }
+
+            if (out >= 0 && before + mScratchWeights[out] + weight <= limit) {
+                double merged = mScratchWeights[out] + weight;
+                mScratchMeans[out] += (mean - mScratchMeans[out]) * weight / merged;
+                mScratchWeights[out] = merged;
+            } else {
+                if (out >= 0) {
+                    before += mScratchWeights[out];
+                }
+                out++;
+                if (out == mScratchMeans.length) {
+                    // Rarely: the bound on the count is approximate for small weights
+                    mScratchMeans = Arrays.copyOf(mScratchMeans, 2 * out);
+                    mScratchWeights = Arrays.copyOf(mScratchWeights, 2 * out);
+                }
+                mScratchMeans[out] = mean;
+                mScratchWeights[out] = weight;
+                limit = mTotalWeight * nextLimit(before / mTotalWeight);
+            }
+        }
+
+        double[] means = mMeans;
+        double[] weights = mWeights;
+        mMeans = mScratchMeans;
+        mWeights = mScratchWeights;
+        mScratchMeans = means;
+        mScratchWeights = weights;
+        mCentroids = out + 1;
+        mBuffered = 0;
+    }
+
+    // One unit further than q on the k1 scale, k(q) = compression / 2pi * asin(2q - 1), which
+    // is steep at both tails so that the centroids there stay small
+    private double nextLimit(double q) {
+        double k = mCompression / (2 * Math.PI) * Math.asin(2 * q - 1) + 1;
+        if (k >= mCompression / 4.0) {
+            return 1;
+        }
+        return (Math.sin(2 * Math.PI * k / mCompression) + 1) / 2;
+    }
+
+    // Sorts the keys, and the values with them
+    private static void sort(double[] keys, double[] values, int lo, int hi) {
+        while (hi - lo > 16) {
+            double pivot = keys[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, values, i++, j--);
+                }
+            }
+
+            // The smaller side first, the larger one in this loop
+            if (j - lo < hi - i) {
+                sort(keys, values, lo, j);
+                lo = i;
+            } else {
+                sort(keys, values, i, hi);
+                hi = j;
+            }
+        }
+
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && keys[j - 1] > keys[j]; j--) {
+                swap(keys, values, j - 1, j);
+            }
+        }
+    }
+
+    private static void swap(double[] keys, double[] values, int i, int j) {
+        double key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        double value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    private static int toHundredths(double level) {
+        return (int) Math.round(level * HUNDREDTHS);
+    }
+}
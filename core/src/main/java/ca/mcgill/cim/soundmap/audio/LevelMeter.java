@@ -0,0 +1,167 @@
+package ca.mcgill.cim.soundmap.audio;
+
+/**
+ * Peak and RMS level meter fed by the recorder's read loop.
+ *
+ * The RMS level follows the usual sound level meter time weightings ({@link Ballistics}); the
+ * peak level jumps to each new peak and falls back at {@link #PEAK_DECAY} dB per second. Both
+ * are in dBFS, where a full scale sine reads 0 dB.
+ *
+ * The recorder thread is the only writer. After each read it publishes both levels packed into
+ * one volatile long, so a reader on any thread gets a consistent pair from a single read of
+ * {@link #sample()}, without locking and without allocating.
+ */
+public class LevelMeter {
+
+    private static final String TAG = "LevelMeter";
+
+    public static final float MIN_LEVEL = -120; // dBFS
+
+    public static final double PEAK_DECAY = 20; // dB/s
+
+    private static final double FULL_SCALE = 32768;
+
+    // A full scale sine has a mean square of 1/2
+    private static final double REFERENCE_POWER = 0.5;
+
+    /**
+     * Time constants of the RMS detector for rising and falling levels.
+     */
+    public enum Ballistics {
+        FAST(0.125, 0.125),
+        SLOW(1.0, 1.0),
+        IMPULSE(0.035, 1.5);
+
+        final double mAttack;   // s
+        final double mRelease;  // s
+
+        Ballistics(double attack, double release) {
+            mAttack = attack;
+            mRelease = release;
+        }
+    }
+
+    private final int mSampleRate;
+    private final int mChannels;
+
+    private volatile Ballistics mBallistics;
+    private Ballistics mAppliedBallistics;
+    private double mAttack;
+    private double mRelease;
+    private final double mPeakDecay;
+
+    // Detector state, touched by the writer only
+    private double mMeanSquare = 0;
+    private double mPeak = 0;
+
+    // Peak and RMS levels as float bits, high and low word
+    private volatile long mSlot = pack(MIN_LEVEL, MIN_LEVEL);
+
+    public LevelMeter(int sampleRate, int channels, Ballistics ballistics) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mBallistics = ballistics;
+        mPeakDecay = Math.pow(10, -PEAK_DECAY / 20 / sampleRate);
+    }
+
+    /**
+     * Takes effect from the next read.
+     */
+    public void setBallistics(Ballistics ballistics) {
+        mBallistics = ballistics;
+    }
+
+    public Ballistics getBallistics() {
+        return mBallistics;
+    }
+
+    /**
+     * Meters interleaved little endian 16 bit samples and publishes the new levels.
+     */
+    public void process(byte[] pcm, int length) {
+        Ballistics ballistics = mBallistics;
+        if (ballistics != mAppliedBallistics) {
+            mAttack = coefficient(ballistics.mAttack);
+            mRelease = coefficient(ballistics.mRelease);
+            mAppliedBallistics = ballistics;
+        }
+
+        double meanSquare = mMeanSquare;
+        double peak = mPeak;
+        int bytesPerFrame = 2 * mChannels;
+
+        for (int i = 0; i + bytesPerFrame <= length; i += bytesPerFrame) {
+            double power = 0;
+            double framePeak = 0;
+            for (int c = 0; c < mChannels; c++) {
+                int at = i + 2 * c;
+                double x = (short) ((pcm[at] & 0xFF) | (pcm[at + 1] << 8)) / FULL_SCALE;
+                power += x * x;
+                framePeak = Math.max(framePeak, Math.abs(x));
+            }
+            power /= mChannels;
+
+            meanSquare += (power > meanSquare ? mAttack : mRelease) * (power - meanSquare);
+            peak = Math.max(framePeak, peak * mPeakDecay);
+        }
+
+        mMeanSquare = meanSquare;
+        mPeak = peak;
+        mSlot = pack(toLevel(peak * peak * REFERENCE_POWER), toLevel(meanSquare));
+    }
+
+    /**
+     * Must be called from the writer thread, or while nothing is writing.
+     */
+    public void reset() {
+        mMeanSquare = 0;
+        mPeak = 0;
+        mSlot = pack(MIN_LEVEL, MIN_LEVEL);
+    }
+
+    /**
+     * The latest levels; read them with {@link #peakOf(long)} and {@link #rmsOf(long)}.
+     */
+    public long sample() {
+        return mSlot;
+    }
+
+    public static float peakOf(long sample) {
+        return Float.intBitsToFloat((int) (sample >>> 32));
+    }
+
+    public static float rmsOf(long sample) {
+        return Float.intBitsToFloat((int) sample);
+    }
+
+    /**
+     * Height of a level bar for a level, rising linearly from nothing at the lower bound to
+     * full at the upper bound.
+     */
+    public static int toHeight(float level, float lower, float upper, int maxHeight) {
+        if (level > upper) {
+            return maxHeight;
+        } else if (level < lower) {
+            return 0;
+        }
+        double ratio = (level - lower) / (upper - lower);
+        return (int) (ratio * maxHeight);
+    }
+
+    private static long pack(float peak, float rms) {
+        return ((long) Float.floatToIntBits(peak) << 32)
+                | (Float.floatToIntBits(rms) & 0xFFFFFFFFL);
+    }
+
+    // One pole smoothing coefficient for a time constant
+    private double coefficient(double seconds) {
+        return 1 - Math.exp(-1 / (seconds * mSampleRate));
+    }
+
+    private static float toLevel(double meanSquare) {
+        if (!(meanSquare > 0)) {
+            return MIN_LEVEL;
+        }
+        return (float) Math.max(MIN_LEVEL, 10 * Math.log10(meanSquare / REFERENCE_POWER));
+    }
+}
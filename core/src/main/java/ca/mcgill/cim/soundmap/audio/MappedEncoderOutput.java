@@ -0,0 +1,113 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ca.mcgill.cim.soundmap.network.StreamingUploadBody;
+
+/**
+ * An {@link EncoderOutput} that writes through a memory mapping of the file.
+ *
+ * The file is mapped in windows of {@link #DEFAULT_WINDOW_SIZE} bytes; mapping the next window
+ * grows the file by that much, so space is allocated ahead of the writes and each write is a
+ * plain copy into the page cache, without a system call. Patches to the header land in the
+ * mapping too. Closing cuts the file back to what was written.
+ *
+ * Suits large sequential output such as PCM; small encoded frames gain little over the
+ * buffered channel of the base class.
+ */
+public class MappedEncoderOutput extends EncoderOutput {
+
+    public static final int DEFAULT_WINDOW_SIZE = 8 * 1024 * 1024;
+
+    private final int mWindowSize;
+
+    private RandomAccessFile mAccess;
+    private FileChannel mChannel;
+    private MappedByteBuffer mWindow;
+    private long mWindowStart = 0;
+    private long mPosition = 0;
+
+    public MappedEncoderOutput(File file, StreamingUploadBody stream) {
+        this(file, stream, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedEncoderOutput(File file, StreamingUploadBody stream, int windowSize) {
+        super(file, stream);
+        mWindowSize = windowSize;
+    }
+
+    @Override
+    public void open() throws IOException {
+        mAccess = new RandomAccessFile(getFile(), "rw");
+        mAccess.setLength(0);
+        mChannel = mAccess.getChannel();
+        mPosition = 0;
+        map(0);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        for (int at = offset; at < end; ) {
+            if (!mWindow.hasRemaining()) {
+                map(mWindowStart + mWindowSize);
+            }
+            int count = Math.min(mWindow.remaining(), end - at);
+            mWindow.put(buffer, at, count);
+            at += count;
+        }
+        mPosition += length;
+        mirror(buffer, offset, length);
+    }
+
+    @Override
+    public long getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public void patch(long position, byte[] bytes) throws IOException {
+        if (mChannel == null) {
+            super.patch(position, bytes);
+            return;
+        }
+
+        if (position >= mWindowStart && position + bytes.length <= mWindowStart + mWindowSize) {
+            for (int i = 0; i < bytes.length; i++) {
+                mWindow.put((int) (position - mWindowStart) + i, bytes[i]);
+            }
+        } else {
+            // Usually the header, long since behind the current window
+            MappedByteBuffer region = mChannel.map(FileChannel.MapMode.READ_WRITE, position,
+                    bytes.length);
+            region.put(bytes);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mChannel == null) {
+            return;
+        }
+
+        // The mapping itself is released by the collector; the written data is already in the
+        // page cache
+        mWindow = null;
+        try {
+            mChannel.truncate(mPosition);
+        } finally {
+            mAccess.close();
+            mAccess = null;
+            mChannel = null;
+        }
+    }
+
+    private void map(long start) throws IOException {
+        mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, start, mWindowSize);
+        mWindowStart = start;
+    }
+}
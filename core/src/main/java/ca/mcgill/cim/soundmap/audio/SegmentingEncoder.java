@@ -0,0 +1,253 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.io.File;
+import java.io.IOException;
+
+import ca.mcgill.cim.soundmap.map.NoiseCells;
+
+/**
+ * Splits an unbounded capture into consecutive segments of a fixed number of frames, each one
+ * a complete file of the configured codec.
+ *
+ * The split happens inside the chunk that crosses the boundary, at the exact frame, so the
+ * segments put end to end hold every captured frame. Each segment is written under a temporary
+ * name and renamed once its header is final, so a file under its final name is always
+ * complete; only then is it handed to the {@link SegmentSink}. A segment is tagged with its
+ * start time, derived from the frame count rather than read from the clock, and with the most
+ * recent location fix at its start.
+ *
+ * Runs on the {@link EncoderPipeline} thread like any other encoder. Only one segment is open
+ * at a time, so memory use does not depend on the length of the capture. The encoder of each
+ * segment comes from an {@link EncoderFactory}, so that the codecs of the platform can be used.
+ */
+public class SegmentingEncoder implements AudioEncoder {
+
+    private static final String TAG = "SegmentingEncoder";
+
+    private static final String PARTIAL_EXT = ".part";
+
+    /**
+     * Creates the encoder of a segment, writing to the given file. Called on the encoder thread.
+     */
+    public interface EncoderFactory {
+        AudioEncoder create(File file) throws IOException;
+    }
+
+    /**
+     * Names the segments and takes them once they are complete. Called on the encoder thread.
+     */
+    public interface SegmentSink {
+        /**
+         * The final file for a segment; it is written under a temporary name next to it.
+         */
+        File fileFor(int index, long startTime);
+
+        void onSegment(Segment segment);
+    }
+
+    /**
+     * A location at one point in time.
+     */
+    public static final class Fix {
+        public final double lat;
+        public final double lng;
+        public final long time;     // ms since the epoch
+
+        public Fix(double lat, double lng, long time) {
+            this.lat = lat;
+            this.lng = lng;
+            this.time = time;
+        }
+    }
+
+    /**
+     * A complete segment file.
+     */
+    public static final class Segment {
+        public final File file;
+        public final int index;
+        public final long startTime;    // ms since the epoch
+        public final long frames;
+        public final Fix fix;           // null if there was no fix yet
+
+        Segment(File file, int index, long startTime, long frames, Fix fix) {
+            this.file = file;
+            this.index = index;
+            this.startTime = startTime;
+            this.frames = frames;
+            this.fix = fix;
+        }
+    }
+
+    private final CaptureConfig mConfig;
+    private final long mSegmentFrames;
+    private final EncoderFactory mEncoders;
+    private final SegmentSink mSink;
+    private final int mBytesPerFrame;
+    private final boolean mHasFeatures;
+
+    private volatile Fix mFix;
+    private double mCalibrationOffset = 0;  // dB
+    private NoiseCells mCells;
+
+    private long mStartTime;
+    private long mFramesBefore = 0;     // in the closed segments
+
+    // The open segment
+    private AudioEncoder mEncoder;
+    private FeatureExtractor mExtractor;
+    private File mFile;
+    private File mPartialFile;
+    private int mIndex = -1;
+    private long mSegmentStart;
+    private Fix mSegmentFix;
+    private long mFrames;
+
+    // The part of a chunk after a boundary
+    private byte[] mTail = new byte[0];
+
+    /**
+     * @param hasFeatures whether to save the acoustic features of every segment next to it
+     */
+    public SegmentingEncoder(CaptureConfig config, long segmentFrames, EncoderFactory encoders,
+                             SegmentSink sink, boolean hasFeatures) {
+        if (segmentFrames <= 0) {
+            throw new IllegalArgumentException("Invalid segment length: " + segmentFrames);
+        }
+        mConfig = config;
+        mSegmentFrames = segmentFrames;
+        mEncoders = encoders;
+        mSink = sink;
+        mBytesPerFrame = 2 * config.getChannels();
+        mHasFeatures = hasFeatures;
+    }
+
+    /**
+     * The location the next segment is tagged with. May be called from any thread.
+     */
+    public void setFix(Fix fix) {
+        mFix = fix;
+    }
+
+    /**
+     * Offset added to the levels in the features of every segment, see
+     * {@link FeatureExtractor#setCalibrationOffset(double)}. Must be called before starting.
+     */
+    public void setCalibrationOffset(double offset) {
+        mCalibrationOffset = offset;
+    }
+
+    /**
+     * Adds the levels of every frame to the noise cells as soon as it is analysed, at the
+     * latest fix; frames before the first fix are left out. Needs the features of the segments.
+     * Must be called before starting.
+     */
+    public void aggregateInto(NoiseCells cells) {
+        mCells = cells;
+    }
+
+    public int getSegmentCount() {
+        return mIndex + 1;
+    }
+
+    @Override
+    public void start() throws IOException {
+        mStartTime = System.currentTimeMillis();
+        open();
+    }
+
+    @Override
+    public void encode(byte[] pcm, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            if (mFrames == mSegmentFrames) {
+                close();
+                open();
+            }
+
+            int count = (int) Math.min(length - offset,
+                    (mSegmentFrames - mFrames) * mBytesPerFrame);
+            if (offset == 0) {
+                write(pcm, count);
+            } else {
+                // Encoders and the extractor read from the start of an array
+                if (mTail.length < count) {
+                    mTail = new byte[count];
+                }
+                System.arraycopy(pcm, offset, mTail, 0, count);
+                write(mTail, count);
+            }
+            offset += count;
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (mEncoder != null) {
+            close();
+        }
+    }
+
+    @Override
+    public void abort() {
+        if (mEncoder != null) {
+            mEncoder.abort();
+            mEncoder = null;
+            mPartialFile.delete();
+        }
+    }
+
+    private void write(byte[] pcm, int length) throws IOException {
+        mEncoder.encode(pcm, length);
+        if (mExtractor != null) {
+            int completed = mExtractor.process(pcm, length);
+            Fix fix = mFix;
+            if (mCells != null && fix != null && completed > 0) {
+                AcousticFeatures features = mExtractor.getFeatures();
+                mCells.addFrames(fix.lat, fix.lng, features,
+                        features.getFrameCount() - completed);
+            }
+        }
+        mFrames += length / mBytesPerFrame;
+    }
+
+    private void open() throws IOException {
+        mIndex++;
+        mSegmentStart = mStartTime + mFramesBefore * 1000 / mConfig.getSampleRate();
+        mSegmentFix = mFix;
+        mFrames = 0;
+
+        mFile = mSink.fileFor(mIndex, mSegmentStart);
+        mPartialFile = new File(mFile.getPath() + PARTIAL_EXT);
+        mEncoder = mEncoders.create(mPartialFile);
+        if (mHasFeatures) {
+            mExtractor = new FeatureExtractor(mConfig.getSampleRate(), mConfig.getChannels(),
+                    FeatureExtractor.DEFAULT_FRAME_SIZE);
+            mExtractor.setCalibrationOffset(mCalibrationOffset);
+        }
+        mEncoder.start();
+    }
+
+    private void close() throws IOException {
+        AudioEncoder encoder = mEncoder;
+        mEncoder = null;
+        encoder.finish();
+
+        // The features first: the sample is only picked up under its final name
+        if (mExtractor != null) {
+            try {
+                mExtractor.finish().writeTo(new File(AcousticFeatures.fileFor(mFile.getPath())));
+            } catch (IOException e) {
+                //Log.e(TAG, "close: Error - " + e.toString());
+            }
+            mExtractor = null;
+        }
+
+        if (!mPartialFile.renameTo(mFile)) {
+            throw new IOException("Could not finalise segment " + mFile);
+        }
+
+        mFramesBefore += mFrames;
+        mSink.onSegment(new Segment(mFile, mIndex, mSegmentStart, mFrames, mSegmentFix));
+    }
+}
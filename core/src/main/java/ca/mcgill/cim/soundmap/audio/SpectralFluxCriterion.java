@@ -0,0 +1,105 @@
+package ca.mcgill.cim.soundmap.audio;
+
+/**
+ * A frame is active if its spectral flux, the rise in log magnitude from the previous frame
+ * summed over the bins, is an outlier.
+ *
+ * Flux catches onsets that barely change the level (a voice over traffic, a door, a bird
+ * against wind), which an energy threshold misses. The threshold adapts: it is the running
+ * mean of the flux, raised by {@link #MARGIN} of itself and by {@link #SENSITIVITY} times the
+ * running mean deviation, both averaged over {@link #TIME_CONSTANT} seconds. The flux of a
+ * steady noise is nearly constant, so the margin keeps its rare outliers below the threshold;
+ * onsets are short, so they pull the averages up very little.
+ */
+public class SpectralFluxCriterion implements EventDetector.Criterion {
+
+    private static final String TAG = "SpectralFluxCriterion";
+
+    public static final double SENSITIVITY = 4;     // mean deviations
+    public static final double MARGIN = 0.5;        // of the mean
+    public static final double TIME_CONSTANT = 2;   // s
+
+    // Log compression, log(1 + GAIN * magnitude): the bins of a quiet background still count
+    private static final double GAIN = 100;
+
+    // Below this the flux is noise, whatever its statistics
+    private static final double MIN_FLUX = 0.02;
+
+    private static final double WARM_UP = 0.5;      // s
+
+    private final double mAlpha;
+    private final double mSensitivity;
+    private final int mWarmUpFrames;
+
+    // The first frame has no predecessor, so the statistics start with the second
+    private double[] mPrevious;
+    private double mMean = 0;
+    private double mDeviation = 0;
+    private double mFlux = 0;
+    private int mFrames = 0;
+
+    public SpectralFluxCriterion(int sampleRate) {
+        this(sampleRate, SENSITIVITY);
+    }
+
+    public SpectralFluxCriterion(int sampleRate, double sensitivity) {
+        double frameDuration = (double) EventDetector.FRAME_SIZE / sampleRate;
+        mAlpha = Math.min(1, frameDuration / TIME_CONSTANT);
+        mSensitivity = sensitivity;
+        mWarmUpFrames = (int) Math.ceil(WARM_UP / frameDuration);
+    }
+
+    @Override
+    public boolean needsSpectrum() {
+        return true;
+    }
+
+    @Override
+    public boolean isActive(double[] samples, double[] magnitudes) {
+        if (mPrevious == null) {
+            mPrevious = new double[magnitudes.length];
+        }
+
+        // Magnitudes relative to a full scale sine, whose bin peaks at a quarter of the size
+        double scale = 4.0 / samples.length;
+        double flux = 0;
+        for (int k = 0; k < magnitudes.length; k++) {
+            double compressed = Math.log1p(GAIN * magnitudes[k] * scale);
+            if (compressed > mPrevious[k]) {
+                flux += compressed - mPrevious[k];
+            }
+            mPrevious[k] = compressed;
+        }
+        flux /= magnitudes.length;
+        mFlux = flux;
+
+        boolean isActive = mFrames > mWarmUpFrames
+                && flux > MIN_FLUX
+                && flux > getThreshold();
+
+        // Plain averages until there are enough frames for the running ones
+        if (mFrames > 0) {
+            double alpha = Math.max(mAlpha, 1.0 / mFrames);
+            if (mFrames > 1) {
+                mDeviation += alpha * (Math.abs(flux - mMean) - mDeviation);
+            }
+            mMean += alpha * (flux - mMean);
+        }
+        mFrames++;
+        return isActive;
+    }
+
+    /**
+     * The flux of the last frame.
+     */
+    public double getFlux() {
+        return mFlux;
+    }
+
+    /**
+     * The flux above which a frame is active.
+     */
+    public double getThreshold() {
+        return Math.max(MIN_FLUX, (1 + MARGIN) * mMean + mSensitivity * mDeviation);
+    }
+}
@@ -0,0 +1,88 @@
+package ca.mcgill.cim.soundmap.audio;
+
+/**
+ * A frame is active if it looks like speech: most of its energy lies in the speech band, it
+ * stands {@link #MARGIN} dB above the background there, and its spectrum is peaky (the
+ * harmonics of a voice) rather than flat like noise.
+ *
+ * The background tracks the speech band level the way {@link EnergyCriterion} tracks the whole
+ * level, except that it only rises on frames that do not look like speech, so a long
+ * conversation never becomes the background. It errs on the side of speech: anything tonal in
+ * the band, a horn or a whistle, is active too.
+ */
+public class SpeechCriterion implements EventDetector.Criterion {
+
+    private static final String TAG = "SpeechCriterion";
+
+    public static final double BAND_LOW = 250;      // Hz
+    public static final double BAND_HIGH = 4000;    // Hz
+
+    public static final double MARGIN = 6;          // dB
+    public static final double MIN_RATIO = 0.5;     // of the energy in the band
+    public static final double MAX_FLATNESS = 0.35;
+    public static final double FLOOR_RISE = 1;      // dB/s
+
+    private final int mSampleRate;
+    private final double mRisePerFrame;
+
+    private int mLow;
+    private int mHigh;
+
+    private double mFloor = Double.NaN;
+
+    /**
+     * @param hop samples between the starts of consecutive frames
+     */
+    public SpeechCriterion(int sampleRate, int hop) {
+        mSampleRate = sampleRate;
+        mRisePerFrame = FLOOR_RISE * hop / sampleRate;
+    }
+
+    @Override
+    public boolean needsSpectrum() {
+        return true;
+    }
+
+    @Override
+    public boolean isActive(double[] samples, double[] magnitudes) {
+        if (mHigh == 0) {
+            int size = samples.length;
+            mLow = Math.max(1, (int) Math.round(BAND_LOW * size / mSampleRate));
+            mHigh = Math.min(magnitudes.length - 1,
+                    (int) Math.round(BAND_HIGH * size / mSampleRate));
+        }
+
+        double total = 0;
+        double band = 0;
+        double logSum = 0;
+        for (int k = 1; k < magnitudes.length; k++) {
+            double power = magnitudes[k] * magnitudes[k];
+            total += power;
+            if (k >= mLow && k <= mHigh) {
+                band += power;
+                logSum += Math.log(power + 1e-20);
+            }
+        }
+        if (band <= 0) {
+            return false;
+        }
+
+        int bins = mHigh - mLow + 1;
+        double flatness = Math.exp(logSum / bins) / (band / bins);
+        boolean isSpeechLike = band / total > MIN_RATIO && flatness < MAX_FLATNESS;
+
+        // Until there is a background to compare with, anything that looks like speech is
+        double level = 10 * Math.log10(band);
+        boolean isActive = isSpeechLike && (Double.isNaN(mFloor) || level > mFloor + MARGIN);
+        if (Double.isNaN(mFloor)) {
+            mFloor = level;
+        }
+
+        if (level < mFloor) {
+            mFloor = level;
+        } else if (!isSpeechLike) {
+            mFloor = Math.min(level, mFloor + mRisePerFrame);
+        }
+        return isActive;
+    }
+}
@@ -0,0 +1,375 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Removes speech from a capture before it is stored, so the voices of passers-by never leave
+ * the device.
+ *
+ * The capture is taken apart into short-time spectra (frames of about 23 ms at 44.1 kHz, half
+ * overlapping, square root Hann windows on both sides, so that an untouched capture comes out
+ * exactly as it went in) and put back together by weighted overlap-add. A
+ * {@link SpeechCriterion} looks at every frame. The frames from {@link #HOLD} seconds after to
+ * {@link #LOOKAHEAD} seconds before a speech frame are scrubbed according to the {@link Mode},
+ * which covers the soft onsets and endings of words that the criterion misses.
+ *
+ * The output is aligned with the input, frame for frame, and has the same length. The
+ * scrubbed stretches are listed by {@link #getSpans()}. Everything is allocated up front and
+ * every frame costs the same two FFTs per channel, so it keeps up with the capture on the
+ * encoder thread, in a single pass over it.
+ */
+public class SpeechScrubber implements AudioEncoder {
+
+    private static final String TAG = "SpeechScrubber";
+
+    public static final double HOLD = 0.3;          // s
+    public static final double LOOKAHEAD = 0.1;     // s
+
+    // Averaging time of the spectrum the mask follows; much longer than a syllable
+    public static final double MASK_TIME_CONSTANT = 1;  // s
+
+    private static final double FULL_SCALE = 32768;
+
+    /**
+     * What happens to a speech frame.
+     */
+    public enum Mode {
+        /**
+         * The speech band is replaced by noise with the long-term spectrum of the capture
+         * there, so the levels and the rest of the spectrum are kept.
+         */
+        MASK,
+        /**
+         * The frame is silenced; the features of the capture are all that is left of it.
+         */
+        DROP
+    }
+
+    /**
+     * A scrubbed stretch of the capture.
+     */
+    public static final class Span {
+        public final long start;    // sample frames from the start of the capture
+        long mFrames;
+
+        Span(long start, long frames) {
+            this.start = start;
+            mFrames = frames;
+        }
+
+        public long getFrames() {
+            return mFrames;
+        }
+    }
+
+    private final AudioEncoder mEncoder;
+    private final Mode mMode;
+    private final EventDetector.Criterion mCriterion;
+    private final int mChannels;
+    private final int mSize;
+    private final int mHop;
+    private final int mLookahead;   // frames
+    private final int mHoldFrames;
+    private final int mLow;         // speech band, in bins
+    private final int mHigh;
+    private final double mMaskAlpha;
+
+    private final Fft mFft;
+    private final double[] mWindow;
+    private final double[][] mInput;        // per channel, the last frame of samples
+    private final double[][][] mRe;         // per queued frame and channel, the spectrum
+    private final double[][][] mIm;
+    private final double[][] mMask;         // per channel, the average magnitude per bin
+    private final double[][] mOutput;       // per channel, the overlap-add accumulator
+    private final double[] mMono;
+    private final double[] mMagnitudes;
+    private final Random mPhase = new Random();
+    private int mFill = 0;                  // samples of the next hop
+
+    // A sample frame (all channels) split across two reads
+    private final byte[] mCarry;
+    private int mCarried = 0;
+
+    // Output, passed on once per read
+    private final byte[] mOut;
+    private int mOutFill = 0;
+
+    private long mFrames = 0;               // analysed
+    private long mLastActive = Long.MIN_VALUE / 2;
+    private long mInputFrames = 0;          // sample frames in
+    private long mOutPosition;              // first sample frame of the next hop out
+    private long mEnd = Long.MAX_VALUE;     // sample frames to put out, once known
+    private final List<Span> mSpans = new ArrayList<>();
+
+    public SpeechScrubber(CaptureConfig config, AudioEncoder encoder, Mode mode) {
+        this(config, encoder, mode, null);
+    }
+
+    /**
+     * @param criterion the speech detector, or null for a {@link SpeechCriterion}
+     */
+    public SpeechScrubber(CaptureConfig config, AudioEncoder encoder, Mode mode,
+                          EventDetector.Criterion criterion) {
+        int sampleRate = config.getSampleRate();
+        mEncoder = encoder;
+        mMode = mode;
+        mChannels = config.getChannels();
+
+        // 16 to 32 ms, a power of two
+        mSize = Integer.highestOneBit((int) (sampleRate * 0.032));
+        mHop = mSize / 2;
+        mLookahead = (int) Math.ceil(LOOKAHEAD * sampleRate / mHop);
+        mHoldFrames = (int) Math.ceil(HOLD * sampleRate / mHop);
+        mLow = Math.max(1, (int) Math.round(SpeechCriterion.BAND_LOW * mSize / sampleRate));
+        mHigh = Math.min(mSize / 2, (int) Math.round(SpeechCriterion.BAND_HIGH * mSize
+                / sampleRate));
+        mMaskAlpha = 1 - Math.exp(-(double) mHop / sampleRate / MASK_TIME_CONSTANT);
+        mCriterion = criterion != null ? criterion : new SpeechCriterion(sampleRate, mHop);
+
+        mFft = new Fft(mSize);
+        mWindow = new double[mSize];
+        for (int i = 0; i < mSize; i++) {
+            // Periodic, so that the squares of overlapping windows add up to one
+            mWindow[i] = Math.sqrt(0.5 - 0.5 * Math.cos(2 * Math.PI * i / mSize));
+        }
+
+        mInput = new double[mChannels][mSize];
+        mRe = new double[mLookahead + 1][mChannels][mSize];
+        mIm = new double[mLookahead + 1][mChannels][mSize];
+        mMask = new double[mChannels][mSize / 2 + 1];
+        mOutput = new double[mChannels][mSize];
+        mMono = new double[mSize];
+        mMagnitudes = new double[mSize / 2 + 1];
+        mCarry = new byte[2 * mChannels];
+        mOut = new byte[8 * mHop * mCarry.length];
+
+        // The first hop out is the half frame before the capture
+        mOutPosition = -mHop;
+    }
+
+    /**
+     * Delay between a sample going in and coming out, in sample frames.
+     */
+    public int getLatency() {
+        return mSize - mHop + mLookahead * mHop;
+    }
+
+    /**
+     * The scrubbed stretches of the capture, in order. Complete once finished.
+     */
+    public List<Span> getSpans() {
+        return mSpans;
+    }
+
+    @Override
+    public void start() throws IOException {
+        mEncoder.start();
+    }
+
+    @Override
+    public void encode(byte[] pcm, int length) throws IOException {
+        int bytesPerFrame = mCarry.length;
+        int i = 0;
+
+        if (mCarried > 0) {
+            while (mCarried < bytesPerFrame && i < length) {
+                mCarry[mCarried++] = pcm[i++];
+            }
+            if (mCarried < bytesPerFrame) {
+                return;
+            }
+            push(mCarry, 0);
+            mInputFrames++;
+            mCarried = 0;
+        }
+
+        for (; i + bytesPerFrame <= length; i += bytesPerFrame) {
+            push(pcm, i);
+            mInputFrames++;
+        }
+
+        while (i < length) {
+            mCarry[mCarried++] = pcm[i++];
+        }
+        flush();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        // Silence pushes the last frames through; what comes out after the end is cut off
+        mEnd = mInputFrames;
+        byte[] silence = new byte[mCarry.length];
+        while (mOutPosition < mEnd) {
+            push(silence, 0);
+        }
+        flush();
+
+        Span last = mSpans.isEmpty() ? null : mSpans.get(mSpans.size() - 1);
+        if (last != null && last.start + last.mFrames > mEnd) {
+            last.mFrames = mEnd - last.start;
+            if (last.mFrames <= 0) {
+                mSpans.remove(last);
+            }
+        }
+        mEncoder.finish();
+    }
+
+    @Override
+    public void abort() {
+        mEncoder.abort();
+    }
+
+    private void push(byte[] pcm, int offset) throws IOException {
+        int at = mSize - mHop + mFill;
+        for (int c = 0; c < mChannels; c++) {
+            int i = offset + 2 * c;
+            mInput[c][at] = (short) ((pcm[i] & 0xFF) | (pcm[i + 1] << 8)) / FULL_SCALE;
+        }
+
+        if (++mFill == mHop) {
+            analyse();
+            mFill = 0;
+        }
+    }
+
+    private void analyse() throws IOException {
+        int slot = (int) (mFrames % mRe.length);
+        int bins = mSize / 2 + 1;
+        for (int k = 0; k < bins; k++) {
+            mMagnitudes[k] = 0;
+        }
+        for (int i = 0; i < mSize; i++) {
+            mMono[i] = 0;
+        }
+
+        for (int c = 0; c < mChannels; c++) {
+            double[] in = mInput[c];
+            double[] re = mRe[slot][c];
+            double[] im = mIm[slot][c];
+            for (int i = 0; i < mSize; i++) {
+                re[i] = in[i] * mWindow[i];
+                im[i] = 0;
+                mMono[i] += in[i] / mChannels;
+            }
+            mFft.transform(re, im);
+
+            double[] mask = mMask[c];
+            for (int k = 0; k < bins; k++) {
+                double power = re[k] * re[k] + im[k] * im[k];
+                mMagnitudes[k] += power / mChannels;
+                mask[k] += mMaskAlpha * (Math.sqrt(power) - mask[k]);
+            }
+
+            System.arraycopy(in, mHop, in, 0, mSize - mHop);
+        }
+        for (int k = 0; k < bins; k++) {
+            mMagnitudes[k] = Math.sqrt(mMagnitudes[k]);
+        }
+
+        if (mCriterion.isActive(mMono, mMagnitudes)) {
+            mLastActive = mFrames;
+        }
+        mFrames++;
+
+        // The frame whose lookahead is now complete
+        if (mFrames > mLookahead) {
+            synthesise(mFrames - 1 - mLookahead);
+        }
+    }
+
+    private void synthesise(long frame) throws IOException {
+        int slot = (int) (frame % mRe.length);
+        boolean isScrubbed = mLastActive >= frame - mHoldFrames;
+
+        for (int c = 0; c < mChannels; c++) {
+            double[] re = mRe[slot][c];
+            double[] im = mIm[slot][c];
+            if (isScrubbed) {
+                scrub(re, im, mMask[c]);
+            }
+
+            // Inverse transform through the forward one: conjugate in and out
+            for (int i = 0; i < mSize; i++) {
+                im[i] = -im[i];
+            }
+            mFft.transform(re, im);
+
+            double[] out = mOutput[c];
+            for (int i = 0; i < mSize; i++) {
+                out[i] += re[i] / mSize * mWindow[i];
+            }
+        }
+
+        if (isScrubbed) {
+            addToSpan(Math.max(0, mOutPosition), mOutPosition + 2 * mHop);
+        }
+        emit();
+    }
+
+    private void scrub(double[] re, double[] im, double[] mask) {
+        if (mMode == Mode.DROP) {
+            for (int i = 0; i < mSize; i++) {
+                re[i] = 0;
+                im[i] = 0;
+            }
+            return;
+        }
+
+        for (int k = mLow; k <= mHigh; k++) {
+            double phase = 2 * Math.PI * mPhase.nextDouble();
+            re[k] = mask[k] * Math.cos(phase);
+            im[k] = mask[k] * Math.sin(phase);
+            // Mirrored, so the signal stays real
+            if (k != mSize / 2) {
+                re[mSize - k] = re[k];
+                im[mSize - k] = -im[k];
+            }
+        }
+    }
+
+    // The first hop of the accumulator is complete; pass it on and move along
+    private void emit() throws IOException {
+        long from = Math.max(0, mOutPosition);
+        long to = Math.min(mOutPosition + mHop, mEnd);
+        for (long position = from; position < to; position++) {
+            if (mOutFill == mOut.length) {
+                flush();
+            }
+            int i = (int) (position - mOutPosition);
+            for (int c = 0; c < mChannels; c++) {
+                long value = Math.round(mOutput[c][i] * FULL_SCALE);
+                value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+                mOut[mOutFill++] = (byte) value;
+                mOut[mOutFill++] = (byte) (value >> 8);
+            }
+        }
+
+        for (int c = 0; c < mChannels; c++) {
+            double[] out = mOutput[c];
+            System.arraycopy(out, mHop, out, 0, mSize - mHop);
+            for (int i = mSize - mHop; i < mSize; i++) {
+                out[i] = 0;
+            }
+        }
+        mOutPosition += mHop;
+    }
+
+    private void flush() throws IOException {
+        if (mOutFill > 0) {
+            mEncoder.encode(mOut, mOutFill);
+            mOutFill = 0;
+        }
+    }
+
+    private void addToSpan(long from, long to) {
+        Span last = mSpans.isEmpty() ? null : mSpans.get(mSpans.size() - 1);
+        if (last != null && last.start + last.mFrames >= from) {
+            last.mFrames = Math.max(last.mFrames, to - last.start);
+        } else {
+            mSpans.add(new Span(from, to - from));
+        }
+    }
+}
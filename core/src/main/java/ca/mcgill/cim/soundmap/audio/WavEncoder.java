@@ -0,0 +1,137 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Raw PCM in a RIFF/WAVE container, at the capture bit depth.
+ *
+ * The chunk sizes are unknown while recording; they are written as 0xFFFFFFFF (which streaming
+ * readers take as "until the end") and patched in place when the recording is finished.
+ *
+ * A JUNK chunk after the RIFF header reserves room for an RF64 ds64 chunk (EBU Tech 3306). If
+ * the finished file does not fit the 32 bit RIFF sizes, the header is rewritten as RF64 with the
+ * 64 bit sizes in that chunk; otherwise readers skip it as padding.
+ */
+public class WavEncoder implements AudioEncoder {
+
+    static final int HEADER_SIZE = 80;
+
+    // Chunk offsets within the header
+    private static final int RIFF_SIZE_OFFSET = 4;
+    private static final int JUNK_OFFSET = 12;
+    private static final int DATA_SIZE_OFFSET = 76;
+    private static final int DS64_SIZE = 28;
+
+    static final long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+
+    private final CaptureConfig mConfig;
+    private final EncoderOutput mOutput;
+    private final long mMaxRiffSize;
+
+    // Narrowed samples for 8 bit output
+    private byte[] mNarrow = new byte[0];
+
+    public WavEncoder(CaptureConfig config, EncoderOutput output) {
+        this(config, output, MAX_RIFF_SIZE);
+    }
+
+    // A lower limit lets the RF64 path be tested without writing 4 GB
+    WavEncoder(CaptureConfig config, EncoderOutput output, long maxRiffSize) {
+        mConfig = config;
+        mOutput = output;
+        mMaxRiffSize = maxRiffSize;
+    }
+
+    @Override
+    public void start() throws IOException {
+        mOutput.open();
+        byte[] header = buildHeader(mConfig);
+        mOutput.write(header, 0, header.length);
+    }
+
+    @Override
+    public void encode(byte[] pcm, int length) throws IOException {
+        if (mConfig.getBitDepth() == 16) {
+            mOutput.write(pcm, 0, length);
+            return;
+        }
+
+        // 8 bit WAV is unsigned
+        int samples = length / 2;
+        if (mNarrow.length < samples) {
+            mNarrow = new byte[samples];
+        }
+        for (int i = 0; i < samples; i++) {
+            mNarrow[i] = (byte) ((pcm[2 * i + 1]) + 128);
+        }
+        mOutput.write(mNarrow, 0, samples);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        long dataSize = mOutput.getPosition() - HEADER_SIZE;
+
+        // Chunks are padded to an even size; the pad is not part of the data size
+        if ((dataSize & 1) != 0) {
+            mOutput.write(new byte[1], 0, 1);
+        }
+        long riffSize = mOutput.getPosition() - 8;
+
+        if (riffSize <= mMaxRiffSize) {
+            mOutput.patch(RIFF_SIZE_OFFSET, littleEndian((int) riffSize));
+            mOutput.patch(DATA_SIZE_OFFSET, littleEndian((int) dataSize));
+        } else {
+            int blockAlign = mConfig.getChannels() * mConfig.getBitDepth() / 8;
+            byte[] ds64 = ByteBuffer.allocate(8 + DS64_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .put(new byte[] {'d', 's', '6', '4'})
+                    .putInt(DS64_SIZE)
+                    .putLong(riffSize)
+                    .putLong(dataSize)
+                    .putLong(dataSize / blockAlign)                 // Sample frames
+                    .putInt(0)                                      // No table
+                    .array();
+
+            mOutput.patch(0, new byte[] {'R', 'F', '6', '4'});
+            mOutput.patch(JUNK_OFFSET, ds64);
+            // The 32 bit sizes stay at 0xFFFFFFFF: "see ds64"
+        }
+        mOutput.close();
+    }
+
+    @Override
+    public void abort() {
+        mOutput.closeQuietly();
+    }
+
+    static byte[] buildHeader(CaptureConfig config) {
+        short channels = (short) config.getChannels();
+        short bitDepth = (short) config.getBitDepth();
+        int sampleRate = config.getSampleRate();
+
+        return ByteBuffer.allocate(HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .put(new byte[] {'R', 'I', 'F', 'F'})
+                .putInt(0xFFFFFFFF)                                 // Updated later
+                .put(new byte[] {'W', 'A', 'V', 'E', 'J', 'U', 'N', 'K'})
+                .putInt(DS64_SIZE)
+                .put(new byte[DS64_SIZE])                           // Room for ds64
+                .put(new byte[] {'f', 'm', 't', ' '})
+                .putInt(16)
+                .putShort((short) 1)                                // PCM
+                .putShort(channels)
+                .putInt(sampleRate)
+                .putInt(sampleRate * channels * (bitDepth / 8))     // ByteRate
+                .putShort((short) (channels * (bitDepth / 8)))      // BlockAlign
+                .putShort(bitDepth)
+                .put(new byte[] {'d', 'a', 't', 'a'})
+                .putInt(0xFFFFFFFF)                                 // Updated later
+                .array();
+    }
+
+    private static byte[] littleEndian(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+}
@@ -0,0 +1,78 @@
+package ca.mcgill.cim.soundmap.map;
+
+import java.util.Arrays;
+
+/**
+ * The result of a {@link SpatialGrid} query: one entry per non-empty cluster cell, positioned at
+ * the centroid of its users, kept in parallel primitive arrays.
+ */
+public final class Clusters {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] mKeys = new long[DEFAULT_CAPACITY];
+    private double[] mLatSums = new double[DEFAULT_CAPACITY];
+    private double[] mLngSums = new double[DEFAULT_CAPACITY];
+    private int[] mCounts = new int[DEFAULT_CAPACITY];
+    private String[] mNames = new String[DEFAULT_CAPACITY];
+    private int mSize = 0;
+
+    int add(long key, String name, double lat, double lng) {
+        if (mSize == mKeys.length) {
+            int capacity = mSize * 2;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mLatSums = Arrays.copyOf(mLatSums, capacity);
+            mLngSums = Arrays.copyOf(mLngSums, capacity);
+            mCounts = Arrays.copyOf(mCounts, capacity);
+            mNames = Arrays.copyOf(mNames, capacity);
+        }
+        mKeys[mSize] = key;
+        mLatSums[mSize] = lat;
+        mLngSums[mSize] = lng;
+        mCounts[mSize] = 1;
+        mNames[mSize] = name;
+        return mSize++;
+    }
+
+    void merge(int i, double lat, double lng) {
+        mLatSums[i] += lat;
+        mLngSums[i] += lng;
+        mCounts[i]++;
+    }
+
+    void clear() {
+        Arrays.fill(mNames, 0, mSize, null);
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Identifies the cluster cell; the same area at the same cluster size always has the same
+     * key, so a cluster can be followed from one query to the next.
+     */
+    public long getKey(int i) {
+        return mKeys[i];
+    }
+
+    public int getCount(int i) {
+        return mCounts[i];
+    }
+
+    public double getLat(int i) {
+        return mLatSums[i] / mCounts[i];
+    }
+
+    public double getLng(int i) {
+        return mLngSums[i] / mCounts[i];
+    }
+
+    /**
+     * The user's name if the cluster holds a single user, null otherwise.
+     */
+    public String getName(int i) {
+        return mCounts[i] == 1 ? mNames[i] : null;
+    }
+}
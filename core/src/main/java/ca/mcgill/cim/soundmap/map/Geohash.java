@@ -0,0 +1,116 @@
+package ca.mcgill.cim.soundmap.map;
+
+/**
+ * Geohash cells: the world halved alternately by longitude and latitude, five halvings to a
+ * base 32 character, so that a longer hash is a smaller cell inside the shorter one. Seven
+ * characters are a cell of about 150 by 110 m at the latitude of Montreal.
+ */
+public final class Geohash {
+
+    public static final int MAX_PRECISION = 12;
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+    private static final int BITS_PER_CHAR = 5;
+
+    private Geohash() {
+    }
+
+    /**
+     * @param precision the number of characters, 1 to {@link #MAX_PRECISION}
+     */
+    public static String encode(double lat, double lng, int precision) {
+        if (precision < 1 || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Invalid precision: " + precision);
+        }
+
+        double minLat = -90;
+        double maxLat = 90;
+        double minLng = -180;
+        double maxLng = 180;
+        boolean isLng = true;
+        char[] hash = new char[precision];
+        for (int c = 0; c < precision; c++) {
+            int bits = 0;
+            for (int b = 0; b < BITS_PER_CHAR; b++) {
+                bits <<= 1;
+                if (isLng) {
+                    double mid = (minLng + maxLng) / 2;
+                    if (lng >= mid) {
+                        bits |= 1;
+                        minLng = mid;
+                    } else {
+                        maxLng = mid;
+                    }
+                } else {
+                    double mid = (minLat + maxLat) / 2;
+                    if (lat >= mid) {
+                        bits |= 1;
+                        minLat = mid;
+                    } else {
+                        maxLat = mid;
+                    }
+                }
+                isLng = !isLng;
+            }
+            hash[c] = BASE32[bits];
+        }
+        return new String(hash);
+    }
+
+    /**
+     * The bounds of a cell.
+     *
+     * @param bounds receives the min lat, min lng, max lat and max lng
+     * @throws IllegalArgumentException if the hash is empty or not base 32
+     */
+    public static void decode(String hash, double[] bounds) {
+        if (hash.isEmpty() || hash.length() > MAX_PRECISION) {
+            throw new IllegalArgumentException("Invalid geohash: " + hash);
+        }
+
+        double minLat = -90;
+        double maxLat = 90;
+        double minLng = -180;
+        double maxLng = 180;
+        boolean isLng = true;
+        for (int c = 0; c < hash.length(); c++) {
+            int bits = indexOf(hash.charAt(c));
+            if (bits < 0) {
+                throw new IllegalArgumentException("Invalid geohash: " + hash);
+            }
+            for (int b = BITS_PER_CHAR - 1; b >= 0; b--) {
+                boolean isUpper = ((bits >> b) & 1) != 0;
+                if (isLng) {
+                    double mid = (minLng + maxLng) / 2;
+                    if (isUpper) {
+                        minLng = mid;
+                    } else {
+                        maxLng = mid;
+                    }
+                } else {
+                    double mid = (minLat + maxLat) / 2;
+                    if (isUpper) {
+                        minLat = mid;
+                    } else {
+                        maxLat = mid;
+                    }
+                }
+                isLng = !isLng;
+            }
+        }
+
+        bounds[0] = minLat;
+        bounds[1] = minLng;
+        bounds[2] = maxLat;
+        bounds[3] = maxLng;
+    }
+
+    private static int indexOf(char c) {
+        for (int i = 0; i < BASE32.length; i++) {
+            if (BASE32[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,271 @@
+package ca.mcgill.cim.soundmap.map;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.mcgill.cim.soundmap.audio.AcousticFeatures;
+import ca.mcgill.cim.soundmap.audio.LevelDigest;
+import ca.mcgill.cim.soundmap.protocol.BinaryCodec;
+import okio.BufferedSink;
+import okio.BufferedSource;
+
+/**
+ * Noise levels aggregated per map cell as the frames are captured. For every {@link Geohash}
+ * cell it keeps the number of frames, the energy sums from which Leq and LAeq follow, and a
+ * {@link LevelDigest} of the A-weighted frame levels from which LA10, LA50 and LA90 follow.
+ * The memory of a cell is bounded by its digests, however long it is recorded.
+ *
+ * Cells merge by adding their frames and energies and merging their digests. So the cells
+ * recorded since the last upload can be sent on their own ({@link #takeDelta()}), and the
+ * server merges them into its own without the audio. Frames are weighted equally; they are
+ * {@link ca.mcgill.cim.soundmap.audio.FeatureExtractor#DEFAULT_FRAME_SIZE} samples long
+ * (about 0.1 s).
+ *
+ * Binary layout, served as {@link #MEDIA_TYPE}:
+ *
+ *      u8  version
+ *      varint cell count
+ *      per cell: varint hash length, geohash (ASCII), varint frame count,
+ *                zigzag varint Leq, zigzag varint LAeq (0.01 dB), digest of LA (see
+ *                {@link LevelDigest#writeTo})
+ *
+ * Thread safe.
+ */
+public class NoiseCells {
+
+    private static final String TAG = "NoiseCells";
+
+    public static final String MEDIA_TYPE = "application/x-soundmap-cells-v1";
+
+    public static final int VERSION = 1;
+
+    // About 150 by 110 m at the latitude of Montreal
+    public static final int DEFAULT_PRECISION = 7;
+
+    private static final double HUNDREDTHS = 100;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * The levels of one cell.
+     */
+    public static final class Cell {
+        private final String mHash;
+        private long mFrames = 0;
+        private double mEnergy = 0;   // sums of 10^(L / 10)
+        private double mAEnergy = 0;
+        private final LevelDigest mALevels = new LevelDigest();
+
+        Cell(String hash) {
+            mHash = hash;
+        }
+
+        public String getHash() {
+            return mHash;
+        }
+
+        public long getFrames() {
+            return mFrames;
+        }
+
+        /**
+         * Equivalent continuous level over every frame of the cell, unweighted.
+         */
+        public double getLeq() {
+            return mFrames == 0 ? Double.NaN : 10 * Math.log10(mEnergy / mFrames);
+        }
+
+        public double getLAeq() {
+            return mFrames == 0 ? Double.NaN : 10 * Math.log10(mAEnergy / mFrames);
+        }
+
+        /**
+         * The A-weighted level exceeded the given percentage of the time, e.g. 90 for LA90.
+         */
+        public double getLevelExceeded(double percent) {
+            return mALevels.getLevelExceeded(percent);
+        }
+
+        void add(double level, double aLevel) {
+            mFrames++;
+            mEnergy += Math.pow(10, level / 10);
+            mAEnergy += Math.pow(10, aLevel / 10);
+            mALevels.add(aLevel);
+        }
+
+        void merge(Cell other) {
+            mFrames += other.mFrames;
+            mEnergy += other.mEnergy;
+            mAEnergy += other.mAEnergy;
+            mALevels.merge(other.mALevels);
+        }
+
+        Cell copy() {
+            Cell copy = new Cell(mHash);
+            copy.merge(this);
+            return copy;
+        }
+    }
+
+    private final int mPrecision;
+
+    // Every cell, and what was added to each since the last takeDelta
+    private final Map<String, Cell> mCells = new HashMap<>();
+    private Map<String, Cell> mDelta = new HashMap<>();
+
+    public NoiseCells() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision the length of the cells' geohashes
+     */
+    public NoiseCells(int precision) {
+        if (precision < 1 || precision > Geohash.MAX_PRECISION) {
+            throw new IllegalArgumentException("Invalid precision: " + precision);
+        }
+        mPrecision = precision;
+    }
+
+    /**
+     * Adds a frame, by its unweighted and A-weighted levels, to the cell of the position.
+     */
+    public synchronized void add(double lat, double lng, double level, double aLevel) {
+        if (Double.isNaN(lat) || Double.isNaN(lng) || Double.isNaN(level)
+                || Double.isNaN(aLevel)) {
+            return;
+        }
+        String hash = Geohash.encode(lat, lng, mPrecision);
+        cellOf(mCells, hash).add(level, aLevel);
+        cellOf(mDelta, hash).add(level, aLevel);
+    }
+
+    /**
+     * Adds the frames of the features from the given one on, as just completed by a
+     * {@link ca.mcgill.cim.soundmap.audio.FeatureExtractor}.
+     */
+    public synchronized void addFrames(double lat, double lng, AcousticFeatures features,
+                                       int from) {
+        for (int frame = Math.max(0, from); frame < features.getFrameCount(); frame++) {
+            add(lat, lng, features.getLevel(frame), features.getALevel(frame));
+        }
+    }
+
+    /**
+     * Takes what was added since the last call, as cells of their own; every cell keeps it.
+     */
+    public synchronized NoiseCells takeDelta() {
+        NoiseCells delta = new NoiseCells(mPrecision);
+        delta.mCells.putAll(mDelta);
+        mDelta = new HashMap<>();
+        return delta;
+    }
+
+    /**
+     * Puts back a delta that could not be sent, to go with the next one.
+     */
+    public synchronized void restoreDelta(NoiseCells delta) {
+        for (Cell cell : delta.getCells()) {
+            cellOf(mDelta, cell.mHash).merge(cell);
+        }
+    }
+
+    /**
+     * Adds every cell of another set to this one, as the server does with the deltas of its
+     * clients. The other set must not be added to meanwhile.
+     */
+    public synchronized void merge(NoiseCells other) {
+        for (Cell cell : other.getCells()) {
+            cellOf(mCells, cell.mHash).merge(cell);
+        }
+    }
+
+    public synchronized int size() {
+        return mCells.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return mCells.isEmpty();
+    }
+
+    /**
+     * A copy of the cell at the position, or null if nothing was recorded there.
+     */
+    public synchronized Cell getCell(double lat, double lng) {
+        Cell cell = mCells.get(Geohash.encode(lat, lng, mPrecision));
+        return cell != null ? cell.copy() : null;
+    }
+
+    public synchronized void writeTo(BufferedSink sink) throws IOException {
+        sink.writeByte(VERSION);
+        BinaryCodec.writeVarint(sink, mCells.size());
+        for (Cell cell : mCells.values()) {
+            byte[] hash = cell.mHash.getBytes(ASCII);
+            BinaryCodec.writeVarint(sink, hash.length);
+            sink.write(hash);
+            BinaryCodec.writeVarint(sink, (int) Math.min(Integer.MAX_VALUE, cell.mFrames));
+            BinaryCodec.writeVarint(sink, BinaryCodec.zigzag(toHundredths(cell.getLeq())));
+            BinaryCodec.writeVarint(sink, BinaryCodec.zigzag(toHundredths(cell.getLAeq())));
+            cell.mALevels.writeTo(sink);
+        }
+    }
+
+    /**
+     * Reads cells written by {@link #writeTo}. The energies are recomputed from the levels.
+     */
+    public static NoiseCells readFrom(BufferedSource source) throws IOException {
+        int version = source.readByte() & 0xFF;
+        if (version != VERSION) {
+            throw new IOException("Unsupported cells version " + version);
+        }
+        int count = BinaryCodec.readVarint(source);
+        if (count < 0) {
+            throw new IOException("Malformed cells");
+        }
+
+        NoiseCells cells = null;
+        for (int i = 0; i < count; i++) {
+            int length = BinaryCodec.readVarint(source);
+            if (length < 1 || length > Geohash.MAX_PRECISION) {
+                throw new IOException("Malformed cells");
+            }
+            String hash = source.readString(length, ASCII);
+            if (cells == null) {
+                cells = new NoiseCells(length);
+            }
+
+            Cell cell = new Cell(hash);
+            cell.mFrames = BinaryCodec.readVarint(source);
+            if (cell.mFrames < 0) {
+                throw new IOException("Malformed cells");
+            }
+            double leq = BinaryCodec.unzigzag(BinaryCodec.readVarint(source)) / HUNDREDTHS;
+            double laeq = BinaryCodec.unzigzag(BinaryCodec.readVarint(source)) / HUNDREDTHS;
+            cell.mEnergy = cell.mFrames * Math.pow(10, leq / 10);
+            cell.mAEnergy = cell.mFrames * Math.pow(10, laeq / 10);
+            cell.mALevels.merge(LevelDigest.readFrom(source, LevelDigest.DEFAULT_COMPRESSION));
+            cells.mCells.put(hash, cell);
+        }
+        return cells != null ? cells : new NoiseCells();
+    }
+
+    private synchronized List<Cell> getCells() {
+        return new ArrayList<>(mCells.values());
+    }
+
+    private static Cell cellOf(Map<String, Cell> cells, String hash) {
+        Cell cell = cells.get(hash);
+        if (cell == null) {
+            cell = new Cell(hash);
+            cells.put(hash, cell);
+        }
+        return cell;
+    }
+
+    private static int toHundredths(double level) {
+        return Double.isNaN(level) ? 0 : (int) Math.round(level * HUNDREDTHS);
+    }
+}
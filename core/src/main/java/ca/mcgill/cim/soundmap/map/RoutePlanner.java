@@ -0,0 +1,302 @@
+package ca.mcgill.cim.soundmap.map;
+
+import ca.mcgill.cim.soundmap.protocol.UserPositions;
+
+/**
+ * Orders a batch of targets into a short walking route from the user's position.
+ *
+ * {@link #plan} builds the route with the nearest neighbour heuristic and then improves it with
+ * 2-opt (reversing any stretch of the route that makes it shorter) and Or-opt (moving a stretch
+ * of up to three targets elsewhere) until neither helps. The route starts at the user and ends
+ * at whichever target is last; it does not come back.
+ *
+ * As the user walks, {@link #update} re-plans from the new position starting from the current
+ * route, which is usually a few reversals away from the new best, and {@link #removeNext()}
+ * drops a target once its sample is taken. The distances between targets are great circle
+ * (haversine) distances, computed once per batch.
+ *
+ * Not thread safe.
+ */
+public class RoutePlanner {
+
+    private static final String TAG = "RoutePlanner";
+
+    public static final double EARTH_RADIUS = 6371008.8;  // m, mean radius
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final int MAX_PASSES = 100;
+    private static final int MAX_STRETCH = 3;
+    private static final double MIN_GAIN = 1e-6;           // m
+
+    // Stands for the user's position in the route
+    private static final int START = -1;
+
+    // Targets of the batch, in the order they were given
+    private String[] mTags = new String[DEFAULT_CAPACITY];
+    private double[] mLats = new double[DEFAULT_CAPACITY];
+    private double[] mLngs = new double[DEFAULT_CAPACITY];
+    private int mCount = 0;
+
+    // Between targets, mCount x mCount, and from the user's position to each target (m)
+    private double[] mDistances = new double[DEFAULT_CAPACITY * DEFAULT_CAPACITY];
+    private double[] mFromStart = new double[DEFAULT_CAPACITY];
+
+    // The targets still to visit, in visiting order
+    private int[] mRoute = new int[DEFAULT_CAPACITY];
+    private int mLength = 0;
+    private final int[] mStretch = new int[MAX_STRETCH];
+
+    /**
+     * Replaces the targets, unordered until the next {@link #plan}.
+     */
+    public void setTargets(UserPositions targets) {
+        int n = targets.size();
+        ensureCapacity(n);
+        mCount = 0;
+        for (int i = 0; i < n; i++) {
+            double lat = targets.getLat(i);
+            double lng = targets.getLng(i);
+            if (Double.isNaN(lat) || Double.isNaN(lng)) {
+                continue;
+            }
+            mTags[mCount] = targets.getName(i);
+            mLats[mCount] = lat;
+            mLngs[mCount] = lng;
+            mRoute[mCount] = mCount;
+            mCount++;
+        }
+        mLength = mCount;
+
+        for (int a = 0; a < mCount; a++) {
+            mDistances[a * mCount + a] = 0;
+            for (int b = a + 1; b < mCount; b++) {
+                double d = distance(mLats[a], mLngs[a], mLats[b], mLngs[b]);
+                mDistances[a * mCount + b] = d;
+                mDistances[b * mCount + a] = d;
+            }
+        }
+    }
+
+    /**
+     * Plans the route from scratch, from the given position.
+     */
+    public void plan(double lat, double lng) {
+        measureFrom(lat, lng);
+
+        // Nearest neighbour: always walk to the closest target not yet in the route
+        int last = START;
+        for (int i = 0; i < mLength; i++) {
+            int nearest = i;
+            double best = Double.MAX_VALUE;
+            for (int j = i; j < mLength; j++) {
+                double d = distance(last, mRoute[j]);
+                if (d < best) {
+                    best = d;
+                    nearest = j;
+                }
+            }
+            swap(i, nearest);
+            last = mRoute[i];
+        }
+
+        improve();
+    }
+
+    /**
+     * Re-plans the remaining route from a new position, starting from the current order.
+     */
+    public void update(double lat, double lng) {
+        measureFrom(lat, lng);
+        improve();
+    }
+
+    /**
+     * Drops the first target of the route, once it has been visited.
+     */
+    public void removeNext() {
+        if (mLength == 0) {
+            return;
+        }
+        System.arraycopy(mRoute, 1, mRoute, 0, mLength - 1);
+        mLength--;
+    }
+
+    public void clear() {
+        mCount = 0;
+        mLength = 0;
+    }
+
+    /**
+     * The number of targets still to visit.
+     */
+    public int size() {
+        return mLength;
+    }
+
+    public boolean isEmpty() {
+        return mLength == 0;
+    }
+
+    /**
+     * @param i the position of the target in the route, 0 being the next one
+     */
+    public String getTag(int i) {
+        return mTags[mRoute[i]];
+    }
+
+    public double getLat(int i) {
+        return mLats[mRoute[i]];
+    }
+
+    public double getLng(int i) {
+        return mLngs[mRoute[i]];
+    }
+
+    /**
+     * The length of the route in metres, from the position it was last planned from.
+     */
+    public double getLength() {
+        double length = 0;
+        int last = START;
+        for (int i = 0; i < mLength; i++) {
+            length += distance(last, mRoute[i]);
+            last = mRoute[i];
+        }
+        return length;
+    }
+
+    /**
+     * Great circle distance in metres.
+     */
+    public static double distance(double lat1, double lng1, double lat2, double lng2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinLat = Math.sin((phi2 - phi1) / 2);
+        double sinLng = Math.sin(Math.toRadians(lng2 - lng1) / 2);
+        double h = sinLat * sinLat + Math.cos(phi1) * Math.cos(phi2) * sinLng * sinLng;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    private void improve() {
+        for (int pass = 0; pass < MAX_PASSES; pass++) {
+            boolean isReversed = reverseStretches();
+            boolean isMoved = moveStretches();
+            if (!isReversed && !isMoved) {
+                return;
+            }
+        }
+    }
+
+    // 2-opt, with the start fixed and the end free: reversing route[i..j] replaces the edges
+    // into route[i] and out of route[j]; there is no edge out of the last target
+    private boolean reverseStretches() {
+        boolean isImproved = false;
+        for (int i = 0; i < mLength - 1; i++) {
+            int before = i == 0 ? START : mRoute[i - 1];
+            double into = distance(before, mRoute[i]);
+
+            for (int j = i + 1; j < mLength; j++) {
+                int last = mRoute[j];
+                double gain = into - distance(before, last);
+                if (j < mLength - 1) {
+                    int after = mRoute[j + 1];
+                    gain += distance(last, after) - distance(mRoute[i], after);
+                }
+
+                if (gain > MIN_GAIN) {
+                    reverse(i, j);
+                    into = distance(before, mRoute[i]);
+                    isImproved = true;
+                }
+            }
+        }
+        return isImproved;
+    }
+
+    // Or-opt: moving a stretch of up to MAX_STRETCH targets elsewhere, either way round. This
+    // gets out of the local optima of 2-opt where a target is left behind on a detour.
+    private boolean moveStretches() {
+        boolean isImproved = false;
+        for (int length = 1; length <= MAX_STRETCH; length++) {
+            for (int i = 0; i + length <= mLength; i++) {
+                int first = mRoute[i];
+                int last = mRoute[i + length - 1];
+                int before = i == 0 ? START : mRoute[i - 1];
+                double saved = distance(before, first);
+                if (i + length < mLength) {
+                    int after = mRoute[i + length];
+                    saved += distance(last, after) - distance(before, after);
+                }
+
+                // Between route[k - 1] (or the start) and route[k] (or nothing, at the end)
+                for (int k = 0; k <= mLength; k++) {
+                    if (k >= i && k <= i + length) {
+                        continue;
+                    }
+                    int a = k == 0 ? START : mRoute[k - 1];
+                    double forward = distance(a, first);
+                    double backward = distance(a, last);
+                    if (k < mLength) {
+                        int b = mRoute[k];
+                        forward += distance(last, b) - distance(a, b);
+                        backward += distance(first, b) - distance(a, b);
+                    }
+
+                    if (saved - Math.min(forward, backward) > MIN_GAIN) {
+                        move(i, length, k, backward < forward);
+                        isImproved = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return isImproved;
+    }
+
+    private void measureFrom(double lat, double lng) {
+        for (int a = 0; a < mCount; a++) {
+            mFromStart[a] = distance(lat, lng, mLats[a], mLngs[a]);
+        }
+    }
+
+    private double distance(int a, int b) {
+        return a == START ? mFromStart[b] : mDistances[a * mCount + b];
+    }
+
+    // Moves route[i .. i + length - 1] to just before route[k]
+    private void move(int i, int length, int k, boolean isReversed) {
+        System.arraycopy(mRoute, i, mStretch, 0, length);
+        System.arraycopy(mRoute, i + length, mRoute, i, mLength - i - length);
+        if (k > i) {
+            k -= length;
+        }
+        System.arraycopy(mRoute, k, mRoute, k + length, mLength - length - k);
+        for (int s = 0; s < length; s++) {
+            mRoute[k + s] = mStretch[isReversed ? length - 1 - s : s];
+        }
+    }
+
+    private void reverse(int i, int j) {
+        while (i < j) {
+            swap(i++, j--);
+        }
+    }
+
+    private void swap(int i, int j) {
+        int t = mRoute[i];
+        mRoute[i] = mRoute[j];
+        mRoute[j] = t;
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= mTags.length) {
+            return;
+        }
+        mTags = new String[n];
+        mLats = new double[n];
+        mLngs = new double[n];
+        mFromStart = new double[n];
+        mRoute = new int[n];
+        mDistances = new double[n * n];
+    }
+}
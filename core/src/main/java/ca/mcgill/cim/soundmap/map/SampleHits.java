@@ -0,0 +1,60 @@
+package ca.mcgill.cim.soundmap.map;
+
+import java.util.Arrays;
+
+/**
+ * The result of a {@link SampleIndex} query: the ids and positions of the samples found, kept in
+ * parallel primitive arrays so that a query allocates nothing once the arrays have grown.
+ */
+public final class SampleHits {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] mIds = new long[DEFAULT_CAPACITY];
+    private double[] mLats = new double[DEFAULT_CAPACITY];
+    private double[] mLngs = new double[DEFAULT_CAPACITY];
+    private double[] mDistances = new double[DEFAULT_CAPACITY];
+    private int mSize = 0;
+
+    void add(long id, double lat, double lng, double distance) {
+        if (mSize == mIds.length) {
+            int capacity = mSize * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mLats = Arrays.copyOf(mLats, capacity);
+            mLngs = Arrays.copyOf(mLngs, capacity);
+            mDistances = Arrays.copyOf(mDistances, capacity);
+        }
+        mIds[mSize] = id;
+        mLats[mSize] = lat;
+        mLngs[mSize] = lng;
+        mDistances[mSize] = distance;
+        mSize++;
+    }
+
+    void clear() {
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getId(int i) {
+        return mIds[i];
+    }
+
+    public double getLat(int i) {
+        return mLats[i];
+    }
+
+    public double getLng(int i) {
+        return mLngs[i];
+    }
+
+    /**
+     * The distance from the query point in metres, for a nearest query; NaN for a box query.
+     */
+    public double getDistance(int i) {
+        return mDistances[i];
+    }
+}
@@ -0,0 +1,464 @@
+package ca.mcgill.cim.soundmap.map;
+
+import java.util.Arrays;
+
+/**
+ * Spatial index over the samples recorded on this device, answering bounding box and nearest
+ * queries over hundreds of thousands of them.
+ *
+ * The samples are kept in a packed R-tree. They are sorted into tiles (Sort-Tile-Recursive:
+ * slices by longitude, then by latitude within each slice), sixteen to a leaf. Each level of
+ * boxes is stored contiguously in one array, so the whole tree is a handful of primitive arrays
+ * and a query allocates nothing. Samples added since the last packing are kept apart and
+ * scanned linearly. The next query packs the tree again once they are more than a sixteenth of
+ * it, or once a quarter of the samples have been removed.
+ *
+ * {@link #nearest} walks the tree best first, so it only opens the nodes that may hold one of
+ * the k nearest samples. Distances are measured on a flat projection around the query point,
+ * which is within 0.1% of the great circle distance over the few kilometres a user walks.
+ *
+ * Longitudes are not wrapped around the antimeridian. Not thread safe.
+ */
+public class SampleIndex {
+
+    private static final String TAG = "SampleIndex";
+
+    private static final int FANOUT = 16;
+    private static final int MAX_LEVELS = 8;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // The samples added since the last packing are scanned until there are this many, or this
+    // fraction of the packed ones
+    private static final int MIN_PENDING = 64;
+    private static final int PENDING_FRACTION = 16;
+
+    // Sort keys: the coordinate in 1e-7 degrees, above the position of the sample in the range
+    private static final double KEY_SCALE = 1e7;
+    private static final int INDEX_BITS = 24;
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    public static final int MAX_SIZE = 1 << INDEX_BITS;
+
+    private static final double METRES_PER_DEGREE = RoutePlanner.EARTH_RADIUS * Math.PI / 180;
+
+    // Samples: 0 .. mPacked - 1 are in the tree, in tree order, and the rest are pending
+    private long[] mIds = new long[DEFAULT_CAPACITY];
+    private double[] mLats = new double[DEFAULT_CAPACITY];
+    private double[] mLngs = new double[DEFAULT_CAPACITY];
+    private boolean[] mRemoved = new boolean[DEFAULT_CAPACITY];
+    private int mCount = 0;
+    private int mPacked = 0;
+    private int mRemovedCount = 0;
+
+    // Min lat, min lng, max lat, max lng of every node: the leaves first, then level by level
+    // up to the root. Level l is nodes mLevelStart[l] .. mLevelStart[l + 1] - 1, and the
+    // children of its k-th node are the (up to) FANOUT nodes, or samples, from k * FANOUT in
+    // the level below.
+    private double[] mBoxes = new double[0];
+    private final int[] mLevelStart = new int[MAX_LEVELS + 1];
+    private int mLevels = 0;
+
+    // Best first queue of the nearest query: nodes, and samples as -1 - index
+    private double[] mQueueKeys = new double[DEFAULT_CAPACITY];
+    private int[] mQueueRefs = new int[DEFAULT_CAPACITY];
+    private int mQueueSize = 0;
+
+    // Shrinks degrees of longitude at the latitude of the nearest query
+    private double mLngScale = 1;
+
+    /**
+     * Adds a sample; it is scanned by the queries until the tree is next packed. Samples
+     * without a position are ignored.
+     *
+     * @throws IllegalStateException if the index already holds {@link #MAX_SIZE} samples
+     */
+    public void add(long id, double lat, double lng) {
+        if (Double.isNaN(lat) || Double.isNaN(lng)) {
+            return;
+        }
+        if (mCount == MAX_SIZE) {
+            throw new IllegalStateException("Sample index is full");
+        }
+
+        ensureCapacity(mCount + 1);
+        mIds[mCount] = id;
+        mLats[mCount] = lat;
+        mLngs[mCount] = lng;
+        mRemoved[mCount] = false;
+        mCount++;
+    }
+
+    /**
+     * Removes a sample, found by its id at the position it was added with.
+     *
+     * @return false if there is no such sample
+     */
+    public boolean remove(long id, double lat, double lng) {
+        for (int i = mPacked; i < mCount; i++) {
+            if (isSample(i, id, lat, lng)) {
+                markRemoved(i);
+                return true;
+            }
+        }
+        return mLevels > 0 && remove(mLevels - 1, 0, id, lat, lng);
+    }
+
+    public void clear() {
+        mCount = 0;
+        mPacked = 0;
+        mRemovedCount = 0;
+        mLevels = 0;
+    }
+
+    public int size() {
+        return mCount - mRemovedCount;
+    }
+
+    /**
+     * Packs every sample into the tree now, instead of on the next query; after a bulk load,
+     * for instance, so that the first query is not the one to pay for it.
+     */
+    public void pack() {
+        // Drop the removed samples
+        int n = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (!mRemoved[i]) {
+                mIds[n] = mIds[i];
+                mLats[n] = mLats[i];
+                mLngs[n] = mLngs[i];
+                mRemoved[n] = false;
+                n++;
+            }
+        }
+        mCount = n;
+        mPacked = n;
+        mRemovedCount = 0;
+
+        // Slices of about the square root of the number of leaves, each of them as many leaves
+        long[] keys = new long[n];
+        sort(0, n, false, keys);
+        int leaves = (n + FANOUT - 1) / FANOUT;
+        int sliceSize = (int) Math.ceil(Math.sqrt(leaves)) * FANOUT;
+        for (int from = 0; from < n; from += sliceSize) {
+            sort(from, Math.min(from + sliceSize, n), true, keys);
+        }
+
+        buildBoxes();
+    }
+
+    /**
+     * Finds the samples inside the given bounds.
+     *
+     * @param out receives the samples found, in no particular order
+     * @return the number of samples found
+     */
+    public int within(double minLat, double minLng, double maxLat, double maxLng,
+                      SampleHits out) {
+        out.clear();
+        if (!(minLat <= maxLat) || !(minLng <= maxLng)) {
+            return 0;
+        }
+        packIfNeeded();
+
+        if (mLevels > 0) {
+            collect(mLevels - 1, 0, minLat, minLng, maxLat, maxLng, out);
+        }
+        for (int i = mPacked; i < mCount; i++) {
+            if (!mRemoved[i] && isInside(i, minLat, minLng, maxLat, maxLng)) {
+                out.add(mIds[i], mLats[i], mLngs[i], Double.NaN);
+            }
+        }
+        return out.size();
+    }
+
+    /**
+     * Finds the k samples nearest to the given position.
+     *
+     * @param out receives the samples found, nearest first, with their distances
+     * @return the number of samples found; fewer than k if the index holds fewer
+     */
+    public int nearest(double lat, double lng, int k, SampleHits out) {
+        out.clear();
+        if (k <= 0 || Double.isNaN(lat) || Double.isNaN(lng)) {
+            return 0;
+        }
+        packIfNeeded();
+
+        mLngScale = Math.cos(Math.toRadians(lat));
+        mQueueSize = 0;
+        if (mLevels > 0) {
+            int root = mLevelStart[mLevels - 1];
+            offer(boxDistance(root, lat, lng), root);
+        }
+        for (int i = mPacked; i < mCount; i++) {
+            if (!mRemoved[i]) {
+                offer(distance(lat, lng, mLats[i], mLngs[i]), -1 - i);
+            }
+        }
+
+        // Nodes come out of the queue no later than anything inside them, so the samples come
+        // out nearest first
+        while (mQueueSize > 0 && out.size() < k) {
+            double key = mQueueKeys[0];
+            int ref = mQueueRefs[0];
+            poll();
+
+            if (ref < 0) {
+                int i = -1 - ref;
+                out.add(mIds[i], mLats[i], mLngs[i], key);
+                continue;
+            }
+
+            int level = levelOf(ref);
+            int from = (ref - mLevelStart[level]) * FANOUT;
+            if (level == 0) {
+                int to = Math.min(from + FANOUT, mPacked);
+                for (int i = from; i < to; i++) {
+                    if (!mRemoved[i]) {
+                        offer(distance(lat, lng, mLats[i], mLngs[i]), -1 - i);
+                    }
+                }
+            } else {
+                int to = Math.min(from + FANOUT, levelSize(level - 1));
+                for (int child = from; child < to; child++) {
+                    int node = mLevelStart[level - 1] + child;
+                    offer(boxDistance(node, lat, lng), node);
+                }
+            }
+        }
+        return out.size();
+    }
+
+    private void packIfNeeded() {
+        int pending = mCount - mPacked;
+        if (pending > Math.max(MIN_PENDING, mPacked / PENDING_FRACTION)
+                || 4 * mRemovedCount > mCount) {
+            pack();
+        }
+    }
+
+    private void collect(int level, int node, double minLat, double minLng, double maxLat,
+                         double maxLng, SampleHits out) {
+        int box = 4 * (mLevelStart[level] + node);
+        if (mBoxes[box] > maxLat || mBoxes[box + 1] > maxLng
+                || mBoxes[box + 2] < minLat || mBoxes[box + 3] < minLng) {
+            return;
+        }
+
+        int from = node * FANOUT;
+        if (level == 0) {
+            int to = Math.min(from + FANOUT, mPacked);
+            for (int i = from; i < to; i++) {
+                if (!mRemoved[i] && isInside(i, minLat, minLng, maxLat, maxLng)) {
+                    out.add(mIds[i], mLats[i], mLngs[i], Double.NaN);
+                }
+            }
+        } else {
+            int to = Math.min(from + FANOUT, levelSize(level - 1));
+            for (int child = from; child < to; child++) {
+                collect(level - 1, child, minLat, minLng, maxLat, maxLng, out);
+            }
+        }
+    }
+
+    private boolean remove(int level, int node, long id, double lat, double lng) {
+        int box = 4 * (mLevelStart[level] + node);
+        if (lat < mBoxes[box] || lng < mBoxes[box + 1]
+                || lat > mBoxes[box + 2] || lng > mBoxes[box + 3]) {
+            return false;
+        }
+
+        int from = node * FANOUT;
+        if (level == 0) {
+            int to = Math.min(from + FANOUT, mPacked);
+            for (int i = from; i < to; i++) {
+                if (isSample(i, id, lat, lng)) {
+                    markRemoved(i);
+                    return true;
+                }
+            }
+        } else {
+            int to = Math.min(from + FANOUT, levelSize(level - 1));
+            for (int child = from; child < to; child++) {
+                if (remove(level - 1, child, id, lat, lng)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Sorts the samples from .. to - 1 by latitude or longitude
+    private void sort(int from, int to, boolean byLat, long[] keys) {
+        int n = to - from;
+        for (int j = 0; j < n; j++) {
+            double degrees = byLat ? mLats[from + j] + 90 : mLngs[from + j] + 180;
+            keys[j] = (Math.round(degrees * KEY_SCALE) << INDEX_BITS) | j;
+        }
+        Arrays.sort(keys, 0, n);
+
+        long[] ids = new long[n];
+        double[] lats = new double[n];
+        double[] lngs = new double[n];
+        for (int j = 0; j < n; j++) {
+            int i = from + (int) (keys[j] & INDEX_MASK);
+            ids[j] = mIds[i];
+            lats[j] = mLats[i];
+            lngs[j] = mLngs[i];
+        }
+        System.arraycopy(ids, 0, mIds, from, n);
+        System.arraycopy(lats, 0, mLats, from, n);
+        System.arraycopy(lngs, 0, mLngs, from, n);
+    }
+
+    private void buildBoxes() {
+        mLevels = 0;
+        if (mPacked == 0) {
+            return;
+        }
+
+        int size = (mPacked + FANOUT - 1) / FANOUT;
+        mLevelStart[0] = 0;
+        while (true) {
+            mLevelStart[mLevels + 1] = mLevelStart[mLevels] + size;
+            mLevels++;
+            if (size == 1) {
+                break;
+            }
+            size = (size + FANOUT - 1) / FANOUT;
+        }
+        if (mBoxes.length < 4 * mLevelStart[mLevels]) {
+            mBoxes = new double[4 * mLevelStart[mLevels]];
+        }
+
+        for (int leaf = 0; leaf < levelSize(0); leaf++) {
+            int box = 4 * leaf;
+            mBoxes[box] = Double.POSITIVE_INFINITY;
+            mBoxes[box + 1] = Double.POSITIVE_INFINITY;
+            mBoxes[box + 2] = Double.NEGATIVE_INFINITY;
+            mBoxes[box + 3] = Double.NEGATIVE_INFINITY;
+            int to = Math.min((leaf + 1) * FANOUT, mPacked);
+            for (int i = leaf * FANOUT; i < to; i++) {
+                mBoxes[box] = Math.min(mBoxes[box], mLats[i]);
+                mBoxes[box + 1] = Math.min(mBoxes[box + 1], mLngs[i]);
+                mBoxes[box + 2] = Math.max(mBoxes[box + 2], mLats[i]);
+                mBoxes[box + 3] = Math.max(mBoxes[box + 3], mLngs[i]);
+            }
+        }
+
+        for (int level = 1; level < mLevels; level++) {
+            for (int node = 0; node < levelSize(level); node++) {
+                int box = 4 * (mLevelStart[level] + node);
+                mBoxes[box] = Double.POSITIVE_INFINITY;
+                mBoxes[box + 1] = Double.POSITIVE_INFINITY;
+                mBoxes[box + 2] = Double.NEGATIVE_INFINITY;
+                mBoxes[box + 3] = Double.NEGATIVE_INFINITY;
+                int to = Math.min((node + 1) * FANOUT, levelSize(level - 1));
+                for (int child = node * FANOUT; child < to; child++) {
+                    int childBox = 4 * (mLevelStart[level - 1] + child);
+                    mBoxes[box] = Math.min(mBoxes[box], mBoxes[childBox]);
+                    mBoxes[box + 1] = Math.min(mBoxes[box + 1], mBoxes[childBox + 1]);
+                    mBoxes[box + 2] = Math.max(mBoxes[box + 2], mBoxes[childBox + 2]);
+                    mBoxes[box + 3] = Math.max(mBoxes[box + 3], mBoxes[childBox + 3]);
+                }
+            }
+        }
+    }
+
+    private int levelSize(int level) {
+        return mLevelStart[level + 1] - mLevelStart[level];
+    }
+
+    private int levelOf(int node) {
+        int level = 0;
+        while (node >= mLevelStart[level + 1]) {
+            level++;
+        }
+        return level;
+    }
+
+    private boolean isSample(int i, long id, double lat, double lng) {
+        return !mRemoved[i] && mIds[i] == id && mLats[i] == lat && mLngs[i] == lng;
+    }
+
+    private boolean isInside(int i, double minLat, double minLng, double maxLat, double maxLng) {
+        return mLats[i] >= minLat && mLats[i] <= maxLat
+                && mLngs[i] >= minLng && mLngs[i] <= maxLng;
+    }
+
+    private void markRemoved(int i) {
+        mRemoved[i] = true;
+        mRemovedCount++;
+    }
+
+    private double distance(double lat, double lng, double toLat, double toLng) {
+        double dLat = toLat - lat;
+        double dLng = (toLng - lng) * mLngScale;
+        return METRES_PER_DEGREE * Math.sqrt(dLat * dLat + dLng * dLng);
+    }
+
+    // To the nearest point of the node's box; no sample inside can be nearer
+    private double boxDistance(int node, double lat, double lng) {
+        int box = 4 * node;
+        double nearestLat = Math.max(mBoxes[box], Math.min(mBoxes[box + 2], lat));
+        double nearestLng = Math.max(mBoxes[box + 1], Math.min(mBoxes[box + 3], lng));
+        return distance(lat, lng, nearestLat, nearestLng);
+    }
+
+    // Binary min-heap on the keys
+    private void offer(double key, int ref) {
+        if (mQueueSize == mQueueKeys.length) {
+            mQueueKeys = Arrays.copyOf(mQueueKeys, mQueueSize * 2);
+            mQueueRefs = Arrays.copyOf(mQueueRefs, mQueueSize * 2);
+        }
+
+        int i = mQueueSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (mQueueKeys[parent] <= key) {
+                break;
+            }
+            mQueueKeys[i] = mQueueKeys[parent];
+            mQueueRefs[i] = mQueueRefs[parent];
+            i = parent;
+        }
+        mQueueKeys[i] = key;
+        mQueueRefs[i] = ref;
+    }
+
+    private void poll() {
+        mQueueSize--;
+        double key = mQueueKeys[mQueueSize];
+        int ref = mQueueRefs[mQueueSize];
+
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= mQueueSize) {
+                break;
+            }
+            if (child + 1 < mQueueSize && mQueueKeys[child + 1] < mQueueKeys[child]) {
+                child++;
+            }
+            if (key <= mQueueKeys[child]) {
+                break;
+            }
+            mQueueKeys[i] = mQueueKeys[child];
+            mQueueRefs[i] = mQueueRefs[child];
+            i = child;
+        }
+        mQueueKeys[i] = key;
+        mQueueRefs[i] = ref;
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= mIds.length) {
+            return;
+        }
+        int capacity = Math.max(n, 2 * mIds.length);
+        mIds = Arrays.copyOf(mIds, capacity);
+        mLats = Arrays.copyOf(mLats, capacity);
+        mLngs = Arrays.copyOf(mLngs, capacity);
+        mRemoved = Arrays.copyOf(mRemoved, capacity);
+    }
+}
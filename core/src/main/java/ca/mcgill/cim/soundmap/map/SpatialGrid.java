@@ -0,0 +1,226 @@
+package ca.mcgill.cim.soundmap.map;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import ca.mcgill.cim.soundmap.protocol.UserPositions;
+
+/**
+ * Uniform grid over user positions, for culling to the viewport and clustering.
+ *
+ * {@link #build(UserPositions)} buckets the users into square cells of a fixed size (in
+ * degrees), stored contiguously cell by cell. {@link #query} then only visits the cells that
+ * overlap the viewport, and merges the users it finds into coarser cluster cells whose size
+ * follows the zoom level, so the number of markers is bounded by the viewport and not by the
+ * number of users.
+ *
+ * Longitudes are not wrapped around the antimeridian. Not thread safe.
+ */
+public class SpatialGrid {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private final double mCellSize; // deg
+
+    // Users, copied out of the last build
+    private String[] mNames = new String[DEFAULT_CAPACITY];
+    private double[] mLats = new double[DEFAULT_CAPACITY];
+    private double[] mLngs = new double[DEFAULT_CAPACITY];
+    private int mCount = 0;
+
+    // Users of cell c are mOrder[mCellStart[c]] .. mOrder[mCellStart[c + 1] - 1]
+    private int[] mOrder = new int[DEFAULT_CAPACITY];
+    private int[] mUserCells = new int[DEFAULT_CAPACITY];
+    private int[] mCellStart = new int[DEFAULT_CAPACITY + 1];
+    private int[] mCellRows = new int[DEFAULT_CAPACITY];
+    private int[] mCellCols = new int[DEFAULT_CAPACITY];
+    private int mCellCount = 0;
+
+    // cell key --> cell
+    private final Map<Long, Integer> mCells = new HashMap<>();
+    // cluster key --> index in the output, for the query in progress
+    private final Map<Long, Integer> mClusters = new HashMap<>();
+
+    /**
+     * @param cellSize the side of a grid cell in degrees; about the size of the smallest
+     *                 viewport that will be queried
+     */
+    public SpatialGrid(double cellSize) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("cellSize must be positive");
+        }
+        mCellSize = cellSize;
+    }
+
+    /**
+     * Replaces the indexed users.
+     */
+    public void build(UserPositions users) {
+        int n = users.size();
+        ensureCapacity(n);
+        mCells.clear();
+        mCellCount = 0;
+        mCount = 0;
+
+        // Assign every user to a cell, counting the users per cell
+        for (int i = 0; i < n; i++) {
+            double lat = users.getLat(i);
+            double lng = users.getLng(i);
+            if (Double.isNaN(lat) || Double.isNaN(lng)) {
+                continue;
+            }
+
+            int row = cellOf(lat, mCellSize);
+            int col = cellOf(lng, mCellSize);
+            long key = key(row, col);
+            Integer cell = mCells.get(key);
+            if (cell == null) {
+                cell = mCellCount++;
+                mCells.put(key, cell);
+                mCellRows[cell] = row;
+                mCellCols[cell] = col;
+                mCellStart[cell] = 0;
+            }
+            mCellStart[cell]++;
+
+            mNames[mCount] = users.getName(i);
+            mLats[mCount] = lat;
+            mLngs[mCount] = lng;
+            mUserCells[mCount] = cell;
+            mCount++;
+        }
+        Arrays.fill(mNames, mCount, mNames.length, null);
+
+        // Counts --> start offsets, then place each user in its cell's range
+        int offset = 0;
+        for (int c = 0; c < mCellCount; c++) {
+            int count = mCellStart[c];
+            mCellStart[c] = offset;
+            offset += count;
+        }
+        mCellStart[mCellCount] = offset;
+
+        for (int i = 0; i < mCount; i++) {
+            mOrder[mCellStart[mUserCells[i]]++] = i;
+        }
+        // The placement advanced every start to the next cell's start; shift them back
+        for (int c = mCellCount; c > 0; c--) {
+            mCellStart[c] = mCellStart[c - 1];
+        }
+        mCellStart[0] = 0;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int getCellCount() {
+        return mCellCount;
+    }
+
+    /**
+     * Clusters the users inside the given bounds.
+     *
+     * @param clusterSize side of a cluster cell in degrees; see {@link #clusterSizeFor}
+     * @param out receives one entry per non-empty cluster cell
+     * @return the number of users inside the bounds
+     */
+    public int query(double minLat, double minLng, double maxLat, double maxLng,
+                     double clusterSize, Clusters out) {
+        out.clear();
+        mClusters.clear();
+        if (mCount == 0 || !(minLat <= maxLat) || !(minLng <= maxLng) || !(clusterSize > 0)) {
+            return 0;
+        }
+
+        int minRow = cellOf(minLat, mCellSize);
+        int maxRow = cellOf(maxLat, mCellSize);
+        int minCol = cellOf(minLng, mCellSize);
+        int maxCol = cellOf(maxLng, mCellSize);
+
+        int found = 0;
+        long viewportCells = ((long) maxRow - minRow + 1) * ((long) maxCol - minCol + 1);
+        if (viewportCells <= mCellCount) {
+            // Small viewport: probe only the cells it covers
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int col = minCol; col <= maxCol; col++) {
+                    Integer cell = mCells.get(key(row, col));
+                    if (cell != null) {
+                        found += collect(cell, minLat, minLng, maxLat, maxLng, clusterSize, out);
+                    }
+                }
+            }
+        } else {
+            // Large viewport: fewer cells exist than it covers, so walk them all
+            for (int cell = 0; cell < mCellCount; cell++) {
+                int row = mCellRows[cell];
+                int col = mCellCols[cell];
+                if (row >= minRow && row <= maxRow && col >= minCol && col <= maxCol) {
+                    found += collect(cell, minLat, minLng, maxLat, maxLng, clusterSize, out);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * A cluster size for a viewport of the given width, giving about {@code columns} clusters
+     * across. It is rounded to a power of two so that panning at a fixed zoom keeps the same
+     * cluster cells (and keys).
+     */
+    public static double clusterSizeFor(double viewportWidth, int columns) {
+        double size = viewportWidth / Math.max(1, columns);
+        if (!(size > 0)) {
+            return Double.NaN;
+        }
+        return Math.pow(2, Math.ceil(Math.log(size) / Math.log(2)));
+    }
+
+    private int collect(int cell, double minLat, double minLng, double maxLat, double maxLng,
+                        double clusterSize, Clusters out) {
+        int found = 0;
+        for (int j = mCellStart[cell]; j < mCellStart[cell + 1]; j++) {
+            int i = mOrder[j];
+            double lat = mLats[i];
+            double lng = mLngs[i];
+
+            // Cells on the edge of the viewport are only partly inside
+            if (lat < minLat || lat > maxLat || lng < minLng || lng > maxLng) {
+                continue;
+            }
+            found++;
+
+            long key = key(cellOf(lat, clusterSize), cellOf(lng, clusterSize));
+            Integer cluster = mClusters.get(key);
+            if (cluster == null) {
+                mClusters.put(key, out.add(key, mNames[i], lat, lng));
+            } else {
+                out.merge(cluster, lat, lng);
+            }
+        }
+        return found;
+    }
+
+    private void ensureCapacity(int n) {
+        if (mNames.length >= n) {
+            return;
+        }
+        mNames = new String[n];
+        mLats = new double[n];
+        mLngs = new double[n];
+        mOrder = new int[n];
+        mUserCells = new int[n];
+        mCellStart = new int[n + 1];
+        mCellRows = new int[n];
+        mCellCols = new int[n];
+    }
+
+    private static int cellOf(double degrees, double size) {
+        return (int) Math.floor(degrees / size);
+    }
+
+    private static long key(int row, int col) {
+        return ((long) row << 32) | (col & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,244 @@
+package ca.mcgill.cim.soundmap.network;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ca.mcgill.cim.soundmap.protocol.LocationCodec;
+import ca.mcgill.cim.soundmap.protocol.NameTable;
+import ca.mcgill.cim.soundmap.protocol.UserPositions;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.Buffer;
+
+/**
+ * Push channel for target assignments and user positions, replacing the "Wait" polling of
+ * /location.
+ *
+ * The server pushes a target the moment it has been computed, and streams the other users'
+ * positions as deltas over the same WebSocket. Messages are single text frames:
+ *
+ *      T McGill:45.50,-73.57          new target for this user
+ *      S Foo:45.50,-73.57;Bar:...     full snapshot of the other users
+ *      U Foo:45.51,-73.57             users that joined or moved
+ *      R Foo;Bar                      users that left
+ *
+ * The client asks for its next target with "N lat,lng" once a sample has been uploaded.
+ *
+ * Payloads are decoded with a {@link LocationCodec} into a user table that is kept up to date
+ * in place, so a delta allocates nothing per user, and the listener copies it into a table of
+ * its own when it is told of a change. Changes that arrive before the listener has run are
+ * reported once.
+ */
+public class AssignmentChannel {
+
+    private static final String TAG = "AssignmentChannel";
+
+    public static final String CHANNEL_URL = HttpClients.SERVER_URL + "/channel";
+
+    private static final int NORMAL_CLOSURE = 1000;
+
+    public interface Listener {
+        void onTarget(String tag, double lat, double lng);
+
+        /**
+         * The user table changed; read it with {@link #getUsers(UserPositions)}.
+         */
+        void onUsersChanged();
+
+        /**
+         * The channel is gone (or never opened); the caller should fall back to polling.
+         */
+        void onChannelClosed();
+    }
+
+    private final OkHttpClient mClient;
+    private final String mUrl;
+    private final String mUser;
+    private final Listener mListener;
+    private final Executor mCallbackExecutor;
+
+    // Guarded by mUsers, along with the codec and its input
+    private final UserPositions mUsers = new UserPositions();
+    private final LocationCodec mCodec = new LocationCodec(new NameTable());
+    private final Buffer mPayload = new Buffer();
+
+    private final AtomicBoolean mIsUsersChangePending = new AtomicBoolean();
+    private final Runnable mUsersChanged = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first, so that a change made while the listener reads is reported again
+            mIsUsersChangePending.set(false);
+            mListener.onUsersChanged();
+        }
+    };
+
+    private WebSocket mSocket;
+    private volatile boolean mIsOpen = false;
+
+    /**
+     * @param callbackExecutor where the listener is called, e.g. the UI thread
+     */
+    public AssignmentChannel(OkHttpClient client, String url, String user, Listener listener,
+                             Executor callbackExecutor) {
+        mClient = client;
+        mUrl = url;
+        mUser = user;
+        mListener = listener;
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    public synchronized void open() {
+        if (mSocket != null) {
+            return;
+        }
+
+        Request request = new Request.Builder()
+                .url(mUrl)
+                .header("username", mUser)
+                .build();
+        mSocket = mClient.newWebSocket(request, new SocketListener());
+    }
+
+    public synchronized void close() {
+        if (mSocket != null) {
+            mSocket.close(NORMAL_CLOSURE, null);
+            mSocket = null;
+        }
+        mIsOpen = false;
+    }
+
+    public boolean isOpen() {
+        return mIsOpen;
+    }
+
+    /**
+     * Asks the server for the next target at the given position; the answer is pushed.
+     *
+     * @return false if the channel is not open, in which case the caller should poll
+     */
+    public synchronized boolean requestNextTarget(double lat, double lng) {
+        return mIsOpen && mSocket != null
+                && mSocket.send(String.format(Locale.US, "N %s,%s", lat, lng));
+    }
+
+    /**
+     * Copies the current user table into the given one, reusing its arrays.
+     */
+    public void getUsers(UserPositions out) {
+        synchronized (mUsers) {
+            out.copyFrom(mUsers);
+        }
+    }
+
+    void handleMessage(String message) {
+        if (message.length() < 2 || message.charAt(1) != ' ') {
+            //Log.w(TAG, "handleMessage: Malformed message - " + message);
+            return;
+        }
+
+        char type = message.charAt(0);
+        synchronized (mUsers) {
+            mPayload.writeUtf8(message, 2, message.length());
+            try {
+                switch (type) {
+                    case 'T':
+                        final String[] target = new String[1];
+                        final double[] coords = new double[2];
+                        if (mCodec.readTarget(mPayload, target, coords)) {
+                            dispatch(new Runnable() {
+                                @Override
+                                public void run() {
+                                    mListener.onTarget(target[0], coords[0], coords[1]);
+                                }
+                            });
+                        }
+                        break;
+                    case 'S':
+                        mUsers.clear();
+                        mCodec.readUpdates(mPayload, mUsers);
+                        notifyUsersChanged();
+                        break;
+                    case 'U':
+                        mCodec.readUpdates(mPayload, mUsers);
+                        notifyUsersChanged();
+                        break;
+                    case 'R':
+                        mCodec.readRemovals(mPayload, mUsers);
+                        notifyUsersChanged();
+                        break;
+                    default:
+                        //Log.w(TAG, "handleMessage: Unknown message - " + message);
+                        break;
+                }
+            } catch (IOException e) {
+                // Not thrown by an in-memory buffer
+                //Log.w(TAG, "handleMessage: Unreadable message - " + e.toString());
+            } finally {
+                mPayload.clear();
+            }
+        }
+    }
+
+    private void notifyUsersChanged() {
+        if (mIsUsersChangePending.compareAndSet(false, true)) {
+            dispatch(mUsersChanged);
+        }
+    }
+
+    private void dispatch(Runnable runnable) {
+        mCallbackExecutor.execute(runnable);
+    }
+
+    private void handleClosed(WebSocket socket) {
+        synchronized (this) {
+            // Ignore a late callback from a socket that has been replaced
+            if (socket != mSocket) {
+                return;
+            }
+            mSocket = null;
+            mIsOpen = false;
+        }
+
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onChannelClosed();
+            }
+        });
+    }
+
+    private class SocketListener extends WebSocketListener {
+        @Override
+        public void onOpen(WebSocket webSocket, Response response) {
+            synchronized (AssignmentChannel.this) {
+                // Ignore a late callback from a socket that has been replaced or closed
+                if (webSocket == mSocket) {
+                    mIsOpen = true;
+                }
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+            handleMessage(text);
+        }
+
+        @Override
+        public void onClosing(WebSocket webSocket, int code, String reason) {
+            webSocket.close(NORMAL_CLOSURE, null);
+            handleClosed(webSocket);
+        }
+
+        @Override
+        public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+            //Log.w(TAG, "onFailure: Push channel unavailable - " + t.toString());
+            handleClosed(webSocket);
+        }
+    }
+}
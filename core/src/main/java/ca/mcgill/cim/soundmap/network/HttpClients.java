@@ -0,0 +1,192 @@
+package ca.mcgill.cim.soundmap.network;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * App-wide HTTP clients.
+ *
+ * All clients are derived from one base client, so they share its dispatcher, thread pool and
+ * connection pool; the server connection is kept alive between the upload, /location and
+ * /users calls instead of being re-established for each one. Only the timeouts differ per
+ * endpoint.
+ *
+ * HTTP/2 is offered but is only negotiated over TLS (ALPN); the plain-text server on port 5000
+ * is reached over HTTP/1.1 with keep-alive.
+ */
+public final class HttpClients {
+
+    public static final String SERVER_URL = "http://sandeepmanjanna.dlinkddns.com:5000";
+
+    private static final int MAX_REQUESTS = 16;
+    private static final int MAX_REQUESTS_PER_HOST = 8;
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final int KEEP_ALIVE = 5;           // min
+    private static final int CONNECT_TIMEOUT = 15;     // s
+    private static final int CHANNEL_PING_INTERVAL = 30; // s
+
+    private static volatile boolean sIsGzipEnabled = false;
+
+    private static OkHttpClient sBase;
+    private static OkHttpClient sLocation;
+    private static OkHttpClient sUsers;
+    private static OkHttpClient sUpload;
+    private static OkHttpClient sStreaming;
+    private static OkHttpClient sChannel;
+
+    private HttpClients() {}
+
+    private static synchronized OkHttpClient base() {
+        if (sBase == null) {
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequests(MAX_REQUESTS);
+            dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+            sBase = new OkHttpClient.Builder()
+                    .dispatcher(dispatcher)
+                    .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE,
+                            TimeUnit.MINUTES))
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .connectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS)
+                    .addInterceptor(new GzipRequestInterceptor())
+                    .eventListenerFactory(NetworkStats.FACTORY)
+                    .build();
+        }
+        return sBase;
+    }
+
+    /**
+     * /location may be held by the server while it computes the next target.
+     */
+    public static synchronized OkHttpClient forLocation() {
+        if (sLocation == null) {
+            sLocation = base().newBuilder()
+                    .readTimeout(30, TimeUnit.SECONDS)
+                    .writeTimeout(10, TimeUnit.SECONDS)
+                    .build();
+        }
+        return sLocation;
+    }
+
+    /**
+     * /users is a plain lookup and should answer quickly.
+     */
+    public static synchronized OkHttpClient forUsers() {
+        if (sUsers == null) {
+            sUsers = base().newBuilder()
+                    .readTimeout(10, TimeUnit.SECONDS)
+                    .writeTimeout(10, TimeUnit.SECONDS)
+                    .build();
+        }
+        return sUsers;
+    }
+
+    /**
+     * Sample uploads write megabytes over slow links.
+     */
+    public static synchronized OkHttpClient forUpload() {
+        if (sUpload == null) {
+            sUpload = base().newBuilder()
+                    .readTimeout(60, TimeUnit.SECONDS)
+                    .writeTimeout(60, TimeUnit.SECONDS)
+                    .build();
+        }
+        return sUpload;
+    }
+
+    /**
+     * Uploads whose body is produced while it is sent; such a body cannot be replayed, so
+     * OkHttp must not retry it silently.
+     */
+    public static synchronized OkHttpClient forStreaming() {
+        if (sStreaming == null) {
+            sStreaming = forUpload().newBuilder()
+                    .retryOnConnectionFailure(false)
+                    .build();
+        }
+        return sStreaming;
+    }
+
+    /**
+     * The push channel stays open indefinitely; pings detect a dead connection instead of a
+     * read timeout.
+     */
+    public static synchronized OkHttpClient forChannel() {
+        if (sChannel == null) {
+            sChannel = base().newBuilder()
+                    .readTimeout(0, TimeUnit.SECONDS)
+                    .pingInterval(CHANNEL_PING_INTERVAL, TimeUnit.SECONDS)
+                    .build();
+        }
+        return sChannel;
+    }
+
+    /**
+     * Gzip request bodies of known length (form fields, metadata). The server has to accept
+     * "Content-Encoding: gzip", so this is off by default. Audio and streamed bodies are never
+     * compressed.
+     */
+    public static void setGzipEnabled(boolean enabled) {
+        sIsGzipEnabled = enabled;
+    }
+
+    private static class GzipRequestInterceptor implements Interceptor {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            RequestBody body = request.body();
+
+            if (!sIsGzipEnabled || body == null || body.contentLength() < 0
+                    || request.header("Content-Encoding") != null
+                    || isBinary(body.contentType())) {
+                return chain.proceed(request);
+            }
+
+            return chain.proceed(request.newBuilder()
+                    .header("Content-Encoding", "gzip")
+                    .method(request.method(), gzip(body))
+                    .build());
+        }
+
+        // Audio doesn't compress, and multipart bodies carry the audio
+        private static boolean isBinary(MediaType type) {
+            return type != null
+                    && ("audio".equals(type.type()) || "multipart".equals(type.type()));
+        }
+
+        private static RequestBody gzip(final RequestBody body) {
+            return new RequestBody() {
+                @Override
+                public MediaType contentType() {
+                    return body.contentType();
+                }
+
+                @Override
+                public long contentLength() {
+                    return -1; // Unknown once compressed
+                }
+
+                @Override
+                public void writeTo(BufferedSink sink) throws IOException {
+                    BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+                    body.writeTo(gzipSink);
+                    gzipSink.close();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package ca.mcgill.cim.soundmap.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+
+/**
+ * Counters for every call made through {@link HttpClients}.
+ *
+ * A call that acquires a connection without opening one has reused a pooled connection, so
+ * comparing the two counters shows whether the per-cycle handshakes are really gone.
+ */
+public final class NetworkStats {
+
+    private static final AtomicLong sCalls = new AtomicLong();
+    private static final AtomicLong sFailures = new AtomicLong();
+    private static final AtomicLong sConnectionsOpened = new AtomicLong();
+    private static final AtomicLong sConnectionsAcquired = new AtomicLong();
+    private static final AtomicLong sTotalLatency = new AtomicLong(); // ns
+    private static final AtomicLong sMaxLatency = new AtomicLong();   // ns
+
+    private NetworkStats() {}
+
+    public static long getCalls() {
+        return sCalls.get();
+    }
+
+    public static long getFailures() {
+        return sFailures.get();
+    }
+
+    public static long getConnectionsOpened() {
+        return sConnectionsOpened.get();
+    }
+
+    public static long getConnectionsReused() {
+        return Math.max(0, sConnectionsAcquired.get() - sConnectionsOpened.get());
+    }
+
+    public static double getMeanLatencyMillis() {
+        long calls = sCalls.get();
+        return calls == 0 ? 0 : sTotalLatency.get() / 1e6 / calls;
+    }
+
+    public static double getMaxLatencyMillis() {
+        return sMaxLatency.get() / 1e6;
+    }
+
+    public static String summary() {
+        return "calls=" + getCalls()
+                + " failed=" + getFailures()
+                + " opened=" + getConnectionsOpened()
+                + " reused=" + getConnectionsReused()
+                + " meanLatency=" + Math.round(getMeanLatencyMillis()) + "ms"
+                + " maxLatency=" + Math.round(getMaxLatencyMillis()) + "ms";
+    }
+
+    static final EventListener.Factory FACTORY = new EventListener.Factory() {
+        @Override
+        public EventListener create(Call call) {
+            return new CallListener();
+        }
+    };
+
+    // One instance per call, so the start time needs no synchronization
+    private static class CallListener extends EventListener {
+        private long mStart;
+
+        @Override
+        public void callStart(Call call) {
+            mStart = System.nanoTime();
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+            sConnectionsOpened.incrementAndGet();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            sConnectionsAcquired.incrementAndGet();
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            record();
+        }
+
+        @Override
+        public void callFailed(Call call, IOException e) {
+            sFailures.incrementAndGet();
+            record();
+        }
+
+        private void record() {
+            long latency = System.nanoTime() - mStart;
+            sCalls.incrementAndGet();
+            sTotalLatency.addAndGet(latency);
+
+            long max;
+            do {
+                max = sMaxLatency.get();
+            } while (latency > max && !sMaxLatency.compareAndSet(max, latency));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package ca.mcgill.cim.soundmap.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * A request body that is written while it is being sent.
+ *
+ * The producer (the recorder) hands frames over with {@link #write(byte[], int, int)} and the
+ * consumer (OkHttp) drains them in {@link #writeTo(BufferedSink)}. Since the length is not
+ * known up front, the body is sent with chunked transfer encoding.
+ *
+ * The producer never blocks: if the upload falls more than the queue capacity behind, the
+ * stream is abandoned and the caller is expected to fall back to uploading the finished file.
+ */
+public class StreamingUploadBody extends RequestBody {
+
+    private static final int POLL_TIMEOUT = 100; // ms
+
+    private final MediaType mContentType;
+    private final BlockingQueue<byte[]> mChunks;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    private volatile boolean mIsFinished = false;
+    private volatile boolean mIsAborted = false;
+    private volatile boolean mIsCancelled = false;
+    private boolean mIsConsumed = false;
+
+    public StreamingUploadBody(MediaType contentType, int capacity) {
+        mContentType = contentType;
+        mChunks = new ArrayBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public MediaType contentType() {
+        return mContentType;
+    }
+
+    @Override
+    public long contentLength() {
+        // Unknown until the recording stops --> chunked encoding
+        return -1;
+    }
+
+    /**
+     * Queues a copy of the given bytes for upload. Returns false if the stream has been
+     * abandoned, in which case nothing else will be sent.
+     */
+    public boolean write(byte[] buffer, int offset, int length) {
+        if (mIsAborted || mIsFinished) {
+            return false;
+        }
+
+        if (!mChunks.offer(Arrays.copyOfRange(buffer, offset, offset + length))) {
+            // The upload cannot keep up with the recorder
+            abort();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Marks the end of the stream once the last frame has been written.
+     */
+    public void finish() {
+        mIsFinished = true;
+        mDone.countDown();
+    }
+
+    /**
+     * Abandons the stream; an upload in progress fails instead of sending a truncated sample.
+     * The recording goes on, and {@link #awaitFinished()} still waits for it to end.
+     */
+    public void abort() {
+        mIsAborted = true;
+        mChunks.clear();
+    }
+
+    /**
+     * Abandons the stream because the recording itself is discarded.
+     */
+    public void cancel() {
+        mIsCancelled = true;
+        abort();
+        mDone.countDown();
+    }
+
+    public boolean isAborted() {
+        return mIsAborted;
+    }
+
+    /**
+     * Blocks until the producer has either finished or cancelled the recording.
+     *
+     * @return true if the recording finished, even if the stream itself was abandoned
+     */
+    public boolean awaitFinished() {
+        try {
+            mDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !mIsCancelled;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        // The chunks are consumed as they are sent, so the body cannot be replayed
+        synchronized (this) {
+            if (mIsConsumed) {
+                throw new IOException("Streaming body cannot be sent twice");
+            }
+            mIsConsumed = true;
+        }
+
+        try {
+            while (true) {
+                if (mIsAborted) {
+                    throw new IOException("Stream aborted by the producer");
+                }
+
+                byte[] chunk = mChunks.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (chunk != null) {
+                    sink.write(chunk);
+                    sink.flush();
+                } else if (mIsFinished && mChunks.isEmpty()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while streaming the upload");
+        }
+    }
+}
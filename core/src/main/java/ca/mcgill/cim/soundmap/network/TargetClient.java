@@ -0,0 +1,238 @@
+package ca.mcgill.cim.soundmap.network;
+
+import java.io.IOException;
+
+import ca.mcgill.cim.soundmap.protocol.BinaryCodec;
+import ca.mcgill.cim.soundmap.protocol.LocationCodec;
+import ca.mcgill.cim.soundmap.protocol.NameTable;
+import ca.mcgill.cim.soundmap.protocol.UserPositions;
+import ca.mcgill.cim.soundmap.protocol.WireFormat;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Buffer;
+
+/**
+ * The /location exchange: the next target for a user at a position, either assigned outright or
+ * offered ahead of time, while the current sample is still being recorded.
+ *
+ * Prefetching extends the request with two headers:
+ *
+ *      prefetch: 1         which target would follow a sample taken here? The server answers
+ *                          as usual (target or "Wait"), plus a "prefetch-id" naming the offer,
+ *                          but does not assign it yet.
+ *      prefetch-id: <id>   the sample is uploaded; take the offer. The server answers 204 if it
+ *                          still stands, and is now assigned, or with the target it assigns
+ *                          instead.
+ *
+ * A server that does not know the extension ignores the header and assigns the target at once;
+ * its answer has no "prefetch-id", so the target is already confirmed.
+ *
+ * A batch of targets is asked for with a "count: <K>" header. The server assigns up to K targets
+ * and answers with them as a list, in the /users format ("tag:lat,lng;..."), or "Wait". A server
+ * without batches answers with a single target, which is read as a batch of one.
+ */
+public class TargetClient {
+
+    private static final String TAG = "TargetClient";
+
+    private static final String PREFETCH_HEADER = "prefetch";
+    private static final String PREFETCH_ID_HEADER = "prefetch-id";
+    private static final String COUNT_HEADER = "count";
+    private static final String SERVER_WAIT_STRING = "Wait";
+    private static final int NO_CONTENT = 204;
+
+    /**
+     * A target, with the offer it stands for until it is confirmed.
+     */
+    public static final class Target {
+        public final String tag;
+        public final double lat;
+        public final double lng;
+        private final String mOffer;
+
+        /**
+         * A target already assigned, such as one of a batch.
+         */
+        public Target(String tag, double lat, double lng) {
+            this(tag, lat, lng, null);
+        }
+
+        Target(String tag, double lat, double lng, String offer) {
+            this.tag = tag;
+            this.lat = lat;
+            this.lng = lng;
+            mOffer = offer;
+        }
+
+        /**
+         * False for a prefetched target the server has not assigned yet.
+         */
+        public boolean isConfirmed() {
+            return mOffer == null;
+        }
+
+        @Override
+        public String toString() {
+            return tag + ":" + lat + "," + lng + (mOffer != null ? " (offer " + mOffer + ")" : "");
+        }
+    }
+
+    // Returned while the server has no target yet
+    public static final Target WAIT = new Target(SERVER_WAIT_STRING, 0, 0, null);
+
+    // Returned by fetchBatch when the server could not be reached or made no sense
+    public static final int UNREACHABLE = -1;
+
+    private final OkHttpClient mClient;
+    private final String mUrl;
+    private final NameTable mNames;
+
+    public TargetClient(OkHttpClient client, String url, NameTable names) {
+        mClient = client;
+        mUrl = url;
+        mNames = names;
+    }
+
+    /**
+     * Asks for the next target and has it assigned.
+     *
+     * @return the target, {@link #WAIT}, or null if the server could not be reached
+     */
+    public Target fetch(String user, double lat, double lng) {
+        return exchange(newRequest(user, lat, lng), null, false);
+    }
+
+    /**
+     * Asks which target would follow a sample taken at the given position, without having it
+     * assigned.
+     *
+     * @return the offered target, {@link #WAIT}, or null if the server could not be reached
+     */
+    public Target prefetch(String user, double lat, double lng) {
+        return exchange(newRequest(user, lat, lng).header(PREFETCH_HEADER, "1"), null, true);
+    }
+
+    /**
+     * Takes up an offer once the sample is uploaded. A confirmed target is returned as is,
+     * without a request.
+     *
+     * @return the offered target, now confirmed, the one assigned instead, {@link #WAIT}, or
+     *         null if the server could not be reached
+     */
+    public Target confirm(String user, Target offer, double lat, double lng) {
+        if (offer.isConfirmed()) {
+            return offer;
+        }
+        return exchange(newRequest(user, lat, lng).header(PREFETCH_ID_HEADER, offer.mOffer),
+                offer, false);
+    }
+
+    /**
+     * Asks for up to count targets at once and has them all assigned.
+     *
+     * @param out receives the targets, in the order the server gave them
+     * @return the number of targets added, 0 if the server said to wait, or {@link #UNREACHABLE}
+     */
+    public int fetchBatch(String user, double lat, double lng, int count, UserPositions out) {
+        Request request = newRequest(user, lat, lng)
+                .header(COUNT_HEADER, Integer.toString(count))
+                .build();
+        int before = out.size();
+
+        try {
+            //Log.d(TAG, "fetchBatch: attempting get request to server");
+            Response response = mClient.newCall(request).execute();
+            try {
+                // An error page is not a batch; the caller retries
+                if (!response.isSuccessful()) {
+                    //Log.e(TAG, "fetchBatch: Server responded " + response.code());
+                    return UNREACHABLE;
+                }
+                if (WireFormat.isBinary(response)) {
+                    new BinaryCodec(mNames).readTargets(response.body().source(), out);
+                    return out.size() - before;
+                }
+
+                /**
+                 * Example Response:
+                 *      McGill:45.504812985241564,-73.57715606689453;Concordia:45.49,-73.58
+                 */
+
+                String res = response.body().string();
+                if (res.equals(SERVER_WAIT_STRING)) {
+                    return 0;
+                }
+                if (new LocationCodec(mNames).readUsers(new Buffer().writeUtf8(res), out) == 0) {
+                    //Log.e(TAG, "fetchBatch: Could not parse targets");
+                    return UNREACHABLE;
+                }
+                return out.size() - before;
+            } finally {
+                response.close();
+            }
+        } catch (IOException e) {
+            //Log.e(TAG, "fetchBatch: Error - " + e.getMessage());
+            return UNREACHABLE;
+        }
+    }
+
+    private Request.Builder newRequest(String user, double lat, double lng) {
+        // The coordinates go as text headers, or packed once the server is known to speak binary
+        Request.Builder builder = new Request.Builder()
+                .url(mUrl)
+                .header("username", user);
+        return WireFormat.prepare(builder, lat, lng);
+    }
+
+    // Only the answer to a prefetch is an offer; anything else is assigned already
+    private Target exchange(Request.Builder request, Target offer, boolean isPrefetch) {
+        String[] tag = new String[1];
+        double[] coords = new double[2];
+
+        try {
+            //Log.d(TAG, "exchange: attempting get request to server");
+            Response response = mClient.newCall(request.build()).execute();
+            try {
+                if (!response.isSuccessful()) {
+                    //Log.e(TAG, "exchange: Server responded " + response.code());
+                    return null;
+                }
+                if (offer != null && response.code() == NO_CONTENT) {
+                    return new Target(offer.tag, offer.lat, offer.lng, null);
+                }
+
+                String id = isPrefetch ? response.header(PREFETCH_ID_HEADER) : null;
+                if (WireFormat.isBinary(response)) {
+                    BinaryCodec codec = new BinaryCodec(mNames);
+                    if (codec.readTarget(response.body().source(), tag, coords)
+                            == BinaryCodec.TYPE_WAIT) {
+                        return WAIT;
+                    }
+                    return new Target(tag[0], coords[0], coords[1], id);
+                }
+
+                /**
+                 * Example Response:
+                 *      McGill:45.504812985241564,-73.57715606689453
+                 */
+
+                String res = response.body().string();
+                if (res.equals(SERVER_WAIT_STRING)) {
+                    return WAIT;
+                }
+                if (!new LocationCodec(mNames).readTarget(new Buffer().writeUtf8(res), tag,
+                        coords)) {
+                    //Log.e(TAG, "exchange: Could not parse coordinates");
+                    return null;
+                }
+                return new Target(tag[0], coords[0], coords[1], id);
+            } finally {
+                response.close();
+            }
+        } catch (IOException e) {
+            //Log.e(TAG, "exchange: Error - " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package ca.mcgill.cim.soundmap.network;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ca.mcgill.cim.soundmap.audio.AcousticFeatures;
+import ca.mcgill.cim.soundmap.protocol.WireFormat;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Persistent queue of samples waiting to be uploaded.
+ *
+ * Every change is appended to a journal in the cache directory before it takes effect, so
+ * pending samples and their progress survive dead zones, process death and reboots. A failed
+ * upload is retried after an exponential backoff. The workers share the app-wide upload client
+ * and its connection pool.
+ *
+ * A sample is posted whole to /upload, with the usual "username", "location" and "audio" parts
+ * and its "features" part if they were saved, as any server takes it. A server that can resume
+ * uploads says so by answering with an "Upload-Offset" header, the byte it expects next. Once
+ * one has been seen, samples are sent in chunks, each a POST of the same parts plus "offset"
+ * and "total" (the features with the last chunk only); each acknowledged chunk is journaled,
+ * and a failed upload resumes from the last acknowledged byte. Until then, a failed upload is
+ * sent again whole, so a server that takes every POST as a complete sample never gets part of
+ * one.
+ */
+public class UploadQueue {
+
+    private static final String TAG = "UploadQueue";
+
+    private static final String FILE_UPLOAD_URL = HttpClients.SERVER_URL + "/upload";
+
+    private static final String JOURNAL_NAME = "uploads.journal";
+    private static final String JOURNAL_ADD = "ADD";
+    private static final String JOURNAL_ACK = "ACK";
+    private static final String JOURNAL_DONE = "DONE";
+    private static final String OFFSET_HEADER = "Upload-Offset";
+
+    private static final MediaType FEATURES = MediaType.parse(AcousticFeatures.MEDIA_TYPE);
+
+    private static final int MAX_CONCURRENT_UPLOADS = 3;
+    private static final int CHUNK_SIZE = 256 * 1024;      // bytes
+    private static final long INITIAL_BACKOFF = 2000;      // ms
+    private static final long MAX_BACKOFF = 5 * 60 * 1000; // ms (5 min)
+
+    private static UploadQueue sInstance;
+
+    public static synchronized UploadQueue getInstance(File cacheDir) {
+        if (sInstance == null) {
+            sInstance = new UploadQueue(new File(cacheDir, JOURNAL_NAME));
+            sInstance.resume();
+        }
+        return sInstance;
+    }
+
+    private final File mJournal;
+    private final Map<String, Entry> mPending = new LinkedHashMap<>();
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final Random mJitter = new Random();
+    private final OkHttpClient mClient;
+    private final String mUrl;
+    private final long mInitialBackoff;
+
+    // Whether the server has said it can resume uploads, see the chunk protocol above
+    private volatile boolean mIsResumable = false;
+
+    UploadQueue(File journal) {
+        this(journal, HttpClients.forUpload(), FILE_UPLOAD_URL, INITIAL_BACKOFF);
+    }
+
+    UploadQueue(File journal, OkHttpClient client, String url, long initialBackoff) {
+        mJournal = journal;
+        mClient = client;
+        mUrl = url;
+        mInitialBackoff = initialBackoff;
+        mExecutor = new ScheduledThreadPoolExecutor(MAX_CONCURRENT_UPLOADS);
+    }
+
+    /**
+     * Adds a finished sample to the queue; it is sent as soon as a worker is free.
+     */
+    public void enqueue(String sampleFile, String user, double lat, double lng) {
+        File file = new File(sampleFile);
+        Entry entry = new Entry(file.getName(), file, user, lat, lng, file.length());
+
+        synchronized (this) {
+            if (mPending.containsKey(entry.id)) {
+                return;
+            }
+            try {
+                appendToJournal(JOURNAL_ADD, entry.id, file.getAbsolutePath(), user,
+                        Double.toString(lat), Double.toString(lng), Long.toString(entry.total));
+            } catch (IOException e) {
+                //Log.e(TAG, "enqueue: Could not journal the sample - " + e.toString());
+            }
+            mPending.put(entry.id, entry);
+        }
+
+        schedule(entry, 0);
+    }
+
+    /**
+     * Whether the sample is still waiting to be (completely) uploaded.
+     */
+    public synchronized boolean isPending(String sampleFile) {
+        return mPending.containsKey(new File(sampleFile).getName());
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    // Stops the workers, for tests
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    // Schedules the samples left in the journal
+    void resume() {
+        List<Entry> entries;
+        synchronized (this) {
+            try {
+                replayJournal();
+                compactJournal();
+            } catch (IOException e) {
+                //Log.e(TAG, "resume: Could not read the journal - " + e.toString());
+            }
+            entries = new ArrayList<>(mPending.values());
+        }
+
+        for (Entry entry : entries) {
+            schedule(entry, 0);
+        }
+    }
+
+    private void schedule(final Entry entry, long delay) {
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                upload(entry);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void upload(Entry entry) {
+        if (!entry.file.exists()) {
+            // Nothing left to send
+            complete(entry);
+            return;
+        }
+
+        try {
+            while (entry.offset < entry.total) {
+                // Whole, from the start, unless the server can take the rest of it
+                boolean isRanged = mIsResumable;
+                long from = isRanged ? entry.offset : 0;
+                long length = isRanged ? Math.min(CHUNK_SIZE, entry.total - from) : entry.total;
+                long next = send(entry, from, length, isRanged);
+                if (next == entry.offset || next < 0 || next > entry.total) {
+                    throw new RetryableException("No progress at offset " + entry.offset);
+                }
+                acknowledge(entry, next);
+            }
+            complete(entry);
+        } catch (RetryableException | IOException e) {
+            //Log.w(TAG, "upload: " + entry.id + " failed at " + entry.offset + " - " + e);
+            entry.attempts++;
+            schedule(entry, backoff(entry.attempts));
+        } catch (FatalException e) {
+            //Log.e(TAG, "upload: Server rejected " + entry.id + " - " + e.getMessage());
+            complete(entry);
+        }
+    }
+
+    // Returns the byte the server expects next
+    private long send(Entry entry, long from, long length, boolean isRanged)
+            throws IOException, RetryableException, FatalException {
+        MultipartBody.Builder builder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("username", entry.user);
+        WireFormat.addLocationPart(builder, entry.lat, entry.lng);
+        if (isRanged) {
+            builder.addFormDataPart("offset", Long.toString(from))
+                    .addFormDataPart("total", Long.toString(entry.total));
+        }
+        builder.addFormDataPart("audio", entry.id, new FileRangeBody(entry.file, from, length));
+
+        File features = new File(AcousticFeatures.fileFor(entry.file.getPath()));
+        if (from + length == entry.total && features.exists()) {
+            builder.addFormDataPart("features", features.getName(),
+                    RequestBody.create(FEATURES, features));
+        }
+        MultipartBody body = builder.build();
+
+        Request request = new Request.Builder()
+                .url(mUrl)
+                .post(body)
+                .build();
+
+        Response response = mClient.newCall(request).execute();
+        try {
+            String committed = response.header(OFFSET_HEADER);
+            if (committed != null) {
+                mIsResumable = true;
+            }
+
+            if (response.isSuccessful()) {
+                if (committed != null) {
+                    return parseOffset(committed);
+                } else if (!isRanged) {
+                    return entry.total;
+                }
+                // The server no longer says what it holds; send the sample again whole
+                mIsResumable = false;
+                throw new RetryableException("No " + OFFSET_HEADER + " for a chunk");
+            } else if (response.code() == 409 && committed != null) {
+                // The server holds a different prefix of the file; resume from there
+                return parseOffset(committed);
+            } else if (response.code() >= 500 || response.code() == 408
+                    || response.code() == 429) {
+                throw new RetryableException("HTTP " + response.code());
+            } else {
+                throw new FatalException("HTTP " + response.code());
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    private static long parseOffset(String header) throws RetryableException {
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            throw new RetryableException("Malformed " + OFFSET_HEADER + ": " + header);
+        }
+    }
+
+    private long backoff(int attempts) {
+        long delay = mInitialBackoff << Math.min(attempts - 1, 16);
+        delay = Math.min(delay, MAX_BACKOFF);
+
+        // Spread the retries out so that several devices leaving a dead zone don't sync up
+        synchronized (mJitter) {
+            return delay / 2 + (long) (mJitter.nextDouble() * delay / 2);
+        }
+    }
+
+    private synchronized void acknowledge(Entry entry, long offset) throws IOException {
+        appendToJournal(JOURNAL_ACK, entry.id, Long.toString(offset));
+        entry.offset = offset;
+        entry.attempts = 0;
+    }
+
+    private synchronized void complete(Entry entry) {
+        try {
+            appendToJournal(JOURNAL_DONE, entry.id);
+        } catch (IOException e) {
+            //Log.e(TAG, "complete: Could not journal the sample - " + e.toString());
+        }
+        mPending.remove(entry.id);
+
+        if (mPending.isEmpty() && !mJournal.delete()) {
+            //Log.w(TAG, "complete: Could not truncate the journal");
+        }
+    }
+
+    // Journal ------------------------------------------------------------------------------------
+
+    private void appendToJournal(String... fields) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                line.append('\t');
+            }
+            line.append(fields[i].replace('\t', ' ').replace('\n', ' '));
+        }
+        line.append('\n');
+
+        FileOutputStream out = new FileOutputStream(mJournal, true);
+        try {
+            out.write(line.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void replayJournal() throws IOException {
+        if (!mJournal.exists()) {
+            return;
+        }
+
+        BufferedReader reader = new BufferedReader(new FileReader(mJournal));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+
+                // A torn last line from a crash is simply ignored
+                try {
+                    if (fields[0].equals(JOURNAL_ADD) && fields.length == 7) {
+                        mPending.put(fields[1], new Entry(fields[1], new File(fields[2]),
+                                fields[3], Double.parseDouble(fields[4]),
+                                Double.parseDouble(fields[5]), Long.parseLong(fields[6])));
+                    } else if (fields[0].equals(JOURNAL_ACK) && fields.length == 3) {
+                        Entry entry = mPending.get(fields[1]);
+                        if (entry != null) {
+                            entry.offset = Long.parseLong(fields[2]);
+                            // Only a server that can resume acknowledges part of a sample
+                            if (entry.offset > 0 && entry.offset < entry.total) {
+                                mIsResumable = true;
+                            }
+                        }
+                    } else if (fields[0].equals(JOURNAL_DONE) && fields.length == 2) {
+                        mPending.remove(fields[1]);
+                    }
+                } catch (NumberFormatException e) {
+                    //Log.w(TAG, "replayJournal: Skipping malformed line");
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void compactJournal() throws IOException {
+        // Rewrite the journal with only what is still pending
+        File compacted = new File(mJournal.getPath() + ".tmp");
+        if (compacted.exists() && !compacted.delete()) {
+            throw new IOException("Could not clear " + compacted);
+        }
+
+        for (Entry entry : mPending.values()) {
+            String[] add = {JOURNAL_ADD, entry.id, entry.file.getAbsolutePath(), entry.user,
+                    Double.toString(entry.lat), Double.toString(entry.lng),
+                    Long.toString(entry.total)};
+            String[] ack = {JOURNAL_ACK, entry.id, Long.toString(entry.offset)};
+            appendTo(compacted, add);
+            appendTo(compacted, ack);
+        }
+
+        if (mPending.isEmpty()) {
+            if (mJournal.exists() && !mJournal.delete()) {
+                throw new IOException("Could not clear " + mJournal);
+            }
+        } else if (!compacted.renameTo(mJournal)) {
+            throw new IOException("Could not replace " + mJournal);
+        }
+    }
+
+    private static void appendTo(File file, String[] fields) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                line.append('\t');
+            }
+            line.append(fields[i]);
+        }
+        line.append('\n');
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(line.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    // Types --------------------------------------------------------------------------------------
+
+    private static class Entry {
+        final String id;
+        final File file;
+        final String user;
+        final double lat;
+        final double lng;
+        final long total;
+        long offset = 0;
+        int attempts = 0;
+
+        Entry(String id, File file, String user, double lat, double lng, long total) {
+            this.id = id;
+            this.file = file;
+            this.user = user;
+            this.lat = lat;
+            this.lng = lng;
+            this.total = total;
+        }
+    }
+
+    /**
+     * Sends a slice of a file without reading it all into memory.
+     */
+    private static class FileRangeBody extends RequestBody {
+        private final File mFile;
+        private final long mOffset;
+        private final long mLength;
+
+        FileRangeBody(File file, long offset, long length) {
+            mFile = file;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return null;
+        }
+
+        @Override
+        public long contentLength() {
+            return mLength;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            InputStream in = new FileInputStream(mFile);
+            try {
+                long skipped = 0;
+                while (skipped < mOffset) {
+                    long n = in.skip(mOffset - skipped);
+                    if (n <= 0) {
+                        throw new IOException("File shorter than the upload offset");
+                    }
+                    skipped += n;
+                }
+
+                Source source = Okio.source(in);
+                sink.write(source, mLength);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static class RetryableException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        RetryableException(String message) {
+            super(message);
+        }
+    }
+
+    private static class FatalException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        FatalException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package ca.mcgill.cim.soundmap.protocol;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+
+/**
+ * Compact binary encoding of locations, targets and user lists (version 1).
+ *
+ * Coordinates are fixed point: degrees * 10^7 in an int32, i.e. ~1 cm resolution. Every
+ * message starts with a version byte and a type byte:
+ *
+ *      LOCATION    int32 lat, int32 lng                                    (10 bytes)
+ *      TARGET      varint tag length, tag (UTF-8), int32 lat, int32 lng
+ *      WAIT        nothing; the server has no target yet
+ *      USERS       varint count, then per user: varint name length, name (UTF-8),
+ *                  zigzag varint lat delta, zigzag varint lng delta
+ *      TARGETS     a batch of targets, laid out as USERS with the tags for names
+ *
+ * User coordinates are deltas from the previous user (the first from 0), so users close to
+ * each other cost a few bytes each. Integers are big endian.
+ */
+public final class BinaryCodec {
+
+    public static final int VERSION = 1;
+
+    public static final int TYPE_LOCATION = 1;
+    public static final int TYPE_TARGET = 2;
+    public static final int TYPE_WAIT = 3;
+    public static final int TYPE_USERS = 4;
+    public static final int TYPE_TARGETS = 5;
+
+    private static final double FIXED_POINT_SCALE = 1e7;
+    private static final int MAX_NAME_LENGTH = 256;
+
+    private final NameTable mNames;
+    private final byte[] mScratch = new byte[MAX_NAME_LENGTH];
+
+    public BinaryCodec(NameTable names) {
+        mNames = names;
+    }
+
+    // Encoding -----------------------------------------------------------------------------------
+
+    public static int toFixed(double degrees) {
+        return (int) Math.round(degrees * FIXED_POINT_SCALE);
+    }
+
+    public static double fromFixed(int fixed) {
+        return fixed / FIXED_POINT_SCALE;
+    }
+
+    public static byte[] encodeLocation(double lat, double lng) {
+        Buffer buffer = new Buffer();
+        try {
+            writeLocation(buffer, lat, lng);
+        } catch (IOException e) {
+            throw new AssertionError(e); // In memory
+        }
+        return buffer.readByteArray();
+    }
+
+    public static void writeLocation(BufferedSink sink, double lat, double lng)
+            throws IOException {
+        sink.writeByte(VERSION);
+        sink.writeByte(TYPE_LOCATION);
+        sink.writeInt(toFixed(lat));
+        sink.writeInt(toFixed(lng));
+    }
+
+    public static void writeTarget(BufferedSink sink, String tag, double lat, double lng)
+            throws IOException {
+        sink.writeByte(VERSION);
+        sink.writeByte(TYPE_TARGET);
+        writeString(sink, tag);
+        sink.writeInt(toFixed(lat));
+        sink.writeInt(toFixed(lng));
+    }
+
+    public static void writeWait(BufferedSink sink) throws IOException {
+        sink.writeByte(VERSION);
+        sink.writeByte(TYPE_WAIT);
+    }
+
+    public static void writeUsers(BufferedSink sink, UserPositions users) throws IOException {
+        writePositions(sink, TYPE_USERS, users);
+    }
+
+    public static void writeTargets(BufferedSink sink, UserPositions targets)
+            throws IOException {
+        writePositions(sink, TYPE_TARGETS, targets);
+    }
+
+    private static void writePositions(BufferedSink sink, int type, UserPositions users)
+            throws IOException {
+        sink.writeByte(VERSION);
+        sink.writeByte(type);
+        writeVarint(sink, users.size());
+
+        int lastLat = 0;
+        int lastLng = 0;
+        for (int i = 0; i < users.size(); i++) {
+            int lat = toFixed(users.getLat(i));
+            int lng = toFixed(users.getLng(i));
+
+            writeString(sink, users.getName(i));
+            writeVarint(sink, zigzag(lat - lastLat));
+            writeVarint(sink, zigzag(lng - lastLng));
+
+            lastLat = lat;
+            lastLng = lng;
+        }
+    }
+
+    private static void writeString(BufferedSink sink, String value) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        writeVarint(sink, bytes.length);
+        sink.write(bytes);
+    }
+
+    /**
+     * Unsigned LEB128, 7 bits a byte, low bits first. Shared with the other compact formats,
+     * e.g. {@link ca.mcgill.cim.soundmap.map.NoiseCells}.
+     */
+    public static void writeVarint(BufferedSink sink, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            sink.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        sink.writeByte(value);
+    }
+
+    /**
+     * Maps small negative and positive values to small unsigned ones, for {@link #writeVarint}.
+     */
+    public static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // Decoding -----------------------------------------------------------------------------------
+
+    /**
+     * Reads a TARGET or WAIT message.
+     *
+     * @return the message type, TYPE_TARGET with the tag and coordinates filled in, or
+     *         TYPE_WAIT
+     * @throws IOException if the message is truncated or of another type or version
+     */
+    public int readTarget(BufferedSource source, String[] tag, double[] coords)
+            throws IOException {
+        int type = readHeader(source);
+        if (type == TYPE_WAIT) {
+            return type;
+        } else if (type != TYPE_TARGET) {
+            throw new IOException("Expected a target, got message type " + type);
+        }
+
+        tag[0] = readName(source);
+        source.require(8);
+        coords[0] = fromFixed(source.readInt());
+        coords[1] = fromFixed(source.readInt());
+        return type;
+    }
+
+    /**
+     * Appends the users of a USERS message to the output.
+     *
+     * @return the number of users added
+     */
+    public int readUsers(BufferedSource source, UserPositions out) throws IOException {
+        int type = readHeader(source);
+        if (type != TYPE_USERS) {
+            throw new IOException("Expected users, got message type " + type);
+        }
+        return readPositions(source, out);
+    }
+
+    /**
+     * Reads a TARGETS, TARGET or WAIT message, appending the targets to the output; a server
+     * that does not send batches answers a batch request with a single target.
+     *
+     * @return the message type
+     * @throws IOException if the message is truncated or of another type or version
+     */
+    public int readTargets(BufferedSource source, UserPositions out) throws IOException {
+        int type = readHeader(source);
+        if (type == TYPE_TARGETS) {
+            readPositions(source, out);
+        } else if (type == TYPE_TARGET) {
+            String tag = readName(source);
+            source.require(8);
+            out.add(tag, fromFixed(source.readInt()), fromFixed(source.readInt()));
+        } else if (type != TYPE_WAIT) {
+            throw new IOException("Expected targets, got message type " + type);
+        }
+        return type;
+    }
+
+    private int readPositions(BufferedSource source, UserPositions out) throws IOException {
+        int count = readVarint(source);
+        int lat = 0;
+        int lng = 0;
+        for (int i = 0; i < count; i++) {
+            String name = readName(source);
+            lat += unzigzag(readVarint(source));
+            lng += unzigzag(readVarint(source));
+            out.add(name, fromFixed(lat), fromFixed(lng));
+        }
+        return count;
+    }
+
+    /**
+     * Reads a LOCATION message into {lat, lng}.
+     */
+    public static void readLocation(BufferedSource source, double[] coords) throws IOException {
+        int type = readHeader(source);
+        if (type != TYPE_LOCATION) {
+            throw new IOException("Expected a location, got message type " + type);
+        }
+        source.require(8);
+        coords[0] = fromFixed(source.readInt());
+        coords[1] = fromFixed(source.readInt());
+    }
+
+    private static int readHeader(BufferedSource source) throws IOException {
+        source.require(2);
+        int version = source.readByte() & 0xFF;
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version " + version);
+        }
+        return source.readByte() & 0xFF;
+    }
+
+    private String readName(BufferedSource source) throws IOException {
+        int length = readVarint(source);
+        if (length < 0 || length > MAX_NAME_LENGTH) {
+            throw new IOException("Name too long: " + length);
+        }
+
+        int read = 0;
+        while (read < length) {
+            int n = source.read(mScratch, read, length - read);
+            if (n < 0) {
+                throw new IOException("Truncated name");
+            }
+            read += n;
+        }
+        return mNames.intern(mScratch, length);
+    }
+
+    public static int readVarint(BufferedSource source) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = source.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
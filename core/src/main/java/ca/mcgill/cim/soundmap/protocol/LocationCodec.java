@@ -0,0 +1,285 @@
+package ca.mcgill.cim.soundmap.protocol;
+
+import java.io.IOException;
+
+import okio.BufferedSource;
+
+/**
+ * Decoder for the text wire format of /location and /users, and of the push channel payloads.
+ *
+ * Example payloads:
+ *      McGill:45.504812985241564,-73.57715606689453
+ *      Foo:45.50,-73.57;Bar:45.55,-73.23
+ *      Foo;Bar                                         (names only, for users that left)
+ *
+ * Entries are read byte by byte straight from the response source, names are interned
+ * through a {@link NameTable} and coordinates are parsed without going through a String, so
+ * decoding a response does not allocate per entry. Malformed entries are skipped.
+ *
+ * An instance keeps scratch state and must not be shared between threads.
+ */
+public final class LocationCodec {
+
+    private static final int MAX_NAME_LENGTH = 256;
+    private static final int MAX_DIGITS = 18;   // fits in a long
+    private static final int END_OF_STREAM = -1;
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final NameTable mNames;
+    private final byte[] mScratch = new byte[MAX_NAME_LENGTH];
+
+    // Result of the last readEntry()
+    private String mName;
+    private double mLat;
+    private double mLng;
+
+    // The delimiter that ended the last token, or END_OF_STREAM
+    private int mDelimiter;
+
+    public LocationCodec(NameTable names) {
+        mNames = names;
+    }
+
+    /**
+     * Appends every well formed "name:lat,lng" entry of a ';' separated list to the output.
+     *
+     * @return the number of entries added
+     */
+    public int readUsers(BufferedSource source, UserPositions out) throws IOException {
+        int added = 0;
+        while (!source.exhausted()) {
+            if (readEntry(source)) {
+                out.add(mName, mLat, mLng);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Moves or adds every well formed "name:lat,lng" entry of a ';' separated list in the
+     * output, which is kept up to date this way instead of being filled anew.
+     *
+     * @return the number of entries read
+     */
+    public int readUpdates(BufferedSource source, UserPositions out) throws IOException {
+        int updated = 0;
+        while (!source.exhausted()) {
+            if (readEntry(source)) {
+                out.put(mName, mLat, mLng);
+                updated++;
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Removes every name of a ';' separated list from the output.
+     *
+     * @return the number of names that were in the output
+     */
+    public int readRemovals(BufferedSource source, UserPositions out) throws IOException {
+        int removed = 0;
+        while (!source.exhausted()) {
+            if (readBareName(source) && out.remove(mName)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Reads a single "tag:lat,lng" entry.
+     *
+     * @param tag receives the tag at index 0
+     * @param coords receives the latitude and longitude
+     * @return false if the payload is not a well formed entry
+     */
+    public boolean readTarget(BufferedSource source, String[] tag, double[] coords)
+            throws IOException {
+        if (source.exhausted() || !readEntry(source)) {
+            return false;
+        }
+
+        tag[0] = mName;
+        coords[0] = mLat;
+        coords[1] = mLng;
+        return true;
+    }
+
+    // Reads up to and including the next ';' (or the end of the stream)
+    private boolean readEntry(BufferedSource source) throws IOException {
+        if (!readName(source)) {
+            skipEntry(source);
+            return false;
+        }
+
+        mLat = readNumber(source);
+        if (mDelimiter != ',') {
+            skipEntry(source);
+            return false;
+        }
+
+        mLng = readNumber(source);
+        // Anything after the longitude is ignored
+        skipEntry(source);
+
+        return !Double.isNaN(mLat) && !Double.isNaN(mLng);
+    }
+
+    private boolean readName(BufferedSource source) throws IOException {
+        int length = 0;
+        while (true) {
+            if (source.exhausted()) {
+                mDelimiter = END_OF_STREAM;
+                return false;
+            }
+
+            byte b = source.readByte();
+            if (b == ':') {
+                mDelimiter = b;
+                break;
+            } else if (b == ';') {
+                mDelimiter = b;
+                return false;
+            } else if (length == MAX_NAME_LENGTH) {
+                mDelimiter = b & 0xFF;
+                return false;
+            }
+            mScratch[length++] = b;
+        }
+
+        if (length == 0) {
+            return false;
+        }
+        mName = mNames.intern(mScratch, length);
+        return true;
+    }
+
+    // Reads up to and including the next ';' (or the end of the stream)
+    private boolean readBareName(BufferedSource source) throws IOException {
+        int length = 0;
+        boolean isTooLong = false;
+        while (!source.exhausted()) {
+            byte b = source.readByte();
+            if (b == ';') {
+                break;
+            } else if (length == MAX_NAME_LENGTH) {
+                isTooLong = true;
+            } else {
+                mScratch[length++] = b;
+            }
+        }
+
+        // Trailing padding, e.g. a newline
+        while (length > 0 && mScratch[length - 1] <= ' ') {
+            length--;
+        }
+
+        if (length == 0 || isTooLong) {
+            return false;
+        }
+        mName = mNames.intern(mScratch, length);
+        return true;
+    }
+
+    // Parses a decimal number ending at ',', ';' or the end of the stream; NaN if malformed
+    private double readNumber(BufferedSource source) throws IOException {
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;      // power of ten to divide the mantissa by
+        int exponent = 0;
+        boolean isNegative = false;
+        boolean isExponentNegative = false;
+        boolean hasDigits = false;
+        boolean hasSign = false;
+        boolean hasPoint = false;
+        boolean inExponent = false;
+        boolean hasExponentDigits = false;
+        boolean isValid = true;
+
+        while (true) {
+            if (source.exhausted()) {
+                mDelimiter = END_OF_STREAM;
+                break;
+            }
+
+            byte b = source.readByte();
+            if (b == ',' || b == ';') {
+                mDelimiter = b;
+                break;
+            }
+            if (!isValid) {
+                continue;
+            }
+
+            if (b >= '0' && b <= '9') {
+                if (inExponent) {
+                    exponent = Math.min(exponent * 10 + (b - '0'), 1000);
+                    hasExponentDigits = true;
+                } else {
+                    hasDigits = true;
+                    if (mantissa == 0 && b == '0') {
+                        // Leading zeros carry no precision
+                        if (hasPoint) {
+                            scale++;
+                        }
+                    } else if (digits < MAX_DIGITS) {
+                        mantissa = mantissa * 10 + (b - '0');
+                        digits++;
+                        if (hasPoint) {
+                            scale++;
+                        }
+                    } else if (!hasPoint) {
+                        // Past the precision of a long; keep the magnitude only
+                        scale--;
+                    }
+                }
+            } else if (b == '.' && !hasPoint && !inExponent) {
+                hasPoint = true;
+            } else if ((b == '-' || b == '+') && !hasDigits && !hasSign && !hasPoint) {
+                isNegative = b == '-';
+                hasSign = true;
+            } else if ((b == '-' || b == '+') && inExponent && !hasExponentDigits) {
+                isExponentNegative = b == '-';
+            } else if ((b == 'e' || b == 'E') && hasDigits && !inExponent) {
+                inExponent = true;
+            } else if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                // Padding, e.g. a trailing newline
+            } else {
+                isValid = false;
+            }
+        }
+
+        if (!isValid || !hasDigits || (inExponent && !hasExponentDigits)) {
+            return Double.NaN;
+        }
+
+        scale -= isExponentNegative ? -exponent : exponent;
+
+        double value = mantissa;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (scale > 0) {
+            value = scale < POW10.length ? value / POW10[scale] : value / Math.pow(10, scale);
+        } else if (scale < 0) {
+            value = -scale < POW10.length ? value * POW10[-scale] : value * Math.pow(10, -scale);
+        }
+
+        return isNegative ? -value : value;
+    }
+
+    private void skipEntry(BufferedSource source) throws IOException {
+        while (mDelimiter != ';' && mDelimiter != END_OF_STREAM) {
+            if (source.exhausted()) {
+                mDelimiter = END_OF_STREAM;
+            } else {
+                mDelimiter = source.readByte() & 0xFF;
+            }
+        }
+    }
+}
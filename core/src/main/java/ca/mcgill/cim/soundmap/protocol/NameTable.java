@@ -0,0 +1,108 @@
+package ca.mcgill.cim.soundmap.protocol;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Interns names decoded from raw bytes.
+ *
+ * The same users come back in every /users response, so after the first response a lookup
+ * finds the existing String without creating a new one. Lookups are made directly on the
+ * decoder's scratch bytes.
+ */
+public final class NameTable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 64; // must be a power of 2
+    private static final int MAX_SIZE = 1 << 16;    // cleared when exceeded
+
+    private byte[][] mKeys = new byte[INITIAL_CAPACITY][];
+    private String[] mValues = new String[INITIAL_CAPACITY];
+    private int mSize = 0;
+
+    public synchronized String intern(byte[] bytes, int length) {
+        int hash = hash(bytes, length);
+        int mask = mKeys.length - 1;
+
+        // Linear probing
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            byte[] key = mKeys[i];
+            if (key == null) {
+                break;
+            }
+            if (equals(key, bytes, length)) {
+                return mValues[i];
+            }
+        }
+
+        if (mSize >= MAX_SIZE) {
+            // Don't let a stream of one-off names grow the table forever
+            clear();
+        }
+
+        String value = new String(bytes, 0, length, UTF_8);
+        put(Arrays.copyOf(bytes, length), value, hash);
+        return value;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mKeys, null);
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+
+    private void put(byte[] key, String value, int hash) {
+        // Keep the load factor under 1/2
+        if ((mSize + 1) * 2 > mKeys.length) {
+            grow();
+        }
+
+        int mask = mKeys.length - 1;
+        int i = hash & mask;
+        while (mKeys[i] != null) {
+            i = (i + 1) & mask;
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize++;
+    }
+
+    private void grow() {
+        byte[][] keys = mKeys;
+        String[] values = mValues;
+        mKeys = new byte[keys.length * 2][];
+        mValues = new String[values.length * 2];
+        mSize = 0;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                put(keys[i], values[i], hash(keys[i], keys[i].length));
+            }
+        }
+    }
+
+    private static int hash(byte[] bytes, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        // Spread the high bits, the table is indexed with the low ones
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(byte[] key, byte[] bytes, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
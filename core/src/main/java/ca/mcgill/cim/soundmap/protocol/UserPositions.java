@@ -0,0 +1,130 @@
+package ca.mcgill.cim.soundmap.protocol;
+
+import java.util.Arrays;
+
+/**
+ * A list of named positions kept in parallel primitive arrays.
+ *
+ * Filling it does not allocate per entry; the arrays only grow when a response is larger than
+ * any seen before by this instance. It can also be kept up to date with {@link #put} and
+ * {@link #remove}, for deltas that name users one by one.
+ */
+public final class UserPositions {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private String[] mNames;
+    private double[] mLats;
+    private double[] mLngs;
+    private int mSize = 0;
+
+    public UserPositions() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public UserPositions(int capacity) {
+        capacity = Math.max(1, capacity);
+        mNames = new String[capacity];
+        mLats = new double[capacity];
+        mLngs = new double[capacity];
+    }
+
+    public void add(String name, double lat, double lng) {
+        ensureCapacity(mSize + 1);
+        mNames[mSize] = name;
+        mLats[mSize] = lat;
+        mLngs[mSize] = lng;
+        mSize++;
+    }
+
+    /**
+     * Moves the named position, or adds it at the end if the name is not in the list yet.
+     */
+    public void put(String name, double lat, double lng) {
+        int i = indexOf(name);
+        if (i < 0) {
+            add(name, lat, lng);
+        } else {
+            mLats[i] = lat;
+            mLngs[i] = lng;
+        }
+    }
+
+    /**
+     * Removes the named position; the others keep their order.
+     *
+     * @return false if the name is not in the list
+     */
+    public boolean remove(String name) {
+        int i = indexOf(name);
+        if (i < 0) {
+            return false;
+        }
+
+        int tail = mSize - i - 1;
+        System.arraycopy(mNames, i + 1, mNames, i, tail);
+        System.arraycopy(mLats, i + 1, mLats, i, tail);
+        System.arraycopy(mLngs, i + 1, mLngs, i, tail);
+        mNames[--mSize] = null;
+        return true;
+    }
+
+    /**
+     * Replaces the contents with those of another list, reusing the arrays of this one.
+     */
+    public void copyFrom(UserPositions other) {
+        clear();
+        ensureCapacity(other.mSize);
+        System.arraycopy(other.mNames, 0, mNames, 0, other.mSize);
+        System.arraycopy(other.mLats, 0, mLats, 0, other.mSize);
+        System.arraycopy(other.mLngs, 0, mLngs, 0, other.mSize);
+        mSize = other.mSize;
+    }
+
+    /**
+     * @return the index of the name, or -1; names decoded through one {@link NameTable} are
+     * the same String, so this is usually a reference comparison
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < mSize; i++) {
+            if (mNames[i] == name || mNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void clear() {
+        Arrays.fill(mNames, 0, mSize, null);
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public String getName(int i) {
+        return mNames[i];
+    }
+
+    public double getLat(int i) {
+        return mLats[i];
+    }
+
+    public double getLng(int i) {
+        return mLngs[i];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mNames.length) {
+            capacity = Math.max(capacity, mNames.length * 2);
+            mNames = Arrays.copyOf(mNames, capacity);
+            mLats = Arrays.copyOf(mLats, capacity);
+            mLngs = Arrays.copyOf(mLngs, capacity);
+        }
+    }
+}
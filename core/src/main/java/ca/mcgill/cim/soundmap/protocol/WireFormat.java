@@ -0,0 +1,88 @@
+package ca.mcgill.cim.soundmap.protocol;
+
+import java.util.Locale;
+
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.ByteString;
+
+/**
+ * Negotiates between the text wire format and {@link BinaryCodec}.
+ *
+ * Every request advertises the binary format in its Accept header, with text as the fallback.
+ * The server answers in the format it prefers, and the Content-Type of its responses tells the
+ * client whether it can also send binary metadata (upload locations, request coordinates).
+ * Until the server has answered in binary once, everything is sent as text.
+ */
+public final class WireFormat {
+
+    public static final String BINARY_TYPE = "application/x-soundmap-v1";
+    public static final MediaType BINARY = MediaType.parse(BINARY_TYPE);
+
+    private static final String ACCEPT = BINARY_TYPE + ", text/plain;q=0.5";
+    private static final String LOCATION_HEADER = "location-bin";
+
+    private static volatile boolean sIsServerBinary = false;
+
+    private WireFormat() {}
+
+    public static boolean isServerBinary() {
+        return sIsServerBinary;
+    }
+
+    /**
+     * Adds the Accept header and the user's coordinates, in the best format the server is
+     * known to understand.
+     */
+    public static Request.Builder prepare(Request.Builder builder, double lat, double lng) {
+        builder.header("Accept", ACCEPT);
+
+        if (sIsServerBinary) {
+            builder.header(LOCATION_HEADER,
+                    ByteString.of(BinaryCodec.encodeLocation(lat, lng)).base64Url());
+        } else {
+            builder.header("lat", Double.toString(lat));
+            builder.header("lng", Double.toString(lng));
+        }
+        return builder;
+    }
+
+    public static Request.Builder prepare(Request.Builder builder) {
+        return builder.header("Accept", ACCEPT);
+    }
+
+    /**
+     * @return true if the response body is binary; also remembers that the server speaks it
+     */
+    public static boolean isBinary(Response response) {
+        MediaType type = response.body() != null ? response.body().contentType() : null;
+        boolean isBinary = type != null
+                && BINARY_TYPE.equals(type.type() + "/" + type.subtype());
+        if (isBinary) {
+            sIsServerBinary = true;
+        }
+        return isBinary;
+    }
+
+    /**
+     * Adds the "location" form field of an upload.
+     */
+    public static void addLocationPart(MultipartBody.Builder builder, double lat, double lng) {
+        if (sIsServerBinary) {
+            builder.addFormDataPart("location", null,
+                    RequestBody.create(BINARY, BinaryCodec.encodeLocation(lat, lng)));
+        } else {
+            builder.addFormDataPart("location", formatLocation(lat, lng));
+        }
+    }
+
+    /**
+     * The text form the server has always received, i.e. LatLng.toString().
+     */
+    public static String formatLocation(double lat, double lng) {
+        return String.format(Locale.US, "lat/lng: (%s,%s)", lat, lng);
+    }
+}
@@ -0,0 +1,119 @@
+package ca.mcgill.cim.soundmap.tasks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One background thread for all the periodic work of an activity, replacing a Timer per task.
+ *
+ * Tasks stay registered across {@link #pause()} and {@link #resume()}, so the activity can
+ * stop every tick in onPause and bring them all back in onResume without remembering which
+ * ones were running. A paused scheduler keeps no thread awake.
+ */
+public class PeriodicScheduler {
+
+    private static final String TAG = "PeriodicScheduler";
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    // task --> period (ms), and the running future of each task while resumed
+    private final Map<Runnable, Long> mPeriods = new LinkedHashMap<>();
+    private final Map<Runnable, ScheduledFuture<?>> mFutures = new LinkedHashMap<>();
+
+    private boolean mIsPaused = false;
+    private boolean mIsShutdown = false;
+
+    public PeriodicScheduler(final String threadName) {
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.setRemoveOnCancelPolicy(true);
+        mExecutor.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Runs the task now and then every period until it is cancelled; a late tick is not caught
+     * up with a burst. Scheduling a task again replaces its period. While paused, the task only
+     * starts on {@link #resume()}.
+     */
+    public synchronized void schedule(Runnable task, long period) {
+        if (mIsShutdown) {
+            return;
+        }
+
+        stop(task);
+        mPeriods.put(task, period);
+        if (!mIsPaused) {
+            start(task, period);
+        }
+    }
+
+    public synchronized void cancel(Runnable task) {
+        stop(task);
+        mPeriods.remove(task);
+    }
+
+    public synchronized boolean isScheduled(Runnable task) {
+        return mPeriods.containsKey(task);
+    }
+
+    public synchronized void pause() {
+        mIsPaused = true;
+        for (ScheduledFuture<?> future : mFutures.values()) {
+            future.cancel(false);
+        }
+        mFutures.clear();
+    }
+
+    public synchronized void resume() {
+        if (!mIsPaused || mIsShutdown) {
+            return;
+        }
+
+        mIsPaused = false;
+        for (Map.Entry<Runnable, Long> task : mPeriods.entrySet()) {
+            start(task.getKey(), task.getValue());
+        }
+    }
+
+    public synchronized boolean isPaused() {
+        return mIsPaused;
+    }
+
+    public synchronized void shutdown() {
+        mIsShutdown = true;
+        mPeriods.clear();
+        mFutures.clear();
+        mExecutor.shutdownNow();
+    }
+
+    private void start(final Runnable task, long period) {
+        mFutures.put(task, mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                // A throwing task would otherwise be silently dropped by the executor
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    //Log.e(TAG, "run: Periodic task failed - " + e.toString());
+                }
+            }
+        }, 0, period, TimeUnit.MILLISECONDS));
+    }
+
+    private void stop(Runnable task) {
+        ScheduledFuture<?> future = mFutures.remove(task);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package ca.mcgill.cim.soundmap.tasks;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background work run on a {@link TaskPool}, with the same lifecycle as an AsyncTask:
+ * {@link #onPreExecute()} on the thread that submits it, {@link #doInBackground()} on a thread
+ * of the pool, and progress and the result on the callback executor of the pool (the main
+ * thread, in the app). A task that is cancelled or fails gets {@link #onCancelled(Object)}
+ * instead of {@link #onPostExecute(Object)}, exactly once either way. An exception thrown by
+ * {@link #doInBackground()} is logged and rethrown on the thread of the pool once
+ * {@link #onCancelled(Object)} is delivered, so that a bug crashes the app as it would have in
+ * an AsyncTask.
+ *
+ * A task runs once; submit a new one to run the same work again.
+ */
+public abstract class Task<Progress, Result> {
+
+    private static final String TAG = "Task";
+
+    private static final Logger LOG = Logger.getLogger(TAG);
+
+    /**
+     * Queued tasks of a higher priority start first; tasks of the same priority start in the
+     * order they were submitted.
+     */
+    public enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    public enum Status {
+        PENDING, QUEUED, RUNNING, FINISHED
+    }
+
+    // How a run ended, for the counters of the pool; a failed run throws instead
+    enum Outcome {
+        COMPLETED, CANCELLED
+    }
+
+    private final AtomicBoolean mIsCancelled = new AtomicBoolean(false);
+    private volatile Status mStatus = Status.PENDING;
+    private volatile Priority mPriority = Priority.NORMAL;
+
+    // Set when the task is submitted; the thread only while doInBackground() runs
+    private TaskPool mPool;
+    private Runnable mJob;
+    private Executor mCallbacks;
+    private Thread mThread;
+
+    protected abstract Result doInBackground();
+
+    protected void onPreExecute() {
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void onProgressUpdate(Progress... values) {
+    }
+
+    protected void onPostExecute(Result result) {
+    }
+
+    protected void onCancelled(Result result) {
+        onCancelled();
+    }
+
+    protected void onCancelled() {
+    }
+
+    /**
+     * Must be called before the task is submitted.
+     */
+    public final Task<Progress, Result> setPriority(Priority priority) {
+        if (mStatus != Status.PENDING) {
+            throw new IllegalStateException("Task already submitted");
+        }
+        mPriority = priority;
+        return this;
+    }
+
+    public final Priority getPriority() {
+        return mPriority;
+    }
+
+    public final Status getStatus() {
+        return mStatus;
+    }
+
+    public final boolean isCancelled() {
+        return mIsCancelled.get();
+    }
+
+    /**
+     * Stops the task from starting if it is still queued, or flags it so that
+     * {@link #doInBackground()} can return early, interrupting its thread if asked to. Either
+     * way its result goes to {@link #onCancelled(Object)}.
+     *
+     * @return false if the task had already finished or been cancelled
+     */
+    public final boolean cancel(boolean mayInterruptIfRunning) {
+        if (mStatus == Status.FINISHED || !mIsCancelled.compareAndSet(false, true)) {
+            return false;
+        }
+
+        TaskPool pool;
+        Runnable job;
+        synchronized (this) {
+            if (mThread != null && mayInterruptIfRunning) {
+                mThread.interrupt();
+            }
+            pool = mPool;
+            job = mJob;
+        }
+
+        // A job taken off the queue never runs, so its cancellation is delivered from here
+        if (pool != null && pool.dequeue(job)) {
+            deliver(null);
+        }
+        return true;
+    }
+
+    /**
+     * Shows the values in {@link #onProgressUpdate} on the callback executor, unless the task
+     * is cancelled by then.
+     */
+    @SafeVarargs
+    protected final void publishProgress(final Progress... values) {
+        if (isCancelled() || mCallbacks == null) {
+            return;
+        }
+
+        mCallbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCancelled()) {
+                    onProgressUpdate(values);
+                }
+            }
+        });
+    }
+
+    synchronized void submit(TaskPool pool, Runnable job, Executor callbacks) {
+        if (mStatus != Status.PENDING) {
+            throw new IllegalStateException("Task already submitted");
+        }
+        mPool = pool;
+        mJob = job;
+        mCallbacks = callbacks;
+        mStatus = Status.QUEUED;
+    }
+
+    /**
+     * Cancels a task the pool had no room for.
+     */
+    void reject() {
+        mIsCancelled.set(true);
+        synchronized (this) {
+            mJob = null;
+        }
+        deliver(null);
+    }
+
+    /**
+     * Runs the task on the calling thread of the pool and delivers its result.
+     *
+     * @throws RuntimeException what {@link #doInBackground()} threw, once the task is cancelled
+     */
+    Outcome run() {
+        boolean isStarted;
+        synchronized (this) {
+            mJob = null;
+            isStarted = !isCancelled();
+            if (isStarted) {
+                mThread = Thread.currentThread();
+                mStatus = Status.RUNNING;
+            }
+        }
+        if (!isStarted) {
+            deliver(null);
+            return Outcome.CANCELLED;
+        }
+
+        Result result = null;
+        RuntimeException failure = null;
+        try {
+            result = doInBackground();
+        } catch (RuntimeException e) {
+            mIsCancelled.set(true);
+            failure = e;
+        } finally {
+            synchronized (this) {
+                mThread = null;
+            }
+            // An interrupt from cancel() must not carry over to the next task of the thread
+            Thread.interrupted();
+        }
+
+        deliver(result);
+        if (failure != null) {
+            LOG.log(Level.SEVERE, "run: " + getClass().getName() + " failed", failure);
+            throw failure;
+        }
+        return isCancelled() ? Outcome.CANCELLED : Outcome.COMPLETED;
+    }
+
+    private void deliver(final Result result) {
+        Runnable callback = new Runnable() {
+            @Override
+            public void run() {
+                mStatus = Status.FINISHED;
+                if (isCancelled()) {
+                    onCancelled(result);
+                } else {
+                    onPostExecute(result);
+                }
+            }
+        };
+
+        if (mCallbacks != null) {
+            mCallbacks.execute(callback);
+        } else {
+            callback.run();
+        }
+    }
+}
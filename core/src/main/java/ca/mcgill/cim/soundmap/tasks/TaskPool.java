@@ -0,0 +1,281 @@
+package ca.mcgill.cim.soundmap.tasks;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of threads for one kind of work, so that a slow upload cannot hold up the
+ * microphone and a long encode cannot hold up the next target.
+ *
+ * Up to a fixed number of tasks run at once; the rest wait in a queue ordered by
+ * {@link Task.Priority}, which holds at most a fixed number of them. A task submitted to a full
+ * queue is rejected: it is cancelled instead of growing the backlog. Idle threads time out, so
+ * a quiet pool keeps none awake.
+ *
+ * A task or command that throws is counted as failed and its exception is rethrown on the
+ * thread, which the pool then replaces; on Android, the default handler crashes the app.
+ *
+ * The counters (queue depth, waits, outcomes) are there to size the pools from real sessions.
+ */
+public class TaskPool implements Executor {
+
+    private static final String TAG = "TaskPool";
+
+    private static final Logger LOG = Logger.getLogger(TAG);
+
+    private static final long KEEP_ALIVE = 30; // s
+
+    private final String mName;
+    private final int mThreads;
+    private final int mCapacity;
+    private final Executor mCallbacks;
+    private final ThreadPoolExecutor mExecutor;
+
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicInteger mPending = new AtomicInteger(); // queued or running
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicLong mStarted = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mCancelled = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mTotalWait = new AtomicLong();   // ns
+    private int mMaxDepth = 0;
+
+    /**
+     * @param threads   tasks run at once
+     * @param capacity  tasks that may wait for a thread
+     * @param callbacks where progress and results are delivered
+     */
+    public TaskPool(String name, int threads, int capacity, Executor callbacks) {
+        this(name, threads, capacity, callbacks, Thread.NORM_PRIORITY);
+    }
+
+    public TaskPool(final String name, int threads, int capacity, Executor callbacks,
+                    final int threadPriority) {
+        this(name, threads, capacity, callbacks, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + " #" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(threadPriority);
+                return thread;
+            }
+        });
+    }
+
+    public TaskPool(String name, int threads, int capacity, Executor callbacks,
+                    ThreadFactory threadFactory) {
+        if (threads < 1 || capacity < 0) {
+            throw new IllegalArgumentException("Invalid pool size for " + name);
+        }
+
+        mName = name;
+        mThreads = threads;
+        mCapacity = capacity;
+        mCallbacks = callbacks;
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), threadFactory);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the task, after running its {@link Task#onPreExecute()} on the calling thread.
+     *
+     * @return false if the queue was full, in which case the task is cancelled
+     * @throws IllegalStateException if the task was already submitted
+     */
+    public boolean execute(Task<?, ?> task) {
+        Job job = new Job(task.getPriority(), task, null);
+        task.submit(this, job, mCallbacks);
+        task.onPreExecute();
+
+        if (!enqueue(job)) {
+            task.reject();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs plain work, such as a long-running loop, on a thread of the pool.
+     *
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public void execute(Runnable command, Task.Priority priority) {
+        if (!enqueue(new Job(priority, null, command))) {
+            throw new RejectedExecutionException(mName + " is full");
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        execute(command, Task.Priority.NORMAL);
+    }
+
+    /**
+     * Lets the running and queued tasks finish, and accepts no more.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return mMaxDepth;
+    }
+
+    public int getActiveCount() {
+        return mActive.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    public long getCancelledCount() {
+        return mCancelled.get();
+    }
+
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * How long the tasks that started waited in the queue, on average.
+     */
+    public double getMeanWaitMillis() {
+        long started = mStarted.get();
+        return started == 0 ? 0 : mTotalWait.get() / 1e6 / started;
+    }
+
+    public String summary() {
+        return mName + ":"
+                + " active=" + getActiveCount()
+                + " queued=" + getQueueDepth()
+                + " maxQueued=" + getMaxQueueDepth()
+                + " done=" + getCompletedCount()
+                + " cancelled=" + getCancelledCount()
+                + " failed=" + getFailedCount()
+                + " rejected=" + getRejectedCount()
+                + " meanWait=" + Math.round(getMeanWaitMillis()) + "ms";
+    }
+
+    private synchronized boolean enqueue(Job job) {
+        if (mExecutor.isShutdown() || mPending.get() >= mThreads + mCapacity) {
+            mRejected.incrementAndGet();
+            return false;
+        }
+
+        mPending.incrementAndGet();
+        mExecutor.execute(job);
+        mMaxDepth = Math.max(mMaxDepth, getQueueDepth());
+        return true;
+    }
+
+    /**
+     * Takes a job off the queue before it starts.
+     *
+     * @return false if the job has already started, or was never queued
+     */
+    boolean dequeue(Runnable job) {
+        if (job != null && mExecutor.remove(job)) {
+            mPending.decrementAndGet();
+            mCancelled.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private final class Job implements Runnable, Comparable<Job> {
+        private final Task.Priority mPriority;
+        private final long mSequence;
+        private final long mQueuedAt = System.nanoTime();
+        private final Task<?, ?> mTask;
+        private final Runnable mCommand;
+
+        Job(Task.Priority priority, Task<?, ?> task, Runnable command) {
+            mPriority = priority;
+            mSequence = TaskPool.this.mSequence.getAndIncrement();
+            mTask = task;
+            mCommand = command;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mPriority != other.mPriority) {
+                return mPriority.compareTo(other.mPriority);
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            mStarted.incrementAndGet();
+            mTotalWait.addAndGet(System.nanoTime() - mQueuedAt);
+            mActive.incrementAndGet();
+            try {
+                if (mTask != null) {
+                    runTask();
+                } else {
+                    runCommand();
+                }
+            } finally {
+                mActive.decrementAndGet();
+                mPending.decrementAndGet();
+            }
+        }
+
+        // A failure is counted, then takes its thread down with it; the executor replaces it
+        private void runTask() {
+            Task.Outcome outcome;
+            try {
+                outcome = mTask.run();
+            } catch (RuntimeException e) {
+                mFailed.incrementAndGet();
+                throw e;
+            }
+            if (outcome == Task.Outcome.COMPLETED) {
+                mCompleted.incrementAndGet();
+            } else {
+                mCancelled.incrementAndGet();
+            }
+        }
+
+        private void runCommand() {
+            try {
+                mCommand.run();
+                mCompleted.incrementAndGet();
+            } catch (RuntimeException e) {
+                LOG.log(Level.SEVERE, "run: Command failed on " + mName, e);
+                mFailed.incrementAndGet();
+                throw e;
+            }
+        }
+    }
+}
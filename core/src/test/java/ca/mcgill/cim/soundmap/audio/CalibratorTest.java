@@ -0,0 +1,140 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CalibratorTest {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    @Test
+    public void aReferenceToneSetsTheOffset() {
+        Calibrator calibrator = new Calibrator(SAMPLE_RATE, 2);
+        // A calibrator 0.5 % off, in some background noise, heard at -30 dBFS
+        byte[] pcm = tone(1005, -30, 3, 2, 100);
+
+        calibrator.begin(1000, Calibrator.REFERENCE_LEVEL);
+        feed(calibrator, pcm, 3000);
+        assertEquals(-30, calibrator.end(), 0.1);
+
+        CalibrationProfile profile = calibrator.build("Phone", CalibrationProfile.Source.MIC);
+        assertEquals(124, profile.getOffset(), 0.1);
+        assertTrue(profile.isCalibrated());
+        assertTrue(!profile.hasCorrections());
+    }
+
+    @Test
+    public void noToneFailsTheMeasurement() {
+        Calibrator calibrator = new Calibrator(SAMPLE_RATE, 1);
+        calibrator.begin(1000, Calibrator.REFERENCE_LEVEL);
+        feed(calibrator, tone(250, -30, 2, 1, 0), 4096);
+        try {
+            calibrator.end();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(0, calibrator.getMeasurementCount());
+        }
+    }
+
+    @Test
+    public void theCorrectionsFlattenTheResponse() {
+        // A phone 10 dB less sensitive at 125 Hz than at 1 kHz
+        double low = CalibrationProfile.getBandCentre(1);
+        double reference = CalibrationProfile.getBandCentre(4);
+        Calibrator calibrator = new Calibrator(SAMPLE_RATE, 1);
+        calibrator.begin(reference, 94);
+        feed(calibrator, tone(reference, -30, 2, 1, 0), 4096);
+        calibrator.end();
+        calibrator.begin(low, 94);
+        feed(calibrator, tone(low, -40, 2, 1, 0), 4096);
+        calibrator.end();
+
+        CalibrationProfile profile = calibrator.build("Phone", CalibrationProfile.Source.MIC);
+        assertEquals(124, profile.getOffset(), 0.1);
+        assertEquals(0, profile.getCorrection(0), 0);
+        assertEquals(10, profile.getCorrection(1), 0.1);
+        assertEquals(20 / 3.0, profile.getCorrection(2), 0.1);
+        assertEquals(0, profile.getCorrection(4), 0.1);
+        assertEquals(0, profile.getCorrection(7), 0);
+
+        // Through the filter, both tones come out at the same level
+        CorrectionFilter filter = profile.createFilter(SAMPLE_RATE, 1);
+        for (int band = 0; band < CalibrationProfile.BAND_COUNT; band++) {
+            double w = 2 * Math.PI * CalibrationProfile.getBandCentre(band) / SAMPLE_RATE;
+            assertEquals(profile.getCorrection(band), filter.getResponse(w), 0.2);
+        }
+
+        byte[] pcm = tone(low, -40, 2, 1, 0);
+        filter.process(pcm, pcm.length);
+        Calibrator check = new Calibrator(SAMPLE_RATE, 1);
+        check.begin(low, 94);
+        feed(check, pcm, 4096);
+        assertEquals(-30, check.end(), 0.2);
+    }
+
+    @Test
+    public void aFlatProfileLeavesTheSamplesAlone() {
+        CorrectionFilter filter = CalibrationProfile.UNCALIBRATED.createFilter(SAMPLE_RATE, 2);
+        assertTrue(filter.isIdentity());
+
+        byte[] pcm = tone(440, -6, 1, 2, 1000);
+        byte[] copy = pcm.clone();
+        filter.process(pcm, pcm.length);
+        assertArrayEquals(copy, pcm);
+    }
+
+    @Test
+    public void profilesSurviveTheirStoredForm() {
+        double[] corrections = {0, 3.5, 1.25, -0.5, 0, -2, 4.75, 12};
+        CalibrationProfile profile = new CalibrationProfile("Acme\tPhone 7",
+                CalibrationProfile.Source.UNPROCESSED, 101.37, corrections);
+
+        CalibrationProfile copy = CalibrationProfile.decode(profile.encode());
+        assertEquals("Acme Phone 7", copy.getModel());
+        assertEquals(profile.getSource(), copy.getSource());
+        assertEquals(101.37, copy.getOffset(), 0);
+        for (int band = 0; band < corrections.length; band++) {
+            assertEquals(corrections[band], copy.getCorrection(band), 0);
+        }
+
+        try {
+            CalibrationProfile.decode("1\tPhone\tMIC\t100");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    // Interleaved 16 bit samples of a sine at the level (dBFS), plus noise of the amplitude
+    private static byte[] tone(double frequency, double level, double seconds, int channels,
+                               int noise) {
+        Random random = new Random(7);
+        int frames = (int) (seconds * SAMPLE_RATE);
+        double amplitude = 32768 * Math.pow(10, level / 20);
+        byte[] pcm = new byte[2 * channels * frames];
+        for (int i = 0; i < frames; i++) {
+            double sine = amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE);
+            for (int c = 0; c < channels; c++) {
+                long value = Math.round(sine + noise * random.nextGaussian());
+                int at = 2 * (channels * i + c);
+                pcm[at] = (byte) value;
+                pcm[at + 1] = (byte) (value >> 8);
+            }
+        }
+        return pcm;
+    }
+
+    private static void feed(Calibrator calibrator, byte[] pcm, int chunk) {
+        for (int offset = 0; offset < pcm.length; offset += chunk) {
+            calibrator.process(Arrays.copyOfRange(pcm, offset,
+                    Math.min(pcm.length, offset + chunk)), Math.min(chunk, pcm.length - offset));
+        }
+    }
+}
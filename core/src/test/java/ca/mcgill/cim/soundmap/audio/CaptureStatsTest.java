@@ -0,0 +1,70 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureStatsTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void readsThatKeepUpAreGapFree() {
+        CaptureStats stats = new CaptureStats(48000, 4800);
+        // 10 ms reads, returning a little late now and then
+        for (int i = 0; i < 1000; i++) {
+            stats.onRead(480, i * 10 * MS + (i % 7 == 0 ? 30 * MS : 0));
+            stats.onWritten(480);
+        }
+
+        assertTrue(stats.isGapFree());
+        assertEquals(480000, stats.getFramesRead());
+        assertEquals(0, stats.getOverruns());
+    }
+
+    @Test
+    public void stallLongerThanTheBufferIsAnOverrun() {
+        CaptureStats stats = new CaptureStats(48000, 4800);
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            stats.onRead(480, now);
+            now += 10 * MS;
+        }
+
+        // 300 ms stall; the 100 ms buffer only held the last 4800 frames of it
+        now += 290 * MS;
+        stats.onRead(4800, now);
+
+        // Captured since the first read, minus read, minus what the buffer held
+        assertEquals(1, stats.getOverruns());
+        assertEquals(480 + 390 * 48 - 9600 - 4800, stats.getOverrunFrames());
+        assertFalse(stats.isGapFree());
+    }
+
+    @Test
+    public void devicePositionTakesOverFromTheClock() {
+        CaptureStats stats = new CaptureStats(48000, 4800);
+        stats.onDevicePosition(0, 0);
+        stats.onRead(480, 10 * MS);
+        // The device says it captured 20000 frames by 20 ms: the rest were lost
+        stats.onDevicePosition(20000, 20 * MS);
+        stats.onRead(480, 20 * MS);
+
+        assertTrue(stats.hasDevicePosition());
+        assertEquals(20000 - 960 - 4800, stats.getOverrunFrames());
+    }
+
+    @Test
+    public void writerDropsAreCountedSeparately() {
+        CaptureStats stats = new CaptureStats(48000, 4800);
+        stats.onRead(480, 0);
+        stats.onWriterDropped(480);
+
+        assertEquals(1, stats.getWriterDropEvents());
+        assertEquals(480, stats.getWriterDroppedFrames());
+        assertEquals(0, stats.getOverrunFrames());
+        assertFalse(stats.isGapFree());
+    }
+}
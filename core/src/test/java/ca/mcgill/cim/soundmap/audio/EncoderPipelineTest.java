@@ -0,0 +1,91 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EncoderPipelineTest {
+
+    private static class BlockingEncoder implements AudioEncoder {
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        long mBytes = 0;
+        boolean mIsFinished = false;
+        boolean mIsAborted = false;
+        boolean mFails = false;
+
+        @Override
+        public void start() {}
+
+        @Override
+        public void encode(byte[] pcm, int length) throws IOException {
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (mFails) {
+                throw new IOException("Disk full");
+            }
+            mBytes += length;
+        }
+
+        @Override
+        public void finish() {
+            mIsFinished = true;
+        }
+
+        @Override
+        public void abort() {
+            mIsAborted = true;
+        }
+    }
+
+    @Test
+    public void poolDoesNotGrowWhenTheEncoderStalls() throws IOException {
+        BlockingEncoder encoder = new BlockingEncoder();
+        EncoderPipeline pipeline = new EncoderPipeline(encoder, 100, 3);
+        pipeline.start();
+
+        for (int i = 0; i < 3; i++) {
+            EncoderPipeline.Chunk chunk = pipeline.obtain();
+            assertNotNull(chunk);
+            assertEquals(100, chunk.data.length);
+            chunk.length = 100;
+            pipeline.submit(chunk);
+        }
+        assertNull(pipeline.obtain());
+
+        encoder.mRelease.countDown();
+        pipeline.finish();
+
+        assertEquals(300, encoder.mBytes);
+        assertTrue(encoder.mIsFinished);
+        assertNotNull(pipeline.obtain());
+    }
+
+    @Test
+    public void encoderErrorIsRethrownByFinish() {
+        BlockingEncoder encoder = new BlockingEncoder();
+        encoder.mFails = true;
+        encoder.mRelease.countDown();
+        EncoderPipeline pipeline = new EncoderPipeline(encoder, 100, 2);
+        try {
+            pipeline.start();
+            EncoderPipeline.Chunk chunk = pipeline.obtain();
+            chunk.length = 100;
+            pipeline.submit(chunk);
+            pipeline.finish();
+            fail();
+        } catch (IOException e) {
+            assertEquals("Disk full", e.getMessage());
+        }
+        assertTrue(encoder.mIsAborted);
+    }
+}
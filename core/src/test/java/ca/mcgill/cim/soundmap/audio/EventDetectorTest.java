@@ -0,0 +1,144 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventDetectorTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAME = EventDetector.FRAME_SIZE;
+
+    @Test
+    public void burstOverNoiseIsOneEvent() {
+        EventDetector detector = EventDetector.createDefault(SAMPLE_RATE, 1);
+        // 2 s of noise, a 0.5 s tone 30 dB above it, 2 s of noise
+        byte[] pcm = signal(100, 40 * FRAME, 20 * FRAME, 3000);
+        detector.process(pcm, pcm.length);
+        detector.finish();
+
+        List<EventDetector.Event> events = detector.getEvents();
+        assertEquals(1, events.size());
+        EventDetector.Event event = events.get(0);
+        assertEquals(40 * FRAME, event.start, FRAME);
+        // Late by the decay of the time weighting, 30 dB down to the margin
+        assertTrue(event.getEnd() >= 60 * FRAME);
+        assertTrue(event.getEnd() <= 60 * FRAME + SAMPLE_RATE * 3 / 4);
+        // Known at the end of the frame that started it
+        assertEquals(event.start + FRAME, event.detectedAt);
+    }
+
+    @Test
+    public void steadyNoiseHasNoEvents() {
+        EventDetector detector = EventDetector.createDefault(SAMPLE_RATE, 2);
+        byte[] pcm = noise(new Random(1), 1000, 2, 200 * FRAME);
+        detector.process(pcm, pcm.length);
+        detector.finish();
+
+        assertTrue(detector.getEvents().isEmpty());
+        assertFalse(detector.isActive());
+        assertEquals(200 * FRAME, detector.getPosition());
+    }
+
+    @Test
+    public void shortGapsDoNotSplitAnEvent() {
+        EventDetector detector = new EventDetector(SAMPLE_RATE, 1,
+                new EnergyCriterion(SAMPLE_RATE));
+        // Two bursts 0.1 s apart, well within the hold
+        Random random = new Random(3);
+        byte[] pcm = concat(noise(random, 100, 1, 40 * FRAME),
+                tone(3000, 10 * FRAME), noise(random, 100, 1, 4 * FRAME),
+                tone(3000, 10 * FRAME), noise(random, 100, 1, 40 * FRAME));
+        // Fed in odd sized reads, splitting sample frames
+        for (int at = 0; at < pcm.length; at += 999) {
+            detector.process(slice(pcm, at, 999), Math.min(999, pcm.length - at));
+        }
+        detector.finish();
+
+        assertEquals(1, detector.getEvents().size());
+    }
+
+    @Test
+    public void fluxCatchesABroadbandOnsetUnderAHum() {
+        // A loud hum, then a noise 25 dB below it: the level barely moves, the spectrum does
+        EventDetector energy = new EventDetector(SAMPLE_RATE, 1,
+                new EnergyCriterion(SAMPLE_RATE));
+        EventDetector flux = new EventDetector(SAMPLE_RATE, 1,
+                new SpectralFluxCriterion(SAMPLE_RATE));
+        byte[] hum = tone(10000, 60 * FRAME);
+        byte[] pcm = concat(slice(hum, 0, 40 * FRAME * 2),
+                add(slice(hum, 40 * FRAME * 2, 20 * FRAME * 2),
+                        noise(new Random(7), 400, 1, 20 * FRAME)));
+        energy.process(pcm, pcm.length);
+        flux.process(pcm, pcm.length);
+
+        assertTrue(energy.getEvents().isEmpty());
+        assertEquals(1, flux.getEvents().size());
+        assertEquals(40 * FRAME, flux.getEvents().get(0).start, FRAME);
+    }
+
+    // Noise of the given RMS, with an optional tone burst of the given amplitude in the middle
+    private static byte[] signal(int noiseRms, int before, int burst, int amplitude) {
+        Random random = new Random(before + burst);
+        return concat(noise(random, noiseRms, 1, before),
+                add(noise(random, noiseRms, 1, burst), tone(amplitude, burst)),
+                noise(random, noiseRms, 1, before));
+    }
+
+    private static byte[] noise(Random random, double rms, int channels, int samples) {
+        byte[] pcm = new byte[samples * channels * 2];
+        for (int i = 0; i < samples * channels; i++) {
+            short value = (short) Math.round(random.nextGaussian() * rms);
+            pcm[2 * i] = (byte) value;
+            pcm[2 * i + 1] = (byte) (value >> 8);
+        }
+        return pcm;
+    }
+
+    private static byte[] tone(double amplitude, int samples) {
+        byte[] pcm = new byte[samples * 2];
+        for (int i = 0; i < samples; i++) {
+            short value = (short) Math.round(amplitude
+                    * Math.sin(2 * Math.PI * 1000 * i / SAMPLE_RATE));
+            pcm[2 * i] = (byte) value;
+            pcm[2 * i + 1] = (byte) (value >> 8);
+        }
+        return pcm;
+    }
+
+    private static byte[] add(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i += 2) {
+            int sum = (short) ((a[i] & 0xFF) | (a[i + 1] << 8))
+                    + (short) ((b[i] & 0xFF) | (b[i + 1] << 8));
+            short value = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sum));
+            a[i] = (byte) value;
+            a[i + 1] = (byte) (value >> 8);
+        }
+        return a;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] all = new byte[length];
+        int at = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, all, at, part.length);
+            at += part.length;
+        }
+        return all;
+    }
+
+    private static byte[] slice(byte[] pcm, int at, int length) {
+        byte[] part = new byte[length];
+        System.arraycopy(pcm, at, part, 0, Math.min(length, pcm.length - at));
+        return part;
+    }
+}
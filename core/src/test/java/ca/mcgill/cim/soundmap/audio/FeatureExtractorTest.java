@@ -0,0 +1,165 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.junit.Test;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FeatureExtractorTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAME = 4096;
+
+    @Test
+    public void fullScaleSineIsZeroDecibels() {
+        FeatureExtractor extractor = new FeatureExtractor(SAMPLE_RATE, 1, FRAME);
+        byte[] pcm = sine(1000, 32767, 1, FRAME * 4);
+
+        assertEquals(4, extractor.process(pcm, pcm.length));
+        AcousticFeatures features = extractor.finish();
+
+        assertEquals(4, features.getFrameCount());
+        assertEquals(0, features.getLevel(0), 0.1);
+        // A-weighting is normalised at 1 kHz
+        assertEquals(0, features.getALevel(0), 0.2);
+        assertEquals(0, features.getLAeq(), 0.2);
+        assertEquals(1000, features.getCentroid(0), 30);
+    }
+
+    @Test
+    public void energyFallsInTheMatchingBand() {
+        FeatureExtractor extractor = new FeatureExtractor(SAMPLE_RATE, 1, FRAME);
+        byte[] pcm = sine(1000, 16384, 1, FRAME);
+        extractor.process(pcm, pcm.length);
+        AcousticFeatures features = extractor.finish();
+
+        int band = -AcousticFeatures.FIRST_BAND; // 1 kHz
+        double level = features.getBandLevel(0, band);
+        assertEquals(features.getLevel(0), level, 0.5);
+        assertTrue(level - features.getBandLevel(0, band + 3) > 30);
+    }
+
+    @Test
+    public void lowFrequenciesAreAttenuatedByAWeighting() {
+        FeatureExtractor extractor = new FeatureExtractor(SAMPLE_RATE, 1, FRAME);
+        byte[] pcm = sine(100, 16384, 1, FRAME);
+        extractor.process(pcm, pcm.length);
+        AcousticFeatures features = extractor.finish();
+
+        // A(100 Hz) = -19.1 dB
+        assertEquals(-19.1, features.getALevel(0) - features.getLevel(0), 0.5);
+    }
+
+    @Test
+    public void stereoIsDownmixedAndSplitReadsMatchWholeReads() {
+        byte[] pcm = sine(440, 8000, 2, FRAME * 2);
+
+        FeatureExtractor whole = new FeatureExtractor(SAMPLE_RATE, 2, FRAME);
+        whole.process(pcm, pcm.length);
+        AcousticFeatures expected = whole.finish();
+
+        // Odd read sizes split sample frames across reads
+        FeatureExtractor split = new FeatureExtractor(SAMPLE_RATE, 2, FRAME);
+        int offset = 0;
+        while (offset < pcm.length) {
+            int length = Math.min(1001, pcm.length - offset);
+            byte[] read = new byte[length];
+            System.arraycopy(pcm, offset, read, 0, length);
+            split.process(read, length);
+            offset += length;
+        }
+        AcousticFeatures actual = split.finish();
+
+        assertEquals(2, actual.getFrameCount());
+        for (int frame = 0; frame < 2; frame++) {
+            assertEquals(expected.getLevel(frame), actual.getLevel(frame), 0);
+            assertEquals(expected.getCentroid(frame), actual.getCentroid(frame));
+        }
+    }
+
+    @Test
+    public void silenceIsClampedAndCalibrationShiftsLevels() {
+        FeatureExtractor extractor = new FeatureExtractor(SAMPLE_RATE, 1, FRAME);
+        byte[] silence = new byte[FRAME * 2];
+        extractor.process(silence, silence.length);
+        assertEquals(AcousticFeatures.MIN_LEVEL, extractor.finish().getLevel(0), 0);
+
+        extractor.setCalibrationOffset(94);
+        byte[] pcm = sine(1000, 32767, 1, FRAME);
+        extractor.process(pcm, pcm.length);
+        assertEquals(94, extractor.finish().getLevel(0), 0.1);
+    }
+
+    @Test
+    public void featuresSurviveTheWireFormat() throws Exception {
+        FeatureExtractor extractor = new FeatureExtractor(SAMPLE_RATE, 1, FRAME);
+        byte[] pcm = sine(2500, 12000, 1, FRAME * 3);
+        extractor.process(pcm, pcm.length);
+        AcousticFeatures features = extractor.finish();
+
+        Buffer buffer = new Buffer();
+        features.writeTo(buffer);
+        // 20 byte header, then 30 values per frame, then no windows and no spans
+        assertEquals(20 + 3 * 2 * (3 + AcousticFeatures.BAND_COUNT) + 8, buffer.size());
+
+        AcousticFeatures read = AcousticFeatures.readFrom(buffer);
+        assertEquals(3, read.getFrameCount());
+        assertEquals(SAMPLE_RATE, read.getSampleRate());
+        assertEquals(features.getLAeq(), read.getLAeq(), 0.1);
+        for (int band = 0; band < AcousticFeatures.BAND_COUNT; band++) {
+            assertEquals(features.getBandLevel(2, band), read.getBandLevel(2, band), 0);
+        }
+        assertFalse(read.isGated());
+        assertFalse(read.isScrubbed());
+    }
+
+    @Test
+    public void summariesKeepTheEnergyButNotTheDetail() throws Exception {
+        FeatureExtractor extractor = new FeatureExtractor(SAMPLE_RATE, 1, FRAME);
+        byte[] pcm = concat(sine(500, 3000, 1, FRAME * 2), sine(2000, 20000, 1, FRAME * 2),
+                sine(500, 3000, 1, FRAME * 2));
+        extractor.process(pcm, pcm.length);
+        AcousticFeatures features = extractor.finish();
+        double leq = features.getLeq();
+        double first = features.getLevel(0);
+
+        // Part way into the second frame, to part way into the fifth
+        features.summarise(FRAME + 100, 3 * FRAME);
+
+        // The reader recomputes the overall levels from the frames
+        Buffer buffer = new Buffer();
+        features.writeTo(buffer);
+        assertEquals(leq, AcousticFeatures.readFrom(buffer).getLeq(), 0.1);
+        assertEquals(first, features.getLevel(0), 0);
+        for (int frame = 2; frame < 5; frame++) {
+            assertEquals(features.getLevel(1), features.getLevel(frame), 0);
+            assertEquals(features.getCentroid(1), features.getCentroid(frame));
+        }
+        assertTrue(features.getLevel(5) < features.getLevel(1) - 3);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        Buffer all = new Buffer();
+        for (byte[] part : parts) {
+            all.write(part);
+        }
+        return all.readByteArray();
+    }
+
+    private static byte[] sine(double frequency, int amplitude, int channels, int samples) {
+        byte[] pcm = new byte[samples * channels * 2];
+        for (int i = 0; i < samples; i++) {
+            short value = (short) Math.round(amplitude
+                    * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+            for (int c = 0; c < channels; c++) {
+                int at = (i * channels + c) * 2;
+                pcm[at] = (byte) value;
+                pcm[at + 1] = (byte) (value >> 8);
+            }
+        }
+        return pcm;
+    }
+}
@@ -0,0 +1,61 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FftTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void matchesTheDirectTransform() {
+        int n = 64;
+        Random random = new Random(7);
+        double[] re = new double[n];
+        double[] im = new double[n];
+        for (int i = 0; i < n; i++) {
+            re[i] = random.nextGaussian();
+            im[i] = random.nextGaussian();
+        }
+        double[] expectedRe = new double[n];
+        double[] expectedIm = new double[n];
+        for (int k = 0; k < n; k++) {
+            for (int t = 0; t < n; t++) {
+                double angle = -2 * Math.PI * k * t / n;
+                expectedRe[k] += re[t] * Math.cos(angle) - im[t] * Math.sin(angle);
+                expectedIm[k] += re[t] * Math.sin(angle) + im[t] * Math.cos(angle);
+            }
+        }
+
+        new Fft(n).transform(re, im);
+
+        for (int k = 0; k < n; k++) {
+            assertEquals(expectedRe[k], re[k], DELTA);
+            assertEquals(expectedIm[k], im[k], DELTA);
+        }
+    }
+
+    @Test
+    public void sineLandsInItsBin() {
+        int n = 1024;
+        double[] re = new double[n];
+        double[] im = new double[n];
+        for (int i = 0; i < n; i++) {
+            re[i] = Math.cos(2 * Math.PI * 10 * i / n);
+        }
+
+        new Fft(n).transform(re, im);
+
+        assertEquals(n / 2, re[10], DELTA);
+        assertEquals(n / 2, re[n - 10], DELTA);
+        assertEquals(0, re[11], DELTA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizesThatAreNotPowersOfTwo() {
+        new Fft(1000);
+    }
+}
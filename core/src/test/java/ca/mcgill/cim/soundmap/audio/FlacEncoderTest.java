@@ -0,0 +1,353 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import ca.mcgill.cim.soundmap.network.StreamingUploadBody;
+import okhttp3.MediaType;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips through a small reference decoder (fixed predictors, Rice coding and the stereo
+ * modes, which is all the encoder produces).
+ */
+public class FlacEncoderTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void stereoToneRoundTrips() throws IOException {
+        CaptureConfig config = new CaptureConfig(44100, 2, 16, CaptureConfig.Codec.FLAC);
+        short[] samples = new short[2 * 10000];
+        Random random = new Random(1);
+        for (int i = 0; i < samples.length / 2; i++) {
+            double tone = 12000 * Math.sin(2 * Math.PI * 440 * i / 44100.0);
+            samples[2 * i] = (short) (tone + random.nextGaussian() * 50);
+            samples[2 * i + 1] = (short) (0.8 * tone + random.nextGaussian() * 50);
+        }
+
+        File file = encode(config, samples, null);
+        Decoded decoded = decode(Files.readAllBytes(file.toPath()));
+
+        assertEquals(44100, decoded.sampleRate);
+        assertEquals(2, decoded.channels);
+        assertEquals(16, decoded.bitDepth);
+        assertEquals(10000, decoded.totalSamples);
+        assertArrayEquals(toInts(samples, 0), decoded.samples);
+
+        // Correlated noisy tone: well under the PCM size
+        assertTrue(file.length() < samples.length * 2 * 0.6);
+    }
+
+    @Test
+    public void monoEdgeCasesRoundTrip() throws IOException {
+        CaptureConfig config = new CaptureConfig(16000, 1, 16, CaptureConfig.Codec.FLAC);
+        short[] samples = new short[FlacEncoder.BLOCK_SIZE * 3 + 5];
+        Random random = new Random(2);
+        for (int i = 0; i < samples.length; i++) {
+            if (i < FlacEncoder.BLOCK_SIZE) {
+                samples[i] = 0;                                         // Constant
+            } else if (i < 2 * FlacEncoder.BLOCK_SIZE) {
+                samples[i] = (short) random.nextInt();                  // White, full scale
+            } else {
+                samples[i] = i % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+            }
+        }
+
+        Decoded decoded = decode(Files.readAllBytes(encode(config, samples, null).toPath()));
+        assertEquals(samples.length, decoded.totalSamples);
+        assertArrayEquals(toInts(samples, 0), decoded.samples);
+    }
+
+    @Test
+    public void eightBitRoundTrips() throws IOException {
+        CaptureConfig config = new CaptureConfig(8000, 2, 8, CaptureConfig.Codec.FLAC);
+        short[] samples = new short[2 * 3000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (((int) (100 * Math.sin(i / 7.0))) << 8);
+        }
+
+        Decoded decoded = decode(Files.readAllBytes(encode(config, samples, null).toPath()));
+        assertEquals(8, decoded.bitDepth);
+        assertArrayEquals(toInts(samples, 8), decoded.samples);
+    }
+
+    @Test
+    public void streamMatchesTheFileExceptForTheTotals() throws IOException {
+        CaptureConfig config = new CaptureConfig(44100, 1, 16, CaptureConfig.Codec.FLAC);
+        short[] samples = new short[5000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (i * 7);
+        }
+
+        StreamingUploadBody stream = new StreamingUploadBody(MediaType.parse("audio/flac"), 64);
+        File file = encode(config, samples, stream);
+        stream.finish();
+        Buffer sent = new Buffer();
+        stream.writeTo(sent);
+        byte[] streamed = sent.readByteArray();
+        byte[] stored = Files.readAllBytes(file.toPath());
+
+        assertEquals(stored.length, streamed.length);
+        // STREAMINFO: the block sizes match, the frame sizes and totals are unknown
+        assertArrayEquals(Arrays.copyOfRange(stored, 0, 12), Arrays.copyOfRange(streamed, 0, 12));
+        assertArrayEquals(Arrays.copyOfRange(stored, 42, stored.length),
+                Arrays.copyOfRange(streamed, 42, streamed.length));
+
+        Decoded live = decode(streamed);
+        assertEquals(0, live.totalSamples);
+        assertArrayEquals(toInts(samples, 0), live.samples);
+    }
+
+    private File encode(CaptureConfig config, short[] samples, StreamingUploadBody stream)
+            throws IOException {
+        File file = mFolder.newFile();
+        EncoderPipeline pipeline = new EncoderPipeline(
+                new FlacEncoder(config, new EncoderOutput(file, stream)), 1000, 2);
+        pipeline.start();
+
+        // Odd sized reads, as from the microphone
+        int bytesPerFrame = 2 * config.getChannels();
+        int offset = 0;
+        while (offset < samples.length) {
+            EncoderPipeline.Chunk chunk;
+            while ((chunk = pipeline.obtain()) == null) {
+                Thread.yield();
+            }
+            int count = Math.min(samples.length - offset,
+                    chunk.data.length / bytesPerFrame * config.getChannels());
+            for (int i = 0; i < count; i++) {
+                chunk.data[2 * i] = (byte) samples[offset + i];
+                chunk.data[2 * i + 1] = (byte) (samples[offset + i] >> 8);
+            }
+            chunk.length = 2 * count;
+            pipeline.submit(chunk);
+            offset += count;
+        }
+        pipeline.finish();
+        return file;
+    }
+
+    private static int[] toInts(short[] samples, int shift) {
+        int[] ints = new int[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            ints[i] = samples[i] >> shift;
+        }
+        return ints;
+    }
+
+    // Reference decoder ---------------------------------------------------------------------------
+
+    private static class Decoded {
+        int sampleRate;
+        int channels;
+        int bitDepth;
+        long totalSamples;
+        int[] samples = new int[0];   // Interleaved
+    }
+
+    private static Decoded decode(byte[] flac) {
+        BitReader in = new BitReader(flac);
+        assertEquals(0x664C6143, in.read(32));     // fLaC
+
+        Decoded decoded = new Decoded();
+        boolean isLast;
+        do {
+            isLast = in.read(1) == 1;
+            int type = in.read(7);
+            int length = in.read(24);
+            if (type == 0) {
+                in.read(16);
+                in.read(16);
+                in.read(24);
+                in.read(24);
+                decoded.sampleRate = in.read(20);
+                decoded.channels = in.read(3) + 1;
+                decoded.bitDepth = in.read(5) + 1;
+                decoded.totalSamples = ((long) in.read(4) << 32) | (in.read(32) & 0xFFFFFFFFL);
+                in.skipBytes(16);
+            } else {
+                in.skipBytes(length);
+            }
+        } while (!isLast);
+
+        int[] out = new int[1024];
+        int count = 0;
+        long frame = 0;
+        while (in.remaining() > 0) {
+            int start = in.position();
+            assertEquals(0x3FFE, in.read(14));
+            in.read(2);
+            assertEquals(7, in.read(4));
+            assertEquals(0, in.read(4));
+            int assignment = in.read(4);
+            in.read(4);
+            assertEquals(frame, in.readUtf8());
+            int n = in.read(16) + 1;
+            assertEquals(FlacEncoder.Crc.crc8(flac, start, in.position() - start), in.read(8));
+
+            int channels = assignment < 8 ? assignment + 1 : 2;
+            int[][] subframes = new int[channels][];
+            for (int c = 0; c < channels; c++) {
+                boolean isSide = (assignment == 8 && c == 1) || (assignment == 9 && c == 0)
+                        || (assignment == 10 && c == 1);
+                subframes[c] = readSubframe(in, n, decoded.bitDepth + (isSide ? 1 : 0));
+            }
+            in.align();
+            assertEquals(FlacEncoder.Crc.crc16(flac, start, in.position() - start), in.read(16));
+
+            if (channels == 2) {
+                for (int i = 0; i < n; i++) {
+                    int a = subframes[0][i];
+                    int b = subframes[1][i];
+                    if (assignment == 8) {
+                        subframes[1][i] = a - b;
+                    } else if (assignment == 9) {
+                        subframes[0][i] = a + b;
+                    } else if (assignment == 10) {
+                        int mid = (a << 1) | (b & 1);
+                        subframes[0][i] = (mid + b) >> 1;
+                        subframes[1][i] = (mid - b) >> 1;
+                    }
+                }
+            }
+
+            if (out.length < count + n * channels) {
+                out = Arrays.copyOf(out, 2 * (count + n * channels));
+            }
+            for (int i = 0; i < n; i++) {
+                for (int c = 0; c < channels; c++) {
+                    out[count++] = subframes[c][i];
+                }
+            }
+            frame++;
+        }
+        decoded.samples = Arrays.copyOf(out, count);
+        return decoded;
+    }
+
+    private static int[] readSubframe(BitReader in, int n, int bits) {
+        assertEquals(0, in.read(1));
+        int type = in.read(6);
+        assertEquals(0, in.read(1));
+
+        int[] x = new int[n];
+        if (type == 0) {
+            Arrays.fill(x, in.readSigned(bits));
+            return x;
+        }
+        if (type == 1) {
+            for (int i = 0; i < n; i++) {
+                x[i] = in.readSigned(bits);
+            }
+            return x;
+        }
+
+        assertTrue("Only fixed predictors", (type & 0x38) == 0x08);
+        int order = type & 7;
+        for (int i = 0; i < order; i++) {
+            x[i] = in.readSigned(bits);
+        }
+
+        assertEquals(0, in.read(2));
+        int partitionOrder = in.read(4);
+        int size = n >> partitionOrder;
+        int i = order;
+        for (int p = 0; p < (1 << partitionOrder); p++) {
+            int k = in.read(4);
+            int end = (p + 1) * size;
+            for (; i < end; i++) {
+                int q = 0;
+                while (in.read(1) == 0) {
+                    q++;
+                }
+                int u = (q << k) | in.read(k);
+                x[i] = (u >>> 1) ^ -(u & 1);
+            }
+        }
+
+        for (i = order; i < n; i++) {
+            switch (order) {
+                case 1:
+                    x[i] += x[i - 1];
+                    break;
+                case 2:
+                    x[i] += 2 * x[i - 1] - x[i - 2];
+                    break;
+                case 3:
+                    x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+                    break;
+                case 4:
+                    x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+                    break;
+                default:
+                    break;
+            }
+        }
+        return x;
+    }
+
+    private static class BitReader {
+        private final byte[] mData;
+        private long mBit = 0;
+
+        BitReader(byte[] data) {
+            mData = data;
+        }
+
+        int read(int bits) {
+            int value = 0;
+            for (int i = 0; i < bits; i++) {
+                int b = mData[(int) (mBit >>> 3)] >> (7 - (int) (mBit & 7)) & 1;
+                value = (value << 1) | b;
+                mBit++;
+            }
+            return value;
+        }
+
+        int readSigned(int bits) {
+            return read(bits) << (32 - bits) >> (32 - bits);
+        }
+
+        long readUtf8() {
+            int first = read(8);
+            if (first < 0x80) {
+                return first;
+            }
+            int extra = Integer.numberOfLeadingZeros(~first << 24) - 1;
+            long value = first & (0x3F >> extra);
+            for (int i = 0; i < extra; i++) {
+                value = (value << 6) | (read(8) & 0x3F);
+            }
+            return value;
+        }
+
+        void skipBytes(int count) {
+            mBit += 8L * count;
+        }
+
+        void align() {
+            mBit = (mBit + 7) & ~7L;
+        }
+
+        int position() {
+            return (int) (mBit >>> 3);
+        }
+
+        int remaining() {
+            return mData.length - position();
+        }
+    }
+}
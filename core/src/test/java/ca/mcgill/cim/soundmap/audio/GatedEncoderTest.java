@@ -0,0 +1,155 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GatedEncoderTest {
+
+    private static final int SAMPLE_RATE = 8000;
+    private static final int FRAME = EventDetector.FRAME_SIZE;
+    private static final CaptureConfig CONFIG =
+            new CaptureConfig(SAMPLE_RATE, 1, 16, CaptureConfig.Codec.WAV);
+
+    // 0.25 s of pre- and post-roll
+    private static final int ROLL = 2000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void eventsAreKeptWithTheirPreAndPostRoll() throws IOException {
+        // Analysis frames 20-24, 60-61 and 98-99 are active; the last runs to the end
+        Scripted script = new Scripted(new int[] {20, 25, 60, 62, 98, 100});
+        byte[] pcm = pattern(100 * FRAME);
+        File file = mFolder.newFile();
+
+        GatedEncoder gate = encode(file, script, pcm, 1500);
+
+        long[][] expected = {
+                {20 * FRAME - ROLL, 25 * FRAME + ROLL},
+                {60 * FRAME - ROLL, 62 * FRAME + ROLL},
+                {98 * FRAME - ROLL, 100 * FRAME}};
+        List<GatedEncoder.Window> windows = gate.getWindows();
+        assertEquals(expected.length, windows.size());
+
+        ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i][0], windows.get(i).start);
+            assertEquals(expected[i][1] - expected[i][0], windows.get(i).getFrames());
+            kept.write(pcm, (int) expected[i][0] * 2, (int) (expected[i][1] - expected[i][0]) * 2);
+        }
+        assertEquals(kept.size() / 2, gate.getKeptFrames());
+        assertArrayEquals(kept.toByteArray(), data(file));
+    }
+
+    @Test
+    public void overlappingWindowsAreMerged() throws IOException {
+        // Two events, past the hold, but the post-roll of the first runs into the pre-roll of
+        // the second
+        Scripted script = new Scripted(new int[] {0, 2, 7, 8});
+        byte[] pcm = pattern(40 * FRAME);
+        File file = mFolder.newFile();
+
+        GatedEncoder gate = encode(file, script, pcm, 4096, 3000);
+
+        assertEquals(2, script.mDetector.getEvents().size());
+        assertEquals(1, gate.getWindows().size());
+        assertEquals(0, gate.getWindows().get(0).start);
+        assertEquals(8 * FRAME + 3000, gate.getWindows().get(0).getFrames());
+        assertArrayEquals(Arrays.copyOf(pcm, (8 * FRAME + 3000) * 2), data(file));
+    }
+
+    @Test
+    public void quietCaptureKeepsOnlyItsFeatures() throws IOException {
+        byte[] pcm = pattern(50 * FRAME);
+        File file = mFolder.newFile();
+
+        GatedEncoder gate = encode(file, new Scripted(new int[0]), pcm, 2048);
+
+        assertTrue(gate.getWindows().isEmpty());
+        assertEquals(WavEncoder.HEADER_SIZE, file.length());
+
+        // The features say so
+        AcousticFeatures features = new AcousticFeatures(SAMPLE_RATE, 4096);
+        features.setWindows(gate.getWindows());
+        Buffer buffer = new Buffer();
+        features.writeTo(buffer);
+        AcousticFeatures read = AcousticFeatures.readFrom(buffer);
+        assertTrue(read.isGated());
+        assertEquals(0, read.getWindowCount());
+    }
+
+    private GatedEncoder encode(File file, Scripted script, byte[] pcm, int read)
+            throws IOException {
+        return encode(file, script, pcm, read, ROLL);
+    }
+
+    private GatedEncoder encode(File file, Scripted script, byte[] pcm, int read, int roll)
+            throws IOException {
+        EventDetector detector = new EventDetector(SAMPLE_RATE, 1, script);
+        script.mDetector = detector;
+        GatedEncoder gate = new GatedEncoder(CONFIG,
+                new WavEncoder(CONFIG, new EncoderOutput(file, null)), detector,
+                (double) roll / SAMPLE_RATE, (double) roll / SAMPLE_RATE);
+        gate.start();
+        for (int at = 0; at < pcm.length; at += read) {
+            int length = Math.min(read, pcm.length - at);
+            gate.encode(Arrays.copyOfRange(pcm, at, at + length), length);
+        }
+        gate.finish();
+        return gate;
+    }
+
+    private static byte[] data(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        return Arrays.copyOfRange(bytes, WavEncoder.HEADER_SIZE, bytes.length);
+    }
+
+    private static byte[] pattern(int samples) {
+        byte[] bytes = new byte[samples * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31 + i / 251);
+        }
+        return bytes;
+    }
+
+    // Active over the given ranges of analysis frames, [from, to) pairs
+    private static class Scripted implements EventDetector.Criterion {
+        private final int[] mRanges;
+        private int mFrame = 0;
+        EventDetector mDetector;
+
+        Scripted(int[] ranges) {
+            mRanges = ranges;
+        }
+
+        @Override
+        public boolean needsSpectrum() {
+            return false;
+        }
+
+        @Override
+        public boolean isActive(double[] samples, double[] magnitudes) {
+            boolean isActive = false;
+            for (int i = 0; i < mRanges.length; i += 2) {
+                isActive |= mFrame >= mRanges[i] && mFrame < mRanges[i + 1];
+            }
+            mFrame++;
+            return isActive;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LevelDigestTest {
+
+    // A street: a steady background with traffic passing over it
+    private static double[] streetLevels(Random random, int n) {
+        double[] levels = new double[n];
+        for (int i = 0; i < n; i++) {
+            double level = random.nextDouble() < 0.2
+                    ? 72 + random.nextGaussian() * 6 : 55 + random.nextGaussian() * 3;
+            levels[i] = Math.round(level * 10) / 10.0;  // as stored in the features
+        }
+        return levels;
+    }
+
+    private static double exactQuantile(double[] sorted, double q) {
+        double index = q * (sorted.length - 1);
+        int below = (int) Math.floor(index);
+        int above = Math.min(below + 1, sorted.length - 1);
+        return sorted[below] + (sorted[above] - sorted[below]) * (index - below);
+    }
+
+    @Test
+    public void percentileLevelsMatchTheSortedLevels() {
+        double[] levels = streetLevels(new Random(1), 100000);
+        LevelDigest digest = new LevelDigest();
+        for (double level : levels) {
+            digest.add(level);
+        }
+        Arrays.sort(levels);
+
+        assertEquals(100000, digest.getCount());
+        assertEquals(levels[0], digest.getMin(), 0);
+        assertEquals(levels[levels.length - 1], digest.getMax(), 0);
+        for (double percent : new double[] {1, 10, 50, 90, 99}) {
+            assertEquals("L" + percent, exactQuantile(levels, 1 - percent / 100),
+                    digest.getLevelExceeded(percent), 0.2);
+        }
+    }
+
+    @Test
+    public void mergedDigestsMatchOneDigestOfEverything() {
+        Random random = new Random(2);
+        LevelDigest all = new LevelDigest();
+        LevelDigest merged = new LevelDigest();
+        for (int part = 0; part < 20; part++) {
+            // Some quiet parts, some loud ones
+            LevelDigest digest = new LevelDigest();
+            for (double level : streetLevels(random, 3000)) {
+                digest.add(level + (part % 2) * 5);
+                all.add(level + (part % 2) * 5);
+            }
+            merged.merge(digest);
+        }
+
+        assertEquals(all.getCount(), merged.getCount());
+        for (double percent : new double[] {10, 50, 90}) {
+            assertEquals(all.getLevelExceeded(percent), merged.getLevelExceeded(percent), 0.2);
+        }
+    }
+
+    @Test
+    public void digestIsCompactAndSurvivesARoundTrip() throws Exception {
+        LevelDigest digest = new LevelDigest();
+        for (double level : streetLevels(new Random(3), 100000)) {
+            digest.add(level);
+        }
+
+        Buffer buffer = new Buffer();
+        digest.writeTo(buffer);
+        assertTrue("Digest of " + buffer.size() + " bytes", buffer.size() < 1024);
+
+        LevelDigest read = LevelDigest.readFrom(buffer, LevelDigest.DEFAULT_COMPRESSION);
+        assertEquals(0, buffer.size());
+        assertEquals(digest.getCount(), read.getCount());
+        assertEquals(digest.getMin(), read.getMin(), 0.005);
+        for (double percent : new double[] {10, 50, 90}) {
+            assertEquals(digest.getLevelExceeded(percent), read.getLevelExceeded(percent), 0.05);
+        }
+    }
+
+    @Test
+    public void emptyAndSingleDigests() throws Exception {
+        LevelDigest digest = new LevelDigest();
+        assertTrue(Double.isNaN(digest.getLevelExceeded(50)));
+
+        Buffer buffer = new Buffer();
+        digest.writeTo(buffer);
+        assertEquals(0, LevelDigest.readFrom(buffer, LevelDigest.DEFAULT_COMPRESSION).getCount());
+
+        digest.add(63.5);
+        assertEquals(63.5, digest.getLevelExceeded(10), 0);
+        assertEquals(63.5, digest.getLevelExceeded(90), 0);
+    }
+}
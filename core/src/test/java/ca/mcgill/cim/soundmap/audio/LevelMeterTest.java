@@ -0,0 +1,99 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LevelMeterTest {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    // The peak decays at PEAK_DECAY dB/s, so 100 ms of silence drops it by a tenth of that
+    private static final double PEAK_DROP = LevelMeter.PEAK_DECAY / 10;
+
+    @Test
+    public void fullScaleSineReadsZeroDecibels() {
+        LevelMeter meter = new LevelMeter(SAMPLE_RATE, 1, LevelMeter.Ballistics.FAST);
+        byte[] pcm = sine(1000, 32767, 1, SAMPLE_RATE); // 1 s, many time constants
+        meter.process(pcm, pcm.length);
+
+        long sample = meter.sample();
+        assertEquals(0, LevelMeter.peakOf(sample), 0.01);
+        assertEquals(0, LevelMeter.rmsOf(sample), 0.1);
+    }
+
+    @Test
+    public void startsAtTheFloor() {
+        LevelMeter meter = new LevelMeter(SAMPLE_RATE, 2, LevelMeter.Ballistics.SLOW);
+
+        long sample = meter.sample();
+        assertEquals(LevelMeter.MIN_LEVEL, LevelMeter.peakOf(sample), 0);
+        assertEquals(LevelMeter.MIN_LEVEL, LevelMeter.rmsOf(sample), 0);
+    }
+
+    @Test
+    public void slowBallisticsRiseMoreSlowlyThanFast() {
+        byte[] burst = sine(1000, 16384, 2, SAMPLE_RATE / 10); // 100 ms
+
+        LevelMeter fast = new LevelMeter(SAMPLE_RATE, 2, LevelMeter.Ballistics.FAST);
+        LevelMeter slow = new LevelMeter(SAMPLE_RATE, 2, LevelMeter.Ballistics.SLOW);
+        fast.process(burst, burst.length);
+        slow.process(burst, burst.length);
+
+        float fastLevel = LevelMeter.rmsOf(fast.sample());
+        float slowLevel = LevelMeter.rmsOf(slow.sample());
+        assertTrue(fastLevel > slowLevel + 5);
+        // Peaks are not time weighted
+        assertEquals(LevelMeter.peakOf(fast.sample()), LevelMeter.peakOf(slow.sample()), 0);
+    }
+
+    @Test
+    public void impulseFallsBackSlowly() {
+        LevelMeter meter = new LevelMeter(SAMPLE_RATE, 1, LevelMeter.Ballistics.IMPULSE);
+        byte[] burst = sine(1000, 32767, 1, SAMPLE_RATE / 5);
+        meter.process(burst, burst.length);
+        float loud = LevelMeter.rmsOf(meter.sample());
+
+        // 100 ms of silence: a 1.5 s release loses under 1 dB
+        byte[] silence = new byte[SAMPLE_RATE / 10 * 2];
+        meter.process(silence, silence.length);
+        long sample = meter.sample();
+        assertEquals(loud, LevelMeter.rmsOf(sample), 1);
+        assertEquals(-PEAK_DROP, LevelMeter.peakOf(sample), 0.1);
+    }
+
+    @Test
+    public void ballisticsCanChangeBetweenReads() {
+        LevelMeter meter = new LevelMeter(SAMPLE_RATE, 1, LevelMeter.Ballistics.SLOW);
+        meter.setBallistics(LevelMeter.Ballistics.FAST);
+        assertEquals(LevelMeter.Ballistics.FAST, meter.getBallistics());
+
+        byte[] burst = sine(1000, 32767, 1, SAMPLE_RATE);
+        meter.process(burst, burst.length);
+        assertEquals(0, LevelMeter.rmsOf(meter.sample()), 0.1);
+    }
+
+    @Test
+    public void barsScaleBetweenTheirBounds() {
+        assertEquals(0, LevelMeter.toHeight(LevelMeter.MIN_LEVEL, -60, -20, 400));
+        assertEquals(0, LevelMeter.toHeight(-60, -60, -20, 400));
+        assertEquals(100, LevelMeter.toHeight(-50, -60, -20, 400));
+        assertEquals(400, LevelMeter.toHeight(-20, -60, -20, 400));
+        assertEquals(400, LevelMeter.toHeight(0, -60, -20, 400));
+    }
+
+    private static byte[] sine(double frequency, int amplitude, int channels, int samples) {
+        byte[] pcm = new byte[samples * channels * 2];
+        for (int i = 0; i < samples; i++) {
+            short value = (short) Math.round(amplitude
+                    * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+            for (int c = 0; c < channels; c++) {
+                int at = (i * channels + c) * 2;
+                pcm[at] = (byte) value;
+                pcm[at + 1] = (byte) (value >> 8);
+            }
+        }
+        return pcm;
+    }
+}
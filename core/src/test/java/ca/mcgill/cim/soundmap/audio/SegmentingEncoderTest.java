@@ -0,0 +1,128 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentingEncoderTest {
+
+    private static final CaptureConfig CONFIG =
+            new CaptureConfig(1000, 2, 16, CaptureConfig.Codec.WAV);
+
+    private static final SegmentingEncoder.EncoderFactory WAV =
+            new SegmentingEncoder.EncoderFactory() {
+                @Override
+                public AudioEncoder create(File file) {
+                    return new WavEncoder(CONFIG, new MappedEncoderOutput(file, null));
+                }
+            };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void segmentsHoldEveryFrameInOrder() throws IOException {
+        Sink sink = new Sink();
+        // 250 frames a segment; chunks of 300 frames straddle the boundaries
+        SegmentingEncoder encoder = new SegmentingEncoder(CONFIG, 250, WAV, sink, false);
+        byte[] pcm = pattern(1100 * 4);
+
+        encoder.start();
+        for (int at = 0; at < pcm.length; at += 1200) {
+            int length = Math.min(1200, pcm.length - at);
+            encoder.encode(Arrays.copyOfRange(pcm, at, at + length), length);
+        }
+        encoder.finish();
+
+        assertEquals(5, sink.segments.size());
+        assertEquals(5, encoder.getSegmentCount());
+
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        long start = sink.segments.get(0).startTime;
+        for (int i = 0; i < sink.segments.size(); i++) {
+            SegmentingEncoder.Segment segment = sink.segments.get(i);
+            assertEquals(i, segment.index);
+            assertEquals(i < 4 ? 250 : 100, segment.frames);
+            // Start times come from the frame count: 250 frames at 1 kHz
+            assertEquals(start + i * 250, segment.startTime);
+
+            assertTrue(segment.file.exists());
+            assertFalse(new File(segment.file.getPath() + ".part").exists());
+            byte[] bytes = Files.readAllBytes(segment.file.toPath());
+            assertEquals(WavEncoder.HEADER_SIZE + segment.frames * 4, bytes.length);
+            joined.write(bytes, WavEncoder.HEADER_SIZE, bytes.length - WavEncoder.HEADER_SIZE);
+        }
+        assertArrayEquals(pcm, joined.toByteArray());
+    }
+
+    @Test
+    public void segmentsAreTaggedWithTheFixAtTheirStart() throws IOException {
+        Sink sink = new Sink();
+        SegmentingEncoder encoder = new SegmentingEncoder(CONFIG, 100, WAV, sink, false);
+        byte[] pcm = pattern(100 * 4);
+
+        encoder.start();
+        encoder.encode(pcm, pcm.length);
+        SegmentingEncoder.Fix fix = new SegmentingEncoder.Fix(45.5, -73.6, 0);
+        encoder.setFix(fix);
+        encoder.encode(pcm, pcm.length);
+        encoder.finish();
+
+        assertEquals(2, sink.segments.size());
+        assertNull(sink.segments.get(0).fix);
+        assertSame(fix, sink.segments.get(1).fix);
+    }
+
+    @Test
+    public void abortLeavesNoPartialFile() throws IOException {
+        Sink sink = new Sink();
+        SegmentingEncoder encoder = new SegmentingEncoder(CONFIG, 100, WAV, sink, false);
+        byte[] pcm = pattern(150 * 4);
+
+        encoder.start();
+        encoder.encode(pcm, pcm.length);
+        encoder.abort();
+
+        assertEquals(1, sink.segments.size());
+        String[] names = mFolder.getRoot().list();
+        assertEquals(1, names.length);
+        assertEquals(sink.segments.get(0).file.getName(), names[0]);
+    }
+
+    private class Sink implements SegmentingEncoder.SegmentSink {
+        final List<SegmentingEncoder.Segment> segments = new ArrayList<>();
+
+        @Override
+        public File fileFor(int index, long startTime) {
+            return new File(mFolder.getRoot(), "segment_" + index + ".wav");
+        }
+
+        @Override
+        public void onSegment(SegmentingEncoder.Segment segment) {
+            segments.add(segment);
+        }
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 13 + 5);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,162 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpeechScrubberTest {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    @Test
+    public void noiseComesOutUntouched() throws Exception {
+        CaptureConfig config = new CaptureConfig(SAMPLE_RATE, 2, 16, CaptureConfig.Codec.WAV);
+        short[] noise = noise(new Random(3), 2 * 3 * SAMPLE_RATE, 1000);
+        Capture capture = new Capture();
+        SpeechScrubber scrubber = new SpeechScrubber(config, capture,
+                SpeechScrubber.Mode.MASK);
+
+        run(scrubber, toBytes(noise), 4001);
+
+        assertTrue(scrubber.getSpans().isEmpty());
+        assertArrayEquals(noise, capture.samples());
+    }
+
+    @Test
+    public void speechIsMaskedAndTheRestIsKept() throws Exception {
+        CaptureConfig config = new CaptureConfig(SAMPLE_RATE, 1, 16, CaptureConfig.Codec.WAV);
+        // 2 s of noise, 1.5 s of a voice over it, 2 s of noise
+        int from = 2 * SAMPLE_RATE;
+        int to = from + 3 * SAMPLE_RATE / 2;
+        short[] input = noise(new Random(5), to + 2 * SAMPLE_RATE, 300);
+        addVoice(input, from, to);
+        Capture capture = new Capture();
+        SpeechScrubber scrubber = new SpeechScrubber(config, capture,
+                SpeechScrubber.Mode.MASK);
+
+        run(scrubber, toBytes(input), 7057);
+        short[] output = capture.samples();
+        assertEquals(input.length, output.length);
+
+        List<SpeechScrubber.Span> spans = scrubber.getSpans();
+        assertEquals(1, spans.size());
+        long start = spans.get(0).start;
+        long end = start + spans.get(0).getFrames();
+        assertTrue(start <= from && start > from - SAMPLE_RATE / 2);
+        assertTrue(end >= to && end < to + SAMPLE_RATE / 2);
+
+        // Untouched outside the span
+        for (int i = 0; i < output.length; i++) {
+            if (i < start || i >= end) {
+                assertEquals(input[i], output[i]);
+            }
+        }
+
+        // Inside it, the voice is gone but there is still sound
+        double correlation = 0;
+        double inputPower = 0;
+        double outputPower = 0;
+        for (int i = from; i < to; i++) {
+            correlation += (double) input[i] * output[i];
+            inputPower += (double) input[i] * input[i];
+            outputPower += (double) output[i] * output[i];
+        }
+        assertTrue(Math.abs(correlation) / Math.sqrt(inputPower * outputPower) < 0.2);
+        assertTrue(outputPower > inputPower / 100);
+    }
+
+    @Test
+    public void droppedSpeechIsSilent() throws Exception {
+        CaptureConfig config = new CaptureConfig(SAMPLE_RATE, 1, 16, CaptureConfig.Codec.WAV);
+        int from = SAMPLE_RATE;
+        int to = 2 * SAMPLE_RATE;
+        short[] input = noise(new Random(9), 3 * SAMPLE_RATE, 300);
+        addVoice(input, from, to);
+        Capture capture = new Capture();
+        SpeechScrubber scrubber = new SpeechScrubber(config, capture,
+                SpeechScrubber.Mode.DROP);
+
+        run(scrubber, toBytes(input), 3528);
+        short[] output = capture.samples();
+
+        assertEquals(1, scrubber.getSpans().size());
+        for (int i = from; i < to; i++) {
+            assertEquals(0, output[i]);
+        }
+    }
+
+    private static void run(SpeechScrubber scrubber, byte[] pcm, int read) throws Exception {
+        scrubber.start();
+        for (int at = 0; at < pcm.length; at += read) {
+            int length = Math.min(read, pcm.length - at);
+            byte[] chunk = new byte[read];
+            System.arraycopy(pcm, at, chunk, 0, length);
+            scrubber.encode(chunk, length);
+        }
+        scrubber.finish();
+    }
+
+    // A vowel at 140 Hz with two formants, its level going up and down four times a second
+    private static void addVoice(short[] samples, int from, int to) {
+        for (int i = from; i < to; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double envelope = 0.6 + 0.4 * Math.sin(2 * Math.PI * 4 * t);
+            double value = 0;
+            for (int h = 1; 140 * h < 4000; h++) {
+                double f = 140 * h;
+                double gain = 1 / (1 + Math.pow((f - 700) / 150, 2))
+                        + 0.5 / (1 + Math.pow((f - 1200) / 200, 2)) + 0.05;
+                value += gain * Math.sin(2 * Math.PI * f * t + h);
+            }
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                    samples[i] + 4000 * envelope * value));
+        }
+    }
+
+    private static short[] noise(Random random, int samples, double rms) {
+        short[] noise = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            noise[i] = (short) Math.round(random.nextGaussian() * rms);
+        }
+        return noise;
+    }
+
+    private static byte[] toBytes(short[] samples) {
+        ByteBuffer bytes = ByteBuffer.allocate(2 * samples.length).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asShortBuffer().put(samples);
+        return bytes.array();
+    }
+
+    private static class Capture implements AudioEncoder {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+
+        short[] samples() {
+            byte[] bytes = mBytes.toByteArray();
+            short[] samples = new short[bytes.length / 2];
+            ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+            return samples;
+        }
+
+        @Override
+        public void start() {}
+
+        @Override
+        public void encode(byte[] pcm, int length) {
+            mBytes.write(pcm, 0, length);
+        }
+
+        @Override
+        public void finish() {}
+
+        @Override
+        public void abort() {}
+    }
+}
@@ -0,0 +1,200 @@
+package ca.mcgill.cim.soundmap.audio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the files against a reference RIFF/RF64 parser, through both outputs.
+ */
+public class WavEncoderTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void sizesArePatchedWhenFinished() throws IOException {
+        CaptureConfig config = new CaptureConfig(44100, 2, 16, CaptureConfig.Codec.WAV);
+        byte[] pcm = pattern(500);
+
+        for (boolean isMapped : new boolean[] {false, true}) {
+            File file = mFolder.newFile();
+            WavEncoder encoder = new WavEncoder(config, output(file, isMapped));
+            encoder.start();
+            encoder.encode(pcm, 400);
+            encoder.encode(Arrays.copyOfRange(pcm, 400, 500), 100);
+            encoder.finish();
+
+            Wav wav = parse(file);
+            assertEquals(WavEncoder.HEADER_SIZE + 500, file.length());
+            assertEquals("RIFF", wav.form);
+            assertEquals(2, wav.channels);
+            assertEquals(44100, wav.sampleRate);
+            assertEquals(176400, wav.byteRate);
+            assertEquals(4, wav.blockAlign);
+            assertEquals(16, wav.bitDepth);
+            assertArrayEquals(pcm, wav.data);
+        }
+    }
+
+    @Test
+    public void eightBitIsNarrowedToUnsignedAndPadded() throws IOException {
+        CaptureConfig config = new CaptureConfig(8000, 1, 8, CaptureConfig.Codec.WAV);
+        File file = mFolder.newFile();
+        WavEncoder encoder = new WavEncoder(config, output(file, true));
+        encoder.start();
+        // -32768, 0, 32512 as little endian 16 bit
+        encoder.encode(new byte[] {0, (byte) 0x80, 0, 0, 0, 0x7F}, 6);
+        encoder.finish();
+
+        Wav wav = parse(file);
+        assertEquals(WavEncoder.HEADER_SIZE + 4, file.length());
+        assertEquals(8, wav.bitDepth);
+        assertArrayEquals(new byte[] {0, (byte) 128, (byte) 255}, wav.data);
+    }
+
+    @Test
+    public void oversizedFilesAreWrittenAsRf64() throws IOException {
+        CaptureConfig config = new CaptureConfig(48000, 2, 16, CaptureConfig.Codec.WAV);
+        byte[] pcm = pattern(10000);
+
+        for (boolean isMapped : new boolean[] {false, true}) {
+            File file = mFolder.newFile();
+            WavEncoder encoder = new WavEncoder(config, output(file, isMapped), 5000);
+            encoder.start();
+            encoder.encode(pcm, pcm.length);
+            encoder.finish();
+
+            Wav wav = parse(file);
+            assertEquals("RF64", wav.form);
+            assertEquals(2500, wav.sampleFrames);
+            assertArrayEquals(pcm, wav.data);
+        }
+    }
+
+    @Test
+    public void mappedOutputCrossesWindowsAndTruncates() throws IOException {
+        CaptureConfig config = new CaptureConfig(44100, 1, 16, CaptureConfig.Codec.WAV);
+        byte[] pcm = pattern(10 * 1000);
+
+        File file = mFolder.newFile();
+        WavEncoder encoder = new WavEncoder(config, new MappedEncoderOutput(file, null, 4096));
+        encoder.start();
+        for (int at = 0; at < pcm.length; at += 1000) {
+            encoder.encode(Arrays.copyOfRange(pcm, at, at + 1000), 1000);
+        }
+        encoder.finish();
+
+        // Not left at a whole number of windows
+        assertEquals(WavEncoder.HEADER_SIZE + pcm.length, file.length());
+        assertArrayEquals(pcm, parse(file).data);
+    }
+
+    private static EncoderOutput output(File file, boolean isMapped) {
+        return isMapped ? new MappedEncoderOutput(file, null) : new EncoderOutput(file, null);
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + 7);
+        }
+        return bytes;
+    }
+
+    // Reference parser ----------------------------------------------------------------------------
+
+    private static class Wav {
+        String form;
+        int channels;
+        int sampleRate;
+        int byteRate;
+        int blockAlign;
+        int bitDepth;
+        long sampleFrames = -1;
+        byte[] data;
+    }
+
+    private static Wav parse(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer in = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+
+        Wav wav = new Wav();
+        wav.form = fourCc(in);
+        assertTrue(wav.form.equals("RIFF") || wav.form.equals("RF64"));
+        long riffSize = in.getInt() & 0xFFFFFFFFL;
+        assertEquals("WAVE", fourCc(in));
+
+        long dataSize64 = -1;
+        if (wav.form.equals("RF64")) {
+            assertEquals(0xFFFFFFFFL, riffSize);
+            assertEquals("ds64", fourCc(in));
+            int size = in.getInt();
+            int next = in.position() + size;
+            riffSize = in.getLong();
+            dataSize64 = in.getLong();
+            wav.sampleFrames = in.getLong();
+            in.position(next);
+        }
+        assertEquals(bytes.length - 8, riffSize);
+
+        boolean hasFormat = false;
+        while (in.remaining() >= 8) {
+            String id = fourCc(in);
+            long size = in.getInt() & 0xFFFFFFFFL;
+            if (id.equals("fmt ")) {
+                assertEquals(16, size);
+                assertEquals(1, in.getShort());
+                wav.channels = in.getShort();
+                wav.sampleRate = in.getInt();
+                wav.byteRate = in.getInt();
+                wav.blockAlign = in.getShort();
+                wav.bitDepth = in.getShort();
+                assertEquals(wav.sampleRate * wav.blockAlign, wav.byteRate);
+                assertEquals(wav.channels * wav.bitDepth / 8, wav.blockAlign);
+                hasFormat = true;
+            } else if (id.equals("data")) {
+                assertTrue("fmt before data", hasFormat);
+                if (dataSize64 >= 0) {
+                    assertEquals(0xFFFFFFFFL, size);
+                    size = dataSize64;
+                }
+                wav.data = new byte[(int) size];
+                in.get(wav.data);
+                if (wav.sampleFrames >= 0) {
+                    assertEquals(size / wav.blockAlign, wav.sampleFrames);
+                }
+            } else {
+                in.position(in.position() + (int) size);
+            }
+            // Pad to an even size
+            if ((size & 1) != 0) {
+                assertEquals(0, in.get());
+            }
+        }
+
+        assertEquals(0, in.remaining());
+        if (wav.data == null) {
+            fail("No data chunk");
+        }
+        return wav;
+    }
+
+    private static String fourCc(ByteBuffer in) {
+        byte[] id = new byte[4];
+        in.get(id);
+        return new String(id);
+    }
+}
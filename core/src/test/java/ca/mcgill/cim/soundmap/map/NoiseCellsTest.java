@@ -0,0 +1,94 @@
+package ca.mcgill.cim.soundmap.map;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NoiseCellsTest {
+
+    private static final double LAT = 45.5048;
+    private static final double LNG = -73.5772;
+
+    @Test
+    public void geohashMatchesTheReferenceAndContainsThePoint() {
+        assertEquals("u4pruydqqvj", Geohash.encode(57.64911, 10.40744, 11));
+
+        double[] bounds = new double[4];
+        String hash = Geohash.encode(LAT, LNG, NoiseCells.DEFAULT_PRECISION);
+        Geohash.decode(hash, bounds);
+        assertTrue(bounds[0] <= LAT && LAT < bounds[2]);
+        assertTrue(bounds[1] <= LNG && LNG < bounds[3]);
+        assertEquals(150, RoutePlanner.distance(bounds[0], LNG, bounds[2], LNG), 10);
+        assertEquals(110, RoutePlanner.distance(LAT, bounds[1], LAT, bounds[3]), 10);
+        assertTrue(Geohash.encode(LAT, LNG, 9).startsWith(hash));
+    }
+
+    @Test
+    public void levelsAreAggregatedPerCell() {
+        NoiseCells cells = new NoiseCells();
+        cells.add(LAT, LNG, 70, 60);
+        cells.add(LAT, LNG, 80, 70);
+        cells.add(LAT + 0.01, LNG, 50, 40);
+
+        assertEquals(2, cells.size());
+        NoiseCells.Cell cell = cells.getCell(LAT, LNG);
+        assertEquals(2, cell.getFrames());
+        // Energy averages: 10 log10((10^7 + 10^8) / 2)
+        assertEquals(77.40, cell.getLeq(), 0.01);
+        assertEquals(67.40, cell.getLAeq(), 0.01);
+        assertEquals(70, cell.getLevelExceeded(0), 1e-9);
+        assertEquals(60, cell.getLevelExceeded(100), 1e-9);
+        assertNull(cells.getCell(LAT - 0.01, LNG));
+    }
+
+    @Test
+    public void deltasMergeIntoWhatTheServerHas() throws Exception {
+        Random random = new Random(1);
+        NoiseCells device = new NoiseCells();
+        NoiseCells server = new NoiseCells();
+
+        // Three uploads, the second of which fails and goes with the third
+        NoiseCells failed = null;
+        for (int upload = 0; upload < 3; upload++) {
+            for (int frame = 0; frame < 3000; frame++) {
+                double level = 55 + random.nextGaussian() * 5;
+                device.add(LAT + random.nextDouble() * 0.003, LNG, level + 8, level);
+            }
+
+            NoiseCells delta = device.takeDelta();
+            if (upload == 1) {
+                failed = delta;
+                continue;
+            }
+            if (failed != null) {
+                device.restoreDelta(failed);
+                delta.merge(device.takeDelta());
+            }
+
+            Buffer buffer = new Buffer();
+            delta.writeTo(buffer);
+            server.merge(NoiseCells.readFrom(buffer));
+        }
+
+        assertEquals(device.size(), server.size());
+        for (int i = 0; i < 3; i++) {
+            double lat = LAT + i * 0.001;
+            NoiseCells.Cell expected = device.getCell(lat, LNG);
+            NoiseCells.Cell merged = server.getCell(lat, LNG);
+            assertEquals(expected.getFrames(), merged.getFrames());
+            assertEquals(expected.getLeq(), merged.getLeq(), 0.01);
+            assertEquals(expected.getLAeq(), merged.getLAeq(), 0.01);
+            for (double percent : new double[] {10, 50, 90}) {
+                assertEquals(expected.getLevelExceeded(percent),
+                        merged.getLevelExceeded(percent), 0.2);
+            }
+        }
+        assertEquals(0, device.takeDelta().size());
+    }
+}
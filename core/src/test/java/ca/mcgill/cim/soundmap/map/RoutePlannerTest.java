@@ -0,0 +1,174 @@
+package ca.mcgill.cim.soundmap.map;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import ca.mcgill.cim.soundmap.protocol.UserPositions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RoutePlannerTest {
+
+    private static final double LAT = 45.5048;
+    private static final double LNG = -73.5772;
+
+    @Test
+    public void degreeOfLatitudeIsAboutOneHundredAndElevenKilometres() {
+        double expected = RoutePlanner.EARTH_RADIUS * Math.PI / 180;
+        assertEquals(expected, RoutePlanner.distance(45, LNG, 46, LNG), 1e-6);
+        assertEquals(0, RoutePlanner.distance(LAT, LNG, LAT, LNG), 0);
+    }
+
+    @Test
+    public void targetsAlongAStreetAreVisitedInOrder() {
+        UserPositions targets = new UserPositions();
+        int[] steps = {5, 2, 8, 1, 7, 3, 6, 4};
+        for (int step : steps) {
+            targets.add("t" + step, LAT + step * 0.001, LNG);
+        }
+
+        RoutePlanner planner = new RoutePlanner();
+        planner.setTargets(targets);
+        planner.plan(LAT, LNG);
+
+        assertEquals(steps.length, planner.size());
+        for (int i = 0; i < planner.size(); i++) {
+            assertEquals("t" + (i + 1), planner.getTag(i));
+        }
+        assertEquals(RoutePlanner.distance(LAT, LNG, LAT + 0.008, LNG), planner.getLength(),
+                1e-6);
+    }
+
+    @Test
+    public void routeIsNoLongerThanNearestNeighbourAndCloseToTheBest() {
+        Random random = new Random(1);
+        int trials = 100;
+        int optimal = 0;
+        double excess = 0;
+        for (int trial = 0; trial < trials; trial++) {
+            UserPositions targets = randomTargets(random, 7);
+            RoutePlanner planner = new RoutePlanner();
+            planner.setTargets(targets);
+            planner.plan(LAT, LNG);
+
+            assertEquals(7, tagsOf(planner).size());
+            assertTrue(planner.getLength() <= nearestNeighbour(targets) + 1e-6);
+
+            // A heuristic: usually the best route, never far from it
+            double best = shortest(targets);
+            assertTrue(planner.getLength() < 1.15 * best);
+            if (planner.getLength() < best + 1e-6) {
+                optimal++;
+            }
+            excess += planner.getLength() / best - 1;
+        }
+        assertTrue("Optimal in only " + optimal + " of " + trials, optimal > 0.8 * trials);
+        assertTrue(excess / trials < 0.01);
+    }
+
+    @Test
+    public void routeFollowsTheUser() {
+        UserPositions targets = new UserPositions();
+        for (int step = 1; step <= 6; step++) {
+            targets.add("t" + step, LAT + step * 0.001, LNG);
+        }
+
+        RoutePlanner planner = new RoutePlanner();
+        planner.setTargets(targets);
+        planner.plan(LAT, LNG);
+        planner.removeNext();
+        assertEquals(5, planner.size());
+        assertEquals("t2", planner.getTag(0));
+
+        // The user went to the other end of the street instead
+        planner.update(LAT + 0.007, LNG);
+        assertEquals(5, planner.size());
+        for (int i = 0; i < planner.size(); i++) {
+            assertEquals("t" + (6 - i), planner.getTag(i));
+        }
+    }
+
+    @Test
+    public void largeBatchKeepsEveryTarget() {
+        UserPositions targets = randomTargets(new Random(2), 300);
+        RoutePlanner planner = new RoutePlanner();
+        planner.setTargets(targets);
+        planner.plan(LAT, LNG);
+
+        assertEquals(300, tagsOf(planner).size());
+        assertTrue(planner.getLength() <= nearestNeighbour(targets) + 1e-6);
+
+        double before = planner.getLength();
+        planner.update(LAT, LNG);
+        assertEquals(before, planner.getLength(), 1e-6);
+    }
+
+    private static UserPositions randomTargets(Random random, int n) {
+        // Within about a kilometre of the user
+        UserPositions targets = new UserPositions(n);
+        for (int i = 0; i < n; i++) {
+            targets.add("t" + i, LAT + (random.nextDouble() - 0.5) * 0.02,
+                    LNG + (random.nextDouble() - 0.5) * 0.02);
+        }
+        return targets;
+    }
+
+    private static Set<String> tagsOf(RoutePlanner planner) {
+        Set<String> tags = new HashSet<>();
+        for (int i = 0; i < planner.size(); i++) {
+            tags.add(planner.getTag(i));
+        }
+        return tags;
+    }
+
+    private static double nearestNeighbour(UserPositions targets) {
+        boolean[] visited = new boolean[targets.size()];
+        double lat = LAT;
+        double lng = LNG;
+        double length = 0;
+        for (int step = 0; step < targets.size(); step++) {
+            int nearest = -1;
+            double best = Double.MAX_VALUE;
+            for (int i = 0; i < targets.size(); i++) {
+                double d = RoutePlanner.distance(lat, lng, targets.getLat(i), targets.getLng(i));
+                if (!visited[i] && d < best) {
+                    best = d;
+                    nearest = i;
+                }
+            }
+            visited[nearest] = true;
+            length += best;
+            lat = targets.getLat(nearest);
+            lng = targets.getLng(nearest);
+        }
+        return length;
+    }
+
+    // Every ordering, for small batches
+    private static double shortest(UserPositions targets) {
+        return shortest(targets, new boolean[targets.size()], LAT, LNG, targets.size());
+    }
+
+    private static double shortest(UserPositions targets, boolean[] visited, double lat,
+                                   double lng, int left) {
+        if (left == 0) {
+            return 0;
+        }
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < targets.size(); i++) {
+            if (visited[i]) {
+                continue;
+            }
+            visited[i] = true;
+            double d = RoutePlanner.distance(lat, lng, targets.getLat(i), targets.getLng(i))
+                    + shortest(targets, visited, targets.getLat(i), targets.getLng(i), left - 1);
+            visited[i] = false;
+            best = Math.min(best, d);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,143 @@
+package ca.mcgill.cim.soundmap.map;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleIndexTest {
+
+    private static final double LAT = 45.5048;
+    private static final double LNG = -73.5772;
+    private static final double SPREAD = 0.1;  // deg, about 10 km
+
+    @Test
+    public void boxQueryMatchesAScan() {
+        Random random = new Random(1);
+        double[][] samples = randomSamples(random, 20000);
+        SampleIndex index = indexOf(samples);
+
+        SampleHits hits = new SampleHits();
+        for (int trial = 0; trial < 50; trial++) {
+            double size = random.nextDouble() * 0.02;
+            double minLat = LAT + (random.nextDouble() - 0.5) * SPREAD;
+            double minLng = LNG + (random.nextDouble() - 0.5) * SPREAD;
+
+            Set<Long> expected = new HashSet<>();
+            for (int i = 0; i < samples.length; i++) {
+                if (samples[i][0] >= minLat && samples[i][0] <= minLat + size
+                        && samples[i][1] >= minLng && samples[i][1] <= minLng + size) {
+                    expected.add((long) i);
+                }
+            }
+
+            assertEquals(expected.size(),
+                    index.within(minLat, minLng, minLat + size, minLng + size, hits));
+            assertEquals(expected, idsOf(hits));
+        }
+    }
+
+    @Test
+    public void nearestMatchesASortedScan() {
+        Random random = new Random(2);
+        double[][] samples = randomSamples(random, 20000);
+        SampleIndex index = indexOf(samples);
+
+        SampleHits hits = new SampleHits();
+        for (int trial = 0; trial < 50; trial++) {
+            double lat = LAT + (random.nextDouble() - 0.5) * SPREAD;
+            double lng = LNG + (random.nextDouble() - 0.5) * SPREAD;
+
+            double[] distances = new double[samples.length];
+            for (int i = 0; i < samples.length; i++) {
+                distances[i] = RoutePlanner.distance(lat, lng, samples[i][0], samples[i][1]);
+            }
+            Arrays.sort(distances);
+
+            assertEquals(10, index.nearest(lat, lng, 10, hits));
+            for (int i = 0; i < 10; i++) {
+                assertEquals(distances[i], hits.getDistance(i), 1e-3 * distances[i]);
+                assertTrue(i == 0 || hits.getDistance(i - 1) <= hits.getDistance(i));
+            }
+        }
+    }
+
+    @Test
+    public void pendingAndRemovedSamplesAreSeen() {
+        Random random = new Random(3);
+        double[][] samples = randomSamples(random, 5000);
+        SampleIndex index = indexOf(samples);
+        index.pack();
+
+        // Packed and pending samples alike
+        index.add(-1, LAT, LNG);
+        assertTrue(index.remove(0, samples[0][0], samples[0][1]));
+        assertFalse(index.remove(0, samples[0][0], samples[0][1]));
+        assertFalse(index.remove(1, LAT, LNG));
+        assertEquals(5000, index.size());
+
+        SampleHits hits = new SampleHits();
+        index.nearest(LAT, LNG, 1, hits);
+        assertEquals(-1, hits.getId(0));
+        assertEquals(0, hits.getDistance(0), 0);
+
+        index.within(samples[0][0], samples[0][1], samples[0][0], samples[0][1], hits);
+        assertEquals(0, hits.size());
+
+        // Enough removals to repack, after which the rest are still found
+        for (int i = 1; i < 2000; i++) {
+            assertTrue(index.remove(i, samples[i][0], samples[i][1]));
+        }
+        assertEquals(3001, index.within(-90, -180, 90, 180, hits));
+        assertFalse(idsOf(hits).contains(1999L));
+        assertTrue(idsOf(hits).contains(2000L));
+    }
+
+    @Test
+    public void emptyOrSmallIndexAnswers() {
+        SampleIndex index = new SampleIndex();
+        SampleHits hits = new SampleHits();
+        assertEquals(0, index.nearest(LAT, LNG, 5, hits));
+        assertEquals(0, index.within(-90, -180, 90, 180, hits));
+
+        index.add(7, LAT, LNG);
+        index.add(8, Double.NaN, LNG);
+        assertEquals(1, index.size());
+        assertEquals(1, index.nearest(LAT + 0.001, LNG, 5, hits));
+        assertEquals(7, hits.getId(0));
+    }
+
+    private static double[][] randomSamples(Random random, int n) {
+        double[][] samples = new double[n][];
+        for (int i = 0; i < n; i++) {
+            // Clustered along a few streets, as samples are, plus some scattered
+            double lat = LAT + (random.nextDouble() - 0.5) * SPREAD;
+            double lng = i % 3 == 0 ? LNG + (random.nextInt(20) - 10) * 0.005
+                    : LNG + (random.nextDouble() - 0.5) * SPREAD;
+            samples[i] = new double[] {lat, lng};
+        }
+        return samples;
+    }
+
+    private static SampleIndex indexOf(double[][] samples) {
+        SampleIndex index = new SampleIndex();
+        for (int i = 0; i < samples.length; i++) {
+            index.add(i, samples[i][0], samples[i][1]);
+        }
+        return index;
+    }
+
+    private static Set<Long> idsOf(SampleHits hits) {
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < hits.size(); i++) {
+            ids.add(hits.getId(i));
+        }
+        return ids;
+    }
+}
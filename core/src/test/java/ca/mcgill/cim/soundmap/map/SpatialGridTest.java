@@ -0,0 +1,164 @@
+package ca.mcgill.cim.soundmap.map;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import ca.mcgill.cim.soundmap.protocol.UserPositions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpatialGridTest {
+
+    private static final double CELL = 0.001;
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void queryCullsUsersOutsideTheBounds() {
+        UserPositions users = new UserPositions();
+        users.add("In", 45.5050, -73.5770);
+        users.add("North", 45.5200, -73.5770);
+        users.add("West", 45.5050, -73.6000);
+
+        SpatialGrid grid = new SpatialGrid(CELL);
+        grid.build(users);
+
+        Clusters clusters = new Clusters();
+        int found = grid.query(45.5000, -73.5800, 45.5100, -73.5700, 0.0001, clusters);
+
+        assertEquals(1, found);
+        assertEquals(1, clusters.size());
+        assertEquals("In", clusters.getName(0));
+        assertEquals(45.5050, clusters.getLat(0), DELTA);
+        assertEquals(-73.5770, clusters.getLng(0), DELTA);
+    }
+
+    @Test
+    public void nearbyUsersAreMergedAtTheirCentroid() {
+        UserPositions users = new UserPositions();
+        users.add("Foo", 45.50010, -73.57010);
+        users.add("Bar", 45.50030, -73.57030);
+        users.add("Far", 45.50900, -73.57900);
+
+        SpatialGrid grid = new SpatialGrid(CELL);
+        grid.build(users);
+
+        Clusters clusters = new Clusters();
+        grid.query(45.49, -73.59, 45.51, -73.56, 0.004, clusters);
+
+        assertEquals(2, clusters.size());
+        int pair = clusters.getCount(0) == 2 ? 0 : 1;
+        assertEquals(2, clusters.getCount(pair));
+        assertNull(clusters.getName(pair));
+        assertEquals(45.50020, clusters.getLat(pair), DELTA);
+        assertEquals(-73.57020, clusters.getLng(pair), DELTA);
+        assertEquals("Far", clusters.getName(1 - pair));
+    }
+
+    @Test
+    public void clusterKeysAreStableAcrossPans() {
+        UserPositions users = new UserPositions();
+        users.add("Foo", 45.5005, -73.5705);
+
+        SpatialGrid grid = new SpatialGrid(CELL);
+        grid.build(users);
+
+        Clusters clusters = new Clusters();
+        grid.query(45.49, -73.58, 45.51, -73.56, 0.002, clusters);
+        long key = clusters.getKey(0);
+        grid.query(45.495, -73.575, 45.515, -73.555, 0.002, clusters);
+
+        assertEquals(key, clusters.getKey(0));
+    }
+
+    @Test
+    public void smallAndLargeViewportsFindTheSameUsers() {
+        UserPositions users = randomUsers(1000, 0.05);
+        SpatialGrid grid = new SpatialGrid(CELL);
+        grid.build(users);
+
+        // Covers few cells (probed one by one) or more cells than exist (walked)
+        Clusters clusters = new Clusters();
+        int small = grid.query(45.500, -73.580, 45.505, -73.575, 0.0001, clusters);
+        int expected = count(users, 45.500, -73.580, 45.505, -73.575);
+        assertEquals(expected, small);
+
+        int all = grid.query(40, -80, 50, -70, 0.01, clusters);
+        assertEquals(users.size(), all);
+    }
+
+    @Test
+    public void markerCountIsBoundedByTheClusterGrid() {
+        UserPositions users = randomUsers(10000, 0.05);
+        SpatialGrid grid = new SpatialGrid(CELL);
+        grid.build(users);
+
+        double width = 0.02;
+        int columns = 6;
+        double clusterSize = SpatialGrid.clusterSizeFor(width, columns);
+        Clusters clusters = new Clusters();
+        int found = grid.query(45.50, -73.58, 45.50 + width, -73.58 + width, clusterSize,
+                clusters);
+
+        assertTrue(found > 1000);
+        // Rounding the cluster size up to a power of two only makes clusters bigger
+        int span = columns + 2;
+        assertTrue(clusters.size() <= span * span);
+        int total = 0;
+        for (int i = 0; i < clusters.size(); i++) {
+            total += clusters.getCount(i);
+        }
+        assertEquals(found, total);
+    }
+
+    @Test
+    public void rebuildReplacesTheUsers() {
+        SpatialGrid grid = new SpatialGrid(CELL);
+        grid.build(randomUsers(500, 0.01));
+
+        UserPositions users = new UserPositions();
+        users.add("Only", 45.5, -73.5);
+        users.add("Broken", Double.NaN, -73.5);
+        grid.build(users);
+
+        assertEquals(1, grid.size());
+        assertEquals(1, grid.getCellCount());
+
+        Clusters clusters = new Clusters();
+        assertEquals(1, grid.query(40, -80, 50, -70, 1, clusters));
+        assertEquals("Only", clusters.getName(0));
+    }
+
+    @Test
+    public void clusterSizeIsAPowerOfTwo() {
+        double size = SpatialGrid.clusterSizeFor(0.02, 6);
+        double exponent = Math.log(size) / Math.log(2);
+
+        assertEquals(Math.rint(exponent), exponent, DELTA);
+        assertTrue(size >= 0.02 / 6 && size < 2 * 0.02 / 6);
+    }
+
+    private static UserPositions randomUsers(int n, double spread) {
+        Random random = new Random(42);
+        UserPositions users = new UserPositions(n);
+        for (int i = 0; i < n; i++) {
+            users.add("user" + i, 45.50 + random.nextDouble() * spread,
+                    -73.58 + random.nextDouble() * spread);
+        }
+        return users;
+    }
+
+    private static int count(UserPositions users, double minLat, double minLng,
+                             double maxLat, double maxLng) {
+        int count = 0;
+        for (int i = 0; i < users.size(); i++) {
+            if (users.getLat(i) >= minLat && users.getLat(i) <= maxLat
+                    && users.getLng(i) >= minLng && users.getLng(i) <= maxLng) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
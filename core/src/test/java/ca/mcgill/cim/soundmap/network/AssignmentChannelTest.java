@@ -0,0 +1,206 @@
+package ca.mcgill.cim.soundmap.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ca.mcgill.cim.soundmap.protocol.UserPositions;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the push channel against a local mock server.
+ */
+public class AssignmentChannelTest {
+
+    private static final long TIMEOUT = 5; // s
+
+    private final Executor mDirect = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> mServerReceived = new LinkedBlockingQueue<>();
+    private final BlockingQueue<WebSocket> mServerSockets = new LinkedBlockingQueue<>();
+
+    private MockWebServer mServer;
+    private AssignmentChannel mChannel;
+    private final UserPositions mUsers = new UserPositions();
+
+    private final AssignmentChannel.Listener mListener = new AssignmentChannel.Listener() {
+        @Override
+        public void onTarget(String tag, double lat, double lng) {
+            mEvents.add("target " + tag + " " + lat + " " + lng);
+        }
+
+        @Override
+        public void onUsersChanged() {
+            mChannel.getUsers(mUsers);
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < mUsers.size(); i++) {
+                names.add(mUsers.getName(i));
+            }
+            mEvents.add("users " + names);
+        }
+
+        @Override
+        public void onChannelClosed() {
+            mEvents.add("closed");
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mChannel != null) {
+            mChannel.close();
+        }
+        mServer.shutdown();
+    }
+
+    private WebSocket connect() throws Exception {
+        mServer.enqueue(new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+            @Override
+            public void onOpen(WebSocket webSocket, Response response) {
+                mServerSockets.add(webSocket);
+            }
+
+            @Override
+            public void onMessage(WebSocket webSocket, String text) {
+                mServerReceived.add(text);
+            }
+
+            @Override
+            public void onClosing(WebSocket webSocket, int code, String reason) {
+                webSocket.close(1000, null);
+            }
+        }));
+
+        mChannel = new AssignmentChannel(new OkHttpClient(), mServer.url("/channel").toString(),
+                "tester", mListener, mDirect);
+        mChannel.open();
+
+        WebSocket server = mServerSockets.poll(TIMEOUT, TimeUnit.SECONDS);
+        assertNotNull("The channel never connected", server);
+        return server;
+    }
+
+    @Test
+    public void pushedTargetIsDelivered() throws Exception {
+        WebSocket server = connect();
+        server.send("T McGill:45.5,-73.5");
+
+        assertEquals("target McGill 45.5 -73.5", mEvents.poll(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals("tester", mServer.takeRequest().getHeader("username"));
+    }
+
+    @Test
+    public void userDeltasAreApplied() throws Exception {
+        WebSocket server = connect();
+        server.send("S Foo:45.50,-73.57;Bar:45.55,-73.23");
+        server.send("U Baz:45.60,-73.60;Foo:45.51,-73.57");
+        server.send("R Bar");
+
+        assertEquals("users [Foo, Bar]", mEvents.poll(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals("users [Foo, Bar, Baz]", mEvents.poll(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals("users [Foo, Baz]", mEvents.poll(TIMEOUT, TimeUnit.SECONDS));
+
+        UserPositions users = new UserPositions(1);
+        mChannel.getUsers(users);
+        assertEquals(45.51, users.getLat(users.indexOf("Foo")), 1e-9);
+        assertEquals(-73.60, users.getLng(users.indexOf("Baz")), 1e-9);
+    }
+
+    @Test
+    public void malformedMessagesAreIgnored() throws Exception {
+        WebSocket server = connect();
+        server.send("T no coordinates");
+        server.send("X Foo:1,2");
+        server.send("T Tag:1.5,2.5");
+
+        assertEquals("target Tag 1.5 2.5", mEvents.poll(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void nextTargetIsRequestedOverTheChannel() throws Exception {
+        connect();
+
+        // onOpen on the client side may trail the server side slightly
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+        while (!mChannel.isOpen() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(mChannel.requestNextTarget(45.5, -73.5));
+        assertEquals("N 45.5,-73.5", mServerReceived.poll(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void serverCloseFallsBackToPolling() throws Exception {
+        WebSocket server = connect();
+        server.close(1001, "going away");
+
+        assertEquals("closed", mEvents.poll(TIMEOUT, TimeUnit.SECONDS));
+        assertFalse(mChannel.isOpen());
+        assertFalse(mChannel.requestNextTarget(45.5, -73.5));
+    }
+
+    @Test
+    public void lateOpenAfterCloseIsIgnored() throws Exception {
+        mServer.enqueue(new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+            @Override
+            public void onOpen(WebSocket webSocket, Response response) {
+                mServerSockets.add(webSocket);
+            }
+
+            @Override
+            public void onClosing(WebSocket webSocket, int code, String reason) {
+                webSocket.close(1000, null);
+            }
+        }));
+
+        mChannel = new AssignmentChannel(new OkHttpClient(), mServer.url("/channel").toString(),
+                "tester", mListener, mDirect);
+        mChannel.open();
+        mChannel.close();
+
+        // The handshake still completes, and onOpen still comes for the closed socket
+        assertNotNull(mServerSockets.poll(TIMEOUT, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertFalse(mChannel.isOpen());
+        assertFalse(mChannel.requestNextTarget(45.5, -73.5));
+    }
+
+    @Test
+    public void unsupportedServerReportsClosed() throws Exception {
+        mServer.enqueue(new MockResponse().setResponseCode(404));
+
+        mChannel = new AssignmentChannel(new OkHttpClient(), mServer.url("/channel").toString(),
+                "tester", mListener, mDirect);
+        mChannel.open();
+
+        assertEquals("closed", mEvents.poll(TIMEOUT, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,160 @@
+package ca.mcgill.cim.soundmap.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import ca.mcgill.cim.soundmap.protocol.NameTable;
+import ca.mcgill.cim.soundmap.protocol.UserPositions;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the /location exchange, prefetching included, against a local mock server.
+ */
+public class TargetClientTest {
+
+    private static final long TIMEOUT = 5; // s
+
+    private MockWebServer mServer;
+    private TargetClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mClient = new TargetClient(new OkHttpClient(), mServer.url("/location").toString(),
+                new NameTable());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void prefetchedTargetIsAnOffer() throws Exception {
+        mServer.enqueue(new MockResponse()
+                .setHeader("prefetch-id", "42")
+                .setBody("McGill:45.5,-73.5"));
+
+        TargetClient.Target target = mClient.prefetch("tester", 45.4, -73.6);
+        assertEquals("McGill", target.tag);
+        assertEquals(45.5, target.lat, 1e-9);
+        assertEquals(-73.5, target.lng, 1e-9);
+        assertFalse(target.isConfirmed());
+
+        RecordedRequest request = mServer.takeRequest(TIMEOUT, TimeUnit.SECONDS);
+        assertEquals("tester", request.getHeader("username"));
+        assertEquals("1", request.getHeader("prefetch"));
+    }
+
+    @Test
+    public void standingOfferIsConfirmed() throws Exception {
+        mServer.enqueue(new MockResponse()
+                .setHeader("prefetch-id", "42")
+                .setBody("McGill:45.5,-73.5"));
+        mServer.enqueue(new MockResponse().setResponseCode(204));
+
+        TargetClient.Target offer = mClient.prefetch("tester", 45.4, -73.6);
+        TargetClient.Target target = mClient.confirm("tester", offer, 45.4, -73.6);
+        assertTrue(target.isConfirmed());
+        assertEquals("McGill", target.tag);
+        assertEquals(45.5, target.lat, 1e-9);
+
+        mServer.takeRequest(TIMEOUT, TimeUnit.SECONDS);
+        RecordedRequest request = mServer.takeRequest(TIMEOUT, TimeUnit.SECONDS);
+        assertEquals("42", request.getHeader("prefetch-id"));
+        assertNull(request.getHeader("prefetch"));
+    }
+
+    @Test
+    public void withdrawnOfferIsReplaced() throws Exception {
+        mServer.enqueue(new MockResponse()
+                .setHeader("prefetch-id", "42")
+                .setBody("McGill:45.5,-73.5"));
+        mServer.enqueue(new MockResponse().setBody("Concordia:45.49,-73.58"));
+
+        TargetClient.Target offer = mClient.prefetch("tester", 45.4, -73.6);
+        TargetClient.Target target = mClient.confirm("tester", offer, 45.4, -73.6);
+        assertTrue(target.isConfirmed());
+        assertEquals("Concordia", target.tag);
+        assertEquals(-73.58, target.lng, 1e-9);
+    }
+
+    @Test
+    public void serverWithoutPrefetchAssignsAtOnce() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("McGill:45.5,-73.5"));
+
+        TargetClient.Target offer = mClient.prefetch("tester", 45.4, -73.6);
+        assertTrue(offer.isConfirmed());
+
+        // Already assigned, so there is nothing to confirm
+        assertSame(offer, mClient.confirm("tester", offer, 45.4, -73.6));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void busyServerSaysWait() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("Wait"));
+        mServer.enqueue(new MockResponse().setBody("not a target"));
+
+        assertSame(TargetClient.WAIT, mClient.prefetch("tester", 45.4, -73.6));
+        assertNull(mClient.fetch("tester", 45.4, -73.6));
+    }
+
+    @Test
+    public void batchIsAssignedInOneRequest() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("McGill:45.5,-73.5;Concordia:45.49,-73.58"));
+
+        UserPositions targets = new UserPositions();
+        assertEquals(2, mClient.fetchBatch("tester", 45.4, -73.6, 10, targets));
+        assertEquals("Concordia", targets.getName(1));
+        assertEquals(-73.58, targets.getLng(1), 1e-9);
+
+        RecordedRequest request = mServer.takeRequest(TIMEOUT, TimeUnit.SECONDS);
+        assertEquals("10", request.getHeader("count"));
+    }
+
+    @Test
+    public void serverWithoutBatchesSendsOneTarget() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("McGill:45.5,-73.5"));
+        mServer.enqueue(new MockResponse().setBody("Wait"));
+        mServer.enqueue(new MockResponse().setBody("not a target"));
+
+        UserPositions targets = new UserPositions();
+        assertEquals(1, mClient.fetchBatch("tester", 45.4, -73.6, 10, targets));
+        assertEquals("McGill", targets.getName(0));
+        assertEquals(0, mClient.fetchBatch("tester", 45.4, -73.6, 10, targets));
+        assertEquals(TargetClient.UNREACHABLE,
+                mClient.fetchBatch("tester", 45.4, -73.6, 10, targets));
+        assertEquals(1, targets.size());
+    }
+
+    @Test
+    public void unreachableServerGivesNoTarget() throws Exception {
+        mServer.shutdown();
+        assertNull(mClient.fetch("tester", 45.4, -73.6));
+    }
+
+    @Test
+    public void errorPageIsNotATarget() throws Exception {
+        // A proxy's error page that happens to look like a target
+        mServer.enqueue(new MockResponse().setResponseCode(502).setBody("Gateway:45.5,-73.5"));
+        mServer.enqueue(new MockResponse().setResponseCode(500).setBody("Wait"));
+        mServer.enqueue(new MockResponse().setResponseCode(503).setBody("McGill:45.5,-73.5"));
+
+        assertNull(mClient.fetch("tester", 45.4, -73.6));
+        assertNull(mClient.prefetch("tester", 45.4, -73.6));
+        UserPositions targets = new UserPositions();
+        assertEquals(TargetClient.UNREACHABLE,
+                mClient.fetchBatch("tester", 45.4, -73.6, 10, targets));
+        assertEquals(0, targets.size());
+    }
+}
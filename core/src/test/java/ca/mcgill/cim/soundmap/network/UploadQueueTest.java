@@ -0,0 +1,196 @@
+package ca.mcgill.cim.soundmap.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs uploads, resumed and retried ones included, against a local mock server.
+ */
+public class UploadQueueTest {
+
+    private static final long TIMEOUT = 5;         // s
+    private static final long BACKOFF = 10;        // ms
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private File mJournal;
+    private UploadQueue mQueue;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mJournal = new File(mFolder.getRoot(), "uploads.journal");
+        // Failed connections reach the queue rather than being retried by OkHttp
+        OkHttpClient client = new OkHttpClient.Builder()
+                .retryOnConnectionFailure(false)
+                .build();
+        mQueue = new UploadQueue(mJournal, client,
+                mServer.url("/upload").toString(), BACKOFF);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mQueue.shutdown();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void sampleIsSentWholeToALegacyServer() throws Exception {
+        File sample = newSample("a.wav", 600 * 1000);
+        mServer.enqueue(new MockResponse().setBody("OK"));
+
+        mQueue.enqueue(sample.getPath(), "tester", 45.5, -73.5);
+        awaitEmpty();
+
+        RecordedRequest request = mServer.takeRequest(TIMEOUT, TimeUnit.SECONDS);
+        String body = request.getBody().readUtf8();
+        assertTrue(request.getBodySize() > 600 * 1000);
+        assertTrue(body.contains("name=\"audio\"; filename=\"a.wav\""));
+        assertFalse(body.contains("name=\"offset\""));
+        assertEquals(1, mServer.getRequestCount());
+        assertFalse(mJournal.exists());
+    }
+
+    @Test
+    public void samplesAreChunkedOnceTheServerCanResume() throws Exception {
+        File first = newSample("a.wav", 1000);
+        File second = newSample("b.wav", 600 * 1000);
+        mServer.enqueue(new MockResponse().setHeader("Upload-Offset", "1000"));
+        mServer.enqueue(new MockResponse().setHeader("Upload-Offset", "262144"));
+        mServer.enqueue(new MockResponse().setHeader("Upload-Offset", "524288"));
+        mServer.enqueue(new MockResponse().setHeader("Upload-Offset", "600000"));
+
+        mQueue.enqueue(first.getPath(), "tester", 45.5, -73.5);
+        awaitEmpty();
+        mQueue.enqueue(second.getPath(), "tester", 45.5, -73.5);
+        awaitEmpty();
+
+        RecordedRequest whole = mServer.takeRequest(TIMEOUT, TimeUnit.SECONDS);
+        assertFalse(whole.getBody().readUtf8().contains("name=\"offset\""));
+        long[] offsets = {0, CHUNK_SIZE, 2 * CHUNK_SIZE};
+        for (long offset : offsets) {
+            String body = mServer.takeRequest(TIMEOUT, TimeUnit.SECONDS).getBody().readUtf8();
+            assertTrue(body.contains("name=\"offset\"\r\nContent-Length: "
+                    + Long.toString(offset).length() + "\r\n\r\n" + offset + "\r\n"));
+            assertTrue(body.contains("600000"));
+        }
+        assertEquals(4, mServer.getRequestCount());
+    }
+
+    @Test
+    public void journalIsReplayedAndResumedFromTheServersOffset() throws Exception {
+        File sample = newSample("a.wav", 300000);
+        writeJournal(
+                "ADD\tdone.wav\t/gone/done.wav\ttester\t45.5\t-73.5\t100",
+                "ADD\ta.wav\t" + sample.getAbsolutePath() + "\ttester\t45.5\t-73.5\t300000",
+                "ACK\ta.wav\t262144",
+                "DONE\tdone.wav",
+                "ACK\ta.w");   // torn by a crash
+
+        mQueue.resume();
+        assertEquals(1, mQueue.getPendingCount());
+        assertTrue(mQueue.isPending(sample.getPath()));
+        assertEquals(Arrays.asList(
+                "ADD\ta.wav\t" + sample.getAbsolutePath() + "\ttester\t45.5\t-73.5\t300000",
+                "ACK\ta.wav\t262144"), readJournal());
+
+        // The server holds less than the journal says
+        mServer.enqueue(new MockResponse().setResponseCode(409)
+                .setHeader("Upload-Offset", "100000"));
+        mServer.enqueue(new MockResponse().setHeader("Upload-Offset", "300000"));
+        awaitEmpty();
+
+        RecordedRequest resumed = mServer.takeRequest(TIMEOUT, TimeUnit.SECONDS);
+        assertTrue(resumed.getBody().readUtf8().contains("\r\n262144\r\n"));
+        assertTrue(resumed.getBodySize() > 300000 - 262144);
+        RecordedRequest rewound = mServer.takeRequest(TIMEOUT, TimeUnit.SECONDS);
+        assertTrue(rewound.getBody().readUtf8().contains("\r\n100000\r\n"));
+        assertTrue(rewound.getBodySize() > 200000);
+        assertFalse(mJournal.exists());
+    }
+
+    @Test
+    public void failedUploadsAreRetriedWhole() throws Exception {
+        File sample = newSample("a.wav", 1000);
+        mServer.enqueue(new MockResponse().setResponseCode(503));
+        mServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        mServer.enqueue(new MockResponse().setBody("OK"));
+
+        mQueue.enqueue(sample.getPath(), "tester", 45.5, -73.5);
+        awaitEmpty();
+
+        assertEquals(3, mServer.getRequestCount());
+        assertFalse(mJournal.exists());
+    }
+
+    @Test
+    public void rejectedSampleIsDropped() throws Exception {
+        File sample = newSample("a.wav", 1000);
+        mServer.enqueue(new MockResponse().setResponseCode(400));
+        mServer.enqueue(new MockResponse().setBody("OK"));
+
+        mQueue.enqueue(sample.getPath(), "tester", 45.5, -73.5);
+        awaitEmpty();
+        Thread.sleep(20 * BACKOFF);
+
+        assertEquals(1, mServer.getRequestCount());
+        assertFalse(mQueue.isPending(sample.getPath()));
+        assertFalse(mJournal.exists());
+    }
+
+    private File newSample(String name, int length) throws Exception {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) 'a');
+        File file = mFolder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private void writeJournal(String... lines) throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        Files.write(mJournal.toPath(), text.toString().getBytes(Charset.forName("UTF-8")));
+    }
+
+    private List<String> readJournal() throws Exception {
+        return Files.readAllLines(mJournal.toPath(), Charset.forName("UTF-8"));
+    }
+
+    private void awaitEmpty() throws Exception {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+        while (mQueue.getPendingCount() > 0) {
+            assertTrue("Uploads still pending", System.currentTimeMillis() < deadline);
+            Thread.sleep(BACKOFF);
+        }
+    }
+}
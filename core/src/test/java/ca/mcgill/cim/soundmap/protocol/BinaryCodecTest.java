@@ -0,0 +1,130 @@
+package ca.mcgill.cim.soundmap.protocol;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+public class BinaryCodecTest {
+
+    private static final double RESOLUTION = 1e-7;
+
+    private final BinaryCodec mCodec = new BinaryCodec(new NameTable());
+
+    @Test
+    public void locationRoundTrip() throws Exception {
+        byte[] encoded = BinaryCodec.encodeLocation(45.504812985241564, -73.57715606689453);
+        assertEquals(10, encoded.length);
+
+        double[] coords = new double[2];
+        BinaryCodec.readLocation(new Buffer().write(encoded), coords);
+        assertEquals(45.504812985241564, coords[0], RESOLUTION);
+        assertEquals(-73.57715606689453, coords[1], RESOLUTION);
+    }
+
+    @Test
+    public void targetRoundTrip() throws Exception {
+        Buffer buffer = new Buffer();
+        BinaryCodec.writeTarget(buffer, "McGill", 45.5048, -73.5771);
+
+        String[] tag = new String[1];
+        double[] coords = new double[2];
+        assertEquals(BinaryCodec.TYPE_TARGET, mCodec.readTarget(buffer, tag, coords));
+        assertEquals("McGill", tag[0]);
+        assertEquals(45.5048, coords[0], RESOLUTION);
+        assertEquals(-73.5771, coords[1], RESOLUTION);
+    }
+
+    @Test
+    public void waitIsReported() throws Exception {
+        Buffer buffer = new Buffer();
+        BinaryCodec.writeWait(buffer);
+
+        assertEquals(BinaryCodec.TYPE_WAIT,
+                mCodec.readTarget(buffer, new String[1], new double[2]));
+    }
+
+    @Test
+    public void usersRoundTrip() throws Exception {
+        Random random = new Random(7);
+        UserPositions users = new UserPositions();
+        for (int i = 0; i < 1000; i++) {
+            users.add("user" + i, 45.5 + random.nextGaussian() * 0.01,
+                    -73.57 + random.nextGaussian() * 0.01);
+        }
+        // Extremes must survive the deltas
+        users.add("north", 90, 180);
+        users.add("south", -90, -180);
+
+        Buffer buffer = new Buffer();
+        BinaryCodec.writeUsers(buffer, users);
+
+        UserPositions decoded = new UserPositions();
+        assertEquals(users.size(), mCodec.readUsers(buffer, decoded));
+        for (int i = 0; i < users.size(); i++) {
+            assertEquals(users.getName(i), decoded.getName(i));
+            assertEquals(users.getLat(i), decoded.getLat(i), RESOLUTION);
+            assertEquals(users.getLng(i), decoded.getLng(i), RESOLUTION);
+        }
+    }
+
+    @Test
+    public void singleTargetIsABatchOfOne() throws Exception {
+        UserPositions targets = new UserPositions();
+        targets.add("McGill", 45.5048, -73.5771);
+        targets.add("Concordia", 45.4972, -73.5790);
+        Buffer buffer = new Buffer();
+        BinaryCodec.writeTargets(buffer, targets);
+        BinaryCodec.writeTarget(buffer, "Jarry", 45.5347, -73.6275);
+        BinaryCodec.writeWait(buffer);
+
+        UserPositions decoded = new UserPositions();
+        assertEquals(BinaryCodec.TYPE_TARGETS, mCodec.readTargets(buffer, decoded));
+        assertEquals(BinaryCodec.TYPE_TARGET, mCodec.readTargets(buffer, decoded));
+        assertEquals(BinaryCodec.TYPE_WAIT, mCodec.readTargets(buffer, decoded));
+        assertEquals(3, decoded.size());
+        assertEquals("Concordia", decoded.getName(1));
+        assertEquals("Jarry", decoded.getName(2));
+        assertEquals(-73.6275, decoded.getLng(2), RESOLUTION);
+    }
+
+    @Test
+    public void usersAreSmallerThanText() throws Exception {
+        UserPositions users = new UserPositions();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            double lat = 45.504812985241564 + i * 1e-4;
+            double lng = -73.57715606689453 - i * 1e-4;
+            users.add("u" + i, lat, lng);
+            text.append(i > 0 ? ";" : "").append("u").append(i).append(':')
+                    .append(lat).append(',').append(lng);
+        }
+
+        Buffer buffer = new Buffer();
+        BinaryCodec.writeUsers(buffer, users);
+        assertTrue(buffer.size() * 3 < text.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownVersion() throws Exception {
+        mCodec.readUsers(new Buffer().writeByte(2).writeByte(BinaryCodec.TYPE_USERS).writeByte(0),
+                new UserPositions());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedMessage() throws Exception {
+        Buffer truncated = new Buffer();
+        BinaryCodec.writeTarget(truncated, "McGill", 45.5, -73.5);
+        truncated = new Buffer().write(truncated.readByteArray(10));
+        mCodec.readTarget(truncated, new String[1], new double[2]);
+    }
+
+    @Test
+    public void textLocationMatchesLatLngToString() {
+        assertEquals("lat/lng: (45.5,-73.57)", WireFormat.formatLocation(45.5, -73.57));
+    }
+}
@@ -0,0 +1,172 @@
+package ca.mcgill.cim.soundmap.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+public class LocationCodecTest {
+
+    private NameTable mNames;
+    private LocationCodec mCodec;
+    private UserPositions mUsers;
+
+    @Before
+    public void setUp() {
+        mNames = new NameTable();
+        mCodec = new LocationCodec(mNames);
+        mUsers = new UserPositions();
+    }
+
+    private int read(String payload) throws IOException {
+        mUsers.clear();
+        return mCodec.readUsers(new Buffer().writeUtf8(payload), mUsers);
+    }
+
+    @Test
+    public void readsUserList() throws Exception {
+        assertEquals(2, read("Foo:45.50,-73.57;Bar:45.55,-73.23"));
+
+        assertEquals("Foo", mUsers.getName(0));
+        assertEquals(45.50, mUsers.getLat(0), 0);
+        assertEquals(-73.57, mUsers.getLng(0), 0);
+        assertEquals("Bar", mUsers.getName(1));
+        assertEquals(45.55, mUsers.getLat(1), 0);
+        assertEquals(-73.23, mUsers.getLng(1), 0);
+    }
+
+    @Test
+    public void skipsMalformedEntries() throws Exception {
+        assertEquals(3, read("A:1,2;nocolon;B:x,2;C:1;:1,2;D:3,4;E:5,6,7;;F:1.2.3,4\n"));
+
+        assertEquals("A", mUsers.getName(0));
+        assertEquals("D", mUsers.getName(1));
+        assertEquals("E", mUsers.getName(2));
+        assertEquals(6, mUsers.getLng(2), 0);
+    }
+
+    @Test
+    public void toleratesTrailingNewline() throws Exception {
+        assertEquals(1, read("Foo:45.5,-73.5\n"));
+        assertEquals(-73.5, mUsers.getLng(0), 0);
+    }
+
+    @Test
+    public void emptyOrWaitYieldsNothing() throws Exception {
+        assertEquals(0, read(""));
+        assertEquals(0, read("Wait"));
+    }
+
+    @Test
+    public void namesAreInterned() throws Exception {
+        read("Foo:1,2;Bar:3,4");
+        String foo = mUsers.getName(0);
+        read("Bar:5,6;Foo:7,8");
+
+        assertSame(foo, mUsers.getName(1));
+        assertEquals(2, mNames.size());
+    }
+
+    @Test
+    public void handlesUtf8Names() throws Exception {
+        read("L\u00e9a:1,2");
+        assertEquals("L\u00e9a", mUsers.getName(0));
+    }
+
+    @Test
+    public void matchesDoubleParsing() throws Exception {
+        Random random = new Random(42);
+        String[] samples = {
+                "45.504812985241564", "-73.57715606689453", "0", "-0.0", "0.000012345",
+                "180", "1e3", "1.5E-2", "+12.25", "123456789012345678901.5"
+        };
+
+        for (String sample : samples) {
+            read("X:" + sample + "," + sample);
+            double expected = Double.parseDouble(sample);
+            assertEquals(sample, expected, mUsers.getLat(0), Math.ulp(expected) * 2);
+        }
+
+        for (int i = 0; i < 10000; i++) {
+            double lat = (random.nextDouble() - 0.5) * 180;
+            double lng = (random.nextDouble() - 0.5) * 360;
+            read("X:" + lat + "," + lng);
+            assertEquals(lat, mUsers.getLat(0), Math.ulp(lat) * 2);
+            assertEquals(lng, mUsers.getLng(0), Math.ulp(lng) * 2);
+        }
+    }
+
+    @Test
+    public void readsAcrossSegments() throws Exception {
+        // Larger than an okio segment, so entries straddle segment boundaries
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            if (i > 0) {
+                payload.append(';');
+            }
+            payload.append("user").append(i % 100).append(':')
+                    .append(45 + i * 1e-5).append(',').append(-73 - i * 1e-5);
+        }
+
+        assertEquals(5000, read(payload.toString()));
+        assertEquals("user99", mUsers.getName(4999));
+        assertEquals(45 + 4999 * 1e-5, mUsers.getLat(4999), 1e-12);
+        assertEquals(100, mNames.size());
+    }
+
+    @Test
+    public void readsTarget() throws Exception {
+        String[] tag = new String[1];
+        double[] coords = new double[2];
+
+        assertTrue(mCodec.readTarget(
+                new Buffer().writeUtf8("McGill:45.504812985241564,-73.57715606689453"),
+                tag, coords));
+        assertEquals("McGill", tag[0]);
+        assertEquals(45.504812985241564, coords[0], 1e-12);
+        assertEquals(-73.57715606689453, coords[1], 1e-12);
+
+        assertFalse(mCodec.readTarget(new Buffer().writeUtf8("Wait"), tag, coords));
+        assertFalse(mCodec.readTarget(new Buffer(), tag, coords));
+    }
+
+    @Test
+    public void appliesDeltasInPlace() throws Exception {
+        read("Foo:45.50,-73.57;Bar:45.55,-73.23");
+
+        assertEquals(2, mCodec.readUpdates(
+                new Buffer().writeUtf8("Baz:45.60,-73.60;Foo:45.51,-73.57"), mUsers));
+        assertEquals(3, mUsers.size());
+        assertEquals("Foo", mUsers.getName(0));
+        assertEquals(45.51, mUsers.getLat(0), 0);
+        assertEquals("Baz", mUsers.getName(2));
+
+        assertEquals(1, mCodec.readRemovals(new Buffer().writeUtf8("Foo;Nobody;\n"), mUsers));
+        assertEquals(2, mUsers.size());
+        assertEquals("Bar", mUsers.getName(0));
+        assertEquals("Baz", mUsers.getName(1));
+        assertEquals(-73.60, mUsers.getLng(1), 0);
+        assertEquals(-1, mUsers.indexOf("Foo"));
+    }
+
+    @Test
+    public void copyReusesArrays() throws Exception {
+        read("Foo:45.50,-73.57;Bar:45.55,-73.23;Baz:45.60,-73.60");
+        UserPositions copy = new UserPositions(1);
+
+        copy.copyFrom(mUsers);
+        assertEquals(3, copy.size());
+        assertEquals("Baz", copy.getName(2));
+        assertEquals(45.55, copy.getLat(1), 0);
+
+        mUsers.remove("Bar");
+        copy.copyFrom(mUsers);
+        assertEquals(2, copy.size());
+        assertEquals("Baz", copy.getName(1));
+    }
+}
@@ -0,0 +1,131 @@
+package ca.mcgill.cim.soundmap.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PeriodicSchedulerTest {
+
+    private static final long PERIOD = 10; // ms
+
+    private PeriodicScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new PeriodicScheduler("test");
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdown();
+    }
+
+    @Test
+    public void scheduledTaskRunsRepeatedly() throws Exception {
+        CountingTask task = new CountingTask(3);
+        mScheduler.schedule(task, PERIOD);
+
+        assertTrue(task.await());
+    }
+
+    @Test
+    public void pauseStopsTasksAndResumeRestartsThem() throws Exception {
+        CountingTask task = new CountingTask(1);
+        mScheduler.schedule(task, PERIOD);
+        assertTrue(task.await());
+
+        mScheduler.pause();
+        int runs = task.settle();
+        Thread.sleep(PERIOD * 5);
+        assertEquals(runs, task.getRuns());
+        assertTrue(mScheduler.isScheduled(task));
+
+        task.expect(2);
+        mScheduler.resume();
+        assertTrue(task.await());
+    }
+
+    @Test
+    public void taskScheduledWhilePausedWaitsForResume() throws Exception {
+        mScheduler.pause();
+        CountingTask task = new CountingTask(1);
+        mScheduler.schedule(task, PERIOD);
+
+        Thread.sleep(PERIOD * 5);
+        assertEquals(0, task.getRuns());
+
+        mScheduler.resume();
+        assertTrue(task.await());
+    }
+
+    @Test
+    public void cancelledTaskStopsAndIsForgotten() throws Exception {
+        CountingTask task = new CountingTask(1);
+        mScheduler.schedule(task, PERIOD);
+        assertTrue(task.await());
+
+        mScheduler.cancel(task);
+        assertFalse(mScheduler.isScheduled(task));
+
+        mScheduler.pause();
+        mScheduler.resume();
+        int runs = task.settle();
+        Thread.sleep(PERIOD * 5);
+        assertEquals(runs, task.getRuns());
+    }
+
+    @Test
+    public void throwingTaskKeepsRunning() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+                throw new IllegalStateException("tick");
+            }
+        }, PERIOD);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private static class CountingTask implements Runnable {
+        private final AtomicInteger mRuns = new AtomicInteger();
+        private volatile CountDownLatch mLatch;
+
+        CountingTask(int expected) {
+            expect(expected);
+        }
+
+        void expect(int runs) {
+            mLatch = new CountDownLatch(runs);
+        }
+
+        boolean await() throws InterruptedException {
+            return mLatch.await(5, TimeUnit.SECONDS);
+        }
+
+        // Lets a tick that was already running when the task was stopped finish
+        int settle() throws InterruptedException {
+            Thread.sleep(PERIOD);
+            return mRuns.get();
+        }
+
+        int getRuns() {
+            return mRuns.get();
+        }
+
+        @Override
+        public void run() {
+            mRuns.incrementAndGet();
+            mLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package ca.mcgill.cim.soundmap.tasks;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TaskPoolTest {
+
+    // Callbacks run on the pool's thread, so the test can wait on them
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final List<String> mLog = Collections.synchronizedList(new ArrayList<String>());
+    private TaskPool mPool;
+
+    private class RecordingTask extends Task<Integer, String> {
+        final String mName;
+        final CountDownLatch mRelease;
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile boolean mIsStarted = false;
+        volatile String mCancelledWith = "none";
+
+        RecordingTask(String name, CountDownLatch release) {
+            mName = name;
+            mRelease = release;
+        }
+
+        @Override
+        protected String doInBackground() {
+            mIsStarted = true;
+            mLog.add(mName);
+            publishProgress(1);
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                return "interrupted";
+            }
+            return mName;
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            mLog.add(mName + " progress " + values[0]);
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
+            mLog.add(mName + " done");
+            mDone.countDown();
+        }
+
+        @Override
+        protected void onCancelled(String result) {
+            mCancelledWith = result;
+            mDone.countDown();
+        }
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        drain();
+    }
+
+    @Test
+    public void queuedTasksStartByPriorityThenInOrder() throws InterruptedException {
+        mPool = new TaskPool("Test", 1, 10, DIRECT);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingTask blocker = new RecordingTask("blocker", release);
+        mPool.execute(blocker);
+        awaitStart(blocker);
+
+        RecordingTask low = new RecordingTask("low", new CountDownLatch(0));
+        RecordingTask first = new RecordingTask("first", new CountDownLatch(0));
+        RecordingTask high = new RecordingTask("high", new CountDownLatch(0));
+        RecordingTask second = new RecordingTask("second", new CountDownLatch(0));
+        mPool.execute(low.setPriority(Task.Priority.LOW));
+        mPool.execute(first);
+        mPool.execute(high.setPriority(Task.Priority.HIGH));
+        mPool.execute(second);
+        assertEquals(4, mPool.getQueueDepth());
+
+        release.countDown();
+        assertTrue(low.mDone.await(5, TimeUnit.SECONDS));
+        drain();
+
+        List<String> started = new ArrayList<>();
+        for (String entry : mLog) {
+            if (!entry.contains(" ")) {
+                started.add(entry);
+            }
+        }
+        assertEquals("[blocker, high, first, second, low]", started.toString());
+        assertEquals(4, mPool.getMaxQueueDepth());
+        assertEquals(5, mPool.getCompletedCount());
+        assertTrue(mLog.contains("high progress 1"));
+    }
+
+    @Test
+    public void cancelledTaskNeverStarts() throws InterruptedException {
+        mPool = new TaskPool("Test", 1, 10, DIRECT);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingTask blocker = new RecordingTask("blocker", release);
+        mPool.execute(blocker);
+        awaitStart(blocker);
+
+        RecordingTask queued = new RecordingTask("queued", new CountDownLatch(0));
+        mPool.execute(queued);
+        assertTrue(queued.cancel(false));
+        assertFalse(queued.cancel(false));
+
+        // Delivered at once, since the task left the queue
+        assertEquals(0, queued.mDone.getCount());
+        assertNull(queued.mCancelledWith);
+        assertEquals(0, mPool.getQueueDepth());
+
+        release.countDown();
+        assertTrue(blocker.mDone.await(5, TimeUnit.SECONDS));
+        drain();
+        assertFalse(queued.mIsStarted);
+        assertEquals(1, mPool.getCancelledCount());
+        assertEquals(1, mPool.getCompletedCount());
+    }
+
+    @Test
+    public void cancellingARunningTaskInterruptsIt() throws InterruptedException {
+        mPool = new TaskPool("Test", 1, 10, DIRECT);
+        RecordingTask running = new RecordingTask("running", new CountDownLatch(1));
+        mPool.execute(running);
+        awaitStart(running);
+
+        assertTrue(running.cancel(true));
+        assertTrue(running.mDone.await(5, TimeUnit.SECONDS));
+        assertEquals("interrupted", running.mCancelledWith);
+        assertFalse(mLog.contains("running done"));
+        assertEquals(Task.Status.FINISHED, running.getStatus());
+    }
+
+    @Test
+    public void fullQueueRejectsTasks() throws InterruptedException {
+        mPool = new TaskPool("Test", 1, 1, DIRECT);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingTask blocker = new RecordingTask("blocker", release);
+        assertTrue(mPool.execute(blocker));
+        awaitStart(blocker);
+
+        RecordingTask queued = new RecordingTask("queued", new CountDownLatch(0));
+        RecordingTask rejected = new RecordingTask("rejected", new CountDownLatch(0));
+        assertTrue(mPool.execute(queued));
+        assertFalse(mPool.execute(rejected));
+        assertTrue(rejected.isCancelled());
+        assertEquals(0, rejected.mDone.getCount());
+        assertEquals(1, mPool.getRejectedCount());
+
+        release.countDown();
+        assertTrue(queued.mDone.await(5, TimeUnit.SECONDS));
+        drain();
+        assertFalse(rejected.mIsStarted);
+        assertEquals(2, mPool.getCompletedCount());
+    }
+
+    @Test
+    public void failingTaskIsCancelledAndThePoolCarriesOn() throws InterruptedException {
+        // The failure is rethrown on the pool's thread, which records it instead of crashing
+        final BlockingQueue<Throwable> uncaught = new LinkedBlockingQueue<>();
+        mPool = new TaskPool("Test", 1, 10, DIRECT, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException(Thread t, Throwable e) {
+                        uncaught.add(e);
+                    }
+                });
+                return thread;
+            }
+        });
+        RecordingTask failing = new RecordingTask("failing", new CountDownLatch(0)) {
+            @Override
+            protected String doInBackground() {
+                throw new IllegalStateException("No microphone");
+            }
+        };
+        RecordingTask next = new RecordingTask("next", new CountDownLatch(0));
+        mPool.execute(failing);
+        mPool.execute(next);
+
+        assertTrue(next.mDone.await(5, TimeUnit.SECONDS));
+        assertTrue(failing.mDone.await(5, TimeUnit.SECONDS));
+        drain();
+        assertNull(failing.mCancelledWith);
+        Throwable failure = uncaught.poll(5, TimeUnit.SECONDS);
+        assertEquals("No microphone", failure.getMessage());
+        assertTrue(uncaught.isEmpty());
+        assertEquals(1, mPool.getFailedCount());
+        assertEquals(1, mPool.getCompletedCount());
+        assertEquals(0, mPool.getActiveCount());
+    }
+
+    // The counters are updated once the callbacks have run
+    private void drain() throws InterruptedException {
+        mPool.shutdown();
+        assertTrue(mPool.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    private static void awaitStart(RecordingTask task) throws InterruptedException {
+        while (!task.mIsStarted) {
+            Thread.sleep(1);
+        }
+    }
+}